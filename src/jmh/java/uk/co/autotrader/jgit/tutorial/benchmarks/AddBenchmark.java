@@ -0,0 +1,43 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Measures staging a few modified files with {@code git add .}, as Step 2 does.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=AddBenchmark}
+ */
+public class AddBenchmark extends WorkingTreeBenchmark {
+
+    private int round;
+
+    @Setup(Level.Invocation)
+    public void modifyFiles() {
+        BenchmarkRepositories.modifyFiles(git, size, ++round);
+    }
+
+    @Benchmark
+    public DirCache add() throws GitAPIException {
+        return git.add().addFilepattern(".").call();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.nio.file.Path;
+
+/**
+ * A new bare remote repository of generated content, for the benchmarks of pushes and fetches, which change the remote
+ * or need it served over SSH, and so cannot share the fixture repositories of {@link BenchmarkRepositories}.
+ * <p>
+ * It is cloned from a {@code file://} URL, or over SSH from an {@link InProcessGitSshServer} once {@link #serveOverSsh()}
+ * has been called. Closing it stops the server and deletes the remote along with the clones made under its directory.
+ */
+final class BenchmarkRemote implements AutoCloseable {
+
+    private static final String REPOSITORY_NAME = "repo.git";
+
+    private final Path directory;
+    private InProcessGitSshServer server;
+
+    private BenchmarkRemote(Path directory) {
+        this.directory = directory;
+    }
+
+    static BenchmarkRemote create(int fileCount, int commitCount) {
+        Path directory = BenchmarkRepositories.newDirectory("remote");
+        SyntheticRepositories.createBareRepository(directory.resolve("remote").resolve(REPOSITORY_NAME), fileCount, commitCount);
+        return new BenchmarkRemote(directory);
+    }
+
+    /**
+     * Starts an SSH server for the remote. Use {@link #newSshdSessionFactory()} to connect to it.
+     *
+     * @return this remote
+     */
+    BenchmarkRemote serveOverSsh() {
+        server = new InProcessGitSshServer(directory.resolve("remote")).start();
+        return this;
+    }
+
+    InProcessGitSshServer getServer() {
+        return server;
+    }
+
+    Path getGitDirectory() {
+        return directory.resolve("remote").resolve(REPOSITORY_NAME);
+    }
+
+    String getUrl() {
+        return server != null ? server.getRepositoryUrl(REPOSITORY_NAME) : getGitDirectory().toUri().toString();
+    }
+
+    /**
+     * @return a session factory that trusts the SSH server's host key and logs in with its client key, which the caller must close
+     */
+    SshdSessionFactory newSshdSessionFactory() {
+        return new CustomSshdSessionFactory(server.getClientPrivateKey(), null, server.getHostKeyEntry()).buildSshdSessionFactory();
+    }
+
+    /**
+     * @return a directory, which doesn't exist yet, for a clone of the remote, deleted along with the remote
+     */
+    Path localDirectory(String name) {
+        return directory.resolve(name);
+    }
+
+    /**
+     * Clones the remote into {@link #localDirectory(String)}, over SSH with JGit's current {@link SshSessionFactory}
+     * if the remote is served over SSH.
+     *
+     * @return the clone, which the caller must close
+     */
+    Git cloneRepository(String name) {
+        try {
+            return Git.cloneRepository().setURI(getUrl()).setDirectory(localDirectory(name).toFile()).call();
+        } catch (GitAPIException e) {
+            throw new RuntimeException("Failed to clone the benchmark remote into " + name, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.close();
+            SshSessionFactory.setInstance(null);
+        }
+        BenchmarkRepositories.delete(directory);
+    }
+}
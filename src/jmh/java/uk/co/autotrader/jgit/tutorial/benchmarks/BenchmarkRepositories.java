@@ -0,0 +1,145 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Creates the repositories the JMH benchmarks work on, all on local disk so they run offline.
+ * <p>
+ * The bare fixture repositories are generated once and kept under the directory given by the
+ * {@code jgit.benchmark.directory} system property (the build sets it to {@code build/jmh-repositories}),
+ * so that every fork and every run reuses them. Working trees are cloned from them with a {@code file://} URL.
+ */
+final class BenchmarkRepositories {
+
+    private static final String DIRECTORY_PROPERTY = "jgit.benchmark.directory";
+
+    // How many files the benchmarks change in a working tree, which is about what a single commit by Step 2 touches.
+    static final int MODIFIED_FILE_COUNT = 10;
+
+    private BenchmarkRepositories() {
+    }
+
+    /**
+     * @return the bare fixture repository of the given size, generating it if it doesn't exist yet
+     */
+    static synchronized Path fixture(FixtureSize size) {
+        Path fixture = baseDirectory().resolve("fixtures").resolve(size.getDirectoryName());
+        if (Files.isDirectory(fixture)) {
+            return fixture;
+        }
+        try {
+            // Generate next to the final location and move it into place, so an interrupted run never leaves half a fixture behind.
+            Files.createDirectories(fixture.getParent());
+            Path partial = Files.createTempDirectory(fixture.getParent(), size.name());
+            SyntheticRepositories.createBareRepository(partial, size.getFileCount(), size.getCommitCount(),
+                    size.getLargeBlobCount(), size.getLargeBlobSize());
+            // The generator writes loose objects, whereas a real remote keeps almost everything in packs.
+            try (Git git = Git.open(partial.toFile())) {
+                git.gc().call();
+            }
+            Files.move(partial, fixture, StandardCopyOption.ATOMIC_MOVE);
+            return fixture;
+        } catch (IOException | GitAPIException e) {
+            throw new RuntimeException("Failed to create the fixture repository: " + fixture, e);
+        }
+    }
+
+    /**
+     * @return the URL to clone the fixture repository of the given size from
+     */
+    static String fixtureUrl(FixtureSize size) {
+        return fixture(size).toUri().toString();
+    }
+
+    /**
+     * Clones the fixture repository of the given size into a new, empty directory.
+     *
+     * @return the clone, which the caller must close and then delete with {@link #delete(Git)}
+     */
+    static Git cloneFixture(FixtureSize size) {
+        try {
+            Path directory = newDirectory("working-tree");
+            return Git.cloneRepository().setURI(fixtureUrl(size)).setDirectory(directory.toFile()).call();
+        } catch (GitAPIException e) {
+            throw new RuntimeException("Failed to clone the fixture repository of size " + size, e);
+        }
+    }
+
+    /**
+     * @return a new, empty directory for a benchmark to write to
+     */
+    static Path newDirectory(String prefix) {
+        try {
+            Path workDirectory = baseDirectory().resolve("work");
+            Files.createDirectories(workDirectory);
+            return Files.createTempDirectory(workDirectory, prefix);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create a directory for the benchmark", e);
+        }
+    }
+
+    /**
+     * Rewrites {@link #MODIFIED_FILE_COUNT} of the generated files, spread across the working tree.
+     *
+     * @param round makes the content different from any earlier round, so every round is a real change
+     */
+    static void modifyFiles(Git git, FixtureSize size, int round) {
+        Path workTree = git.getRepository().getWorkTree().toPath();
+        int step = size.getFileCount() / MODIFIED_FILE_COUNT;
+        try {
+            for (int i = 0; i < MODIFIED_FILE_COUNT; i++) {
+                int file = i * step;
+                Files.writeString(workTree.resolve(SyntheticRepositories.filePath(file)),
+                        "file " + file + " modified by benchmark round " + round + "\n", StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to modify the working tree: " + workTree, e);
+        }
+    }
+
+    /**
+     * Closes a clone made by {@link #cloneFixture(FixtureSize)} and deletes it.
+     */
+    static void delete(Git git) {
+        git.close();
+        delete(git.getRepository().getWorkTree().toPath());
+    }
+
+    static void delete(Path directory) {
+        try {
+            FileUtils.deleteDirectory(directory.toFile());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + directory, e);
+        }
+    }
+
+    private static Path baseDirectory() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        return directory != null ? Path.of(directory) : Path.of(System.getProperty("java.io.tmpdir"), "jgit-tutorial-jmh");
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Ref;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Measures checking out a branch, switching back and forth between the tip of {@code main} and its parent commit.
+ * Each commit of a fixture repository rewrites about a tenth of its files, so each checkout rewrites those files.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=CheckoutBenchmark}
+ */
+public class CheckoutBenchmark extends WorkingTreeBenchmark {
+
+    private static final String PREVIOUS_BRANCH = "previous";
+
+    private boolean onMain = true;
+
+    @Override
+    protected void prepare() throws GitAPIException {
+        git.branchCreate().setName(PREVIOUS_BRANCH).setStartPoint("main~1").call();
+    }
+
+    @Benchmark
+    public Ref checkout() throws GitAPIException {
+        onMain = !onMain;
+        return git.checkout().setName(onMain ? "main" : PREVIOUS_BRANCH).call();
+    }
+}
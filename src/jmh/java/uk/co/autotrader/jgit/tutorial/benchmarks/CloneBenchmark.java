@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full clone of a fixture repository from a local {@code file://} remote, as Step 1 makes from GitHub
+ * but without the network, so the time is spent packing, indexing and checking out.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=CloneBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CloneBenchmark {
+
+    @Param
+    public FixtureSize size;
+
+    private String fixtureUrl;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void createFixture() {
+        // Generate the fixture up front, rather than in the first measured clone.
+        fixtureUrl = BenchmarkRepositories.fixtureUrl(size);
+    }
+
+    @Setup(Level.Invocation)
+    public void createDirectory() {
+        directory = BenchmarkRepositories.newDirectory("clone");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteClone() {
+        BenchmarkRepositories.delete(directory);
+    }
+
+    @Benchmark
+    public ObjectId cloneRepository() throws GitAPIException, IOException {
+        try (Git clone = Git.cloneRepository().setURI(fixtureUrl).setDirectory(directory.toFile()).call()) {
+            return clone.getRepository().resolve(Constants.HEAD);
+        }
+    }
+}
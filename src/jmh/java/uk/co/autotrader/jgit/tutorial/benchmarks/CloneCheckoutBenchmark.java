@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.sync.SparseCheckout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing the whole working tree of a fresh clone, which is where most of a clone's time goes
+ * for repositories of many files. With 1 thread it runs JGit's own checkout, just as {@code Git.cloneRepository()} does;
+ * with more, the parallel checkout that {@code RepositorySynchronizer.setCheckoutThreads} turns on.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=CloneCheckoutBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CloneCheckoutBenchmark {
+
+    // A deep history makes no difference to writing a single tree.
+    @Param({"SMALL", "MANY_FILES", "LARGE_BLOBS"})
+    public FixtureSize size;
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    private Git git;
+    private ObjectId head;
+
+    @Setup(Level.Trial)
+    public void cloneWithoutCheckout() throws GitAPIException, IOException {
+        git = Git.cloneRepository()
+                .setURI(BenchmarkRepositories.fixtureUrl(size))
+                .setDirectory(BenchmarkRepositories.newDirectory("clone-checkout").toFile())
+                .setNoCheckout(true)
+                .call();
+        head = git.getRepository().resolve(Constants.HEAD);
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyWorkingTree() throws IOException {
+        Repository repository = git.getRepository();
+        File[] files = repository.getWorkTree().listFiles((directory, name) -> !name.equals(Constants.DOT_GIT));
+        if (files != null) {
+            for (File file : files) {
+                FileUtils.forceDelete(file);
+            }
+        }
+        FileUtils.deleteQuietly(repository.getIndexFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteClone() {
+        BenchmarkRepositories.delete(git);
+    }
+
+    @Benchmark
+    public int checkout() throws IOException {
+        Repository repository = git.getRepository();
+        if (threads == 1) {
+            try (RevWalk revWalk = new RevWalk(repository)) {
+                DirCacheCheckout checkout = new DirCacheCheckout(repository, repository.lockDirCache(), revWalk.parseCommit(head).getTree());
+                checkout.checkout();
+                return checkout.getUpdated().size();
+            }
+        }
+        return new SparseCheckout(List.of()).checkout(repository, head, threads).filesWritten();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.sync.CloneOptions;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clones a fixture repository with each of the {@link CloneOptions}, to compare against a full clone.
+ * How much of the transfer (the size of the .git directory) and of the working tree each option saves,
+ * against a full clone made before the trial, is printed when its trial ends.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=CloneOptionsBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CloneOptionsBenchmark {
+
+    // The first 100 generated files, in both fixtures.
+    private static final String SPARSE_PATH = "src/module-000/package-00";
+
+    public enum Variant {
+        FULL(CloneOptions.FULL),
+        DEPTH_1(new CloneOptions(1, null, null, List.of())),
+        SPARSE(new CloneOptions(0, null, null, List.of(SPARSE_PATH))),
+        BLOB_LIMIT_AND_SPARSE(new CloneOptions(0, null, "blob:limit=102400", List.of("src"))),
+        DEPTH_1_BLOB_LIMIT_AND_SPARSE(new CloneOptions(1, null, "blob:limit=102400", List.of(SPARSE_PATH)));
+
+        private final CloneOptions cloneOptions;
+
+        Variant(CloneOptions cloneOptions) {
+            this.cloneOptions = cloneOptions;
+        }
+    }
+
+    @Param({"MANY_FILES", "LARGE_BLOBS"})
+    public FixtureSize size;
+
+    @Param
+    public Variant variant;
+
+    private String fixtureUrl;
+    private RepositorySynchronizer synchronizer;
+    private LocalDirectory clone;
+    private Sizes fullCloneSizes;
+    private Sizes sizes;
+
+    @Setup(Level.Trial)
+    public void createFixture() throws GitAPIException {
+        fixtureUrl = BenchmarkRepositories.fixtureUrl(size);
+        synchronizer = new RepositorySynchronizer(SyncMode.FRESH_CLONE, true, variant.cloneOptions);
+
+        // A full clone, outside the measurements, for the savings to be compared with.
+        LocalDirectory fullClone = new LocalDirectory(BenchmarkRepositories.newDirectory("full-clone"), "clone");
+        new RepositorySynchronizer(SyncMode.FRESH_CLONE, true).synchronize(fixtureUrl, fullClone);
+        fullCloneSizes = measureAndDelete(fullClone);
+    }
+
+    @TearDown(Level.Trial)
+    public void printSavings() {
+        System.out.printf("%n.git %d KiB (%s), working tree %d KiB (%s), against a full clone's %d KiB and %d KiB%n",
+                sizes.gitBytes() / 1024, saving(sizes.gitBytes(), fullCloneSizes.gitBytes()),
+                sizes.workingTreeBytes() / 1024, saving(sizes.workingTreeBytes(), fullCloneSizes.workingTreeBytes()),
+                fullCloneSizes.gitBytes() / 1024, fullCloneSizes.workingTreeBytes() / 1024);
+    }
+
+    @Setup(Level.Invocation)
+    public void createDirectory() {
+        clone = new LocalDirectory(BenchmarkRepositories.newDirectory("clone"), "clone");
+    }
+
+    @TearDown(Level.Invocation)
+    public void measureAndDeleteClone() {
+        sizes = measureAndDelete(clone);
+    }
+
+    @Benchmark
+    public ObjectId cloneRepository() throws GitAPIException {
+        return synchronizer.synchronize(fixtureUrl, clone).newHead();
+    }
+
+    private static Sizes measureAndDelete(LocalDirectory clone) {
+        Path directory = clone.getPath();
+        long gitBytes = FileUtils.sizeOfDirectory(directory.resolve(".git").toFile());
+        long workingTreeBytes = FileUtils.sizeOfDirectory(directory.toFile()) - gitBytes;
+        BenchmarkRepositories.delete(directory.getParent());
+        return new Sizes(gitBytes, workingTreeBytes);
+    }
+
+    private static String saving(long bytes, long fullCloneBytes) {
+        return fullCloneBytes == 0 ? "no saving" : String.format("%.1f%% saved", 100.0 * (fullCloneBytes - bytes) / fullCloneBytes);
+    }
+
+    private record Sizes(long gitBytes, long workingTreeBytes) {
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Measures committing a few staged files, as Step 2 does after adding them.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=CommitBenchmark}
+ */
+public class CommitBenchmark extends WorkingTreeBenchmark {
+
+    private static final PersonIdent COMMITTER = new PersonIdent("Benchmark", "benchmark@example.com");
+
+    private int round;
+
+    @Setup(Level.Invocation)
+    public void stageChanges() throws GitAPIException {
+        BenchmarkRepositories.modifyFiles(git, size, ++round);
+        git.add().addFilepattern(".").call();
+    }
+
+    @Benchmark
+    public RevCommit commit() throws GitAPIException {
+        return git.commit()
+                .setAuthor(COMMITTER)
+                .setCommitter(COMMITTER)
+                .setMessage("Benchmark round " + round)
+                .call();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.daemon.GitJobDaemon;
+import uk.co.autotrader.jgit.tutorial.daemon.GitJobs;
+import uk.co.autotrader.jgit.tutorial.daemon.RepositoryHandleCache;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of a commit followed by a push when each one starts a new JVM, as running Steps 2 and 3 does,
+ * with the same jobs sent to a warm {@link GitJobDaemon}. Both work on a clone of a synthetic repository
+ * with a local {@code file://} remote, so the difference is the cost of starting the JVM, opening the repository
+ * and running JGit's code before the JIT compiler has optimised it.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=DaemonLatencyBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DaemonLatencyBenchmark {
+
+    private static final int FILE_COUNT = 2000;
+    private static final String COLD = "cold";
+    private static final String WARM = "warm";
+
+    private BenchmarkRemote remote;
+    private Path clones;
+    private GitJobDaemon daemon;
+    private HttpClient client;
+    private String daemonUrl;
+    private int round;
+
+    @Setup(Level.Trial)
+    public void startDaemon() throws GitAPIException, IOException, InterruptedException {
+        remote = BenchmarkRemote.create(FILE_COUNT, 1);
+        clones = Files.createDirectories(remote.localDirectory("clones"));
+        try (GitJobs jobs = newJobs(clones)) {
+            jobs.clone(remote.getUrl(), COLD);
+        }
+
+        daemon = new GitJobDaemon(0, remote.localDirectory("daemon-token"), newJobs(clones), 4, 16).start();
+        client = HttpClient.newHttpClient();
+        daemonUrl = "http://127.0.0.1:" + daemon.getPort();
+        post("/clone", "{\"url\": \"" + remote.getUrl() + "\", \"directory\": \"" + WARM + "\"}");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDaemon() throws IOException, InterruptedException {
+        System.out.printf("%nDaemon status:%n%s%n", client.send(HttpRequest.newBuilder(URI.create(daemonUrl + "/status"))
+                .header("Authorization", "Bearer " + daemon.getToken()).build(), HttpResponse.BodyHandlers.ofString()).body());
+        daemon.close();
+        remote.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void modifyFiles() throws IOException {
+        round++;
+        for (String clone : List.of(COLD, WARM)) {
+            Files.writeString(clones.resolve(clone).resolve(SyntheticRepositories.filePath(round % FILE_COUNT)), "modified in round " + round + "\n");
+        }
+    }
+
+    @Benchmark
+    public int commitAndPushInNewJvm() throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ColdJob.class.getName(),
+                clones.toString(), COLD, Integer.toString(round))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        if (!process.waitFor(2, TimeUnit.MINUTES) || process.exitValue() != 0) {
+            process.destroyForcibly();
+            throw new IllegalStateException("The cold commit and push of round " + round + " failed");
+        }
+        return process.exitValue();
+    }
+
+    @Benchmark
+    public String commitAndPushThroughDaemon() throws IOException, InterruptedException {
+        post("/commit", "{\"directory\": \"" + WARM + "\", \"message\": \"Round " + round + "\"}");
+        return post("/push", "{\"directory\": \"" + WARM + "\"}");
+    }
+
+    /**
+     * The program that the benchmark starts for every cold commit and push, which only does what Steps 2 and 3 would.
+     */
+    public static class ColdJob {
+
+        public static void main(String[] args) throws Exception {
+            try (GitJobs jobs = newJobs(Path.of(args[0]))) {
+                jobs.commit(args[1], "Round " + args[2], new PersonIdent("Config Bot", "config.bot@example.com"));
+                jobs.push(args[1], null);
+            }
+        }
+    }
+
+    private static GitJobs newJobs(Path clones) {
+        RepositoryHandleCache repositories = new RepositoryHandleCache(4,
+                repository -> new CoalescingPushQueue(repository, Constants.DEFAULT_REMOTE_NAME, Duration.ZERO, 3, Duration.ofMillis(50)));
+        return new GitJobs(clones, new RepositorySynchronizer(SyncMode.FRESH_CLONE, true),
+                new RepositorySynchronizer(SyncMode.FAST_FORWARD, true), repositories, 0, List.of(), null);
+    }
+
+    private String post(String path, String json) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(daemonUrl + path))
+                .header("Authorization", "Bearer " + daemon.getToken())
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json)).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(path + " failed with " + response.statusCode() + ": " + response.body());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares committing a small config-file change the way Step 2 does (write the file, check the status, add and commit)
+ * with the {@link DirectCommitter}, and measures concurrent direct commits to separate branches and to a single branch.
+ * The concurrent benchmarks also report how many attempts their commits took.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=DirectCommitBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DirectCommitBenchmark {
+
+    private static final int FILE_COUNT = 5000;
+    private static final int WRITERS = 4;
+    private static final PersonIdent BOT = new PersonIdent("Config Bot", "config.bot@example.com");
+
+    private BenchmarkRemote remote;
+    private Git clone;
+    private Path configFile;
+    private Repository repository;
+    private DirectCommitter committer;
+    private int round;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Writer {
+
+        public long attempts;
+
+        private int index;
+        private int round;
+        private DirectCommitter independentCommitter;
+
+        @Setup(Level.Trial)
+        public void create(DirectCommitBenchmark benchmark, ThreadParams threadParams) {
+            index = threadParams.getThreadIndex();
+            // A separate committer stands in for a separate process: they only coordinate through the ref update.
+            independentCommitter = new DirectCommitter(benchmark.repository, 100);
+        }
+
+        @Setup(Level.Iteration)
+        public void resetCounters() {
+            attempts = 0;
+        }
+
+        private ObjectId commit(DirectCommitter committer, String branch) {
+            round++;
+            ChangeSet changes = new ChangeSet().put("config/writer-" + index + ".yaml", "revision: " + round + "\n");
+            DirectCommitter.CommitResult result = committer.commit(branch, changes, BOT, "Update config " + round);
+            attempts += result.attempts();
+            return result.commitId();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createRemote() throws IOException {
+        remote = BenchmarkRemote.create(FILE_COUNT, 1);
+        clone = remote.cloneRepository("clone");
+        configFile = clone.getRepository().getWorkTree().toPath().resolve("config/single-writer.yaml");
+        Files.createDirectories(configFile.getParent());
+        repository = new FileRepositoryBuilder().setGitDir(remote.getGitDirectory().toFile()).setMustExist(true).build();
+        committer = new DirectCommitter(repository);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRemote() {
+        repository.close();
+        clone.close();
+        remote.close();
+    }
+
+    @Benchmark
+    public RevCommit commitThroughWorkingTree() throws GitAPIException, IOException {
+        round++;
+        Files.writeString(configFile, "revision: " + round + "\n");
+        if (clone.status().call().isClean()) {
+            return null;
+        }
+        clone.add().addFilepattern(".").call();
+        return clone.commit().setCommitter(BOT).setAuthor(BOT).setMessage("Update config " + round).setSign(false).call();
+    }
+
+    @Benchmark
+    public ObjectId commitDirectly() {
+        round++;
+        ChangeSet changes = new ChangeSet().put("config/single-writer.yaml", "revision: " + round + "\n");
+        return committer.commit("main", changes, BOT, "Update config " + round).commitId();
+    }
+
+    @Benchmark
+    @Threads(WRITERS)
+    public ObjectId commitDirectlyToSeparateBranches(Writer writer) {
+        return writer.commit(committer, "bot-" + writer.index);
+    }
+
+    @Benchmark
+    @Threads(WRITERS)
+    public ObjectId commitDirectlyToOneBranch(Writer writer) {
+        return writer.commit(committer, "shared");
+    }
+
+    @Benchmark
+    @Threads(WRITERS)
+    public ObjectId commitDirectlyToOneBranchFromIndependentCommitters(Writer writer) {
+        return writer.commit(writer.independentCommitter, "contended");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+/**
+ * The shapes of synthetic repository that the JMH benchmarks run against.
+ * Each one stresses a different dimension: the number of files, the depth of the history, or the size of the files.
+ */
+public enum FixtureSize {
+
+    SMALL(1_000, 10, 0, 0),
+    MANY_FILES(20_000, 10, 0, 0),
+    DEEP_HISTORY(1_000, 1_000, 0, 0),
+    LARGE_BLOBS(1_000, 10, 20, 5 * 1024 * 1024);
+
+    private final int fileCount;
+    private final int commitCount;
+    private final int largeBlobCount;
+    private final int largeBlobSize;
+
+    FixtureSize(int fileCount, int commitCount, int largeBlobCount, int largeBlobSize) {
+        this.fileCount = fileCount;
+        this.commitCount = commitCount;
+        this.largeBlobCount = largeBlobCount;
+        this.largeBlobSize = largeBlobSize;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    public int getLargeBlobCount() {
+        return largeBlobCount;
+    }
+
+    public int getLargeBlobSize() {
+        return largeBlobSize;
+    }
+
+    /**
+     * @return a directory name that identifies the fixture's contents, so a cached fixture is regenerated if they change
+     */
+    String getDirectoryName() {
+        return String.format("%d-files-%d-commits-%dx%d-large.git", fileCount, commitCount, largeBlobCount, largeBlobSize);
+    }
+}
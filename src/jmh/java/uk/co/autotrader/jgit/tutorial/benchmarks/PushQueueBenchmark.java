@@ -0,0 +1,177 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.push.PushOutcome;
+import uk.co.autotrader.jgit.tutorial.transport.PooledSshSessionFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares pushing after every commit with the {@link CoalescingPushQueue}, with several producers committing
+ * to their own branches of one repository served by an {@link InProcessGitSshServer}. A third benchmark splits the producers
+ * between two clones pushing to the same branch, so each queue has to rebuild and retry when the other one pushes first.
+ * The number of pushes the server received, and the statistics of the queues, are printed when each trial ends.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=PushQueueBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(PushQueueBenchmark.PRODUCERS)
+public class PushQueueBenchmark {
+
+    static final int PRODUCERS = 8;
+    private static final int COMMITS_PER_PRODUCER = 25;
+    private static final PersonIdent BOT = new PersonIdent("Config Bot", "config.bot@example.com");
+
+    private BenchmarkRemote remote;
+    private PooledSshSessionFactory sessionFactory;
+    private Git producers;
+    private Git otherHost;
+    private DirectCommitter committer;
+    private DirectCommitter otherCommitter;
+    private CoalescingPushQueue queue;
+    private CoalescingPushQueue otherQueue;
+    private final AtomicLong commits = new AtomicLong();
+    private long pushesBefore;
+
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private int index;
+        private int round;
+
+        @Setup(Level.Trial)
+        public void create(ThreadParams threadParams) {
+            index = threadParams.getThreadIndex();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        remote = BenchmarkRemote.create(500, 1).serveOverSsh();
+        sessionFactory = new PooledSshSessionFactory(remote.newSshdSessionFactory(), Duration.ofMinutes(1));
+        SshSessionFactory.setInstance(sessionFactory);
+        producers = cloneBare("producers.git");
+        otherHost = cloneBare("other-host.git");
+        committer = new DirectCommitter(producers.getRepository());
+        otherCommitter = new DirectCommitter(otherHost.getRepository());
+        queue = new CoalescingPushQueue(producers.getRepository(), Constants.DEFAULT_REMOTE_NAME, Duration.ofMillis(20), 10, Duration.ofMillis(50));
+        otherQueue = new CoalescingPushQueue(otherHost.getRepository(), Constants.DEFAULT_REMOTE_NAME, Duration.ofMillis(20), 10, Duration.ofMillis(50));
+        pushesBefore = remote.getServer().getReceivePacks();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        System.out.printf("%n%d commits, %d pushes%n", commits.get(), remote.getServer().getReceivePacks() - pushesBefore);
+        printStatistics(queue.getStatistics());
+        printStatistics(otherQueue.getStatistics());
+        queue.close();
+        otherQueue.close();
+        producers.close();
+        otherHost.close();
+        sessionFactory.close();
+        remote.close();
+    }
+
+    @Benchmark
+    public Iterable<PushResult> pushPerCommit(Producer producer) throws GitAPIException {
+        String branch = "push-per-commit-" + producer.index;
+        commit(committer, branch, producer);
+        return producers.push().setRefSpecs(new RefSpec(Constants.R_HEADS + branch + ":" + Constants.R_HEADS + branch)).call();
+    }
+
+    @Benchmark
+    public PushOutcome pushThroughQueue(Producer producer) {
+        String branch = "push-queue-" + producer.index;
+        commit(committer, branch, producer);
+        return queue.submit(branch).join();
+    }
+
+    /**
+     * Half of the producers commit through a second clone with its own queue, as a bot on another host would,
+     * so each queue's pushes to main are regularly rejected because the other one got there first.
+     * <p>
+     * Under endless load the host that lost the race keeps losing it, as the other one pushes again before it has rebuilt
+     * its branch, so this measures how long the producers take to push a fixed number of commits each instead.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1, batchSize = COMMITS_PER_PRODUCER)
+    @Measurement(iterations = 5, batchSize = COMMITS_PER_PRODUCER)
+    public PushOutcome pushThroughQueuesOfTwoHostsToOneBranch(Producer producer) {
+        boolean thisHost = producer.index % 2 == 0;
+        commit(thisHost ? committer : otherCommitter, "main", producer);
+        return (thisHost ? queue : otherQueue).submit("main").join();
+    }
+
+    private void commit(DirectCommitter producerCommitter, String branch, Producer producer) {
+        producer.round++;
+        String path = "config/producer-" + producer.index + ".yaml";
+        producerCommitter.commit(branch, new ChangeSet().put(path, "revision: " + producer.round + "\n"), BOT, "Update " + path);
+        commits.incrementAndGet();
+    }
+
+    private Git cloneBare(String name) {
+        try {
+            return Git.cloneRepository().setURI(remote.getUrl()).setBare(true).setDirectory(remote.localDirectory(name).toFile()).call();
+        } catch (GitAPIException e) {
+            throw new RuntimeException("Failed to clone the benchmark remote into " + name, e);
+        }
+    }
+
+    private static void printStatistics(CoalescingPushQueue.Statistics statistics) {
+        if (statistics.requests() == 0) {
+            return;
+        }
+        System.out.printf("  %d requests, %d pushes (%.1f requests per push), %d rejected, %d commits rebuilt, %d failed, latency avg %d ms max %d ms%n",
+                statistics.requests(), statistics.pushes(), statistics.requestsPerPush(),
+                statistics.rejectedPushes(), statistics.rebuiltCommits(), statistics.failedRequests(),
+                statistics.averageLatency().toMillis(), statistics.maxLatency().toMillis());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.sync.RefScope;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clones and fetches a remote of many branches and tags, served over SSH with protocol v2 by an {@link InProcessGitSshServer},
+ * for every ref and for a {@link RefScope} of one branch and a few tags. The number of refs in the clone is printed
+ * when each trial ends, and the synchronizer logs how many refs the server advertised for each clone and fetch.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=RefScopedFetchBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RefScopedFetchBenchmark {
+
+    private static final int BRANCH_COUNT = 20_000;
+    private static final int TAG_COUNT = 20_000;
+
+    public enum Refs {
+        ALL(RefScope.ALL),
+        MAIN_AND_V1_TAGS(new RefScope(List.of("main"), List.of("v1.")));
+
+        private final RefScope refScope;
+
+        Refs(RefScope refScope) {
+            this.refScope = refScope;
+        }
+    }
+
+    @Param
+    public Refs refs;
+
+    private BenchmarkRemote remote;
+    private SshdSessionFactory sessionFactory;
+
+    @State(Scope.Benchmark)
+    public static class NewClone {
+
+        private RepositorySynchronizer cloner;
+        private Path directory;
+
+        @Setup(Level.Trial)
+        public void create(RefScopedFetchBenchmark benchmark) {
+            cloner = new RepositorySynchronizer(SyncMode.FRESH_CLONE, true).setRefScope(benchmark.refs.refScope);
+        }
+
+        @Setup(Level.Invocation)
+        public void createDirectory() {
+            directory = BenchmarkRepositories.newDirectory("clone");
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteClone() {
+            BenchmarkRepositories.delete(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ExistingClone {
+
+        private RepositorySynchronizer synchronizer;
+        private LocalDirectory clone;
+
+        @Setup(Level.Trial)
+        public void create(RefScopedFetchBenchmark benchmark) throws GitAPIException, IOException {
+            clone = new LocalDirectory(Files.createDirectories(benchmark.remote.localDirectory("clones")), "clone");
+            new RepositorySynchronizer(SyncMode.FRESH_CLONE, true).setRefScope(benchmark.refs.refScope)
+                    .synchronize(benchmark.remote.getUrl(), clone);
+            synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true).setRefScope(benchmark.refs.refScope);
+        }
+
+        @TearDown(Level.Trial)
+        public void printRefs() throws IOException {
+            try (Git git = Git.open(clone.getPath().toFile())) {
+                System.out.printf("%n%d refs in the clone%n", git.getRepository().getRefDatabase().getRefs().size());
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        remote = BenchmarkRemote.create(50, 5).serveOverSsh();
+        addRefs(remote.getGitDirectory());
+        sessionFactory = remote.newSshdSessionFactory();
+        SshSessionFactory.setInstance(sessionFactory);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        sessionFactory.close();
+        remote.close();
+    }
+
+    @Benchmark
+    public ObjectId cloneRepository(NewClone newClone) throws GitAPIException {
+        return newClone.cloner.synchronize(remote.getUrl(), new LocalDirectory(newClone.directory, "clone")).newHead();
+    }
+
+    @Benchmark
+    public ObjectId fetch(ExistingClone existingClone) throws GitAPIException {
+        return existingClone.synchronizer.synchronize(remote.getUrl(), existingClone.clone).newHead();
+    }
+
+    /**
+     * Adds the branches and tags to the remote's packed-refs file, all pointing at its main branch,
+     * as writing them one at a time would create tens of thousands of loose ref files.
+     */
+    private static void addRefs(Path gitDirectory) throws IOException {
+        ObjectId main;
+        try (Git git = Git.open(gitDirectory.toFile())) {
+            main = git.getRepository().resolve(Constants.R_HEADS + "main");
+        }
+        List<String> refs = new ArrayList<>();
+        for (int i = 0; i < BRANCH_COUNT; i++) {
+            refs.add(String.format("%sfeature/branch-%05d", Constants.R_HEADS, i));
+        }
+        for (int i = 0; i < TAG_COUNT; i++) {
+            refs.add(String.format("%sv%d.%d", Constants.R_TAGS, i / 1000, i % 1000));
+        }
+        refs.add(Constants.R_HEADS + "main");
+        refs.sort(null);
+
+        StringBuilder packedRefs = new StringBuilder("# pack-refs with: peeled fully-peeled sorted \n");
+        for (String ref : refs) {
+            packedRefs.append(main.name()).append(' ').append(ref).append('\n');
+        }
+        Files.writeString(gitDirectory.resolve(Constants.PACKED_REFS), packedRefs);
+        Files.deleteIfExists(gitDirectory.resolve(Constants.R_HEADS + "main"));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.transport.PooledSshSessionFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares a fresh SSH session per operation with the shared {@link PooledSshSessionFactory},
+ * by running concurrent fetches against an {@link InProcessGitSshServer}.
+ * The number of SSH handshakes each trial made is printed when it ends.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=SshSessionReuseBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class SshSessionReuseBenchmark {
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private BenchmarkRemote remote;
+    private SshdSessionFactory sshdSessionFactory;
+    private PooledSshSessionFactory pooledSessionFactory;
+    private Path clone;
+    private long sessionsBefore;
+    private final AtomicLong fetches = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        remote = BenchmarkRemote.create(50, 5).serveOverSsh();
+        sshdSessionFactory = remote.newSshdSessionFactory();
+        if (pooled) {
+            pooledSessionFactory = new PooledSshSessionFactory(sshdSessionFactory, Duration.ofMinutes(1));
+            SshSessionFactory.setInstance(pooledSessionFactory);
+        } else {
+            SshSessionFactory.setInstance(sshdSessionFactory);
+        }
+        remote.cloneRepository("clone").close();
+        clone = remote.localDirectory("clone");
+        sessionsBefore = remote.getServer().getSessionsOpened();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        long handshakes = remote.getServer().getSessionsOpened() - sessionsBefore;
+        if (pooledSessionFactory != null) {
+            PooledSshSessionFactory.Statistics statistics = pooledSessionFactory.getStatistics();
+            System.out.printf("%n%d fetches, %d SSH handshakes, %d sessions reused, ~%d ms of handshakes saved%n",
+                    fetches.get(), handshakes, statistics.reusedSessions(), statistics.estimatedTimeSaved().toMillis());
+            pooledSessionFactory.close();
+        } else {
+            System.out.printf("%n%d fetches, %d SSH handshakes%n", fetches.get(), handshakes);
+            sshdSessionFactory.close();
+        }
+        remote.close();
+    }
+
+    @Benchmark
+    public FetchResult fetch() throws GitAPIException, IOException {
+        try (Git git = Git.open(clone.toFile())) {
+            fetches.incrementAndGet();
+            return git.fetch().call();
+        }
+    }
+}
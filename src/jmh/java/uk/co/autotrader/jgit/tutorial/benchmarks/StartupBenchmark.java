@@ -0,0 +1,276 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.Step1_CloningARemoteRepository;
+import uk.co.autotrader.jgit.tutorial.Step2_AddingAndCommittingChanges;
+import uk.co.autotrader.jgit.tutorial.Step3_PushingChanges;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long Steps 1 to 3 take as short-lived jobs: each invocation starts the step's own main class in a new JVM,
+ * pointed at an {@link InProcessGitSshServer} through the {@code remoteUrl}, {@code localDirectoryBase},
+ * {@code localDirectoryName} and {@code knownHost} system properties that the Configuration class reads.
+ * The clone and the push are timed until the step opens its first SSH connection, as the server sees it, and until
+ * the JVM exits. Step 2 never connects to the remote, so it is only timed until it exits.
+ * <p>
+ * With {@code cds} set, the steps run with an application class data sharing archive, as {@code ./gradlew run -Pcds} does.
+ * The first warmup invocation of each step is the training run that writes its archive. As classes can only be archived
+ * from jars, any directory on the benchmark's classpath is packaged into a jar for the steps to run from.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=StartupBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final int FILE_COUNT = 1000;
+    private static final Duration STEP_TIMEOUT = Duration.ofMinutes(2);
+    private static final PersonIdent BOT = new PersonIdent("Config Bot", "config.bot@example.com");
+
+    @Param({"false", "true"})
+    public boolean cds;
+
+    private BenchmarkRemote remote;
+    private SshdSessionFactory sessionFactory;
+    private Path clones;
+    private String classPath;
+    private List<String> jvmOptions;
+    private Process running;
+    private String runningStep;
+
+    @State(Scope.Benchmark)
+    public static class NewClone {
+
+        private int count;
+        private String name;
+
+        @Setup(Level.Invocation)
+        public void nextName() {
+            name = "clone-" + ++count;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ChangedClone {
+
+        private static final String NAME = "changed";
+
+        private Path workTree;
+        private int round;
+
+        @Setup(Level.Trial)
+        public void create(StartupBenchmark benchmark) {
+            workTree = benchmark.cloneRepository(NAME);
+        }
+
+        @Setup(Level.Invocation)
+        public void changeFile() throws IOException {
+            round++;
+            Files.writeString(workTree.resolve(SyntheticRepositories.filePath(round % FILE_COUNT)), "changed in round " + round + "\n");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CommittedClone {
+
+        private static final String NAME = "committed";
+
+        private Git clone;
+        private int round;
+
+        @Setup(Level.Trial)
+        public void create(StartupBenchmark benchmark) throws IOException {
+            clone = Git.open(benchmark.cloneRepository(NAME).toFile());
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            clone.close();
+        }
+
+        @Setup(Level.Invocation)
+        public void commitChange() throws IOException, GitAPIException {
+            round++;
+            String path = SyntheticRepositories.filePath(round % FILE_COUNT);
+            Files.writeString(clone.getRepository().getWorkTree().toPath().resolve(path), "pushed in round " + round + "\n");
+            clone.add().addFilepattern(path).call();
+            clone.commit().setAuthor(BOT).setCommitter(BOT).setMessage("Round " + round).setSign(false).call();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        remote = BenchmarkRemote.create(FILE_COUNT, 10).serveOverSsh();
+        sessionFactory = remote.newSshdSessionFactory();
+        SshSessionFactory.setInstance(sessionFactory);
+        clones = Files.createDirectories(remote.localDirectory("clones"));
+        classPath = jarClassPath(Files.createDirectories(remote.localDirectory("classpath")));
+        jvmOptions = cds
+                ? List.of("-XX:+AutoCreateSharedArchive", "-XX:SharedArchiveFile=" + Files.createDirectories(remote.localDirectory("cds")).resolve("%s.jsa"))
+                : List.of();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        sessionFactory.close();
+        remote.close();
+    }
+
+    /**
+     * Lets a step timed until its first connection finish its work before the next invocation starts.
+     */
+    @TearDown(Level.Invocation)
+    public void awaitExit() throws InterruptedException {
+        if (running != null) {
+            Process process = running;
+            running = null;
+            awaitExit(process, runningStep);
+        }
+    }
+
+    @Benchmark
+    public Process cloneUntilFirstConnection(NewClone newClone) throws IOException, InterruptedException {
+        return startUntilFirstConnection(Step1_CloningARemoteRepository.class, newClone.name);
+    }
+
+    @Benchmark
+    public int clone(NewClone newClone) throws IOException, InterruptedException {
+        return run(Step1_CloningARemoteRepository.class, newClone.name);
+    }
+
+    @Benchmark
+    public int commit(ChangedClone changedClone) throws IOException, InterruptedException {
+        return run(Step2_AddingAndCommittingChanges.class, ChangedClone.NAME);
+    }
+
+    @Benchmark
+    public Process pushUntilFirstConnection(CommittedClone committedClone) throws IOException, InterruptedException {
+        return startUntilFirstConnection(Step3_PushingChanges.class, CommittedClone.NAME);
+    }
+
+    @Benchmark
+    public int push(CommittedClone committedClone) throws IOException, InterruptedException {
+        return run(Step3_PushingChanges.class, CommittedClone.NAME);
+    }
+
+    private Process startUntilFirstConnection(Class<?> step, String directoryName) throws IOException, InterruptedException {
+        long sessions = remote.getServer().getSessionsOpened();
+        running = start(step, directoryName);
+        runningStep = step.getSimpleName();
+        if (!remote.getServer().awaitSessionOpened(sessions, STEP_TIMEOUT)) {
+            throw new IllegalStateException(step.getSimpleName() + " never connected to the server");
+        }
+        return running;
+    }
+
+    private int run(Class<?> step, String directoryName) throws IOException, InterruptedException {
+        return awaitExit(start(step, directoryName), step.getSimpleName());
+    }
+
+    private Process start(Class<?> step, String directoryName) throws IOException {
+        InProcessGitSshServer server = remote.getServer();
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        jvmOptions.forEach(option -> command.add(option.formatted(step.getSimpleName())));
+        command.addAll(List.of(
+                "-DremoteUrl=" + remote.getUrl(),
+                "-DlocalDirectoryBase=" + clones,
+                "-DlocalDirectoryName=" + directoryName,
+                "-DknownHost=[127.0.0.1]:" + server.getPort() + " " + server.getHostKeyEntry(),
+                "-cp", classPath, step.getName()));
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        processBuilder.environment().put("SSH_KEY", server.getClientPrivateKey());
+        return processBuilder.start();
+    }
+
+    private static int awaitExit(Process process, String step) throws InterruptedException {
+        if (!process.waitFor(STEP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS) || process.exitValue() != 0) {
+            process.destroyForcibly();
+            throw new IllegalStateException(step + " failed");
+        }
+        return process.exitValue();
+    }
+
+    private Path cloneRepository(String name) {
+        remote.cloneRepository("clones/" + name).close();
+        return clones.resolve(name);
+    }
+
+    private static String jarClassPath(Path jarDirectory) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            Path path = Path.of(entry);
+            if (Files.isDirectory(path)) {
+                Path jar = jarDirectory.resolve("classes-" + entries.size() + ".jar");
+                writeJar(path, jar);
+                entries.add(jar.toString());
+            } else {
+                entries.add(entry);
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static void writeJar(Path directory, Path jar) throws IOException {
+        try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar));
+             Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                output.putNextEntry(new JarEntry(directory.relativize(file).toString().replace(File.separatorChar, '/')));
+                Files.copy(file, output);
+                output.closeEntry();
+            }
+        }
+    }
+}
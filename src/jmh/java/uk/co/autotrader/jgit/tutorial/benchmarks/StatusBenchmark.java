@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Measures {@code git status} on a working tree with a few modified files, as Step 2 runs it to decide whether there
+ * is anything to commit. It reads the index and hashes every file whose timestamp doesn't match it.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=StatusBenchmark}
+ */
+public class StatusBenchmark extends WorkingTreeBenchmark {
+
+    @Override
+    protected void prepare() {
+        BenchmarkRepositories.modifyFiles(git, size, 0);
+    }
+
+    @Benchmark
+    public Status status() throws GitAPIException {
+        return git.status().call();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.Git;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The base of the benchmarks that work on a clone of a fixture repository, with a working tree.
+ * Each trial clones the fixture afresh, so changes made by one trial don't affect the next.
+ * <p>
+ * Every benchmark reports both its throughput and the percentiles of its latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public abstract class WorkingTreeBenchmark {
+
+    @Param
+    public FixtureSize size;
+
+    protected Git git;
+
+    @Setup(Level.Trial)
+    public void cloneFixture() throws Exception {
+        git = BenchmarkRepositories.cloneFixture(size);
+        prepare();
+    }
+
+    /**
+     * Prepares the clone for the benchmark, after it has been cloned and before the trial starts.
+     */
+    protected void prepare() throws Exception {
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteClone() {
+        BenchmarkRepositories.delete(git);
+    }
+}
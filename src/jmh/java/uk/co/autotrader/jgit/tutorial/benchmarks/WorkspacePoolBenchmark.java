@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.benchmarks;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.autotrader.jgit.tutorial.helpers.DirectoryTrash;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+import uk.co.autotrader.jgit.tutorial.workspace.WorkspacePool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how long a job waits for its working tree when each job deletes the last job's clone and clones again,
+ * with taking a recycled workspace from a {@link WorkspacePool}. Between two measurements, a job changes some files
+ * and leaves build output behind, which the next job must not see.
+ * <p>
+ * Run with: {@code ./gradlew jmh -PjmhIncludes=WorkspacePoolBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WorkspacePoolBenchmark {
+
+    private static final int FILES_CHANGED_PER_JOB = 10;
+
+    @Param({"SMALL", "MANY_FILES"})
+    public FixtureSize size;
+
+    private String fixtureUrl;
+    private int job;
+
+    @State(Scope.Benchmark)
+    public static class Reclone {
+
+        private Path directory;
+        private RepositorySynchronizer cloner;
+        private LocalDirectory workTree;
+
+        @Setup(Level.Trial)
+        public void create() {
+            directory = BenchmarkRepositories.newDirectory("reclone");
+            cloner = new RepositorySynchronizer(SyncMode.FRESH_CLONE, true);
+            workTree = new LocalDirectory(directory, "clone");
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            BenchmarkRepositories.delete(directory);
+        }
+
+        @TearDown(Level.Invocation)
+        public void runJob(WorkspacePoolBenchmark benchmark) throws IOException {
+            benchmark.runJob(workTree.getPath());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+
+        private Path directory;
+        private DirectoryTrash trash;
+        private WorkspacePool pool;
+        private WorkspacePool.Workspace workspace;
+
+        @Setup(Level.Trial)
+        public void start(WorkspacePoolBenchmark benchmark) throws InterruptedException {
+            directory = BenchmarkRepositories.newDirectory("pool");
+            trash = new DirectoryTrash(directory.resolve("trash"));
+            pool = new WorkspacePool(benchmark.fixtureUrl, directory.resolve("workspaces"), 1,
+                    new RepositorySynchronizer(SyncMode.FRESH_CLONE, true), trash).start();
+            // Jobs arrive after the pool has had time to clone its workspace, as they would in a long-running process.
+            while (pool.getStatistics().idleWorkspaces() == 0) {
+                Thread.sleep(100);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            WorkspacePool.Statistics statistics = pool.getStatistics();
+            System.out.printf("%n%d acquired, %d recycled, %d cloned, %d discarded%n",
+                    statistics.acquired(), statistics.recycled(), statistics.provisioned(), statistics.discarded());
+            pool.close();
+            trash.close();
+            BenchmarkRepositories.delete(directory);
+        }
+
+        @TearDown(Level.Invocation)
+        public void runJobAndReturnWorkspace(WorkspacePoolBenchmark benchmark) throws IOException {
+            try (WorkspacePool.Workspace finished = workspace) {
+                benchmark.runJob(finished.getPath());
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createFixture() {
+        fixtureUrl = BenchmarkRepositories.fixtureUrl(size);
+    }
+
+    @Benchmark
+    public ObjectId deleteAndClone(Reclone reclone) throws GitAPIException {
+        return reclone.cloner.synchronize(fixtureUrl, reclone.workTree).newHead();
+    }
+
+    @Benchmark
+    public WorkspacePool.Workspace acquireFromPool(Pool pool) throws GitAPIException {
+        pool.workspace = pool.pool.acquire("main");
+        return pool.workspace;
+    }
+
+    private void runJob(Path workTree) throws IOException {
+        job++;
+        if (Files.exists(workTree.resolve("build"))) {
+            throw new IllegalStateException("The last job's build output is still in " + workTree);
+        }
+        for (int i = 0; i < FILES_CHANGED_PER_JOB; i++) {
+            int file = (job * FILES_CHANGED_PER_JOB + i) * 7 % size.getFileCount();
+            Files.writeString(workTree.resolve(SyntheticRepositories.filePath(file)), "changed by job " + job + "\n", StandardCharsets.UTF_8);
+        }
+        Files.createDirectories(workTree.resolve("build"));
+        Files.writeString(workTree.resolve("build/output.txt"), "job " + job + "\n", StandardCharsets.UTF_8);
+    }
+}
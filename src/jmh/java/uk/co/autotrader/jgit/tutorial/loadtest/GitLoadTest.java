@@ -0,0 +1,346 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.loadtest;
+
+import com.sun.management.OperatingSystemMXBean;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+import uk.co.autotrader.jgit.tutorial.loadtest.LoadTestResults.OperationSummary;
+import uk.co.autotrader.jgit.tutorial.loadtest.LoadTestResults.Outcome;
+import uk.co.autotrader.jgit.tutorial.loadtest.OperationMix.Operation;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.transport.PooledSshSessionFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives the clone, commit and push flow of Steps 1 to 3 from many concurrent simulated clients against
+ * an {@link InProcessGitSshServer}, so the tutorial's capacity can be measured without load on a real git host.
+ * <p>
+ * Each client has its own working copy of one shared repository and, until the step's time is up, picks clones,
+ * local commits and pushes to {@code main} at random in the proportions of the {@link OperationMix}.
+ * A push that is rejected because another client pushed first is counted as a rejection, and the client then
+ * resets to the remote's branch before carrying on. The test runs one step per number of clients, and logs each
+ * step's throughput, latency percentiles, error and rejection rates, and CPU time per request on both sides, so
+ * the number of clients where throughput stops rising shows where the client tops out.
+ * <p>
+ * Run with: {@code ./gradlew loadTest -Pclients=1,4,16 -Pmix=clone=1,commit=4,push=2 -Pseconds=30}
+ */
+public class GitLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(GitLoadTest.class);
+
+    // The numbers of concurrent clients to run the test with, one step each.
+    private static final String DEFAULT_CLIENTS = "1,2,4,8,16";
+    private static final String DEFAULT_MIX = "clone=1,commit=4,push=2";
+    // How long each step runs for.
+    private static final int DEFAULT_SECONDS = 20;
+    // The size of the repository the clients work on.
+    private static final int REPOSITORY_FILES = 500;
+    private static final int REPOSITORY_COMMITS = 10;
+    // How long an idle SSH session stays open for reuse, as Steps 1 to 3 do when Configuration's SSH_SESSION_IDLE_TIMEOUT is set.
+    // Set to null to open a new SSH session for every clone, fetch and push.
+    private static final Duration SSH_SESSION_IDLE_TIMEOUT = Duration.ofMinutes(1);
+    private static final String BRANCH = "main";
+    private static final PersonIdent BOT = new PersonIdent("Load Test Bot", "load.test.bot@example.com");
+
+    public static void main(String[] args) throws Exception {
+        // The shape of the load is supplied as system properties when running the program.
+        List<Integer> clientCounts = parseClientCounts(System.getProperty("clients", DEFAULT_CLIENTS));
+        OperationMix mix = OperationMix.parse(System.getProperty("mix", DEFAULT_MIX));
+        Duration stepDuration = Duration.ofSeconds(Integer.parseInt(System.getProperty("seconds", String.valueOf(DEFAULT_SECONDS))));
+
+        Path workingDirectory = Files.createTempDirectory("git-load-test");
+        try (InProcessGitSshServer server = new InProcessGitSshServer(workingDirectory.resolve("remote")).start()) {
+            SyntheticRepositories.createBareRepository(workingDirectory.resolve("remote/repo.git"), REPOSITORY_FILES, REPOSITORY_COMMITS);
+            String remoteUrl = server.getRepositoryUrl("repo.git");
+
+            CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(server.getClientPrivateKey(), null, server.getHostKeyEntry());
+            SshSessionFactory sessionFactory = SSH_SESSION_IDLE_TIMEOUT == null
+                    ? sshdSessionFactory.buildSshdSessionFactory()
+                    : new PooledSshSessionFactory(sshdSessionFactory.buildSshdSessionFactory(), SSH_SESSION_IDLE_TIMEOUT);
+            SshSessionFactory.setInstance(sessionFactory);
+
+            logger.info("Load testing {} with a mix of {} for {} s per step", remoteUrl, mix, stepDuration.toSeconds());
+            List<String> stepSummaries = new ArrayList<>();
+            for (int clients : clientCounts) {
+                stepSummaries.add(runStep(server, remoteUrl, workingDirectory.resolve("clients-" + clients), clients, mix, stepDuration));
+            }
+            logger.info("Throughput by number of clients:\n{}", String.join("\n", stepSummaries));
+        } finally {
+            SshSessionFactory instance = SshSessionFactory.getInstance();
+            SshSessionFactory.setInstance(null);
+            if (instance instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+            FileUtils.deleteDirectory(workingDirectory.toFile());
+        }
+    }
+
+    private static String runStep(InProcessGitSshServer server, String remoteUrl, Path clientsDirectory, int clientCount,
+                                  OperationMix mix, Duration stepDuration) throws Exception {
+        LoadTestResults results = new LoadTestResults();
+        try (ExecutorService executor = Executors.newFixedThreadPool(clientCount)) {
+            // Every client starts from its own clone, made before the clock starts.
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i < clientCount; i++) {
+                clients.add(new Client(i, remoteUrl, clientsDirectory.resolve("client-" + i), results));
+            }
+            awaitAll(executor, clients.stream().<Callable<Void>>map(client -> () -> {
+                client.cloneWorkspace();
+                return null;
+            }).toList());
+
+            ServerUsage before = ServerUsage.of(server);
+            long processCpuBefore = processCpuNanos();
+            long start = System.nanoTime();
+            long deadline = start + stepDuration.toNanos();
+            awaitAll(executor, clients.stream().<Callable<Void>>map(client -> () -> {
+                client.runUntil(deadline, mix);
+                return null;
+            }).toList());
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            ServerUsage serverUsage = ServerUsage.of(server).minus(before);
+            long processCpu = processCpuNanos() - processCpuBefore;
+
+            for (Client client : clients) {
+                client.close();
+            }
+            return logStep(clientCount, elapsed, results.summaries(), serverUsage, processCpu - serverUsage.totalCpuNanos());
+        } finally {
+            FileUtils.deleteDirectory(clientsDirectory.toFile());
+        }
+    }
+
+    private static String logStep(int clientCount, Duration elapsed, Map<Operation, OperationSummary> summaries,
+                                  ServerUsage server, long clientCpuNanos) {
+        double seconds = elapsed.toNanos() / 1e9;
+        long operations = 0;
+        for (Map.Entry<Operation, OperationSummary> entry : summaries.entrySet()) {
+            OperationSummary summary = entry.getValue();
+            operations += summary.count();
+            logger.info("{} clients, {}: {} ops ({}/s), p50 {} ms, p95 {} ms, p99 {} ms, max {} ms, {}% rejected, {}% errors",
+                    clientCount, entry.getKey().label(), summary.count(), format(summary.count() / seconds),
+                    summary.p50().toMillis(), summary.p95().toMillis(), summary.p99().toMillis(), summary.max().toMillis(),
+                    format(summary.rejectionRate() * 100), format(summary.errorRate() * 100));
+        }
+        // Rejected pushes are followed by a fetch, so upload-packs include those as well as the clones.
+        logger.info("{} clients, server: {} upload-packs at {} ms CPU each, {} receive-packs at {} ms CPU each, {} ms of SSH transport CPU per request",
+                clientCount, server.uploadPacks(), perRequestMillis(server.uploadPackCpuNanos(), server.uploadPacks()),
+                server.receivePacks(), perRequestMillis(server.receivePackCpuNanos(), server.receivePacks()),
+                perRequestMillis(server.transportCpuNanos(), server.uploadPacks() + server.receivePacks()));
+        double clientCpuCores = clientCpuNanos / (double) elapsed.toNanos();
+        logger.info("{} clients, client: {} ms CPU per operation, {} cores busy",
+                clientCount, perRequestMillis(clientCpuNanos, operations), format(clientCpuCores));
+        return String.format("%4d clients: %8s ops/s, client %s cores busy, server %s cores busy",
+                clientCount, format(operations / seconds), format(clientCpuCores), format(server.totalCpuNanos() / (double) elapsed.toNanos()));
+    }
+
+    private static void awaitAll(ExecutorService executor, List<Callable<Void>> tasks) throws Exception {
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private static List<Integer> parseClientCounts(String clientCounts) {
+        List<Integer> counts = new ArrayList<>();
+        for (String count : clientCounts.split(",")) {
+            int clients = Integer.parseInt(count.trim());
+            if (clients < 1) {
+                throw new IllegalArgumentException("The number of clients must be at least 1 but was " + clients);
+            }
+            counts.add(clients);
+        }
+        return counts;
+    }
+
+    // The CPU time of the whole JVM, which runs both the clients and the server.
+    private static long processCpuNanos() {
+        return ((OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static String perRequestMillis(long cpuNanos, long requests) {
+        return requests == 0 ? "-" : format(cpuNanos / 1e6 / requests);
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+
+    /**
+     * The requests the server has handled and the CPU time it used for them, in nanoseconds.
+     */
+    private record ServerUsage(long uploadPacks, long receivePacks, long uploadPackCpuNanos, long receivePackCpuNanos, long transportCpuNanos) {
+
+        static ServerUsage of(InProcessGitSshServer server) {
+            return new ServerUsage(server.getUploadPacks(), server.getReceivePacks(),
+                    server.getUploadPackCpuNanos(), server.getReceivePackCpuNanos(), server.getTransportCpuNanos());
+        }
+
+        ServerUsage minus(ServerUsage earlier) {
+            return new ServerUsage(uploadPacks - earlier.uploadPacks, receivePacks - earlier.receivePacks,
+                    uploadPackCpuNanos - earlier.uploadPackCpuNanos, receivePackCpuNanos - earlier.receivePackCpuNanos,
+                    transportCpuNanos - earlier.transportCpuNanos);
+        }
+
+        long totalCpuNanos() {
+            return uploadPackCpuNanos + receivePackCpuNanos + transportCpuNanos;
+        }
+    }
+
+    /**
+     * One simulated client, with a working copy that it clones, commits to and pushes from on its own thread.
+     */
+    private static class Client {
+
+        private final int index;
+        private final String remoteUrl;
+        private final Path directory;
+        private final LoadTestResults results;
+        private Git git;
+        private int clones;
+        private int commits;
+
+        Client(int index, String remoteUrl, Path directory, LoadTestResults results) {
+            this.index = index;
+            this.remoteUrl = remoteUrl;
+            this.directory = directory;
+            this.results = results;
+        }
+
+        void runUntil(long deadline, OperationMix mix) {
+            while (System.nanoTime() < deadline) {
+                Operation operation = mix.next(ThreadLocalRandom.current());
+                long start = System.nanoTime();
+                Outcome outcome;
+                try {
+                    outcome = switch (operation) {
+                        case CLONE -> cloneWorkspace();
+                        case COMMIT -> commit();
+                        case PUSH -> push();
+                    };
+                } catch (Exception e) {
+                    logger.debug("Client {} failed to {}", index, operation.label(), e);
+                    outcome = Outcome.FAILED;
+                }
+                results.record(operation, outcome, System.nanoTime() - start);
+                if (outcome == Outcome.REJECTED) {
+                    catchUpWithRemote();
+                }
+            }
+        }
+
+        Outcome cloneWorkspace() throws Exception {
+            File cloneDirectory = directory.resolve("clone-" + clones++).toFile();
+            Git clone = Git.cloneRepository().setURI(remoteUrl).setDirectory(cloneDirectory).call();
+            Git previous = git;
+            git = clone;
+            if (previous != null) {
+                previous.close();
+                FileUtils.deleteDirectory(previous.getRepository().getWorkTree());
+            }
+            return Outcome.SUCCEEDED;
+        }
+
+        Outcome commit() throws Exception {
+            // Each client only edits its own file, so the clients' commits never conflict with each other.
+            String path = "load-test/client-" + index + ".txt";
+            Path file = git.getRepository().getWorkTree().toPath().resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "commit " + ++commits + "\n", StandardCharsets.UTF_8);
+            git.add().addFilepattern(path).call();
+            git.commit().setAuthor(BOT).setCommitter(BOT).setMessage("Load test commit " + commits + " from client " + index).call();
+            return Outcome.SUCCEEDED;
+        }
+
+        Outcome push() throws Exception {
+            commit();
+            Iterable<PushResult> pushResults = git.push()
+                    .setRefSpecs(new RefSpec(Constants.HEAD + ":" + Constants.R_HEADS + BRANCH))
+                    .call();
+            for (PushResult pushResult : pushResults) {
+                for (RemoteRefUpdate update : pushResult.getRemoteUpdates()) {
+                    switch (update.getStatus()) {
+                        case OK, UP_TO_DATE -> {
+                        }
+                        case REJECTED_NONFASTFORWARD, REJECTED_REMOTE_CHANGED -> {
+                            return Outcome.REJECTED;
+                        }
+                        case REJECTED_OTHER_REASON -> {
+                            // The server couldn't lock the branch because another client's push was updating it.
+                            if (CoalescingPushQueue.isTransient(update.getMessage())) {
+                                return Outcome.REJECTED;
+                            }
+                            logger.debug("Client {} push of {} failed: {} {}", index, update.getRemoteName(), update.getStatus(), update.getMessage());
+                            return Outcome.FAILED;
+                        }
+                        default -> {
+                            logger.debug("Client {} push of {} failed: {} {}", index, update.getRemoteName(), update.getStatus(), update.getMessage());
+                            return Outcome.FAILED;
+                        }
+                    }
+                }
+            }
+            return Outcome.SUCCEEDED;
+        }
+
+        void close() {
+            if (git != null) {
+                git.close();
+            }
+        }
+
+        // Another client pushed first, so drop the local commits and start again from the remote's branch.
+        private void catchUpWithRemote() {
+            try {
+                git.fetch().call();
+                git.reset().setMode(ResetCommand.ResetType.HARD).setRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + BRANCH).call();
+            } catch (Exception e) {
+                logger.debug("Client {} failed to catch up with the remote", index, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.loadtest;
+
+import uk.co.autotrader.jgit.tutorial.loadtest.OperationMix.Operation;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Collects the latency and outcome of every operation the simulated clients of a {@link GitLoadTest} run.
+ * This class is thread-safe.
+ */
+public class LoadTestResults {
+
+    /**
+     * How an operation ended.
+     */
+    public enum Outcome {
+        SUCCEEDED,
+        // The server turned a push down because another client pushed to the branch first, or was pushing to it at the same time.
+        REJECTED,
+        FAILED
+    }
+
+    // Guarded by this.
+    private final Map<Operation, Recording> recordings = new EnumMap<>(Operation.class);
+
+    /**
+     * Records one finished operation.
+     *
+     * @param operation the operation that ran
+     * @param outcome how it ended
+     * @param latencyNanos how long it took, in nanoseconds
+     */
+    public synchronized void record(Operation operation, Outcome outcome, long latencyNanos) {
+        recordings.computeIfAbsent(operation, ignored -> new Recording()).add(outcome, latencyNanos);
+    }
+
+    /**
+     * @return the summary of each operation that has run at least once
+     */
+    public synchronized Map<Operation, OperationSummary> summaries() {
+        Map<Operation, OperationSummary> summaries = new EnumMap<>(Operation.class);
+        recordings.forEach((operation, recording) -> summaries.put(operation, recording.summary()));
+        return summaries;
+    }
+
+    /**
+     * The latencies and outcomes of one kind of operation.
+     *
+     * @param count how many operations ran
+     * @param rejected how many of them the server rejected
+     * @param failed how many of them failed with an error
+     * @param p50 the median latency
+     * @param p95 the 95th percentile latency
+     * @param p99 the 99th percentile latency
+     * @param max the slowest operation's latency
+     */
+    public record OperationSummary(long count, long rejected, long failed, Duration p50, Duration p95, Duration p99, Duration max) {
+
+        /**
+         * @return the fraction of operations the server rejected, between 0 and 1
+         */
+        public double rejectionRate() {
+            return count == 0 ? 0 : (double) rejected / count;
+        }
+
+        /**
+         * @return the fraction of operations that failed with an error, between 0 and 1
+         */
+        public double errorRate() {
+            return count == 0 ? 0 : (double) failed / count;
+        }
+    }
+
+    private static class Recording {
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private long rejected;
+        private long failed;
+
+        void add(Outcome outcome, long latencyNanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            switch (outcome) {
+                case REJECTED -> rejected++;
+                case FAILED -> failed++;
+                case SUCCEEDED -> {
+                }
+            }
+        }
+
+        OperationSummary summary() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return new OperationSummary(count, rejected, failed,
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), percentile(sorted, 100));
+        }
+
+        // Nearest-rank percentile, so every reported latency is one that was actually measured.
+        private static Duration percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return Duration.ZERO;
+            }
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return Duration.ofNanos(sorted[Math.max(0, rank - 1)]);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * How often each simulated client of a {@link GitLoadTest} clones, commits and pushes, as relative weights.
+ * A mix of {@code clone=1,commit=4,push=2} runs, on average, one clone and two pushes for every four local commits.
+ *
+ * @param cloneWeight the weight of fresh clones of the remote repository
+ * @param commitWeight the weight of commits that stay local until the client's next push
+ * @param pushWeight the weight of commits that are pushed straight away, along with any earlier local commits
+ */
+public record OperationMix(int cloneWeight, int commitWeight, int pushWeight) {
+
+    /**
+     * The operations a simulated client runs.
+     */
+    public enum Operation {
+        CLONE, COMMIT, PUSH;
+
+        /**
+         * @return the operation's name as it appears in a mix, such as {@code clone}
+         */
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    public OperationMix {
+        if (cloneWeight < 0 || commitWeight < 0 || pushWeight < 0) {
+            throw new IllegalArgumentException("Operation weights cannot be negative");
+        }
+        if (cloneWeight + commitWeight + pushWeight == 0) {
+            throw new IllegalArgumentException("At least one operation must have a weight above zero");
+        }
+    }
+
+    /**
+     * Reads a mix written as comma-separated {@code operation=weight} pairs, such as {@code clone=1,commit=4,push=2}.
+     * Operations that aren't listed have a weight of zero.
+     *
+     * @param mix the mix to read
+     * @return the parsed mix
+     */
+    public static OperationMix parse(String mix) {
+        Map<Operation, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight in the operation mix but found '" + entry.trim() + "'");
+            }
+            Operation operation;
+            int weight;
+            try {
+                operation = Operation.valueOf(parts[0].trim().toUpperCase());
+                weight = Integer.parseInt(parts[1].trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid entry '" + entry.trim() + "' in the operation mix; expected clone, commit or push with a whole number weight", e);
+            }
+            weights.put(operation, weight);
+        }
+        return new OperationMix(weights.getOrDefault(Operation.CLONE, 0), weights.getOrDefault(Operation.COMMIT, 0),
+                weights.getOrDefault(Operation.PUSH, 0));
+    }
+
+    /**
+     * Picks the next operation at random, in proportion to the weights.
+     *
+     * @param random the source of randomness
+     * @return the operation to run
+     */
+    public Operation next(Random random) {
+        int pick = random.nextInt(cloneWeight + commitWeight + pushWeight);
+        if (pick < cloneWeight) {
+            return Operation.CLONE;
+        }
+        return pick < cloneWeight + commitWeight ? Operation.COMMIT : Operation.PUSH;
+    }
+
+    @Override
+    public String toString() {
+        return "clone=" + cloneWeight + ",commit=" + commitWeight + ",push=" + pushWeight;
+    }
+}
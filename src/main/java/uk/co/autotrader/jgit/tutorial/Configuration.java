@@ -17,28 +17,197 @@
 package uk.co.autotrader.jgit.tutorial;
 
 import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+import uk.co.autotrader.jgit.tutorial.maintenance.MaintenanceThresholds;
+import uk.co.autotrader.jgit.tutorial.pack.PackReadOptions;
+import uk.co.autotrader.jgit.tutorial.sync.CloneOptions;
+import uk.co.autotrader.jgit.tutorial.sync.RefScope;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+import uk.co.autotrader.jgit.tutorial.transport.KnownHostsStore;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * This class represents the configuration for the jgit tutorial.
  */
 public class Configuration {
 
-    // Local directory on your file system where the remote repository will be cloned to.
-    private static final String LOCAL_REPOSITORY_DIRECTORY_BASE = System.getProperty("user.home") + "/jgit-cloned-repositories";
+    // Local directory on your file system where the remote repository will be cloned to. Can be overridden with -DlocalDirectoryBase=...
+    private static final String LOCAL_REPOSITORY_DIRECTORY_BASE = System.getProperty("localDirectoryBase", System.getProperty("user.home") + "/jgit-cloned-repositories");
 
-    // Name of the local directory where the remote repository will be cloned to.
-    private static final String LOCAL_REPOSITORY_DIRECTORY_NAME = "name-of-cloned-repo";
+    // Name of the local directory where the remote repository will be cloned to. Can be overridden with -DlocalDirectoryName=...
+    private static final String LOCAL_REPOSITORY_DIRECTORY_NAME = System.getProperty("localDirectoryName", "name-of-cloned-repo");
 
     // This flag determines whether the contents of the local repository directory should be deleted before cloning the remote repository.
     private static final boolean DELETE_LOCAL_REPOSITORY_DIRECTORY_CONTENTS_BEFORE_CLONE = false;
 
-    // SSH URL of the remote repository to clone.
-    private static final String REMOTE_REPOSITORY_SSH_URL = "ssh://git@github.com/my-username/my-repo";
+    // How an existing clone in the local directory is brought up to date.
+    // FRESH_CLONE always clones from scratch (subject to the flag above),
+    // while FAST_FORWARD and HARD_RESET fetch only new objects and update the existing working tree.
+    private static final SyncMode LOCAL_REPOSITORY_SYNC_MODE = SyncMode.FAST_FORWARD;
+
+    // Number of commits of history to clone from the branch tip. 0 clones the full history.
+    private static final int CLONE_DEPTH = 0;
+
+    // Only clone commits newer than this time, e.g. Instant.parse("2024-01-01T00:00:00Z"). null clones the full history.
+    private static final Instant CLONE_SHALLOW_SINCE = null;
+
+    // Partial clone filter that leaves objects out of the clone, e.g. "blob:limit=1048576" to skip files larger than 1 MiB. null clones every object.
+    // JGit cannot fetch the left-out objects later, so every file under SPARSE_CHECKOUT_PATHS must pass the filter.
+    private static final String CLONE_OBJECT_FILTER = null;
+
+    // Directories (or files) to write to the working tree, e.g. List.of("docs", "src/main"). An empty list checks out the whole tree.
+    private static final List<String> SPARSE_CHECKOUT_PATHS = List.of();
+
+    // Branches to clone and fetch, e.g. List.of("main", "release/*"). The first one is checked out. An empty list fetches every branch and tag.
+    // On a remote of many refs, naming them saves listing all the others before every clone and fetch.
+    private static final List<String> FETCH_BRANCHES = List.of();
+
+    // Beginnings of the names of tags to fetch along with FETCH_BRANCHES, e.g. List.of("v2."). An empty list fetches no tags.
+    private static final List<String> FETCH_TAG_PREFIXES = List.of();
+
+    // Number of threads that write the working tree of a new clone. 1 uses JGit's own checkout, which writes one file at a time.
+    // Raising it, e.g. to Runtime.getRuntime().availableProcessors(), speeds up cloning repositories of many thousands of files.
+    private static final int CHECKOUT_THREADS = 1;
+
+    // How many added and how many deleted paths the list of paths a sync changed may hold back to look for renames among them.
+    // Past it, renames are reported as a deletion and an addition, like Git's diff.renameLimit. 0 never looks for renames.
+    private static final int CHANGED_PATHS_RENAME_LIMIT = 1000;
+
+    // Directory holding local mirrors of remote repositories that new clones copy their objects from,
+    // so that only the objects missing from the mirror are downloaded. null clones straight from the remote.
+    private static final String REFERENCE_MIRROR_CACHE_DIRECTORY = null;
+
+    // Size budget of the reference mirror cache. The least recently used mirrors are deleted when it is exceeded.
+    private static final long REFERENCE_MIRROR_CACHE_MAX_BYTES = 20L * 1024 * 1024 * 1024;
+
+    // A mirror must have been unused for this long before it may be deleted, as another process may be cloning from it.
+    private static final Duration REFERENCE_MIRROR_CACHE_MINIMUM_IDLE_BEFORE_EVICTION = Duration.ofHours(1);
+
+    // A git bundle file, or a directory of bundles written by RefreshBundles, that new clones are seeded from,
+    // so that they only fetch what was pushed since from the remote. null clones straight from the remote.
+    private static final String CLONE_BUNDLE_LOCATION = null;
+
+    // How many incremental bundles RefreshBundles writes after a full bundle before writing a new full bundle in their place.
+    private static final int CLONE_BUNDLE_MAX_INCREMENTALS = 10;
+
+    // How long RefreshBundles keeps the bundles that a new full bundle replaces, as clones that started before it was written may still be reading them.
+    private static final Duration CLONE_BUNDLE_SUPERSEDED_GRACE_PERIOD = Duration.ofHours(1);
+
+    // Directory under the local base directory that a clone moves the directory it replaces into, to be deleted in the background
+    // rather than before the clone starts. null deletes the replaced directory before cloning.
+    private static final String TRASH_DIRECTORY_NAME = ".trash";
+
+    // Whether Step 2 asks a running WatchWorkingTree process which files have changed, instead of scanning the whole working tree.
+    // Step 2 still scans the whole working tree when no watcher is running or the watcher may have missed changes.
+    private static final boolean WORKING_TREE_CHANGE_TRACKING = false;
+
+    // How long Step 2 waits for the watcher to record the changes made just before it started.
+    private static final Duration WORKING_TREE_CHANGE_TRACKER_SYNC_TIMEOUT = Duration.ofSeconds(2);
+
+    // Whether Steps 1 to 3 keep large files in Git LFS rather than in the repository's pack files, using JGit's built-in LFS support.
+    private static final boolean LFS_ENABLED = false;
+
+    // Files larger than this go to LFS when Step 2 adds them. -1 goes by LFS_PATTERNS alone.
+    private static final long LFS_SIZE_THRESHOLD_BYTES = 10L * 1024 * 1024;
+
+    // .gitattributes patterns of files that always go to LFS, e.g. List.of("*.zip", "*.psd").
+    private static final List<String> LFS_PATTERNS = List.of();
+
+    // Whether LFS files are left as small pointer files in the working tree until MaterializeLargeFiles asks for them,
+    // rather than being downloaded by Step 1 after every sync.
+    private static final boolean LFS_LAZY_CHECKOUT = false;
+
+    // Directory to keep the LFS objects in instead of the remote's LFS server, e.g. a shared drive. null uses the LFS server.
+    private static final String LFS_LOCAL_STORE_DIRECTORY = null;
+
+    // How long Step 3 waits for more branches to be ready before pushing them all together in one atomic push.
+    private static final Duration PUSH_COALESCING_WINDOW = Duration.ofMillis(100);
+
+    // How many times Step 3 pushes before giving up when the remote keeps moving, rebasing onto it between attempts.
+    private static final int PUSH_MAX_ATTEMPTS = 5;
+
+    // The longest wait before the second push attempt. It doubles with every further attempt.
+    private static final Duration PUSH_RETRY_INITIAL_BACKOFF = Duration.ofMillis(500);
+
+    // Most bytes of objects that a clone, commit and push run in memory, by CommitInMemory, may hold before it fails.
+    private static final long IN_MEMORY_MAX_REPOSITORY_BYTES = 256L * 1024 * 1024;
+
+    // Partial clone filter for clones made in memory. "blob:none" fetches just the commit and its trees, which is all
+    // a commit of whole files needs, but the remote must support partial clones. null fetches every file of the commit.
+    private static final String IN_MEMORY_OBJECT_FILTER = null;
+
+    // Most bytes of pack files that JGit keeps in memory, shared by every repository in the JVM. This is JGit's default.
+    // On large repositories, a larger cache (e.g. 256 MiB) saves inflating the same parts of packs again and again
+    // during checkout and status; give the JVM the heap for it.
+    private static final long PACKED_GIT_LIMIT = 10L * 1024 * 1024;
+
+    // Size of each part of a pack file that JGit reads into the cache. Must be a power of 2 of at least 4 KiB.
+    // This is JGit's default; larger windows (e.g. 64 KiB) mean fewer reads of large packs, together with a larger PACKED_GIT_LIMIT.
+    private static final int PACKED_GIT_WINDOW_SIZE = 8 * 1024;
+
+    // Whether to memory-map pack files instead of reading them into the heap. Mapped windows are outside the heap,
+    // but are only released when the garbage collector notices, which can exhaust virtual memory on very large repositories.
+    private static final boolean PACKED_GIT_MMAP = false;
+
+    // Most bytes of inflated objects that JGit keeps to apply deltas to, so chains of deltas are not inflated again.
+    // This is JGit's default; repositories with long delta chains benefit from more (e.g. 64 MiB).
+    private static final int DELTA_BASE_CACHE_LIMIT = 10 * 1024 * 1024;
+
+    // Objects larger than this are streamed rather than loaded into memory whole (JGit's default is 50 MiB).
+    private static final int STREAM_FILE_THRESHOLD = 50 * 1024 * 1024;
+
+    // SSH URL of the remote repository to clone. Can be overridden with -DremoteUrl=..., e.g. to run the steps against a test server.
+    private static final String REMOTE_REPOSITORY_SSH_URL = System.getProperty("remoteUrl", "ssh://git@github.com/my-username/my-repo");
+
+    // How long an authenticated SSH session is kept open for reuse by later git operations after it was last used.
+    private static final Duration SSH_SESSION_IDLE_TIMEOUT = Duration.ofMinutes(2);
+
+    // Maximum number of repositories the fleet sync clones or fetches at the same time.
+    private static final int FLEET_MAX_CONCURRENT_REPOSITORIES = 32;
+
+    // Maximum number of repositories the fleet sync clones or fetches at the same time from any single git host.
+    private static final int FLEET_MAX_CONCURRENT_REPOSITORIES_PER_HOST = 8;
+
+    // Maximum time the fleet sync allows for cloning or fetching a single repository.
+    private static final Duration FLEET_REPOSITORY_TIMEOUT = Duration.ofMinutes(10);
+
+    // How often repository maintenance looks at each clone under the local base directory.
+    private static final Duration MAINTENANCE_INTERVAL = Duration.ofMinutes(10);
+
+    // The shortest time between two maintenances of the same clone, however far past the thresholds below it is.
+    private static final Duration MAINTENANCE_MINIMUM_INTERVAL_PER_REPOSITORY = Duration.ofHours(1);
+
+    // A clone is garbage collected once it has more loose objects, packs or loose refs than these.
+    // The first two are the defaults of git's own "gc --auto".
+    private static final long MAINTENANCE_MAX_LOOSE_OBJECTS = 6700;
+    private static final long MAINTENANCE_MAX_PACK_FILES = 50;
+    private static final long MAINTENANCE_MAX_LOOSE_REFS = 100;
+
+    // Port the job daemon accepts jobs on. It only listens on the loopback interface.
+    private static final int DAEMON_PORT = 7419;
+
+    // Name of the file, under the local base directory, that the daemon writes its access token to when it starts.
+    // Only the current user can read it, and every request must carry the token in an "Authorization: Bearer" header.
+    private static final String DAEMON_TOKEN_FILE_NAME = ".daemon-token";
+
+    // Maximum number of jobs the daemon runs at the same time.
+    private static final int DAEMON_MAX_CONCURRENT_JOBS = 8;
+
+    // Maximum number of jobs waiting for a free slot. Further jobs are turned away until the queue drains.
+    private static final int DAEMON_MAX_QUEUED_JOBS = 64;
+
+    // Maximum number of repositories the daemon keeps open between jobs. The least recently used ones are closed first.
+    private static final int DAEMON_MAX_OPEN_REPOSITORIES = 32;
 
     // This class is responsible for holding the SSH secrets required to authenticate with a remote Git repository.
-    private final SshSecrets sshSecrets;
+    // They are only read from the environment when they are first asked for, so Step 2, which never connects
+    // to the remote repository, doesn't need them.
+    private SshSecrets sshSecrets;
 
     // This is the SSH fingerprint for github.com
     // It is used to verify the server's identity when connecting via SSH.
@@ -47,9 +216,34 @@ public class Configuration {
     // IMPORTANT: Because this fingerprint is public knowledge, it is not a secret.
     private static final String GITHUB_ECDSA_SSH_FINGERPRINT = "ecdsa-sha2-nistp256 AAAAE2VjZHNhLXNoYTItbmlzdHAyNTYAAAAIbmlzdHAyNTYAAABBBEmKSENjQEezOmxkZMy7opKgwFB9nkt5YRrYMjNuG5N87uRgg6CLrbo5wAdT/y6v0mKV0U2w0WZ2YB/++Tpockg=";
 
+    // Host keys that the servers we connect to must present, as lines of an OpenSSH known_hosts file (e.g. the output of ssh-keyscan).
+    // Add a line for each other git host or mirror, e.g. "[git.example.com]:2222 ssh-ed25519 AAAA...".
+    private static final List<String> KNOWN_HOSTS = List.of("github.com,[ssh.github.com]:443 " + GITHUB_ECDSA_SSH_FINGERPRINT);
+
+    // One more known_hosts line to trust along with the ones above, given with -DknownHost=..., e.g. for the test server of -DremoteUrl.
+    private static final String EXTRA_KNOWN_HOST = System.getProperty("knownHost");
+
+    // A known_hosts file with more host keys, e.g. "/etc/ssh/ssh_known_hosts". null trusts only the keys above.
+    // The file is read again once it has changed, checking at most once per interval, so a host key can be rotated without a restart.
+    private static final String KNOWN_HOSTS_FILE = null;
+    private static final Duration KNOWN_HOSTS_FILE_CHECK_INTERVAL = Duration.ofMinutes(1);
+
+    // Decoded when first asked for, see getKnownHosts.
+    private KnownHostsStore knownHosts;
+
     // Local directory on your file system where the remote repository will be cloned to.
     private final LocalDirectory localRepositoryDirectory;
 
+    // Depth, object filter and sparse checkout paths to clone with.
+    private final CloneOptions cloneOptions;
+    private final RefScope refScope;
+
+    // How JGit reads pack files.
+    private final PackReadOptions packReadOptions;
+
+    // When a clone is due for maintenance.
+    private final MaintenanceThresholds maintenanceThresholds;
+
     public Configuration() {
 
         if (REMOTE_REPOSITORY_SSH_URL.isBlank()) {
@@ -60,35 +254,205 @@ public class Configuration {
             throw new IllegalArgumentException("LOCAL_REPOSITORY_DIRECTORY_BASE and LOCAL_REPOSITORY_DIRECTORY_NAME must be set");
         }
 
-        this.sshSecrets = SshSecrets.extractFromEnvironment();
-
         localRepositoryDirectory = new LocalDirectory(Path.of(LOCAL_REPOSITORY_DIRECTORY_BASE), LOCAL_REPOSITORY_DIRECTORY_NAME);
+
+        cloneOptions = new CloneOptions(CLONE_DEPTH, CLONE_SHALLOW_SINCE, CLONE_OBJECT_FILTER, SPARSE_CHECKOUT_PATHS);
+
+        refScope = new RefScope(FETCH_BRANCHES, FETCH_TAG_PREFIXES);
+
+        packReadOptions = new PackReadOptions(PACKED_GIT_LIMIT, PACKED_GIT_WINDOW_SIZE, PACKED_GIT_MMAP, DELTA_BASE_CACHE_LIMIT, STREAM_FILE_THRESHOLD);
+
+        maintenanceThresholds = new MaintenanceThresholds(MAINTENANCE_MAX_LOOSE_OBJECTS, MAINTENANCE_MAX_PACK_FILES, MAINTENANCE_MAX_LOOSE_REFS);
     }
 
     public LocalDirectory getLocalRepositoryDirectory() {
         return localRepositoryDirectory;
     }
 
+    public Path getLocalRepositoryBaseDirectory() {
+        return Path.of(LOCAL_REPOSITORY_DIRECTORY_BASE);
+    }
+
     public boolean shouldDeleteAnyExistingDirectoryContents() {
         return DELETE_LOCAL_REPOSITORY_DIRECTORY_CONTENTS_BEFORE_CLONE;
     }
 
+    public SyncMode getSyncMode() {
+        return LOCAL_REPOSITORY_SYNC_MODE;
+    }
+
+    public CloneOptions getCloneOptions() {
+        return cloneOptions;
+    }
+
+    public RefScope getRefScope() {
+        return refScope;
+    }
+
+    public int getCheckoutThreads() {
+        return CHECKOUT_THREADS;
+    }
+
+    public int getChangedPathsRenameLimit() {
+        return CHANGED_PATHS_RENAME_LIMIT;
+    }
+
+    public PackReadOptions getPackReadOptions() {
+        return packReadOptions;
+    }
+
+    public Path getCloneBundleLocation() {
+        return CLONE_BUNDLE_LOCATION == null ? null : Path.of(CLONE_BUNDLE_LOCATION);
+    }
+
+    public int getCloneBundleMaxIncrementals() {
+        return CLONE_BUNDLE_MAX_INCREMENTALS;
+    }
+
+    public Duration getCloneBundleSupersededGracePeriod() {
+        return CLONE_BUNDLE_SUPERSEDED_GRACE_PERIOD;
+    }
+
+    public Path getReferenceMirrorCacheDirectory() {
+        return REFERENCE_MIRROR_CACHE_DIRECTORY == null ? null : Path.of(REFERENCE_MIRROR_CACHE_DIRECTORY);
+    }
+
+    public long getReferenceMirrorCacheMaxBytes() {
+        return REFERENCE_MIRROR_CACHE_MAX_BYTES;
+    }
+
+    public Duration getReferenceMirrorCacheMinimumIdleBeforeEviction() {
+        return REFERENCE_MIRROR_CACHE_MINIMUM_IDLE_BEFORE_EVICTION;
+    }
+
+    public Path getTrashDirectory() {
+        return TRASH_DIRECTORY_NAME == null ? null : getLocalRepositoryBaseDirectory().resolve(TRASH_DIRECTORY_NAME);
+    }
+
+    public boolean isWorkingTreeChangeTrackingEnabled() {
+        return WORKING_TREE_CHANGE_TRACKING;
+    }
+
+    public Duration getWorkingTreeChangeTrackerSyncTimeout() {
+        return WORKING_TREE_CHANGE_TRACKER_SYNC_TIMEOUT;
+    }
+
+    public LfsOptions getLfsOptions() {
+        if (!LFS_ENABLED) {
+            return null;
+        }
+        return new LfsOptions(LFS_SIZE_THRESHOLD_BYTES, LFS_PATTERNS, LFS_LAZY_CHECKOUT,
+                LFS_LOCAL_STORE_DIRECTORY == null ? null : Path.of(LFS_LOCAL_STORE_DIRECTORY));
+    }
+
+    public Duration getPushCoalescingWindow() {
+        return PUSH_COALESCING_WINDOW;
+    }
+
+    public int getPushMaxAttempts() {
+        return PUSH_MAX_ATTEMPTS;
+    }
+
+    public Duration getPushRetryInitialBackoff() {
+        return PUSH_RETRY_INITIAL_BACKOFF;
+    }
+
+    public long getInMemoryMaxRepositoryBytes() {
+        return IN_MEMORY_MAX_REPOSITORY_BYTES;
+    }
+
+    public String getInMemoryObjectFilter() {
+        return IN_MEMORY_OBJECT_FILTER;
+    }
+
     public String getRemoteRepositoryUrl() {
         return REMOTE_REPOSITORY_SSH_URL;
     }
 
+    public Duration getSshSessionIdleTimeout() {
+        return SSH_SESSION_IDLE_TIMEOUT;
+    }
+
+    public int getFleetMaxConcurrentRepositories() {
+        return FLEET_MAX_CONCURRENT_REPOSITORIES;
+    }
+
+    public int getFleetMaxConcurrentRepositoriesPerHost() {
+        return FLEET_MAX_CONCURRENT_REPOSITORIES_PER_HOST;
+    }
+
+    public Duration getFleetRepositoryTimeout() {
+        return FLEET_REPOSITORY_TIMEOUT;
+    }
+
+    public Duration getMaintenanceInterval() {
+        return MAINTENANCE_INTERVAL;
+    }
+
+    public Duration getMaintenanceMinimumIntervalPerRepository() {
+        return MAINTENANCE_MINIMUM_INTERVAL_PER_REPOSITORY;
+    }
+
+    public MaintenanceThresholds getMaintenanceThresholds() {
+        return maintenanceThresholds;
+    }
+
+    public int getDaemonPort() {
+        return DAEMON_PORT;
+    }
+
+    public Path getDaemonTokenFile() {
+        return getLocalRepositoryBaseDirectory().resolve(DAEMON_TOKEN_FILE_NAME);
+    }
+
+    public int getDaemonMaxConcurrentJobs() {
+        return DAEMON_MAX_CONCURRENT_JOBS;
+    }
+
+    public int getDaemonMaxQueuedJobs() {
+        return DAEMON_MAX_QUEUED_JOBS;
+    }
+
+    public int getDaemonMaxOpenRepositories() {
+        return DAEMON_MAX_OPEN_REPOSITORIES;
+    }
+
+    /**
+     * @return the SSH secrets, read from the environment on the first call
+     * @throws IllegalArgumentException if the SSH_KEY environment variable is not set
+     */
+    public synchronized SshSecrets getSshSecrets() {
+        if (sshSecrets == null) {
+            sshSecrets = SshSecrets.extractFromEnvironment();
+        }
+        return sshSecrets;
+    }
+
     public String getSshKey() {
-        return sshSecrets.getKey();
+        return getSshSecrets().getKey();
     }
 
     public String getSshKeyPassphrase() {
-        return sshSecrets.getKeyPassphrase();
+        return getSshSecrets().getKeyPassphrase();
     }
 
     public String getGithubEcdsaSshFingerprint() {
         return GITHUB_ECDSA_SSH_FINGERPRINT;
     }
 
+    /**
+     * @return the host keys of every server we connect to, decoded on the first call
+     */
+    public synchronized KnownHostsStore getKnownHosts() {
+        if (knownHosts == null) {
+            List<String> lines = EXTRA_KNOWN_HOST == null ? KNOWN_HOSTS
+                    : Stream.concat(KNOWN_HOSTS.stream(), Stream.of(EXTRA_KNOWN_HOST)).toList();
+            knownHosts = KNOWN_HOSTS_FILE == null ? KnownHostsStore.of(lines)
+                    : KnownHostsStore.of(lines, Path.of(KNOWN_HOSTS_FILE), KNOWN_HOSTS_FILE_CHECK_INTERVAL);
+        }
+        return knownHosts;
+    }
+
     /**
      * This class is responsible for holding the SSH secrets required to authenticate with a remote Git repository.
      */
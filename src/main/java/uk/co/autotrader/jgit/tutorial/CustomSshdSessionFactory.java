@@ -16,41 +16,66 @@
 
 package uk.co.autotrader.jgit.tutorial;
 
-import org.apache.sshd.common.config.keys.KeyUtils;
-import org.apache.sshd.common.config.keys.PublicKeyEntry;
-import org.apache.sshd.common.config.keys.PublicKeyEntryResolver;
 import org.apache.sshd.common.util.security.SecurityUtils;
-import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.sshd.JGitKeyCache;
-import org.eclipse.jgit.transport.sshd.ServerKeyDatabase;
 import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
 import org.eclipse.jgit.transport.sshd.SshdSessionFactoryBuilder;
+import uk.co.autotrader.jgit.tutorial.transport.KnownHostsStore;
+import uk.co.autotrader.jgit.tutorial.transport.PooledSshSessionFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.PublicKey;
-import java.util.Collections;
+import java.time.Duration;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * This class is responsible for creating a custom SSHD session factory.
  * It is used to authenticate with a remote Git repository using SSH.
+ * <p>
+ * The SSH secrets and the key pair are only loaded when the first SSH connection is opened,
+ * so a program that sets up the factory but never connects doesn't pay for parsing them.
+ * The servers' host keys are checked against a {@link KnownHostsStore}.
  */
 public class CustomSshdSessionFactory {
 
-    private final Iterable<KeyPair> keyPairs;
-    private final PublicKeyEntry publicSshKeyFingerprint;
+    private final Supplier<Configuration.SshSecrets> sshSecrets;
+    private final KnownHostsStore knownHosts;
+
+    // Loaded on first use, see getKeyPairs.
+    private Iterable<KeyPair> keyPairs;
+
+    // Built once and shared by every git operation in this JVM, see getSharedSessionFactory.
+    private PooledSshSessionFactory sharedSessionFactory;
 
     public CustomSshdSessionFactory(@Nonnull String sshKey, @Nullable String sshKeyPassphrase, @Nonnull String githubEcdsaSshFingerprint) {
-        this.keyPairs = loadKeyPairs(sshKey, sshKeyPassphrase);
-        this.publicSshKeyFingerprint = PublicKeyEntry.parsePublicKeyEntry(githubEcdsaSshFingerprint);
+        this(() -> new Configuration.SshSecrets(sshKey, sshKeyPassphrase), githubEcdsaSshFingerprint);
+    }
+
+    /**
+     * Creates a new CustomSshdSessionFactory that trusts a single host key, whichever host presents it.
+     *
+     * @param sshSecrets supplies the SSH key and its passphrase, e.g. {@code configuration::getSshSecrets}
+     * @param hostKeyEntry the public key that the server must present, as {@code <type> <base64>}
+     */
+    public CustomSshdSessionFactory(@Nonnull Supplier<Configuration.SshSecrets> sshSecrets, @Nonnull String hostKeyEntry) {
+        this(sshSecrets, KnownHostsStore.of(List.of("* " + hostKeyEntry)));
+    }
+
+    /**
+     * Creates a new CustomSshdSessionFactory that asks for the SSH secrets only when the first SSH connection is opened.
+     *
+     * @param sshSecrets supplies the SSH key and its passphrase, e.g. {@code configuration::getSshSecrets}
+     * @param knownHosts the host keys that the servers must present
+     */
+    public CustomSshdSessionFactory(@Nonnull Supplier<Configuration.SshSecrets> sshSecrets, @Nonnull KnownHostsStore knownHosts) {
+        this.sshSecrets = sshSecrets;
+        this.knownHosts = knownHosts;
     }
 
     /**
@@ -63,7 +88,7 @@ public class CustomSshdSessionFactory {
 
         return new SshdSessionFactoryBuilder()
                 .setPreferredAuthentications("publickey")
-                .setDefaultKeysProvider(ignoredSshDirBecauseWeUseAnInMemorySetOfKeyPairs -> this.keyPairs)
+                .setDefaultKeysProvider(ignoredSshDirBecauseWeUseAnInMemorySetOfKeyPairs -> getKeyPairs())
                 // A requirement of the SshdSessionFactoryBuilder is
                 // to set the home directory and ssh directory
                 // despite providing our SSH key pair programmatically.
@@ -72,39 +97,36 @@ public class CustomSshdSessionFactory {
                 .setSshDirectory(tempDirectoryForSshSessionFactory.toFile())
                 .setConfigStoreFactory((ignoredHomeDir, ignoredConfigFile, ignoredLocalUserName) -> null)
                 .setConfigFile(ignoredSshDir -> null) //The function may return null, in which case no SSH config file will be used.
-                .setServerKeyDatabase((ignoredHomeDir, ignoredSshDir) -> new ServerKeyDatabase() {
-                    @Override
-                    public List<PublicKey> lookup(String connectAddress, InetSocketAddress remoteAddress, Configuration config) {
-                        return Collections.emptyList();
-                    }
-
-                    /**
-                     * This method is used to compare the server's public key with the provided GitHub public key fingerprint.
-                     * If the keys match, the connection is accepted.
-                     *
-                     * @param connectAddress the address to connect to
-                     * @param remoteAddress the remote address
-                     * @param serverKey the server's public key
-                     * @param config the configuration
-                     * @param provider the credentials provider
-                     * @return true if the server's public key matches the GitHub public key fingerprint
-                     */
-                    @Override
-                    public boolean accept(String connectAddress, InetSocketAddress remoteAddress, PublicKey serverKey, Configuration config, CredentialsProvider provider) {
-                        PublicKey gitHubPublicKey;
-
-                        try {
-                            gitHubPublicKey = publicSshKeyFingerprint.resolvePublicKey(null, null, PublicKeyEntryResolver.IGNORING);
-                        } catch (IOException | GeneralSecurityException e) {
-                            throw new RuntimeException(e);
-                        }
-
-                        return KeyUtils.compareKeys(serverKey, gitHubPublicKey);
-                    }
-                })
+                // Every session checks the server's host key against the same, already decoded, known hosts.
+                .setServerKeyDatabase((ignoredHomeDir, ignoredSshDir) -> knownHosts)
                 .build(new JGitKeyCache());
     }
 
+    /**
+     * Returns a long-lived session factory that reuses authenticated SSH sessions between git operations.
+     * <p>
+     * Unlike {@link #buildSshdSessionFactory()}, the factory is only built on the first call.
+     * Every later call returns the same instance, so clones, fetches and pushes against the same host
+     * share one SSH connection instead of each paying for a handshake and public-key authentication.
+     *
+     * @param idleTimeout how long an unused SSH session is kept open
+     * @return the shared, thread-safe session factory
+     */
+    public synchronized PooledSshSessionFactory getSharedSessionFactory(Duration idleTimeout) {
+        if (sharedSessionFactory == null) {
+            sharedSessionFactory = new PooledSshSessionFactory(buildSshdSessionFactory(), idleTimeout);
+        }
+        return sharedSessionFactory;
+    }
+
+    private synchronized Iterable<KeyPair> getKeyPairs() {
+        if (keyPairs == null) {
+            Configuration.SshSecrets secrets = sshSecrets.get();
+            keyPairs = loadKeyPairs(secrets.getKey(), secrets.getKeyPassphrase());
+        }
+        return keyPairs;
+    }
+
     /**
      * Loads the SSH private key from the provided content.
      *
@@ -18,11 +18,25 @@ package uk.co.autotrader.jgit.tutorial;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.transport.sshd.*;
+import org.eclipse.jgit.transport.SshSessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.bundle.BundleStore;
+import uk.co.autotrader.jgit.tutorial.cache.ReferenceMirrorCache;
 import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
-
+import uk.co.autotrader.jgit.tutorial.lfs.LargeFileSupport;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.WindowCacheUsage;
+import uk.co.autotrader.jgit.tutorial.sync.ChangedPathFeed;
+import uk.co.autotrader.jgit.tutorial.sync.PathChange;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncResult;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.function.Supplier;
 
 public class Step1_CloningARemoteRepository {
@@ -35,39 +49,101 @@ public class Step1_CloningARemoteRepository {
          * Get the Tutorial's configuration which gives us the following information:
          * - Local Directory that represents a directory on the file system (defaults to ~/jgit-cloned-repositories/name-of-cloned-repo)
          * - Whether it is OK to delete the local directory at the start of each run (defaults to false to avoid this tutorial deleting things in your filesystem)
+         * - How an existing clone in the local directory is brought up to date (defaults to fetching and fast-forwarding it)
+         * - Clone depth, partial clone object filter and sparse checkout paths (default to a full clone)
+         * - Branches and tags to clone and fetch (defaults to every branch and tag)
+         * - Number of threads to write the working tree on (defaults to JGit's own single-threaded checkout)
+         * - How many added and deleted paths to look for renames among when listing what a sync changed
+         * - Whether large files are kept in Git LFS, and whether to download them after every sync (defaults to no LFS)
+         * - Directory of local reference mirrors to copy objects from (defaults to none)
+         * - Git bundles on local disk to seed new clones from (defaults to none)
          * - SSH URL of a remote repository to clone
-         * - SSH Key & (optional) Key Passphrase to authenticate with remote repository (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE)
-         * - Fingerprint of the server's public key (GitHub)
+         * - SSH Key & (optional) Key Passphrase to authenticate with remote repository (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE when the first SSH connection is opened)
+         * - Host keys of the servers to trust (GitHub's, plus any in a known_hosts file)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
          */
         Configuration configuration = new Configuration();
-        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration.getSshKey(), configuration.getSshKeyPassphrase(), configuration.getGithubEcdsaSshFingerprint());
 
-        // Clone the target repository with JGit into the local directory using SSH client based on the provided configuration
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration::getSshSecrets, configuration.getKnownHosts());
+
+        // If the local directory already holds a clone of the same remote, the synchronizer fetches only the new objects
+        // and updates the working tree. Otherwise, it clones the repository from scratch, just like Git.cloneRepository() would.
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(configuration.getSyncMode(),
+                configuration.shouldDeleteAnyExistingDirectoryContents(), configuration.getCloneOptions())
+                .setRefScope(configuration.getRefScope())
+                .setReferenceCache(createReferenceCache(configuration))
+                .setBundleStore(configuration.getCloneBundleLocation() == null ? null : new BundleStore(configuration.getCloneBundleLocation()))
+                .setCheckoutThreads(configuration.getCheckoutThreads());
+
+        // Clone the target repository with JGit into the local directory, or bring an existing clone up to date, using SSH client based on the provided configuration
         try {
-            cloneRepository(configuration.getRemoteRepositoryUrl(), configuration.getLocalRepositoryDirectory(),
-                    configuration.shouldDeleteAnyExistingDirectoryContents(), sshdSessionFactory::buildSshdSessionFactory);
+            cloneRepository(configuration, synchronizer, () -> sshdSessionFactory.getSharedSessionFactory(configuration.getSshSessionIdleTimeout()));
         } catch (GitAPIException e) {
             throw new RuntimeException("An error occurred while cloning the repository", e);
         }
 
+        // How long each phase took shows whether the clone was held up by the network, the CPU or the disk.
+        MetricsRegistry.getDefault().snapshot().operations().forEach((operation, stats) -> logger.info("{}: {}", operation, stats.summary()));
+        logger.info("Pack window cache: {}", WindowCacheUsage.current().summary());
+
     }
 
-    private static void cloneRepository(String remoteRepositoryUrl, LocalDirectory localGitRootDirectory, boolean shouldDeleteAnyExistingDirectoryContents, Supplier<SshdSessionFactory> sshdSessionFactorySupplier) throws GitAPIException {
+    private static void cloneRepository(Configuration configuration, RepositorySynchronizer synchronizer, Supplier<SshSessionFactory> sshSessionFactorySupplier) throws GitAPIException {
 
-        localGitRootDirectory.ensureDirectoryExistsAndIsEmpty(shouldDeleteAnyExistingDirectoryContents);
+        LocalDirectory localGitRootDirectory = configuration.getLocalRepositoryDirectory();
 
-        SshdSessionFactory.setInstance(sshdSessionFactorySupplier.get());
+        SshSessionFactory.setInstance(sshSessionFactorySupplier.get());
+
+        SyncResult syncResult = synchronizer.synchronize(configuration.getRemoteRepositoryUrl(), localGitRootDirectory);
+
+        logger.info("Local repository {}: {}", syncResult.action(), localGitRootDirectory.getPath().toAbsolutePath());
+
+        // The checkout wrote LFS files as small pointer files. Unless they are to be fetched only when asked for, fetch them all now.
+        if (configuration.getLfsOptions() != null) {
+            setUpLargeFiles(localGitRootDirectory, configuration.getLfsOptions());
+        }
 
-        // N.B: It's crucial to close Git objects when they are no longer needed.
-        // Git is a closeable resource and should be closed to avoid resource leaks.
-        logger.info("Attempting to clone repository at: {}", remoteRepositoryUrl);
-        try (Git clonedRepository = Git.cloneRepository()
-                .setURI(remoteRepositoryUrl)
-                .setDirectory(localGitRootDirectory.getPath().toFile())
-                .call()) {
+        // After a fetch, list what it changed, one path at a time, as a cache or search index kept alongside the clone would read it.
+        if (!syncResult.isFullClone() && syncResult.newHead() != null) {
+            logChangedPaths(localGitRootDirectory, syncResult, configuration.getChangedPathsRenameLimit());
+        }
+    }
+
+    private static void setUpLargeFiles(LocalDirectory localGitRootDirectory, LfsOptions lfsOptions) {
+        try (Git git = Git.open(localGitRootDirectory.getPath().toFile())) {
+            LargeFileSupport largeFiles = new LargeFileSupport(git.getRepository(), lfsOptions);
+            largeFiles.install();
+            if (!lfsOptions.lazyCheckout()) {
+                logger.info("Materialised {} LFS files", largeFiles.materializeAll());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred fetching the LFS files of " + localGitRootDirectory.getPath(), e);
+        }
+    }
+
+    private static void logChangedPaths(LocalDirectory localGitRootDirectory, SyncResult syncResult, int renameLimit) {
+        Map<PathChange.Type, Integer> counts = new EnumMap<>(PathChange.Type.class);
+        try (Git git = Git.open(localGitRootDirectory.getPath().toFile());
+             ChangedPathFeed changes = ChangedPathFeed.open(git.getRepository(), syncResult, renameLimit)) {
+            changes.forEachRemaining(change -> {
+                logger.debug("{}", change);
+                counts.merge(change.type(), 1, Integer::sum);
+            });
+        } catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("An error occurred listing the changed paths of " + localGitRootDirectory.getPath(), e);
+        }
+        logger.info("Changed paths: {}", counts.isEmpty() ? "none" : counts);
+    }
 
-            logger.info("Repository cloned to: {}", clonedRepository.getRepository().getDirectory());
+    private static ReferenceMirrorCache createReferenceCache(Configuration configuration) {
+        if (configuration.getReferenceMirrorCacheDirectory() == null) {
+            return null;
         }
+        return new ReferenceMirrorCache(configuration.getReferenceMirrorCacheDirectory(),
+                configuration.getReferenceMirrorCacheMaxBytes(), configuration.getReferenceMirrorCacheMinimumIdleBeforeEviction());
     }
 
 }
@@ -18,12 +18,27 @@ package uk.co.autotrader.jgit.tutorial;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.commit.WorkingTreeCommitter;
 import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+import uk.co.autotrader.jgit.tutorial.metrics.WindowCacheUsage;
+import uk.co.autotrader.jgit.tutorial.sync.SparseCheckout;
+import uk.co.autotrader.jgit.tutorial.watch.ChangeJournal;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Step2_AddingAndCommittingChanges {
 
@@ -34,18 +49,31 @@ public class Step2_AddingAndCommittingChanges {
         /*
          * Get the Tutorial's configuration, which gives us the following information:
          * - Local Directory that represents a directory on the file system (defaults to ~/jgit-cloned-repositories/name-of-cloned-repo)
+         * - Sparse checkout paths, if the repository was cloned with only part of its tree checked out
+         * - Whether to ask a running working tree watcher which files have changed (defaults to scanning the whole working tree)
+         * - Which files to keep in Git LFS rather than in the repository (defaults to no LFS)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
          */
         Configuration configuration = new Configuration();
 
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
         // Add and commit changes to the local repository
         try {
-            addAndCommitChanges(configuration.getLocalRepositoryDirectory());
+            addAndCommitChanges(configuration.getLocalRepositoryDirectory(), configuration.getCloneOptions().sparseCheckoutPaths(),
+                    configuration.isWorkingTreeChangeTrackingEnabled(), configuration.getWorkingTreeChangeTrackerSyncTimeout(),
+                    configuration.getLfsOptions());
         } catch (GitAPIException e) {
             throw new RuntimeException("An error occurred while adding and committing changes to the local repository", e);
         }
+
+        MetricsRegistry.getDefault().snapshot().operations().forEach((operation, stats) -> logger.info("{}: {}", operation, stats.summary()));
+        logger.info("Pack window cache: {}", WindowCacheUsage.current().summary());
     }
 
-    private static void addAndCommitChanges(LocalDirectory localGitRootDirectory) throws GitAPIException {
+    private static void addAndCommitChanges(LocalDirectory localGitRootDirectory, List<String> sparseCheckoutPaths,
+                                            boolean useChangeTracking, Duration changeTrackerSyncTimeout, LfsOptions lfsOptions) throws GitAPIException {
 
         localGitRootDirectory.ensureDirectoryExistsAndIsGitRepository();
 
@@ -54,35 +82,74 @@ public class Step2_AddingAndCommittingChanges {
         // N.B: It's crucial to close Git objects when they are no longer needed.
         // Git is a closeable resource and should be closed to avoid resource leaks.
         logger.info("Attempting to open repository: {}", localGitRootDirectory.getPath().toAbsolutePath());
-        try (Git git = Git.open(localGitRootDirectory.getPath().toFile())) {
+        // None of the git commands below report their progress, so the metrics time each of them as a phase of the commit.
+        // The activity lease keeps repository maintenance from repacking the repository while we commit.
+        try (RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(localGitRootDirectory.getPath());
+             Git git = Git.open(localGitRootDirectory.getPath().toFile());
+             OperationMetrics metrics = MetricsRegistry.getDefault().start("commit", localGitRootDirectory.getPath().toString(), NullProgressMonitor.INSTANCE)) {
             logger.info("Successfully opened repository: {}", git.getRepository().getDirectory());
 
-            // Check if there are any uncommitted changes or untracked files
-            if (git.status().call().isClean()) {
-                logger.info("There are no uncommitted changes or untracked files in the repository. Nothing to commit.");
-                return;
+            // With a sparse checkout, files outside the sparse checkout paths are missing from the working tree on purpose,
+            // so only look for changes under those paths. Otherwise, look at the whole repository, just like you would use "." with the Git CLI.
+            List<String> pathsToCommit = sparseCheckoutPaths.isEmpty() ? List.of(".") : sparseCheckoutPaths;
+
+            // Both the status and the add below walk and hash every file under the paths they are given.
+            // If a working tree watcher has been recording which files changed, only give them those files instead.
+            ChangeJournal changeJournal = null;
+            ChangeJournal.Snapshot changes = null;
+            if (useChangeTracking) {
+                metrics.beginTask("Reading changed paths", ProgressMonitor.UNKNOWN);
+                changeJournal = new ChangeJournal(git.getRepository().getDirectory().toPath());
+                changes = changeJournal.read(changeTrackerSyncTimeout);
+                metrics.endTask();
+                if (!changes.fullScan()) {
+                    pathsToCommit = restrictToSparseCheckout(changes.changedPaths(), sparseCheckoutPaths);
+                    logger.info("Working tree watcher reported {} changed paths", pathsToCommit.size());
+                }
             }
 
-            git.add()
-                    .addFilepattern(".") // Just like you would use the Git CLI, you add all files in the repository using "."
-                    .call();
-
             // The commit message can be supplied as a system property when running the program.
             String suppliedCommitMessage = System.getProperty("commitMessage");
             String commitMessage = suppliedCommitMessage != null ? suppliedCommitMessage : "Add all files";
 
-            git.commit()
-                    .setCommitter(
-                            // A person ident is required to commit changes
-                            new PersonIdent("David Davies", "david.davies@example.com"))
-                    .setMessage(commitMessage)
-                    .call();
+            // Check for uncommitted changes or untracked files under the paths, mark large files for LFS, then add and commit them.
+            // A person ident is required to commit changes.
+            RevCommit commit = new WorkingTreeCommitter(git, lfsOptions)
+                    .commit(pathsToCommit, new PersonIdent("David Davies", "david.davies@example.com"), commitMessage, metrics);
+            if (commit == null) {
+                logger.info("There are no uncommitted changes or untracked files in the repository. Nothing to commit.");
+                if (changeJournal != null) {
+                    changeJournal.acknowledge(changes);
+                }
+                metrics.succeeded();
+                return;
+            }
 
             logger.info("Successfully staged and committed changes to the local repository");
 
+            // The changes are committed, so the watcher no longer needs to report them.
+            if (changeJournal != null) {
+                changeJournal.acknowledge(changes);
+            }
+            metrics.succeeded();
+
         } catch (IOException e) {
             throw new RuntimeException("An error occurred opening the repository", e);
         }
 
     }
+
+    private static List<String> restrictToSparseCheckout(Set<String> changedPaths, List<String> sparseCheckoutPaths) {
+        SparseCheckout sparseCheckout = new SparseCheckout(sparseCheckoutPaths);
+        Set<String> paths = new TreeSet<>();
+        for (String changedPath : changedPaths) {
+            if (sparseCheckout.includes(changedPath)) {
+                paths.add(changedPath);
+            } else {
+                // A change to a parent directory, such as its deletion, affects the sparse checkout paths inside it.
+                sparseCheckoutPaths.stream().filter(sparsePath -> sparsePath.startsWith(changedPath + "/")).forEach(paths::add);
+            }
+        }
+        return List.copyOf(paths);
+    }
 }
@@ -18,12 +18,20 @@ package uk.co.autotrader.jgit.tutorial;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.SshSessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.lfs.LargeFileSupport;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.WindowCacheUsage;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.push.PushOutcome;
 
 import java.io.IOException;
+import java.util.concurrent.CompletionException;
 import java.util.function.Supplier;
 
 public class Step3_PushingChanges {
@@ -35,33 +43,60 @@ public class Step3_PushingChanges {
         /*
          * Get the Tutorial's configuration which gives us the following information:
          * - Local Directory that represents a directory on the file system (defaults to ~/jgit-cloned-repositories/name-of-cloned-repo)
-         * - SSH key & (optional) Key Passphrase to authenticate with remote repository (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE)
-         * - Fingerprint of the server's public key (GitHub)
+         * - SSH key & (optional) Key Passphrase to authenticate with remote repository (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE when the first SSH connection is opened)
+         * - Host keys of the servers to trust (GitHub's, plus any in a known_hosts file)
+         * - How to retry a push that is rejected because the remote branch has moved
+         * - Where LFS files are uploaded to, if large files are kept in Git LFS (defaults to no LFS)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
          */
         Configuration configuration = new Configuration();
-        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration.getSshKey(), configuration.getSshKeyPassphrase(), configuration.getGithubEcdsaSshFingerprint());
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration::getSshSecrets, configuration.getKnownHosts());
 
         // Push changes to the remote repository using SSH client based on the provided configuration
         try {
-            pushChangesToRemoteRepository(configuration.getLocalRepositoryDirectory(), sshdSessionFactory::buildSshdSessionFactory);
+            pushChangesToRemoteRepository(configuration.getLocalRepositoryDirectory(), configuration,
+                    () -> sshdSessionFactory.getSharedSessionFactory(configuration.getSshSessionIdleTimeout()));
         } catch (GitAPIException e) {
             throw new RuntimeException("An error occurred while pushing changes to the remote repository", e);
         }
+
+        MetricsRegistry.getDefault().snapshot().operations().forEach((operation, stats) -> logger.info("{}: {}", operation, stats.summary()));
+        logger.info("Pack window cache: {}", WindowCacheUsage.current().summary());
     }
 
-    private static void pushChangesToRemoteRepository(LocalDirectory localGitRootDirectory, Supplier<SshdSessionFactory> sshdSessionFactorySupplier) throws GitAPIException {
+    private static void pushChangesToRemoteRepository(LocalDirectory localGitRootDirectory, Configuration configuration, Supplier<SshSessionFactory> sshSessionFactorySupplier) throws GitAPIException {
 
         localGitRootDirectory.ensureDirectoryExistsAndIsGitRepository();
 
-        SshdSessionFactory.setInstance(sshdSessionFactorySupplier.get());
+        SshSessionFactory.setInstance(sshSessionFactorySupplier.get());
 
         // N.B: It's crucial to close Git objects when they are no longer needed.
         // Git is a closeable resource and should be closed to avoid resource leaks.
         logger.info("Attempting to open repository: {}", localGitRootDirectory.getPath().toAbsolutePath());
         try (final Git git = Git.open(localGitRootDirectory.getPath().toFile())) {
             logger.info("Successfully opened repository: {}", git.getRepository().getDirectory());
-            git.push().call();
-            logger.info("Successfully pushed changes to the repository");
+
+            LfsOptions lfsOptions = configuration.getLfsOptions();
+
+            // Rather than a single git.push().call(), which fails if someone else has pushed to the branch since we last fetched,
+            // the push queue rebases our commits onto the remote branch and pushes again.
+            // It can also push commits from many producers together, although here there is just the one branch.
+            try (CoalescingPushQueue pushQueue = new CoalescingPushQueue(git.getRepository(), Constants.DEFAULT_REMOTE_NAME,
+                    configuration.getPushCoalescingWindow(), configuration.getPushMaxAttempts(), configuration.getPushRetryInitialBackoff())) {
+                // The contents of new LFS files are uploaded before each push, so the remote never has a pointer to contents it can't serve.
+                if (lfsOptions != null) {
+                    pushQueue.setBeforePush(new LargeFileSupport(git.getRepository(), lfsOptions)::upload);
+                }
+                PushOutcome outcome = pushQueue.submit(git.getRepository().getBranch()).join();
+                logger.info("Successfully pushed changes to the repository: {} is now at {} (after {} attempts)",
+                        outcome.branch(), outcome.pushedCommit().name(), outcome.attempts());
+            }
+        } catch (CompletionException e) {
+            throw new RuntimeException("An error occurred while pushing changes to the remote repository", e.getCause());
         } catch (IOException e) {
             throw new RuntimeException("An error occurred opening the repository", e);
         }
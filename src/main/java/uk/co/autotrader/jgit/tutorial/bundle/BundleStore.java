@@ -0,0 +1,285 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.bundle;
+
+import org.eclipse.jgit.lib.BranchConfig;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Git bundles of a repository on local disk, that new clones are seeded from before fetching the rest from the remote.
+ * <p>
+ * A first clone of a large repository downloads every object from the git host. With bundles staged on local disk,
+ * or on a shared drive, the clone reads all but the newest objects from them instead, and only fetches what was pushed
+ * since they were written.
+ * <p>
+ * The store is either a single bundle file, or a directory of numbered bundles written by {@link #refresh}: a full
+ * bundle of every branch and tag, followed by incremental bundles of what changed since the bundle before them.
+ * Clones apply the newest full bundle and every incremental bundle after it, in order. Every so many incremental
+ * bundles, a new full bundle replaces them, so a clone never has to apply a long chain.
+ * Each bundle is written to a temporary file and then moved into place, so clones only ever see whole bundles.
+ * The bundles a new full bundle replaces are kept for a grace period, so clones that listed them just before
+ * can still read them.
+ */
+public class BundleStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(BundleStore.class);
+
+    private static final String BUNDLE_EXTENSION = ".bundle";
+    private static final String FULL_SUFFIX = "-full" + BUNDLE_EXTENSION;
+    private static final String INCREMENTAL_SUFFIX = "-incremental" + BUNDLE_EXTENSION;
+
+    // Long enough for any clone to have read the bundles it listed.
+    private static final Duration DEFAULT_SUPERSEDED_BUNDLE_GRACE_PERIOD = Duration.ofHours(1);
+
+    private final Path location;
+    private final Duration supersededBundleGracePeriod;
+
+    /**
+     * Creates a new BundleStore that keeps replaced bundles for an hour.
+     *
+     * @param location a bundle file, whose name ends with {@code .bundle}, or a directory of bundles
+     */
+    public BundleStore(Path location) {
+        this(location, DEFAULT_SUPERSEDED_BUNDLE_GRACE_PERIOD);
+    }
+
+    /**
+     * Creates a new BundleStore.
+     *
+     * @param location a bundle file, whose name ends with {@code .bundle}, or a directory of bundles
+     * @param supersededBundleGracePeriod how long the bundles a new full bundle replaces are kept before they are deleted
+     */
+    public BundleStore(Path location, Duration supersededBundleGracePeriod) {
+        this.location = location;
+        this.supersededBundleGracePeriod = supersededBundleGracePeriod;
+    }
+
+    public Path getLocation() {
+        return location;
+    }
+
+    /**
+     * Returns the bundles a new clone is made from, in the order to apply them.
+     *
+     * @return the newest full bundle and the incremental bundles after it, or an empty list if there are none yet
+     */
+    public List<Path> chain() {
+        if (!isDirectory()) {
+            return Files.isRegularFile(location) ? List.of(location) : List.of();
+        }
+        if (!Files.isDirectory(location)) {
+            return List.of();
+        }
+        List<Path> bundles = bundles();
+        for (int i = bundles.size() - 1; i >= 0; i--) {
+            if (bundles.get(i).getFileName().toString().endsWith(FULL_SUFFIX)) {
+                return bundles.subList(i, bundles.size());
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Writes a bundle of what the repository has that the bundles in the store don't, unless they are up to date already.
+     * <p>
+     * In a clone, the remote-tracking branches of {@code origin} are bundled as the branches they track, so the bundles
+     * look just like the remote repository. In a bare repository, such as a mirror, its own branches are bundled.
+     * Tags are bundled in both cases.
+     *
+     * @param repository the repository to bundle
+     * @param maxIncrementalBundles how many incremental bundles may follow a full bundle before a new full bundle is written
+     * @param progressMonitor receives progress updates while the bundle's pack is written
+     * @return the bundle written, or null if the store was up to date
+     */
+    @Nullable
+    public Path refresh(Repository repository, int maxIncrementalBundles, ProgressMonitor progressMonitor) throws IOException {
+        Map<String, ObjectId> refs = refsToBundle(repository);
+        if (refs.isEmpty()) {
+            throw new IllegalStateException("Repository " + repository.getDirectory() + " has no branches to bundle");
+        }
+
+        if (!isDirectory()) {
+            Files.createDirectories(location.toAbsolutePath().getParent());
+            write(repository, refs, Map.of(), location, progressMonitor);
+            return location;
+        }
+
+        Files.createDirectories(location);
+        List<Path> chain = chain();
+        Map<String, ObjectId> bundledRefs = chain.isEmpty() ? Map.of() : refsOf(repository, chain.getLast());
+        if (bundledRefs.equals(refs)) {
+            logger.info("Bundles in {} are up to date", location);
+            deleteSupersededBundles();
+            return null;
+        }
+
+        boolean full = chain.isEmpty() || chain.size() - 1 >= maxIncrementalBundles;
+        Path bundle = location.resolve(String.format("%06d", nextSequenceNumber()) + (full ? FULL_SUFFIX : INCREMENTAL_SUFFIX));
+        write(repository, refs, full ? Map.of() : bundledRefs, bundle, progressMonitor);
+        deleteSupersededBundles();
+        return bundle;
+    }
+
+    /**
+     * Deletes the bundles before a full bundle once that full bundle has been in the store for the grace period.
+     * New clones start from the newest full bundle, but a clone that listed the chain just before it was written
+     * may still be reading the bundles before it.
+     */
+    private void deleteSupersededBundles() throws IOException {
+        Instant supersededBefore = Instant.now().minus(supersededBundleGracePeriod);
+        List<Path> bundles = bundles();
+        // The oldest full bundle after the one being looked at, going from the newest bundle to the oldest.
+        Path supersededBy = null;
+        for (Path bundle : bundles.reversed()) {
+            if (supersededBy != null && !Files.getLastModifiedTime(supersededBy).toInstant().isAfter(supersededBefore)) {
+                Files.deleteIfExists(bundle);
+                logger.debug("Deleted bundle {}, superseded by {}", bundle, supersededBy);
+            }
+            if (bundle.getFileName().toString().endsWith(FULL_SUFFIX)) {
+                supersededBy = bundle;
+            }
+        }
+    }
+
+    /**
+     * Writes a bundle of the refs that leaves out everything reachable from the refs of the previous bundle.
+     */
+    private void write(Repository repository, Map<String, ObjectId> refs, Map<String, ObjectId> previousRefs, Path bundle, ProgressMonitor progressMonitor) throws IOException {
+        BundleWriter bundleWriter = new BundleWriter(repository);
+        refs.forEach(bundleWriter::include);
+
+        Set<ObjectId> prerequisites = new HashSet<>(previousRefs.values());
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            for (ObjectId prerequisite : prerequisites) {
+                // A branch that was force-pushed away may have taken its old tip with it, which clones then just don't need.
+                if (!repository.getObjectDatabase().has(prerequisite)) {
+                    continue;
+                }
+                RevObject object = revWalk.peel(revWalk.parseAny(prerequisite));
+                if (object instanceof RevCommit commit) {
+                    bundleWriter.assume(commit);
+                }
+            }
+        }
+
+        Path temporaryFile = Files.createTempFile(bundle.toAbsolutePath().getParent(), bundle.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+                bundleWriter.writeBundle(progressMonitor, out);
+            }
+            Files.move(temporaryFile, bundle, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        logger.info("Wrote {} bundle {} of {} refs, {} bytes", previousRefs.isEmpty() ? "full" : "incremental",
+                bundle, refs.size(), Files.size(bundle));
+    }
+
+    private static Map<String, ObjectId> refsToBundle(Repository repository) throws IOException {
+        Map<String, ObjectId> refs = new TreeMap<>();
+        String branchPrefix = repository.isBare() ? Constants.R_HEADS : Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/";
+        for (Ref ref : repository.getRefDatabase().getRefsByPrefix(branchPrefix)) {
+            if (!ref.isSymbolic() && ref.getObjectId() != null) {
+                refs.put(Constants.R_HEADS + ref.getName().substring(branchPrefix.length()), ref.getObjectId());
+            }
+        }
+        for (Ref ref : repository.getRefDatabase().getRefsByPrefix(Constants.R_TAGS)) {
+            refs.put(ref.getName(), ref.getObjectId());
+        }
+
+        // A clone made from the bundle checks out the branch that HEAD points at, just as it would after cloning the remote.
+        ObjectId head = repository.isBare() ? repository.resolve(Constants.HEAD) : remoteHead(repository);
+        if (head != null) {
+            refs.put(Constants.HEAD, head);
+        }
+        return refs;
+    }
+
+    @Nullable
+    private static ObjectId remoteHead(Repository repository) throws IOException {
+        ObjectId remoteHead = repository.resolve(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + Constants.HEAD);
+        if (remoteHead != null) {
+            return remoteHead;
+        }
+        String upstreamBranch = new BranchConfig(repository.getConfig(), repository.getBranch()).getRemoteTrackingBranch();
+        return upstreamBranch == null ? null : repository.resolve(upstreamBranch);
+    }
+
+    private static Map<String, ObjectId> refsOf(Repository repository, Path bundle) throws IOException {
+        try (Transport transport = Transport.open(repository, new URIish(bundle.toAbsolutePath().toString()));
+             FetchConnection connection = transport.openFetch()) {
+            Map<String, ObjectId> refs = new TreeMap<>();
+            connection.getRefsMap().forEach((name, ref) -> refs.put(name, ref.getObjectId()));
+            return refs;
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Invalid bundle path: " + bundle, e);
+        }
+    }
+
+    private boolean isDirectory() {
+        return !location.getFileName().toString().endsWith(BUNDLE_EXTENSION);
+    }
+
+    private List<Path> bundles() {
+        try (Stream<Path> files = Files.list(location)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(FULL_SUFFIX) || file.getFileName().toString().endsWith(INCREMENTAL_SUFFIX))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list bundles in " + location, e);
+        }
+    }
+
+    private int nextSequenceNumber() {
+        List<Path> bundles = bundles();
+        if (bundles.isEmpty()) {
+            return 1;
+        }
+        String name = bundles.getLast().getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.indexOf('-'))) + 1;
+    }
+}
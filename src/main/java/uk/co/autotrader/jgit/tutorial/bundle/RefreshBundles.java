@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.bundle;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes bundles of the local repository, cloned by Step 1, for new clones to be seeded from, or brings them up to date
+ * with what has been fetched into the repository since. Run it after each sync, e.g. on a schedule, and copy or share
+ * the bundles with the machines that clone the repository.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.bundle.RefreshBundles}
+ */
+public class RefreshBundles {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshBundles.class);
+
+    public static void main(String[] args) {
+
+        /*
+         * Get the Tutorial's configuration, which gives us the following information:
+         * - Local Directory that represents a directory on the file system (defaults to ~/jgit-cloned-repositories/name-of-cloned-repo)
+         * - Where to write the bundles, and how many incremental bundles to write before a new full bundle
+         * - How long to keep the bundles a new full bundle replaces
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
+         */
+        Configuration configuration = new Configuration();
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        Path bundleLocation = configuration.getCloneBundleLocation();
+        if (bundleLocation == null) {
+            throw new IllegalStateException("CLONE_BUNDLE_LOCATION must be set in the Configuration class");
+        }
+
+        LocalDirectory localGitRootDirectory = configuration.getLocalRepositoryDirectory();
+        localGitRootDirectory.ensureDirectoryExistsAndIsGitRepository();
+        try (Git git = Git.open(localGitRootDirectory.getPath().toFile());
+             RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(git.getRepository())) {
+            Path bundle = new BundleStore(bundleLocation, configuration.getCloneBundleSupersededGracePeriod()).refresh(git.getRepository(), configuration.getCloneBundleMaxIncrementals(), NullProgressMonitor.INSTANCE);
+            if (bundle != null) {
+                logger.info("Bundled {} into {}", localGitRootDirectory.getPath().toAbsolutePath(), bundle);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred bundling the repository", e);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * A directory of bare mirror repositories, one per remote URL, that new clones fetch their objects from
+ * instead of downloading the whole history from the remote again.
+ * <p>
+ * {@link #acquire} brings the mirror of a remote up to date, which only transfers what changed since it was last used,
+ * and leases it to the caller, who clones from it locally and then fetches any remaining delta from the real remote.
+ * Clones copy the objects they need rather than borrowing them through git alternates, so evicting a mirror never
+ * breaks an existing clone.
+ * <p>
+ * When the cache grows past its size budget, the least recently used mirrors are deleted. Mirrors are only evicted once
+ * they have been idle for a minimum time, as other processes on the same host may still be cloning from them.
+ * The size of a mirror is measured when it is first seen and after each refresh, the only time this JVM changes it,
+ * so checking the budget as a lease is closed doesn't walk every mirror. A mirror that another process refreshed is
+ * measured again at its next refresh here.
+ * Refreshes and evictions of a mirror are serialised within this JVM and, through a lock file, across processes.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ReferenceMirrorCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceMirrorCache.class);
+
+    private static final String MIRROR_SUFFIX = ".git";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String LAST_USED_MARKER = "jgit-tutorial-last-used";
+
+    private final Path cacheDirectory;
+    private final long maxBytes;
+    private final Duration minimumIdleBeforeEviction;
+    private final Map<String, ReentrantReadWriteLock> mirrorLocks = new ConcurrentHashMap<>();
+    private final Map<String, Long> mirrorBytes = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new ReferenceMirrorCache.
+     *
+     * @param cacheDirectory the directory holding the mirrors
+     * @param maxBytes the size budget of the cache
+     * @param minimumIdleBeforeEviction how long a mirror must have been unused before it may be evicted
+     */
+    public ReferenceMirrorCache(Path cacheDirectory, long maxBytes, Duration minimumIdleBeforeEviction) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.cacheDirectory = cacheDirectory;
+        this.maxBytes = maxBytes;
+        this.minimumIdleBeforeEviction = minimumIdleBeforeEviction;
+        try {
+            Files.createDirectories(cacheDirectory);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create directories: " + cacheDirectory, e);
+        }
+    }
+
+    /**
+     * Creates or refreshes the mirror of a remote repository and leases it to the caller.
+     * The mirror will not be evicted by this JVM until the lease is closed.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param progressMonitor receives progress updates and may cancel the refresh
+     * @param timeoutSeconds the network timeout in seconds, or 0 for no timeout
+     * @return a lease on the up-to-date mirror
+     */
+    public Lease acquire(String remoteUrl, ProgressMonitor progressMonitor, int timeoutSeconds) throws GitAPIException {
+        String mirrorName = mirrorName(remoteUrl);
+        Path mirrorDirectory = cacheDirectory.resolve(mirrorName + MIRROR_SUFFIX);
+        ReentrantReadWriteLock lock = mirrorLocks.computeIfAbsent(mirrorName, name -> new ReentrantReadWriteLock());
+
+        lock.writeLock().lock();
+        try (FileChannel channel = FileChannel.open(lockFile(mirrorName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            refresh(remoteUrl, mirrorDirectory, progressMonitor, timeoutSeconds);
+            markUsed(mirrorDirectory);
+            mirrorBytes.put(mirrorName, sizeOf(mirrorDirectory.toFile()));
+            // Downgrade to a read lock, so other clones of the same remote can read the mirror at the same time.
+            lock.readLock().lock();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to lock mirror of " + remoteUrl, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new Lease(mirrorDirectory, lock);
+    }
+
+    /**
+     * @return a snapshot of the cache's hit, miss and eviction counts and size
+     */
+    public Statistics getStatistics() {
+        return new Statistics(hits.get(), misses.get(), evictions.get(), listMirrors().stream().mapToLong(Mirror::bytes).sum());
+    }
+
+    /**
+     * Deletes the least recently used mirrors until the cache fits in its size budget,
+     * skipping mirrors that are in use or have not been idle for long enough.
+     */
+    public void evictIfOverBudget() {
+        List<Mirror> mirrors = listMirrors();
+        long totalBytes = mirrors.stream().mapToLong(Mirror::bytes).sum();
+        long idleBefore = System.currentTimeMillis() - minimumIdleBeforeEviction.toMillis();
+
+        for (Mirror mirror : mirrors) {
+            if (totalBytes <= maxBytes) {
+                return;
+            }
+            if (mirror.lastUsedMillis() > idleBefore) {
+                continue;
+            }
+            if (evict(mirror)) {
+                totalBytes -= mirror.bytes();
+            }
+        }
+        if (totalBytes > maxBytes) {
+            logger.warn("Reference mirror cache is {} bytes, over its budget of {} bytes, but every remaining mirror is in use", totalBytes, maxBytes);
+        }
+    }
+
+    private void refresh(String remoteUrl, Path mirrorDirectory, ProgressMonitor progressMonitor, int timeoutSeconds) throws GitAPIException, IOException {
+        if (Files.isDirectory(mirrorDirectory)) {
+            hits.incrementAndGet();
+            logger.info("Refreshing reference mirror of {}", remoteUrl);
+            try (Git mirror = Git.open(mirrorDirectory.toFile())) {
+                mirror.fetch()
+                        .setRemote("origin")
+                        .setRemoveDeletedRefs(true)
+                        .setProgressMonitor(progressMonitor)
+                        .setTimeout(timeoutSeconds)
+                        .call();
+            }
+            return;
+        }
+
+        misses.incrementAndGet();
+        logger.info("Creating reference mirror of {}", remoteUrl);
+        try (Git mirror = Git.cloneRepository()
+                .setURI(remoteUrl)
+                .setDirectory(mirrorDirectory.toFile())
+                .setBare(true)
+                .setMirror(true)
+                .setProgressMonitor(progressMonitor)
+                .setTimeout(timeoutSeconds)
+                .call()) {
+            // Let clones from the mirror use the same partial clone filters as clones from the remote.
+            StoredConfig config = mirror.getRepository().getConfig();
+            config.setBoolean("uploadpack", null, "allowFilter", true);
+            config.save();
+        } catch (GitAPIException | RuntimeException e) {
+            FileUtils.deleteQuietly(mirrorDirectory.toFile());
+            throw e;
+        }
+    }
+
+    private boolean evict(Mirror mirror) {
+        ReentrantReadWriteLock lock = mirrorLocks.computeIfAbsent(mirror.name(), name -> new ReentrantReadWriteLock());
+        if (!lock.writeLock().tryLock()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile(mirror.name()), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock fileLock = channel.tryLock()) {
+            if (fileLock == null) {
+                return false;
+            }
+            logger.info("Evicting reference mirror {} ({} bytes)", mirror.directory(), mirror.bytes());
+            FileUtils.deleteDirectory(mirror.directory().toFile());
+            mirrorBytes.remove(mirror.name());
+            evictions.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to evict reference mirror {}", mirror.directory(), e);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the mirrors in the cache directory, least recently used first, with the size each had when it was last measured
+     */
+    private List<Mirror> listMirrors() {
+        List<Mirror> mirrors = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(cacheDirectory)) {
+            entries.filter(path -> path.getFileName().toString().endsWith(MIRROR_SUFFIX) && Files.isDirectory(path))
+                    .forEach(path -> {
+                        String fileName = path.getFileName().toString();
+                        String name = fileName.substring(0, fileName.length() - MIRROR_SUFFIX.length());
+                        // Only mirrors created by another process, or before this JVM started, are measured here.
+                        long bytes = mirrorBytes.computeIfAbsent(name, ignored -> sizeOf(path.toFile()));
+                        mirrors.add(new Mirror(name, path, lastUsed(path), bytes));
+                    });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list reference mirrors in " + cacheDirectory, e);
+        }
+        // Forget the mirrors that other processes have evicted.
+        mirrorBytes.keySet().retainAll(mirrors.stream().map(Mirror::name).toList());
+        mirrors.sort(Comparator.comparingLong(Mirror::lastUsedMillis));
+        return mirrors;
+    }
+
+    private Path lockFile(String mirrorName) {
+        return cacheDirectory.resolve(mirrorName + LOCK_SUFFIX);
+    }
+
+    private static void markUsed(Path mirrorDirectory) throws IOException {
+        Path marker = mirrorDirectory.resolve(LAST_USED_MARKER);
+        if (!Files.exists(marker)) {
+            Files.createFile(marker);
+        }
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    private static long lastUsed(Path mirrorDirectory) {
+        File marker = mirrorDirectory.resolve(LAST_USED_MARKER).toFile();
+        return marker.exists() ? marker.lastModified() : mirrorDirectory.toFile().lastModified();
+    }
+
+    private static long sizeOf(File directory) {
+        try {
+            return FileUtils.sizeOfDirectory(directory);
+        } catch (RuntimeException e) {
+            // A mirror may be deleted or repacked while we walk it; the size is only used to choose what to evict.
+            return 0;
+        }
+    }
+
+    /**
+     * Derives a readable, collision-free directory name from a remote URL, e.g. {@code my-repo-3f2a9c1b0d4e}.
+     */
+    static String mirrorName(String remoteUrl) {
+        String humanishName;
+        try {
+            humanishName = new URIish(remoteUrl).getHumanishName().replaceAll("[^A-Za-z0-9._-]", "_");
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            humanishName = "repository";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(remoteUrl.getBytes(StandardCharsets.UTF_8));
+            return humanishName + "-" + HexFormat.of().formatHex(digest, 0, 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A lease on an up-to-date mirror. Close it once the clone from the mirror has finished.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Path mirrorDirectory;
+        private final ReentrantReadWriteLock lock;
+        private boolean closed;
+
+        private Lease(Path mirrorDirectory, ReentrantReadWriteLock lock) {
+            this.mirrorDirectory = mirrorDirectory;
+            this.lock = lock;
+        }
+
+        public Path getMirrorDirectory() {
+            return mirrorDirectory;
+        }
+
+        /**
+         * @return a URL that clones and fetches from the mirror on the local file system
+         */
+        public String getMirrorUrl() {
+            return mirrorDirectory.toUri().toString();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.readLock().unlock();
+            evictIfOverBudget();
+        }
+    }
+
+    /**
+     * @param hits the number of leases on a mirror that already existed
+     * @param misses the number of leases that had to create a new mirror
+     * @param evictions the number of mirrors deleted to stay within the size budget
+     * @param bytes the size of the cache, from the size of each mirror when it was last measured
+     */
+    public record Statistics(long hits, long misses, long evictions, long bytes) {
+    }
+
+    private record Mirror(String name, Path directory, long lastUsedMillis, long bytes) {
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.commit;
+
+import org.eclipse.jgit.lib.FileMode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The files to write and delete in a single commit made by a {@link DirectCommitter}.
+ * Paths are relative to the repository root and use {@code /} as the separator.
+ * A later change to the same path replaces an earlier one.
+ */
+public class ChangeSet {
+
+    private final Map<String, Change> changes = new TreeMap<>();
+
+    /**
+     * Writes a regular file.
+     *
+     * @param path the path of the file
+     * @param content the new content of the file
+     * @return this change set
+     */
+    public ChangeSet put(String path, byte[] content) {
+        return put(path, content, FileMode.REGULAR_FILE);
+    }
+
+    /**
+     * Writes a regular file with UTF-8 text content.
+     *
+     * @param path the path of the file
+     * @param content the new content of the file
+     * @return this change set
+     */
+    public ChangeSet put(String path, String content) {
+        return put(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a file with the given mode, such as {@link FileMode#EXECUTABLE_FILE} or {@link FileMode#SYMLINK}.
+     *
+     * @param path the path of the file
+     * @param content the new content of the file, or the target of a symbolic link
+     * @param mode the mode of the file
+     * @return this change set
+     */
+    public ChangeSet put(String path, byte[] content, FileMode mode) {
+        changes.put(normalise(path), new Change(content, mode));
+        return this;
+    }
+
+    /**
+     * Deletes a file, or every file under a directory. Deleting a path that doesn't exist is not an error.
+     *
+     * @param path the path of the file or directory
+     * @return this change set
+     */
+    public ChangeSet delete(String path) {
+        changes.put(normalise(path), new Change(null, null));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    Map<String, Change> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    private static String normalise(String path) {
+        String normalised = path.replace('\\', '/').replaceAll("^/+|/+$", "");
+        if (normalised.isEmpty()) {
+            throw new IllegalArgumentException("Path must not be empty");
+        }
+        return normalised;
+    }
+
+    /**
+     * A single change: the new content and mode of a file, or a deletion when the content is null.
+     */
+    record Change(byte[] content, FileMode mode) {
+
+        boolean isDeletion() {
+            return content == null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.commit;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Commits changes to a branch without a working tree or an index file.
+ * <p>
+ * Step 2 commits by writing files to the working tree, staging them in the index and committing the index, which means
+ * scanning the working tree and holding {@code index.lock} for every commit. This class instead reads the parent commit's
+ * tree into an in-memory {@link DirCache}, applies a {@link ChangeSet} to it, and writes the new blobs, trees and commit
+ * straight to the object database. The branch is then moved from the parent to the new commit with a compare-and-swap
+ * {@link RefUpdate}, so the commit either lands on top of the parent it was built from or not at all. If another writer
+ * moved the branch in the meantime, the change set is applied again on top of the new tip.
+ * <p>
+ * Commits to the same branch through one DirectCommitter take turns, so retries are only needed when other processes,
+ * or other committers, write to the branch too. Writers targeting different branches never contend with each other. The working tree and
+ * index are never touched, so if the branch is checked out, the working tree will look as if the committed changes had
+ * been reverted until it is reset to the new commit.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DirectCommitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectCommitter.class);
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    private final Repository repository;
+    private final int maxAttempts;
+    private final Map<String, ReentrantLock> branchLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new DirectCommitter that tries a commit up to ten times when the branch keeps moving under it.
+     *
+     * @param repository the repository to commit to, which may be bare
+     */
+    public DirectCommitter(Repository repository) {
+        this(repository, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Creates a new DirectCommitter.
+     *
+     * @param repository the repository to commit to, which may be bare
+     * @param maxAttempts how many times to build and try to land a commit before giving up
+     */
+    public DirectCommitter(Repository repository, int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.repository = repository;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Commits a change set on top of the current tip of a branch, creating the branch if it doesn't exist.
+     * If the change set leaves the tree unchanged, no commit is made.
+     *
+     * @param branch the short name of the branch, such as {@code main}, or a full ref name
+     * @param changes the files to write and delete
+     * @param author the author and committer of the commit; the commit time is the time of each attempt
+     * @param message the commit message
+     * @return the new commit and the commit it replaced as the branch tip
+     * @throws IllegalStateException if the branch could not be updated
+     */
+    public CommitResult commit(String branch, ChangeSet changes, PersonIdent author, String message) {
+        String refName = branch.startsWith(Constants.R_REFS) ? branch : Constants.R_HEADS + branch;
+        ReentrantLock branchLock = branchLocks.computeIfAbsent(refName, name -> new ReentrantLock());
+        branchLock.lock();
+        try (RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(repository)) {
+            for (int attempt = 1; ; attempt++) {
+                Ref ref = repository.exactRef(refName);
+                ObjectId parentId = ref == null ? null : ref.getObjectId();
+
+                ObjectId commitId = buildCommit(parentId, changes, new PersonIdent(author, Instant.now()), message);
+                if (commitId == null) {
+                    logger.debug("Change set leaves {} unchanged, nothing to commit", refName);
+                    return new CommitResult(parentId, parentId, attempt);
+                }
+
+                RefUpdate.Result result = updateRef(refName, parentId, commitId, author, message);
+                switch (result) {
+                    case NEW, FAST_FORWARD -> {
+                        return new CommitResult(commitId, parentId, attempt);
+                    }
+                    case LOCK_FAILURE -> {
+                        // Another writer holds the ref's lock or has already moved the branch past our parent.
+                        if (attempt >= maxAttempts) {
+                            throw new IllegalStateException("Failed to update " + refName + " after " + attempt + " attempts, as other writers kept moving it");
+                        }
+                        logger.debug("{} moved while committing, retrying on top of the new tip (attempt {})", refName, attempt);
+                        backOff(attempt);
+                    }
+                    default -> throw new IllegalStateException("Failed to update " + refName + ": " + result);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred while committing to " + refName, e);
+        } finally {
+            branchLock.unlock();
+        }
+    }
+
+    /**
+     * Builds the commit in the object database.
+     *
+     * @return the new commit, or null if the change set leaves the parent's tree unchanged
+     */
+    private ObjectId buildCommit(@Nullable ObjectId parentId, ChangeSet changes, PersonIdent ident, String message) throws IOException {
+        try (ObjectInserter inserter = repository.newObjectInserter();
+             ObjectReader reader = inserter.newReader();
+             RevWalk revWalk = new RevWalk(reader)) {
+            ObjectId parentTreeId = null;
+            DirCache index = DirCache.newInCore();
+            if (parentId != null) {
+                RevCommit parent = revWalk.parseCommit(parentId);
+                parentTreeId = parent.getTree();
+                index = DirCache.read(reader, parentTreeId);
+            }
+
+            DirCacheEditor editor = index.editor();
+            for (Map.Entry<String, ChangeSet.Change> entry : changes.getChanges().entrySet()) {
+                String path = entry.getKey();
+                ChangeSet.Change change = entry.getValue();
+                if (change.isDeletion()) {
+                    editor.add(new DirCacheEditor.DeletePath(path));
+                    editor.add(new DirCacheEditor.DeleteTree(path));
+                } else {
+                    ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, change.content());
+                    // The editor replaces a file with a directory of the same name, and vice versa, as git does.
+                    editor.add(new DirCacheEditor.PathEdit(path) {
+                        @Override
+                        public void apply(DirCacheEntry dirCacheEntry) {
+                            dirCacheEntry.setFileMode(change.mode());
+                            dirCacheEntry.setObjectId(blobId);
+                        }
+                    });
+                }
+            }
+            editor.finish();
+
+            ObjectId treeId = index.writeTree(inserter);
+            if (treeId.equals(parentTreeId)) {
+                return null;
+            }
+
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(treeId);
+            if (parentId != null) {
+                commitBuilder.setParentId(parentId);
+            }
+            commitBuilder.setAuthor(ident);
+            commitBuilder.setCommitter(ident);
+            commitBuilder.setMessage(message);
+            ObjectId commitId = inserter.insert(commitBuilder);
+            inserter.flush();
+            return commitId;
+        }
+    }
+
+    private RefUpdate.Result updateRef(String refName, @Nullable ObjectId parentId, ObjectId commitId, PersonIdent author, String message) throws IOException {
+        RefUpdate refUpdate = repository.updateRef(refName);
+        // Only move the branch if it still points at the commit we built on, or create it if it still doesn't exist.
+        refUpdate.setExpectedOldObjectId(parentId == null ? ObjectId.zeroId() : parentId);
+        refUpdate.setNewObjectId(commitId);
+        refUpdate.setRefLogIdent(author);
+        refUpdate.setRefLogMessage((parentId == null ? "commit (initial): " : "commit: ") + firstLine(message), false);
+        return refUpdate.update();
+    }
+
+    private static void backOff(int attempt) {
+        // Writers that lost the race wait a random, growing time, so they don't keep colliding with each other.
+        long maxDelay = Math.min(MAX_BACKOFF_MILLIS, 1L << attempt);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(1, maxDelay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry a commit", e);
+        }
+    }
+
+    private static String firstLine(String message) {
+        int newline = message.indexOf('\n');
+        return newline < 0 ? message : message.substring(0, newline);
+    }
+
+    /**
+     * The outcome of a commit.
+     *
+     * @param commitId the tip of the branch after the commit, which is the previous tip if nothing changed
+     * @param previousId the tip of the branch that the commit was built on, or null if the branch was created
+     * @param attempts how many times the commit was built before the branch was updated
+     */
+    public record CommitResult(@Nullable ObjectId commitId, @Nullable ObjectId previousId, int attempts) {
+
+        /**
+         * @return true if a new commit was made, false if the change set left the tree unchanged
+         */
+        public boolean isCommitted() {
+            return commitId != null && !commitId.equals(previousId);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.commit;
+
+import org.eclipse.jgit.api.AddCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.StatusCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
+import uk.co.autotrader.jgit.tutorial.lfs.LargeFileSupport;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Commits the changes in a working tree the way Step 2 does: checks the status of the given paths, marks large files
+ * for LFS, stages the paths and commits the index.
+ * <p>
+ * None of these commands report their progress, so each of them is reported to the given monitor as one task,
+ * which lets {@link uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics} time them as phases of the commit.
+ */
+public class WorkingTreeCommitter {
+
+    private final Git git;
+    @Nullable
+    private final LfsOptions lfsOptions;
+
+    /**
+     * @param git the repository to commit to, which must have a working tree
+     * @param lfsOptions which files to keep in Git LFS, or null to commit every file to the repository
+     */
+    public WorkingTreeCommitter(Git git, @Nullable LfsOptions lfsOptions) {
+        this.git = git;
+        this.lfsOptions = lfsOptions;
+    }
+
+    /**
+     * Stages and commits every change under the given paths.
+     *
+     * @param paths the paths to look for changes under, as add file patterns; "." for the whole repository
+     * @param person the author and committer of the commit
+     * @param message the commit message
+     * @param monitor told about each phase of the commit
+     * @return the new commit, or null if nothing under the paths changed
+     */
+    @Nullable
+    public RevCommit commit(List<String> paths, PersonIdent person, String message, ProgressMonitor monitor) throws GitAPIException, IOException {
+        // Check if there are any uncommitted changes or untracked files
+        monitor.beginTask("Checking status", ProgressMonitor.UNKNOWN);
+        boolean clean = paths.isEmpty() || isClean(paths);
+        monitor.endTask();
+        if (clean) {
+            return null;
+        }
+
+        // Large files are marked for LFS in .gitattributes before they are added, so the add stores them in LFS
+        // and commits small pointer files to the repository instead.
+        boolean attributesChanged = false;
+        if (lfsOptions != null) {
+            monitor.beginTask("Tracking large files", ProgressMonitor.UNKNOWN);
+            LargeFileSupport largeFiles = new LargeFileSupport(git.getRepository(), lfsOptions);
+            largeFiles.install();
+            attributesChanged = largeFiles.track(paths) > 0;
+            monitor.endTask();
+        }
+
+        monitor.beginTask("Adding files", ProgressMonitor.UNKNOWN);
+        AddCommand addCommand = git.add();
+        // Just like you would use the Git CLI, "." adds all files in the repository, while the sparse checkout paths,
+        // or the paths the watcher reported, add only the files under them.
+        paths.forEach(addCommand::addFilepattern);
+        if (attributesChanged && !paths.contains(".")) {
+            addCommand.addFilepattern(Constants.DOT_GIT_ATTRIBUTES);
+        }
+        addCommand.call();
+        monitor.endTask();
+
+        monitor.beginTask("Committing", ProgressMonitor.UNKNOWN);
+        RevCommit commit = git.commit().setAuthor(person).setCommitter(person).setMessage(message).call();
+        monitor.endTask();
+        return commit;
+    }
+
+    private boolean isClean(List<String> paths) throws GitAPIException {
+        StatusCommand statusCommand = git.status();
+        paths.stream().filter(path -> !path.equals(".")).forEach(statusCommand::addPath);
+        return statusCommand.call().isClean();
+    }
+}
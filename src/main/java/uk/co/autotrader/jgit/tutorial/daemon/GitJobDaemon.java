@@ -0,0 +1,556 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.daemon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.cache.ReferenceMirrorCache;
+import uk.co.autotrader.jgit.tutorial.helpers.DirectoryTrash;
+import uk.co.autotrader.jgit.tutorial.lfs.LargeFileSupport;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+import uk.co.autotrader.jgit.tutorial.maintenance.MaintenanceScheduler;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.WindowCacheUsage;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.push.PushOutcome;
+import uk.co.autotrader.jgit.tutorial.sync.PathChange;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+import uk.co.autotrader.jgit.tutorial.sync.SyncResult;
+import uk.co.autotrader.jgit.tutorial.transport.KnownHostsStore;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A long-running process that accepts clone, sync, commit and push jobs over HTTP on the loopback interface.
+ * <p>
+ * Running each step as its own program pays for starting a JVM, loading JGit's classes, reading the SSH key,
+ * opening the repository and warming up the JIT compiler on every single operation. The daemon pays for them once:
+ * it keeps the SSH sessions, the open repositories and the compiled code around for the jobs that follow.
+ * <p>
+ * Jobs are POSTed with their parameters as a JSON object of strings, and the other requests take theirs in the query string:
+ * <pre>
+ * POST /clone   {"url": ..., "directory": ...}      (directory defaults to the name of the remote repository)
+ * POST /sync    {"url": ..., "directory": ...}
+ * POST /commit  {"directory": ..., "message": ..., "authorName": ..., "authorEmail": ...}
+ * POST /push    {"directory": ..., "branch": ...}   (branch defaults to the branch that is checked out)
+ * GET  /changes ?directory=...&amp;from=...&amp;to=...    (from defaults to listing every path in to)
+ * GET  /status
+ * </pre>
+ * Listening on the loopback interface doesn't keep out the web pages open in the user's browser, which could otherwise
+ * clone or push with the user's SSH key. So every request must carry the token that the daemon writes to a file only
+ * the user can read when it starts, as an {@code Authorization: Bearer} header. Requests with an {@code Origin} header,
+ * which browsers add to cross-site requests, and requests for a host name other than the loopback address, which is how
+ * a DNS rebinding attack would arrive, are refused. Job parameters are only read from a JSON body, which an HTML form can't send.
+ * Each request waits for its job and answers with its outcome as plain text. A sync job reports the commits HEAD moved
+ * between, and {@code /changes} streams the paths that changed between them, one {@code git diff --name-status} style
+ * line at a time as they are found, so an index or cache can be updated without either side holding the whole diff. Jobs run on a bounded pool of threads
+ * behind a bounded queue; once both are full, further jobs are turned away with {@code 503 Service Unavailable}.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.daemon.GitJobDaemon}
+ */
+public class GitJobDaemon implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(GitJobDaemon.class);
+
+    private static final PersonIdent DEFAULT_AUTHOR = new PersonIdent("JGit Job Daemon", "jgit.job.daemon@example.com");
+    private static final Set<String> JOBS = Set.of("/clone", "/sync", "/commit", "/push");
+    private static final int TOKEN_BYTES = 32;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final GitJobs jobs;
+    private final Path tokenFile;
+    private final String token;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong rejectedJobs = new AtomicLong();
+
+    private KnownHostsStore knownHosts;
+
+    /**
+     * Creates a new GitJobDaemon. Call {@link #start()} to start accepting jobs.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @param tokenFile the file to write the access token to, which is replaced when the daemon starts and deleted when it stops
+     * @param jobs runs the jobs
+     * @param maxConcurrentJobs how many jobs may run at the same time
+     * @param maxQueuedJobs how many jobs may wait for a free thread before further jobs are turned away
+     */
+    public GitJobDaemon(int port, Path tokenFile, GitJobs jobs, int maxConcurrentJobs, int maxQueuedJobs) throws IOException {
+        this.jobs = jobs;
+        this.tokenFile = tokenFile;
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(tokenBytes);
+        this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+        this.executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueuedJobs), Thread.ofPlatform().name("git-job-", 1).factory());
+        // Only processes on this machine can connect, and only those that can read the token file may submit jobs.
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // Request threads only wait for their job to finish, so they can be cheap virtual threads.
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Get the Tutorial's configuration which gives us the following information:
+         * - Local base directory that the jobs' repositories are cloned into (defaults to ~/jgit-cloned-repositories)
+         * - How an existing clone is brought up to date, and whether a directory may be deleted to clone into it
+         * - Port, access token file, job limits and how many repositories to keep open for the daemon
+         * - How to retry a push that is rejected because the remote branch has moved
+         * - SSH Key & (optional) Key Passphrase to authenticate with the remote repositories (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE when the first SSH connection is opened)
+         * - Host keys of the servers to trust (GitHub's, plus any in a known_hosts file)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
+         * - How often to look at the clones, and when a clone is due for maintenance
+         * - How many added and deleted paths to look for renames among when listing changed paths
+         */
+        Configuration configuration = new Configuration();
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        // Every job shares the same SSH sessions, so only the first job on each host pays for the handshake.
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration::getSshSecrets, configuration.getKnownHosts());
+        SshSessionFactory.setInstance(sshdSessionFactory.getSharedSessionFactory(configuration.getSshSessionIdleTimeout()));
+
+        Path baseDirectory = configuration.getLocalRepositoryBaseDirectory();
+        Files.createDirectories(baseDirectory);
+
+        ReferenceMirrorCache referenceCache = configuration.getReferenceMirrorCacheDirectory() == null ? null
+                : new ReferenceMirrorCache(configuration.getReferenceMirrorCacheDirectory(),
+                configuration.getReferenceMirrorCacheMaxBytes(), configuration.getReferenceMirrorCacheMinimumIdleBeforeEviction());
+        RepositorySynchronizer cloner = new RepositorySynchronizer(SyncMode.FRESH_CLONE,
+                configuration.shouldDeleteAnyExistingDirectoryContents(), configuration.getCloneOptions())
+                .setCheckoutThreads(configuration.getCheckoutThreads());
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(configuration.getSyncMode(),
+                configuration.shouldDeleteAnyExistingDirectoryContents(), configuration.getCloneOptions())
+                .setCheckoutThreads(configuration.getCheckoutThreads());
+        // A clone job moves the clone it replaces aside, so the job doesn't wait for the old one to be deleted.
+        DirectoryTrash trash = configuration.getTrashDirectory() == null ? null : new DirectoryTrash(configuration.getTrashDirectory());
+        cloner.setTrash(trash);
+        synchronizer.setTrash(trash);
+        if (referenceCache != null) {
+            cloner.setReferenceCache(referenceCache);
+            synchronizer.setReferenceCache(referenceCache);
+        }
+
+        LfsOptions lfsOptions = configuration.getLfsOptions();
+        RepositoryHandleCache repositories = new RepositoryHandleCache(configuration.getDaemonMaxOpenRepositories(), repository -> {
+            CoalescingPushQueue pushQueue = new CoalescingPushQueue(repository, Constants.DEFAULT_REMOTE_NAME, configuration.getPushCoalescingWindow(),
+                    configuration.getPushMaxAttempts(), configuration.getPushRetryInitialBackoff());
+            // Commit jobs put large files in LFS, so their contents must be uploaded before each push, as in Step 3.
+            return lfsOptions == null ? pushQueue : pushQueue.setBeforePush(new LargeFileSupport(repository, lfsOptions)::upload);
+        });
+
+        GitJobDaemon daemon = new GitJobDaemon(configuration.getDaemonPort(), configuration.getDaemonTokenFile(), new GitJobs(baseDirectory, cloner, synchronizer, repositories,
+                configuration.getChangedPathsRenameLimit(), configuration.getCloneOptions().sparseCheckoutPaths(), lfsOptions),
+                configuration.getDaemonMaxConcurrentJobs(), configuration.getDaemonMaxQueuedJobs())
+                .setKnownHosts(configuration.getKnownHosts());
+        // Maintenance only touches a clone while no job is using it, so it can run alongside the jobs.
+        MaintenanceScheduler maintenance = new MaintenanceScheduler(baseDirectory, configuration.getMaintenanceThresholds(),
+                configuration.getMaintenanceInterval(), configuration.getMaintenanceMinimumIntervalPerRepository());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            maintenance.close();
+            daemon.close();
+            if (trash != null) {
+                trash.close();
+            }
+        }, "git-job-daemon-shutdown"));
+        daemon.start();
+        maintenance.start();
+    }
+
+    /**
+     * Reports how many servers' host keys were accepted and rejected in {@code /status}.
+     *
+     * @param knownHosts the host keys the jobs' SSH sessions are checked against
+     * @return this daemon
+     */
+    public GitJobDaemon setKnownHosts(KnownHostsStore knownHosts) {
+        this.knownHosts = knownHosts;
+        return this;
+    }
+
+    /**
+     * Starts accepting jobs.
+     *
+     * @return this daemon
+     */
+    public GitJobDaemon start() {
+        writeTokenFile();
+        server.start();
+        logger.info("Accepting git jobs on http://{}:{}/ with the token in {}", server.getAddress().getHostString(), getPort(), tokenFile);
+        return this;
+    }
+
+    /**
+     * @return the token that requests must carry in an {@code Authorization: Bearer} header
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the port the daemon listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting jobs, waits for the running and queued jobs to finish and closes the repositories they used.
+     */
+    @Override
+    public void close() {
+        logger.info("Shutting down: {} jobs running, {} queued", executor.getActiveCount(), executor.getQueue().size());
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Jobs still running after a minute, interrupting them");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop(0);
+        jobs.close();
+        try {
+            Files.deleteIfExists(tokenFile);
+        } catch (IOException e) {
+            logger.warn("Failed to delete the token file {}", tokenFile, e);
+        }
+    }
+
+    /**
+     * Replaces the token file with one that only the current user can read. The file is created with those permissions
+     * rather than changed afterwards, so there is no moment when others could read the new token.
+     */
+    private void writeTokenFile() {
+        try {
+            Files.createDirectories(tokenFile.toAbsolutePath().getParent());
+            Path newTokenFile;
+            try {
+                newTokenFile = Files.createTempFile(tokenFile.toAbsolutePath().getParent(), ".daemon-token", ".tmp",
+                        PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the file inherits the directory's access control instead.
+                logger.warn("Cannot restrict the permissions of {} on this file system", tokenFile);
+                newTokenFile = Files.createTempFile(tokenFile.toAbsolutePath().getParent(), ".daemon-token", ".tmp");
+            }
+            Files.writeString(newTokenFile, token + "\n", StandardCharsets.UTF_8);
+            Files.move(newTokenFile, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the daemon's token file: " + tokenFile, e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String refusal = refusal(exchange);
+            if (refusal != null) {
+                logger.warn("Refused {} {} from {}: {}", exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                        exchange.getRemoteAddress(), refusal);
+                exchange.getRequestBody().close();
+                respond(exchange, refusal.startsWith("missing") ? 401 : 403, "error: " + refusal + "\n");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+
+            if (path.equals("/status")) {
+                respond(exchange, "GET".equals(exchange.getRequestMethod()) ? 200 : 405, status());
+                return;
+            }
+            if (path.equals("/changes")) {
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    streamChanges(exchange, queryParameters(exchange));
+                } else {
+                    respond(exchange, 405, "Changes must be fetched with GET\n");
+                }
+                return;
+            }
+            if (!JOBS.contains(path)) {
+                respond(exchange, 404, "Unknown job: " + path + "\n");
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Jobs must be POSTed\n");
+                return;
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("application/json")) {
+                respond(exchange, 415, "Job parameters must be sent as application/json\n");
+                return;
+            }
+            Map<String, String> parameters;
+            try (InputStream body = exchange.getRequestBody()) {
+                parameters = JobParameters.parse(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "error: " + e.getMessage() + "\n");
+                return;
+            }
+            Callable<String> job = switch (path) {
+                case "/clone" -> () -> describe(jobs.clone(required(parameters, "url"), parameters.get("directory")));
+                case "/sync" -> () -> describe(jobs.sync(required(parameters, "url"), parameters.get("directory")));
+                case "/commit" -> () -> describe(jobs.commit(required(parameters, "directory"), required(parameters, "message"), author(parameters)));
+                case "/push" -> () -> describe(jobs.push(required(parameters, "directory"), parameters.get("branch")));
+                default -> throw new IllegalStateException("Unexpected job: " + path);
+            };
+            run(exchange, path.substring(1), job);
+        }
+    }
+
+    /**
+     * @return why the request must be refused, or null if it may go ahead
+     */
+    private String refusal(HttpExchange exchange) {
+        // Browsers send an Origin header with cross-site requests, and with every POST; the daemon's clients aren't browsers.
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            return "requests from web pages are not accepted";
+        }
+        // A DNS rebinding attack reaches the daemon under the attacker's host name.
+        if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+            return "the Host header must name the loopback address";
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return "missing token; send the contents of " + tokenFile + " as an 'Authorization: Bearer' header";
+        }
+        byte[] suppliedToken = authorization.substring("Bearer ".length()).strip().getBytes(StandardCharsets.UTF_8);
+        // Compared in constant time, so the response time doesn't give away how much of the token was right.
+        if (!MessageDigest.isEqual(suppliedToken, token.getBytes(StandardCharsets.UTF_8))) {
+            return "invalid token";
+        }
+        return null;
+    }
+
+    private static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        String name = host.strip().toLowerCase(Locale.ROOT);
+        if (name.startsWith("[")) {
+            int end = name.indexOf(']');
+            name = end < 0 ? name : name.substring(0, end + 1);
+        } else if (name.indexOf(':') >= 0) {
+            name = name.substring(0, name.indexOf(':'));
+        }
+        return name.equals("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    private void run(HttpExchange exchange, String jobName, Callable<String> job) throws IOException {
+        long start = System.nanoTime();
+        Future<String> result;
+        try {
+            result = executor.submit(job);
+        } catch (RejectedExecutionException e) {
+            rejectedJobs.incrementAndGet();
+            respond(exchange, 503, "Too many jobs, try again later\n");
+            return;
+        }
+
+        try {
+            String outcome = result.get();
+            completedJobs.incrementAndGet();
+            respond(exchange, 200, outcome + "duration_ms: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "\n");
+        } catch (ExecutionException e) {
+            failedJobs.incrementAndGet();
+            Throwable cause = e.getCause();
+            // Bad parameters are the caller's fault, and a directory that already exists or a rejected push are conflicts with the repository's state.
+            int status = cause instanceof IllegalArgumentException ? 400 : cause instanceof IllegalStateException ? 409 : 500;
+            if (status == 500) {
+                logger.error("{} job failed", jobName, cause);
+            } else {
+                logger.warn("{} job failed: {}", jobName, cause.getMessage());
+            }
+            respond(exchange, status, "error: " + cause.getMessage() + "\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted while waiting for the job\n");
+        }
+    }
+
+    /**
+     * Answers with the changed paths as the repository's trees are walked, rather than running a job, as it only reads
+     * objects. The response is chunked, so a client can act on the first paths while the rest are still being found.
+     */
+    private void streamChanges(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        Stream<PathChange> changes;
+        try {
+            changes = jobs.changes(required(parameters, "directory"), parameters.get("from"), required(parameters, "to"));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "error: " + e.getMessage() + "\n");
+            return;
+        } catch (RuntimeException e) {
+            logger.error("Listing changes failed", e);
+            respond(exchange, 500, "error: " + e.getMessage() + "\n");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (changes; Writer response = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            try {
+                for (PathChange change : (Iterable<PathChange>) changes::iterator) {
+                    response.write(describe(change));
+                }
+            } catch (UncheckedIOException e) {
+                // The status has been sent already, so the error can only be reported at the end of the list.
+                logger.error("Listing changes failed", e);
+                response.write("error: " + e.getMessage() + "\n");
+            }
+        }
+    }
+
+    private String status() {
+        StringBuilder status = new StringBuilder();
+        status.append("jobs_running: ").append(executor.getActiveCount()).append('\n')
+                .append("jobs_queued: ").append(executor.getQueue().size()).append('\n')
+                .append("jobs_completed: ").append(completedJobs.get()).append('\n')
+                .append("jobs_failed: ").append(failedJobs.get()).append('\n')
+                .append("jobs_rejected: ").append(rejectedJobs.get()).append('\n');
+        RepositoryHandleCache.Statistics repositories = jobs.getRepositoryStatistics();
+        status.append("repositories_open: ").append(repositories.openRepositories()).append('\n')
+                .append("repository_cache_hits: ").append(repositories.hits()).append('\n')
+                .append("repository_cache_misses: ").append(repositories.misses()).append('\n')
+                .append("repository_cache_evictions: ").append(repositories.evictions()).append('\n');
+        status.append("pack_window_cache: ").append(WindowCacheUsage.current().summary()).append('\n');
+        if (knownHosts != null) {
+            KnownHostsStore.Statistics hostKeys = knownHosts.getStatistics();
+            status.append("host_keys_accepted: ").append(hostKeys.accepted()).append('\n')
+                    .append("host_keys_rejected: ").append(hostKeys.rejected()).append('\n');
+            hostKeys.rejectionsByHost().forEach((host, rejections) ->
+                    status.append("host_keys_rejected{").append(host).append("}: ").append(rejections).append('\n'));
+        }
+        MetricsRegistry.getDefault().snapshot().operations().forEach((operation, stats) ->
+                status.append(operation).append(": ").append(stats.summary()).append('\n'));
+        return status.toString();
+    }
+
+    private static String describe(SyncResult result) {
+        return "action: " + result.action() + "\n"
+                + "previous_head: " + (result.previousHead() == null ? "none" : result.previousHead().name()) + "\n"
+                + "head: " + (result.newHead() == null ? "none" : result.newHead().name()) + "\n";
+    }
+
+    private static String describe(PathChange change) {
+        return switch (change.type()) {
+            case ADDED -> "A\t" + change.path() + "\n";
+            case MODIFIED -> "M\t" + change.path() + "\n";
+            case DELETED -> "D\t" + change.path() + "\n";
+            case RENAMED -> "R\t" + change.oldPath() + "\t" + change.path() + "\n";
+        };
+    }
+
+    private static String describe(RevCommit commit) {
+        return commit == null ? "commit: none, nothing to commit\n" : "commit: " + commit.name() + "\n";
+    }
+
+    private static String describe(PushOutcome outcome) {
+        return "branch: " + outcome.branch() + "\n"
+                + "pushed: " + outcome.pushedCommit().name() + "\n"
+                + "attempts: " + outcome.attempts() + "\n";
+    }
+
+    private static PersonIdent author(Map<String, String> parameters) {
+        String name = parameters.get("authorName");
+        String email = parameters.get("authorEmail");
+        if (name == null && email == null) {
+            return DEFAULT_AUTHOR;
+        }
+        return new PersonIdent(name != null ? name : DEFAULT_AUTHOR.getName(), email != null ? email : DEFAULT_AUTHOR.getEmailAddress());
+    }
+
+    private static String required(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("The '" + name + "' parameter must be set");
+        }
+        return value;
+    }
+
+    /**
+     * Reads the parameters of a request that only reads, from its query string.
+     */
+    private static Map<String, String> queryParameters(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isBlank()) {
+            return parameters;
+        }
+        for (String pair : query.strip().split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream response = exchange.getResponseBody()) {
+            response.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.daemon;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.commit.WorkingTreeCommitter;
+import uk.co.autotrader.jgit.tutorial.fleet.RepositoryManifest;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.lfs.LfsOptions;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+import uk.co.autotrader.jgit.tutorial.push.PushOutcome;
+import uk.co.autotrader.jgit.tutorial.sync.ChangedPathFeed;
+import uk.co.autotrader.jgit.tutorial.sync.PathChange;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncResult;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+/**
+ * The clone, sync, commit and push jobs that the {@link GitJobDaemon} runs, each against a directory
+ * under the local base directory. They do the same work as Steps 1 to 3, but on repositories kept open
+ * by a {@link RepositoryHandleCache}, so repeated jobs on the same repository skip opening it again.
+ * <p>
+ * Jobs on the same repository run one after the other; jobs on different repositories may run at the same time.
+ */
+public class GitJobs implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(GitJobs.class);
+
+    private final Path baseDirectory;
+    private final RepositorySynchronizer cloner;
+    private final RepositorySynchronizer synchronizer;
+    private final RepositoryHandleCache repositories;
+    private final int renameLimit;
+    private final List<String> sparseCheckoutPaths;
+    @Nullable
+    private final LfsOptions lfsOptions;
+
+    /**
+     * Creates a new GitJobs instance.
+     *
+     * @param baseDirectory the directory that holds every repository the jobs work on
+     * @param cloner clones a repository from scratch, as a clone job asks for
+     * @param synchronizer brings an existing clone up to date, or clones the repository if there is none
+     * @param repositories keeps the repositories open between jobs
+     * @param renameLimit how many added and deleted paths to look for renames among when listing changed paths
+     * @param sparseCheckoutPaths the sparse checkout paths the clones were made with, or an empty list for the whole tree
+     * @param lfsOptions which files a commit puts in LFS, or null to commit every file to the repository
+     */
+    public GitJobs(Path baseDirectory, RepositorySynchronizer cloner, RepositorySynchronizer synchronizer, RepositoryHandleCache repositories, int renameLimit,
+                   List<String> sparseCheckoutPaths, @Nullable LfsOptions lfsOptions) {
+        this.baseDirectory = baseDirectory;
+        this.cloner = cloner;
+        this.synchronizer = synchronizer;
+        this.repositories = repositories;
+        this.renameLimit = renameLimit;
+        this.sparseCheckoutPaths = List.copyOf(sparseCheckoutPaths);
+        this.lfsOptions = lfsOptions;
+    }
+
+    /**
+     * Clones a remote repository into a directory, replacing whatever the directory held.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param directoryName the directory to clone into, or null to name it after the remote repository
+     */
+    public SyncResult clone(String remoteUrl, @Nullable String directoryName) throws GitAPIException {
+        RepositoryManifest.Entry entry = entry(remoteUrl, directoryName);
+        try (RepositoryHandleCache.Lease lease = repositories.acquire(baseDirectory.resolve(entry.directoryName()))) {
+            // The clone deletes the repository, so any open handle to it would be left pointing at deleted files.
+            lease.invalidate();
+            return cloner.synchronize(remoteUrl, new LocalDirectory(baseDirectory, entry.directoryName()));
+        }
+    }
+
+    /**
+     * Brings a clone up to date with its remote repository, cloning it first if the directory holds no clone of it.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param directoryName the directory of the clone, or null to name it after the remote repository
+     */
+    public SyncResult sync(String remoteUrl, @Nullable String directoryName) throws GitAPIException {
+        RepositoryManifest.Entry entry = entry(remoteUrl, directoryName);
+        try (RepositoryHandleCache.Lease lease = repositories.acquire(baseDirectory.resolve(entry.directoryName()))) {
+            SyncResult result = synchronizer.synchronize(remoteUrl, new LocalDirectory(baseDirectory, entry.directoryName()));
+            // A fetch leaves the open repository valid, as JGit notices new packs and refs by itself, but a new clone does not.
+            if (result.isFullClone()) {
+                lease.invalidate();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Stages every change under the sparse checkout paths of a working tree, putting large files in LFS, and commits it, just like Step 2.
+     *
+     * @param directoryName the directory of the clone
+     * @param message the commit message
+     * @param author the author and committer of the commit
+     * @return the new commit, or null if there was nothing to commit
+     */
+    @Nullable
+    public RevCommit commit(String directoryName, String message, PersonIdent author) throws GitAPIException {
+        Path workTree = existingWorkTree(directoryName);
+        // The committer reports each git command it runs to the metrics, which time them as phases of the commit.
+        try (RepositoryHandleCache.Lease lease = repositories.acquire(workTree);
+             RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(workTree);
+             OperationMetrics metrics = MetricsRegistry.getDefault().start("commit", workTree.toString(), NullProgressMonitor.INSTANCE)) {
+            Git git = lease.getGit();
+
+            // Files outside the sparse checkout paths are missing from the working tree on purpose, so only look for changes under those paths.
+            List<String> pathsToCommit = sparseCheckoutPaths.isEmpty() ? List.of(".") : sparseCheckoutPaths;
+
+            RevCommit commit = new WorkingTreeCommitter(git, lfsOptions).commit(pathsToCommit, author, message, metrics);
+            if (commit == null) {
+                metrics.succeeded();
+                return null;
+            }
+
+            logger.info("Committed {} to {}", commit.abbreviate(7).name(), workTree);
+            metrics.succeeded();
+            return commit;
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred opening the repository: " + workTree, e);
+        }
+    }
+
+    /**
+     * Pushes a branch of a clone to its remote through the repository's push queue, just like Step 3.
+     *
+     * @param directoryName the directory of the clone
+     * @param branch the short name of the branch to push, or null for the branch that is checked out
+     */
+    public PushOutcome push(String directoryName, @Nullable String branch) {
+        Path workTree = existingWorkTree(directoryName);
+        CompletableFuture<PushOutcome> outcome;
+        try (RepositoryHandleCache.Lease lease = repositories.acquire(workTree)) {
+            String branchToPush = branch != null ? branch : lease.getGit().getRepository().getBranch();
+            outcome = lease.getPushQueue().submit(branchToPush);
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred opening the repository: " + workTree, e);
+        }
+        // The lease is released before waiting, so other jobs on the clone, including pushes the queue can coalesce with this
+        // one, don't wait for the coalescing window and the push. A commit that runs while the queue rebases the checked out
+        // branch fails to lock the index or the branch rather than being lost.
+        try {
+            return outcome.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Lists the paths that changed between two commits of a clone, such as the previous and new heads a sync job reported.
+     * The changes are read lazily as the stream is consumed, which must be on this thread, and the stream must be closed.
+     * <p>
+     * The stream has the repository open on its own rather than through the cache, so a slow reader doesn't hold up the
+     * jobs on the clone, but it does keep maintenance from repacking the clone until it is closed.
+     *
+     * @param directoryName the directory of the clone
+     * @param from the commit to compare from, or null to list every path in {@code to} as added
+     * @param to the commit to compare to
+     */
+    public Stream<PathChange> changes(String directoryName, @Nullable String from, String to) {
+        Path workTree = existingWorkTree(directoryName);
+        Repository repository = null;
+        RepositoryActivityLock.Lease activity = null;
+        try {
+            repository = new FileRepositoryBuilder().setWorkTree(workTree.toFile()).setMustExist(true).build();
+            activity = RepositoryActivityLock.acquireShared(repository);
+            ChangedPathFeed feed = ChangedPathFeed.open(repository, from == null ? null : commitId(repository, from), commitId(repository, to), renameLimit);
+            Repository openRepository = repository;
+            RepositoryActivityLock.Lease openActivity = activity;
+            return feed.stream().onClose(openActivity::close).onClose(openRepository::close);
+        } catch (IOException | RuntimeException e) {
+            if (activity != null) {
+                activity.close();
+            }
+            if (repository != null) {
+                repository.close();
+            }
+            if (e instanceof IllegalArgumentException illegalArgument) {
+                throw illegalArgument;
+            }
+            throw new RuntimeException("An error occurred listing the changed paths of " + workTree, e);
+        }
+    }
+
+    /**
+     * Closes every repository the jobs left open. No job may be running.
+     */
+    @Override
+    public void close() {
+        repositories.close();
+    }
+
+    public RepositoryHandleCache.Statistics getRepositoryStatistics() {
+        return repositories.getStatistics();
+    }
+
+    private static RepositoryManifest.Entry entry(String remoteUrl, @Nullable String directoryName) {
+        return directoryName == null ? RepositoryManifest.Entry.of(remoteUrl) : new RepositoryManifest.Entry(remoteUrl, directoryName);
+    }
+
+    private static ObjectId commitId(Repository repository, String revision) throws IOException {
+        ObjectId commitId = repository.resolve(revision + "^{commit}");
+        if (commitId == null) {
+            throw new IllegalArgumentException("Unknown commit: " + revision);
+        }
+        return commitId;
+    }
+
+    private Path existingWorkTree(String directoryName) {
+        // The same rule as for the manifest's directory names, so a job can't reach outside the base directory.
+        if (directoryName == null || directoryName.isBlank() || directoryName.contains("/") || directoryName.contains("\\") || directoryName.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid directory name: " + directoryName);
+        }
+        Path workTree = baseDirectory.resolve(directoryName);
+        if (!workTree.resolve(".git").toFile().isDirectory()) {
+            throw new IllegalArgumentException("There is no clone in directory " + directoryName + "; run a clone or sync job first");
+        }
+        return workTree;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.daemon;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the body of a job request, which is a flat JSON object of string parameters such as
+ * {@code {"directory": "my-repo", "message": "Update config"}}. A {@code null} value is the same as leaving the parameter out.
+ * <p>
+ * Nothing else is accepted, so the parameters of a job can't be sent from a plain HTML form.
+ */
+final class JobParameters {
+
+    private final String json;
+    private int position;
+
+    private JobParameters(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @param json the request body
+     * @return the parameters, by name
+     * @throws IllegalArgumentException if the body is not a JSON object of strings
+     */
+    static Map<String, String> parse(String json) {
+        return new JobParameters(json).readObject();
+    }
+
+    private Map<String, String> readObject() {
+        Map<String, String> parameters = new HashMap<>();
+        expect('{');
+        if (peek() == '}') {
+            position++;
+        } else {
+            do {
+                String name = readString();
+                expect(':');
+                if (json.startsWith("null", skipWhitespace())) {
+                    position += 4;
+                } else {
+                    parameters.put(name, readString());
+                }
+            } while (tryRead(','));
+            expect('}');
+        }
+        if (skipWhitespace() != json.length()) {
+            throw invalid("unexpected content after the object");
+        }
+        return parameters;
+    }
+
+    private String readString() {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (position < json.length()) {
+            char c = json.charAt(position++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                if (position >= json.length()) {
+                    break;
+                }
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case '"', '\\', '/' -> value.append(escaped);
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'u' -> {
+                        if (position + 4 > json.length()) {
+                            throw invalid("truncated unicode escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw invalid("invalid unicode escape");
+                        }
+                        position += 4;
+                    }
+                    default -> throw invalid("invalid escape \\" + escaped);
+                }
+            } else if (c < 0x20) {
+                throw invalid("control character in a string");
+            } else {
+                value.append(c);
+            }
+        }
+        throw invalid("unterminated string");
+    }
+
+    private boolean tryRead(char expected) {
+        if (peek() == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) {
+        if (!tryRead(expected)) {
+            throw invalid("expected '" + expected + "'");
+        }
+    }
+
+    private int peek() {
+        int next = skipWhitespace();
+        return next < json.length() ? json.charAt(next) : -1;
+    }
+
+    private int skipWhitespace() {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private IllegalArgumentException invalid(String problem) {
+        return new IllegalArgumentException("The request body must be a JSON object of string parameters: " + problem + " at offset " + position);
+    }
+}
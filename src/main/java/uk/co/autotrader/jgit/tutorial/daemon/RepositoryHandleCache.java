@@ -0,0 +1,235 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.daemon;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Keeps the repositories that recent jobs worked on open, so that the next job on the same repository can reuse
+ * the parsed config, the list of packs and the pack indexes that JGit has already loaded, instead of reading them again.
+ * <p>
+ * {@link #acquire} leases a working tree to a single job at a time, so jobs on the same repository never touch its
+ * index or refs at once, while jobs on different repositories run in parallel. The repository itself is only opened
+ * when the job first asks for it, which lets a clone lease a directory that is not a repository yet.
+ * When more than the maximum number of repositories are cached, the least recently used ones that no job is
+ * waiting for are closed.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RepositoryHandleCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RepositoryHandleCache.class);
+
+    private final int maxOpenRepositories;
+    private final Function<Repository, CoalescingPushQueue> pushQueueFactory;
+
+    // Ordered from the least to the most recently used.
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+    private boolean closed;
+
+    /**
+     * Creates a new RepositoryHandleCache.
+     *
+     * @param maxOpenRepositories how many repositories to keep open once no job is using them
+     * @param pushQueueFactory creates the push queue of a repository the first time a job pushes from it
+     */
+    public RepositoryHandleCache(int maxOpenRepositories, Function<Repository, CoalescingPushQueue> pushQueueFactory) {
+        if (maxOpenRepositories < 1) {
+            throw new IllegalArgumentException("maxOpenRepositories must be at least 1");
+        }
+        this.maxOpenRepositories = maxOpenRepositories;
+        this.pushQueueFactory = pushQueueFactory;
+    }
+
+    /**
+     * Leases a working tree to the caller, waiting until any other job that holds it has finished.
+     *
+     * @param workTree the working tree of the repository, which need not exist yet
+     * @return the lease, which must be closed once the job has finished
+     */
+    public Lease acquire(Path workTree) {
+        Entry entry;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Repository cache has been closed");
+            }
+            entry = entries.computeIfAbsent(workTree.toAbsolutePath().normalize(), Entry::new);
+            // Counting the lease before waiting for the lock keeps the entry from being evicted while a job waits for it.
+            entry.leases++;
+        }
+        entry.jobLock.lock();
+        return new Lease(entry);
+    }
+
+    /**
+     * @return a snapshot of the number of cached repositories and how often jobs found their repository open
+     */
+    public synchronized Statistics getStatistics() {
+        int open = (int) entries.values().stream().filter(entry -> entry.git != null).count();
+        return new Statistics(open, hits, misses, evictions);
+    }
+
+    /**
+     * Closes every cached repository and its push queue. The jobs must have finished beforehand.
+     */
+    @Override
+    public void close() {
+        List<Entry> closing;
+        synchronized (this) {
+            closed = true;
+            closing = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        closing.forEach(Entry::closeHandles);
+    }
+
+    private synchronized void countOpen(boolean alreadyOpen) {
+        if (alreadyOpen) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    private void release(Entry entry) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            entry.leases--;
+            Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+            while (entries.size() > maxOpenRepositories && leastRecentlyUsed.hasNext()) {
+                Entry candidate = leastRecentlyUsed.next();
+                if (candidate.leases == 0) {
+                    leastRecentlyUsed.remove();
+                    evicted.add(candidate);
+                    evictions++;
+                }
+            }
+        }
+        // No job holds or waits for an evicted entry, and none can find it any more, so it is safe to close outside the lock.
+        evicted.forEach(Entry::closeHandles);
+    }
+
+    /**
+     * A job's exclusive hold on a working tree. Close it once the job has finished.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Path getWorkTree() {
+            return entry.workTree;
+        }
+
+        /**
+         * @return the repository, opening it if no earlier job left it open
+         */
+        public Git getGit() throws IOException {
+            countOpen(entry.git != null);
+            if (entry.git == null) {
+                entry.git = Git.open(entry.workTree.toFile());
+            }
+            return entry.git;
+        }
+
+        /**
+         * @return the queue that pushes the repository's branches, creating it if no earlier job pushed from the repository
+         */
+        public CoalescingPushQueue getPushQueue() throws IOException {
+            if (entry.pushQueue == null) {
+                entry.pushQueue = pushQueueFactory.apply(getGit().getRepository());
+            }
+            return entry.pushQueue;
+        }
+
+        /**
+         * Closes the repository and its push queue, so the next job opens the repository again.
+         * Call this before replacing the repository on disk, as a clone does.
+         */
+        public void invalidate() {
+            entry.closeHandles();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            entry.jobLock.unlock();
+            release(entry);
+        }
+    }
+
+    /**
+     * @param openRepositories the number of repositories that are currently open
+     * @param hits the number of jobs that found their repository already open
+     * @param misses the number of jobs that had to open their repository
+     * @param evictions the number of repositories closed to stay within the maximum
+     */
+    public record Statistics(int openRepositories, long hits, long misses, long evictions) {
+    }
+
+    private static class Entry {
+
+        private final Path workTree;
+        private final ReentrantLock jobLock = new ReentrantLock();
+
+        // Guarded by the cache.
+        private int leases;
+
+        // Guarded by jobLock, or only touched once the entry can no longer be leased.
+        private Git git;
+        private CoalescingPushQueue pushQueue;
+
+        private Entry(Path workTree) {
+            this.workTree = workTree;
+        }
+
+        private void closeHandles() {
+            if (pushQueue != null) {
+                pushQueue.close();
+                pushQueue = null;
+            }
+            if (git != null) {
+                logger.debug("Closing repository {}", workTree);
+                git.close();
+                git = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.fleet;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The outcome of synchronising every repository in a manifest.
+ *
+ * @param results the result for each repository, in manifest order
+ * @param elapsed the wall-clock time taken to synchronise the whole fleet
+ */
+public record FleetReport(List<RepositoryResult> results, Duration elapsed) {
+
+    public long count(Outcome outcome) {
+        return results.stream().filter(result -> result.outcome() == outcome).count();
+    }
+
+    public long totalBytesAdded() {
+        return results.stream().mapToLong(RepositoryResult::bytesAdded).sum();
+    }
+
+    /**
+     * @param limit the maximum number of results to return
+     * @return the slowest repositories, slowest first
+     */
+    public List<RepositoryResult> slowest(int limit) {
+        return results.stream()
+                .sorted(Comparator.comparing(RepositoryResult::duration).reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    public boolean hasFailures() {
+        return results.stream().anyMatch(result -> result.outcome() == Outcome.FAILED || result.outcome() == Outcome.TIMED_OUT);
+    }
+
+    public enum Outcome {
+        CLONED,
+        FETCHED,
+        FAILED,
+        TIMED_OUT
+    }
+
+    /**
+     * The outcome of synchronising a single repository.
+     *
+     * @param entry the manifest entry
+     * @param outcome whether the repository was cloned, fetched, failed or timed out
+     * @param duration the time spent synchronising, excluding time spent waiting for a concurrency permit
+     * @param bytesAdded how much the repository's .git directory grew, which approximates the bytes transferred
+     * @param repositoryBytes the size of the repository's .git directory afterwards
+     * @param error the failure message, or null if the repository was synchronised
+     */
+    public record RepositoryResult(RepositoryManifest.Entry entry, Outcome outcome, Duration duration,
+                                   long bytesAdded, long repositoryBytes, String error) {
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.fleet;
+
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.cache.ReferenceMirrorCache;
+import uk.co.autotrader.jgit.tutorial.helpers.DirectoryTrash;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.WindowCacheUsage;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Clones or fetches every repository listed in a manifest file into the local repository base directory.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.fleet.FleetSync -Pmanifest=/path/to/manifest.txt}
+ */
+public class FleetSync {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetSync.class);
+
+    public static void main(String[] args) {
+
+        /*
+         * Get the Tutorial's configuration which gives us the following information:
+         * - Local base directory that each repository is cloned into (defaults to ~/jgit-cloned-repositories)
+         * - How an existing clone is brought up to date, and whether a directory that cannot be synchronised may be deleted
+         * - Global and per-host concurrency limits and the per-repository timeout
+         * - SSH Key & (optional) Key Passphrase to authenticate with the remote repositories (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE when the first SSH connection is opened)
+         * - Host keys of the servers to trust (GitHub's, plus any in a known_hosts file)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
+         */
+        Configuration configuration = new Configuration();
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        // The manifest file is supplied as a system property when running the program.
+        String manifestPath = System.getProperty("manifest");
+        if (manifestPath == null) {
+            throw new IllegalArgumentException("The 'manifest' system property must be set to the path of a repository manifest file");
+        }
+        RepositoryManifest manifest = RepositoryManifest.read(Path.of(manifestPath));
+
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration::getSshSecrets, configuration.getKnownHosts());
+        SshSessionFactory.setInstance(sshdSessionFactory.getSharedSessionFactory(configuration.getSshSessionIdleTimeout()));
+
+        Path baseDirectory = configuration.getLocalRepositoryBaseDirectory();
+        try {
+            Files.createDirectories(baseDirectory);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to create directories: " + baseDirectory, e);
+        }
+
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(configuration.getSyncMode(),
+                configuration.shouldDeleteAnyExistingDirectoryContents(), configuration.getCloneOptions())
+                .setCheckoutThreads(configuration.getCheckoutThreads());
+        // A repository that has to be cloned again is moved aside, so its clone doesn't wait for the old one to be deleted.
+        DirectoryTrash trash = configuration.getTrashDirectory() == null ? null : new DirectoryTrash(configuration.getTrashDirectory());
+        synchronizer.setTrash(trash);
+        if (configuration.getReferenceMirrorCacheDirectory() != null) {
+            synchronizer.setReferenceCache(new ReferenceMirrorCache(configuration.getReferenceMirrorCacheDirectory(),
+                    configuration.getReferenceMirrorCacheMaxBytes(), configuration.getReferenceMirrorCacheMinimumIdleBeforeEviction()));
+        }
+
+        FleetSyncEngine engine = new FleetSyncEngine(baseDirectory, synchronizer,
+                configuration.getFleetMaxConcurrentRepositories(),
+                configuration.getFleetMaxConcurrentRepositoriesPerHost(),
+                configuration.getFleetRepositoryTimeout());
+
+        logger.info("Synchronising {} repositories into {}", manifest.getEntries().size(), baseDirectory);
+        FleetReport report = engine.synchronize(manifest);
+        if (trash != null) {
+            // The trash deletes on a background thread, which would not stop the JVM from exiting.
+            trash.close();
+        }
+        logReport(report);
+        MetricsRegistry.getDefault().snapshot().operations().forEach((operation, stats) -> logger.info("{}: {}", operation, stats.summary()));
+        logger.info("Pack window cache: {}", WindowCacheUsage.current().summary());
+
+        if (report.hasFailures()) {
+            System.exit(1);
+        }
+    }
+
+    private static void logReport(FleetReport report) {
+        logger.info("Synchronised {} repositories in {} ms: {} cloned, {} fetched, {} failed, {} timed out, {} bytes added",
+                report.results().size(), report.elapsed().toMillis(),
+                report.count(FleetReport.Outcome.CLONED), report.count(FleetReport.Outcome.FETCHED),
+                report.count(FleetReport.Outcome.FAILED), report.count(FleetReport.Outcome.TIMED_OUT),
+                report.totalBytesAdded());
+
+        for (FleetReport.RepositoryResult result : report.results()) {
+            logger.info("  {} {} {} ms, {} bytes added, {} bytes on disk{}",
+                    result.outcome(), result.entry().directoryName(), result.duration().toMillis(),
+                    result.bytesAdded(), result.repositoryBytes(),
+                    result.error() == null ? "" : " (" + result.error() + ")");
+        }
+    }
+}
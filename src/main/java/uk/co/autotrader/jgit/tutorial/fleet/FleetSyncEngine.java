@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.fleet;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.helpers.DeadlineProgressMonitor;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncResult;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Clones or synchronises every repository in a {@link RepositoryManifest} concurrently.
+ * <p>
+ * Each repository is synchronised on its own virtual thread, so waiting on the network does not tie up a platform thread.
+ * The number of repositories synchronised at once is bounded globally and per remote host, so a large manifest
+ * does not open hundreds of connections to the same git host. Each repository also has a wall-clock timeout.
+ * <p>
+ * The SSH session factory must be installed with {@link org.eclipse.jgit.transport.SshSessionFactory#setInstance}
+ * before calling {@link #synchronize(RepositoryManifest)}.
+ */
+public class FleetSyncEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetSyncEngine.class);
+
+    private final Path baseDirectory;
+    private final RepositorySynchronizer synchronizer;
+    private final int maxConcurrentRepositoriesPerHost;
+    private final Duration repositoryTimeout;
+    private final Semaphore globalPermits;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new FleetSyncEngine.
+     *
+     * @param baseDirectory the directory under which each repository is cloned
+     * @param synchronizer clones each repository, or brings an existing clone up to date
+     * @param maxConcurrentRepositories the maximum number of repositories synchronised at once
+     * @param maxConcurrentRepositoriesPerHost the maximum number of repositories synchronised at once from the same host
+     * @param repositoryTimeout the maximum time allowed to synchronise a single repository
+     */
+    public FleetSyncEngine(Path baseDirectory, RepositorySynchronizer synchronizer, int maxConcurrentRepositories, int maxConcurrentRepositoriesPerHost, Duration repositoryTimeout) {
+        if (maxConcurrentRepositories < 1 || maxConcurrentRepositoriesPerHost < 1) {
+            throw new IllegalArgumentException("Concurrency limits must be at least 1");
+        }
+        if (repositoryTimeout.isNegative() || repositoryTimeout.isZero()) {
+            throw new IllegalArgumentException("repositoryTimeout must be positive");
+        }
+        this.baseDirectory = baseDirectory;
+        this.synchronizer = synchronizer;
+        this.maxConcurrentRepositoriesPerHost = maxConcurrentRepositoriesPerHost;
+        this.repositoryTimeout = repositoryTimeout;
+        this.globalPermits = new Semaphore(maxConcurrentRepositories, true);
+    }
+
+    /**
+     * Synchronises every repository in the manifest and waits for all of them to finish.
+     * A failure in one repository does not stop the others.
+     *
+     * @param manifest the repositories to synchronise
+     * @return a report with the outcome, duration and size of each repository
+     */
+    public FleetReport synchronize(RepositoryManifest manifest) {
+        long start = System.nanoTime();
+        List<FleetReport.RepositoryResult> results = new ArrayList<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<FleetReport.RepositoryResult>> futures = new ArrayList<>();
+            for (RepositoryManifest.Entry entry : manifest.getEntries()) {
+                futures.add(executor.submit(() -> synchronizeWithinLimits(entry)));
+            }
+            for (Future<FleetReport.RepositoryResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while synchronising repositories", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected failure while synchronising repositories", e.getCause());
+        }
+
+        return new FleetReport(results, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private FleetReport.RepositoryResult synchronizeWithinLimits(RepositoryManifest.Entry entry) throws InterruptedException {
+        // Take the host permit first, so that repositories queued behind a busy host don't hold global permits.
+        Semaphore hostPermit = hostPermits.computeIfAbsent(entry.host(), host -> new Semaphore(maxConcurrentRepositoriesPerHost, true));
+        hostPermit.acquire();
+        try {
+            globalPermits.acquire();
+            try {
+                return synchronizeRepository(entry);
+            } finally {
+                globalPermits.release();
+            }
+        } finally {
+            hostPermit.release();
+        }
+    }
+
+    private FleetReport.RepositoryResult synchronizeRepository(RepositoryManifest.Entry entry) {
+        LocalDirectory directory = new LocalDirectory(baseDirectory, entry.directoryName());
+        File gitDirectory = directory.getPath().resolve(".git").toFile();
+        boolean directoryExisted = Files.exists(directory.getPath());
+        DeadlineProgressMonitor deadline = new DeadlineProgressMonitor(repositoryTimeout);
+        int networkTimeoutSeconds = (int) Math.max(1, repositoryTimeout.toSeconds());
+
+        long start = System.nanoTime();
+        long bytesBefore = sizeOf(gitDirectory);
+        FleetReport.Outcome outcome;
+        String error = null;
+
+        try {
+            SyncResult syncResult = synchronizer.synchronize(entry.remoteUrl(), directory, deadline, networkTimeoutSeconds);
+            outcome = syncResult.isFullClone() ? FleetReport.Outcome.CLONED : FleetReport.Outcome.FETCHED;
+        } catch (GitAPIException | RuntimeException e) {
+            outcome = deadline.isCancelled() ? FleetReport.Outcome.TIMED_OUT : FleetReport.Outcome.FAILED;
+            error = outcome == FleetReport.Outcome.TIMED_OUT ? "Timed out after " + repositoryTimeout : e.getMessage();
+            logger.warn("Failed to synchronise {}: {}", entry.remoteUrl(), error);
+            if (!directoryExisted) {
+                // Don't leave a half-cloned repository behind, or the next run would find a corrupt clone.
+                FileUtils.deleteQuietly(directory.getPath().toFile());
+            }
+        }
+
+        Duration duration = Duration.ofNanos(System.nanoTime() - start);
+        long bytesAfter = sizeOf(gitDirectory);
+        logger.info("{} {} in {} ms", outcome, entry.remoteUrl(), duration.toMillis());
+        return new FleetReport.RepositoryResult(entry, outcome, duration, Math.max(0, bytesAfter - bytesBefore), bytesAfter, error);
+    }
+
+    private static long sizeOf(File directory) {
+        try {
+            return directory.isDirectory() ? FileUtils.sizeOfDirectory(directory) : 0;
+        } catch (RuntimeException e) {
+            // Files can disappear underneath us while git is repacking; the size is only informational.
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.fleet;
+
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A list of remote repositories to mirror, read from a plain text file.
+ * <p>
+ * Each non-blank line that does not start with {@code #} holds a remote URL,
+ * optionally followed by the name of the local directory to clone it into:
+ * <pre>
+ * # remote URL                                  local directory (optional)
+ * ssh://git@github.com/my-username/my-repo
+ * ssh://git@github.com/my-username/other-repo  other-repo-mirror
+ * </pre>
+ * When the directory name is omitted, the last path segment of the URL without a {@code .git} suffix is used.
+ */
+public class RepositoryManifest {
+
+    private final List<Entry> entries;
+
+    public RepositoryManifest(List<Entry> entries) {
+        Set<String> directoryNames = new HashSet<>();
+        for (Entry entry : entries) {
+            if (!directoryNames.add(entry.directoryName())) {
+                throw new IllegalArgumentException("Two manifest entries use the same local directory: " + entry.directoryName());
+            }
+        }
+        this.entries = List.copyOf(entries);
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param manifestFile the path of the manifest file
+     * @return the parsed manifest
+     */
+    public static RepositoryManifest read(Path manifestFile) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifestFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read repository manifest: " + manifestFile, e);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (int lineNumber = 1; lineNumber <= lines.size(); lineNumber++) {
+            String line = lines.get(lineNumber - 1).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2) {
+                throw new IllegalArgumentException("Line " + lineNumber + " of " + manifestFile + " must be '<remote url> [directory name]'");
+            }
+            entries.add(fields.length == 2 ? new Entry(fields[0], fields[1]) : Entry.of(fields[0]));
+        }
+        return new RepositoryManifest(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * A single repository in the manifest.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param directoryName the name of the local directory the repository is cloned into
+     */
+    public record Entry(String remoteUrl, String directoryName) {
+
+        public Entry {
+            if (remoteUrl == null || remoteUrl.isBlank()) {
+                throw new IllegalArgumentException("remoteUrl must be set");
+            }
+            if (directoryName == null || directoryName.isBlank() || directoryName.contains("/") || directoryName.contains("\\") || directoryName.startsWith(".")) {
+                throw new IllegalArgumentException("Invalid directory name for " + remoteUrl + ": " + directoryName);
+            }
+        }
+
+        /**
+         * Creates an entry whose directory name is derived from the remote URL.
+         *
+         * @param remoteUrl the URL of the remote repository
+         * @return the manifest entry
+         */
+        public static Entry of(String remoteUrl) {
+            try {
+                return new Entry(remoteUrl, new URIish(remoteUrl).getHumanishName());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Cannot derive a directory name from remote URL: " + remoteUrl, e);
+            }
+        }
+
+        /**
+         * @return the host name of the remote, used to apply per-host concurrency limits
+         */
+        public String host() {
+            try {
+                String host = new URIish(remoteUrl).getHost();
+                return host == null ? "local" : host;
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid remote URL: " + remoteUrl, e);
+            }
+        }
+    }
+}
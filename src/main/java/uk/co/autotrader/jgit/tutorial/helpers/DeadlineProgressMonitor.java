@@ -0,0 +1,41 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.helpers;
+
+import org.eclipse.jgit.lib.EmptyProgressMonitor;
+
+import java.time.Duration;
+
+/**
+ * A progress monitor that asks JGit to cancel the operation it is attached to once a deadline has passed.
+ * <p>
+ * JGit checks {@link #isCancelled()} between units of work while counting, receiving and checking out objects,
+ * so this bounds the wall-clock time of a whole clone or fetch, which the per-read network timeout cannot do.
+ */
+public class DeadlineProgressMonitor extends EmptyProgressMonitor {
+
+    private final long deadlineNanos;
+
+    public DeadlineProgressMonitor(Duration timeout) {
+        this.deadlineNanos = System.nanoTime() + timeout.toNanos();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return System.nanoTime() - deadlineNanos > 0;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Gets rid of directories without making the caller wait for them to be deleted.
+ * <p>
+ * Deleting a large working tree file by file takes seconds. Renaming it into the trash directory takes a single
+ * system call, after which its name is free to be used again, and a background thread deletes it from the trash.
+ * The trash directory must be on the same file system as the directories thrown into it, so that they can be renamed.
+ * Anything left in the trash by a process that stopped before deleting it is deleted when the next one starts.
+ */
+public class DirectoryTrash implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryTrash.class);
+
+    private final Path trashDirectory;
+    private final ExecutorService deleter = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("directory-trash").daemon().factory());
+    private final AtomicInteger pendingDeletions = new AtomicInteger();
+
+    /**
+     * Creates a new DirectoryTrash, and starts deleting whatever an earlier process left in it.
+     *
+     * @param trashDirectory the directory to move discarded directories into, which is created if it doesn't exist
+     */
+    public DirectoryTrash(Path trashDirectory) {
+        this.trashDirectory = trashDirectory;
+        try {
+            Files.createDirectories(trashDirectory);
+            try (Stream<Path> leftovers = Files.list(trashDirectory)) {
+                leftovers.forEach(this::deleteInBackground);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create the trash directory: " + trashDirectory, e);
+        }
+    }
+
+    /**
+     * Moves a directory into the trash, to be deleted in the background. Does nothing if the directory doesn't exist.
+     * <p>
+     * If the directory can't be renamed into the trash, for example because it is on another file system,
+     * it is deleted before this method returns instead.
+     *
+     * @param directory the directory to get rid of
+     */
+    public void discard(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        Path trashed = trashDirectory.resolve(directory.getFileName() + "-" + UUID.randomUUID());
+        try {
+            Files.move(directory, trashed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.warn("Can't move {} into the trash at {}, deleting it in place", directory, trashDirectory);
+            delete(directory);
+            return;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to move directory into the trash: " + directory, e);
+        }
+        deleteInBackground(trashed);
+    }
+
+    /**
+     * @return how many discarded directories are still waiting to be deleted
+     */
+    public int getPendingDeletions() {
+        return pendingDeletions.get();
+    }
+
+    /**
+     * Waits for the discarded directories to be deleted. Anything not deleted within a minute is left for the next process.
+     */
+    @Override
+    public void close() {
+        deleter.shutdown();
+        try {
+            if (!deleter.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("{} directories are still waiting to be deleted from {}", pendingDeletions.get(), trashDirectory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deleteInBackground(Path trashed) {
+        pendingDeletions.incrementAndGet();
+        deleter.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                delete(trashed);
+                logger.debug("Deleted {} in {} ms", trashed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (RuntimeException e) {
+                // It stays in the trash, and the next process to start will try again.
+                logger.warn("Failed to delete {}", trashed, e);
+            } finally {
+                pendingDeletions.decrementAndGet();
+            }
+        });
+    }
+
+    private static void delete(Path directory) {
+        try {
+            FileUtils.forceDelete(directory.toFile());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete directory: " + directory, e);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package uk.co.autotrader.jgit.tutorial.helpers;
 
 import org.apache.commons.io.FileUtils;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -47,10 +48,23 @@ public class LocalDirectory {
      * @param shouldDeleteAnyExistingDirectoryContents if true, the contents of the directory will be deleted
      */
     public void ensureDirectoryExistsAndIsEmpty(boolean shouldDeleteAnyExistingDirectoryContents) {
+        ensureDirectoryExistsAndIsEmpty(shouldDeleteAnyExistingDirectoryContents, null);
+    }
+
+    /**
+     * Deletes the directory if it exists and then recreates it.
+     *
+     * @param shouldDeleteAnyExistingDirectoryContents if true, the contents of the directory will be deleted
+     * @param trash if not null, the existing directory is moved into this trash and deleted in the background,
+     *              rather than deleted before this method returns
+     */
+    public void ensureDirectoryExistsAndIsEmpty(boolean shouldDeleteAnyExistingDirectoryContents, @Nullable DirectoryTrash trash) {
         Path localDirectoryPath = this.path;
 
         if (Files.exists(localDirectoryPath)) {
-            if (shouldDeleteAnyExistingDirectoryContents) {
+            if (shouldDeleteAnyExistingDirectoryContents && trash != null) {
+                trash.discard(localDirectoryPath);
+            } else if (shouldDeleteAnyExistingDirectoryContents) {
                 try {
                     FileUtils.deleteDirectory(localDirectoryPath.toFile());
                 } catch (IOException e) {
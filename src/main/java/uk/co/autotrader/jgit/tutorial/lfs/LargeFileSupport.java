@@ -0,0 +1,350 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.StatusCommand;
+import org.eclipse.jgit.api.errors.AbortedByHookException;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lfs.BuiltinLFS;
+import org.eclipse.jgit.lfs.Lfs;
+import org.eclipse.jgit.lfs.LfsPointer;
+import org.eclipse.jgit.lfs.LfsPrePushHook;
+import org.eclipse.jgit.lfs.SmudgeFilter;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.util.LfsFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Keeps large files of a repository in Git LFS, using JGit's built-in LFS filters, so they stay out of the pack files
+ * that every clone downloads and that delta compression would spend its time on for no gain.
+ * <p>
+ * Which files go to LFS is decided by {@link #track}: the configured patterns, plus any new or modified file over the
+ * size threshold, are written to {@code .gitattributes} with {@code filter=lfs}, just like {@code git lfs track} does.
+ * Adding such a file then runs JGit's clean filter, which streams its contents into {@code .git/lfs/objects}
+ * and stages a small pointer file in their place. Files that are pointers already are staged as they are.
+ * <p>
+ * JGit's smudge filter is never configured, so checkouts, including the one of a clone, write the pointer files to the
+ * working tree as they are and download nothing. {@link #materialize} then swaps in the contents of the files that are
+ * asked for, fetching the ones that are missing from {@code .git/lfs/objects}, which with a lazy checkout is all
+ * that is ever downloaded. With an eager checkout, Step 1 materialises every LFS file after each sync.
+ * <p>
+ * Contents come from, and are uploaded to, the remote's LFS server, unless the options name a {@link LocalLfsStore}.
+ * JGit only runs its LFS pre-push hook when its smudge filter is switched on as well, so uploads are left to
+ * {@link #upload(String, Collection)}, which the push queue runs before every push.
+ */
+public class LargeFileSupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(LargeFileSupport.class);
+
+    // The same attributes as "git lfs track" writes, so diffs and merges treat the files as binary.
+    private static final String LFS_ATTRIBUTES = "filter=lfs diff=lfs merge=lfs -text";
+
+    // How many pointer files are read and fetched at a time, so materialising a large working tree holds a bounded number of them.
+    private static final int MATERIALIZE_BATCH_SIZE = 100;
+
+    static {
+        // Registers JGit's LFS filters, which the pointer-aware clean filter hands every other file to.
+        BuiltinLFS.register();
+        PointerAwareCleanFilter.register();
+    }
+
+    private final Repository repository;
+    private final LfsOptions options;
+    private final Lfs lfs;
+    @Nullable
+    private final LocalLfsStore store;
+
+    public LargeFileSupport(Repository repository, LfsOptions options) {
+        this.repository = repository;
+        this.options = options;
+        this.lfs = new Lfs(repository);
+        this.store = options.localStore() == null ? null : new LocalLfsStore(options.localStore());
+    }
+
+    /**
+     * Configures the repository to clean LFS files with JGit's built-in filter, leaving pointer files as they are.
+     * It is safe to call again.
+     */
+    public void install() throws IOException {
+        StoredConfig config = repository.getConfig();
+        config.setString(ConfigConstants.CONFIG_FILTER_SECTION, ConfigConstants.CONFIG_SECTION_LFS, Constants.ATTR_FILTER_TYPE_CLEAN,
+                PointerAwareCleanFilter.NAME);
+        // Without a smudge filter, checkouts write pointer files and materialize() fetches the contents, see the class comment.
+        config.unset(ConfigConstants.CONFIG_FILTER_SECTION, ConfigConstants.CONFIG_SECTION_LFS, Constants.ATTR_FILTER_TYPE_SMUDGE);
+        // This would switch on JGit's smudge filter, whatever the smudge setting, and make every checkout download every LFS file.
+        config.setBoolean(ConfigConstants.CONFIG_FILTER_SECTION, ConfigConstants.CONFIG_SECTION_LFS, ConfigConstants.CONFIG_KEY_USEJGITBUILTIN, false);
+        config.save();
+    }
+
+    /**
+     * Adds the configured patterns, and every new or modified file over the size threshold that isn't in LFS yet,
+     * to {@code .gitattributes}, so adding the files puts them in LFS.
+     * <p>
+     * Files that are already committed are only moved to LFS the next time they change, as with {@code git lfs track}.
+     *
+     * @param paths the paths to look for large files under, or {@code "."} for the whole working tree
+     * @return the number of lines added to {@code .gitattributes}, which must then be added as well
+     */
+    public int track(Collection<String> paths) throws IOException, GitAPIException {
+        Path attributesFile = repository.getWorkTree().toPath().resolve(Constants.DOT_GIT_ATTRIBUTES);
+        List<String> existingLines = Files.exists(attributesFile) ? Files.readAllLines(attributesFile, StandardCharsets.UTF_8) : List.of();
+
+        List<String> newLines = new ArrayList<>();
+        for (String pattern : options.patterns()) {
+            String line = pattern + " " + LFS_ATTRIBUTES;
+            if (!existingLines.contains(line)) {
+                newLines.add(line);
+            }
+        }
+        if (!newLines.isEmpty()) {
+            append(attributesFile, newLines);
+        }
+
+        if (options.hasSizeThreshold()) {
+            List<String> largeFileLines = new ArrayList<>();
+            for (String path : changedFiles(paths)) {
+                Path file = repository.getWorkTree().toPath().resolve(path);
+                if (Files.isRegularFile(file) && Files.size(file) > options.sizeThreshold() && !isTracked(path)) {
+                    logger.info("{} is larger than {} bytes, so it goes to LFS", path, options.sizeThreshold());
+                    largeFileLines.add("/" + escape(path) + " " + LFS_ATTRIBUTES);
+                }
+            }
+            if (!largeFileLines.isEmpty()) {
+                append(attributesFile, largeFileLines);
+                newLines.addAll(largeFileLines);
+            }
+        }
+        return newLines.size();
+    }
+
+    /**
+     * Replaces pointer files in the working tree with the contents they point to, fetching any contents
+     * that aren't in {@code .git/lfs/objects} yet. Paths that aren't pointer files are left alone.
+     *
+     * @param paths the paths of the files to materialise
+     * @return the number of files materialised
+     */
+    public int materialize(Collection<String> paths) throws IOException {
+        int materialized = 0;
+        List<String> batch = new ArrayList<>(MATERIALIZE_BATCH_SIZE);
+        for (String path : paths) {
+            batch.add(path);
+            if (batch.size() == MATERIALIZE_BATCH_SIZE) {
+                materialized += materializeBatch(batch);
+                batch.clear();
+            }
+        }
+        return materialized + materializeBatch(batch);
+    }
+
+    /**
+     * Replaces every pointer file in the working tree with the contents it points to.
+     *
+     * @return the number of files materialised
+     */
+    public int materializeAll() throws IOException {
+        // Pointer files are never larger than this, so the index tells which files may be pointers without reading any others.
+        List<String> candidates = new ArrayList<>();
+        DirCache index = repository.readDirCache();
+        for (int i = 0; i < index.getEntryCount(); i++) {
+            DirCacheEntry entry = index.getEntry(i);
+            if (entry.getLength() <= LfsPointer.SIZE_THRESHOLD && entry.getStage() == DirCacheEntry.STAGE_0) {
+                candidates.add(entry.getPathString());
+            }
+        }
+        return materialize(candidates);
+    }
+
+    /**
+     * Uploads the contents of the LFS files that the commits about to be pushed point to. Run it before every push,
+     * for example with {@link uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue#setBeforePush}.
+     * <p>
+     * To the remote's LFS server, only the contents of the commits that the remote doesn't have yet are uploaded,
+     * with JGit's own pre-push hook. To a local store, see {@link #upload()}.
+     *
+     * @param remoteName the remote being pushed to
+     * @param refUpdates the ref updates about to be pushed
+     */
+    public void upload(String remoteName, Collection<RemoteRefUpdate> refUpdates) throws IOException {
+        if (store != null) {
+            int uploaded = upload();
+            logger.info("Uploaded {} LFS objects to {}", uploaded, store.getDirectory());
+            return;
+        }
+        LfsPrePushHook hook = new LfsPrePushHook(repository, null);
+        hook.setRemoteName(remoteName);
+        hook.setRefs(refUpdates);
+        try {
+            hook.call();
+        } catch (AbortedByHookException e) {
+            throw new IOException("Failed to upload the LFS objects to the LFS server of " + remoteName, e);
+        }
+    }
+
+    /**
+     * Copies every object in {@code .git/lfs/objects} that the local store doesn't have yet into it.
+     * Objects only get into {@code .git/lfs/objects} by being added or fetched, so this covers every object the commits
+     * about to be pushed may point to.
+     *
+     * @return the number of objects copied
+     */
+    public int upload() throws IOException {
+        if (store == null) {
+            throw new IllegalStateException("No local LFS store is configured; upload the objects the push needs to the LFS server instead");
+        }
+        if (!Files.isDirectory(lfs.getLfsObjDir())) {
+            return 0;
+        }
+        int uploaded = 0;
+        try (Stream<Path> mediaFiles = Files.walk(lfs.getLfsObjDir())) {
+            for (Path mediaFile : (Iterable<Path>) mediaFiles::iterator) {
+                String name = mediaFile.getFileName().toString();
+                if (Files.isRegularFile(mediaFile) && LongObjectId.isId(name) && store.upload(LongObjectId.fromString(name), mediaFile)) {
+                    uploaded++;
+                }
+            }
+        }
+        return uploaded;
+    }
+
+    private int materializeBatch(List<String> paths) throws IOException {
+        Map<String, LfsPointer> pointers = new LinkedHashMap<>();
+        Map<String, ObjectId> pointerBlobIds = new LinkedHashMap<>();
+        Path workTree = repository.getWorkTree().toPath();
+        try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+            for (String path : paths) {
+                Path file = workTree.resolve(path);
+                if (!Files.isRegularFile(file) || Files.size(file) > LfsPointer.SIZE_THRESHOLD) {
+                    continue;
+                }
+                byte[] content = Files.readAllBytes(file);
+                LfsPointer pointer = LfsPointer.parseLfsPointer(new ByteArrayInputStream(content));
+                if (pointer != null) {
+                    pointers.put(path, pointer);
+                    pointerBlobIds.put(path, formatter.idFor(Constants.OBJ_BLOB, content));
+                }
+            }
+        }
+        if (pointers.isEmpty()) {
+            return 0;
+        }
+
+        fetchMissing(pointers.values());
+
+        DirCache index = repository.lockDirCache();
+        try {
+            for (Map.Entry<String, LfsPointer> pointer : pointers.entrySet()) {
+                Path file = workTree.resolve(pointer.getKey());
+                Path temporaryFile = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".lfs");
+                try {
+                    Files.copy(lfs.getMediaFile(pointer.getValue().getOid()), temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(temporaryFile);
+                }
+                // The index still holds the size and time of the pointer file. Give it those of the contents, as Git's smudge
+                // would, so status doesn't clean the whole file again to find out that it hasn't changed.
+                DirCacheEntry entry = index.getEntry(pointer.getKey());
+                if (entry != null && entry.getObjectId().equals(pointerBlobIds.get(pointer.getKey()))) {
+                    entry.setLength(Files.size(file));
+                    entry.setLastModified(Files.getLastModifiedTime(file).toInstant());
+                }
+            }
+            index.write();
+            index.commit();
+        } finally {
+            index.unlock();
+        }
+        logger.debug("Materialised {} LFS files", pointers.size());
+        return pointers.size();
+    }
+
+    private void fetchMissing(Collection<LfsPointer> pointers) throws IOException {
+        List<LfsPointer> missing = new ArrayList<>();
+        for (LfsPointer pointer : new TreeSet<>(pointers)) {
+            if (!Files.isRegularFile(lfs.getMediaFile(pointer.getOid()))) {
+                missing.add(pointer);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        if (store != null) {
+            for (LfsPointer pointer : missing) {
+                store.download(pointer, lfs.getMediaFile(pointer.getOid()));
+            }
+        } else {
+            // One batch request to the LFS server for all of them, then each object is streamed to .git/lfs/objects.
+            SmudgeFilter.downloadLfsResource(lfs, repository, missing.toArray(LfsPointer[]::new));
+        }
+        logger.info("Fetched {} LFS objects from {}", missing.size(), store != null ? store.getDirectory() : "the LFS server");
+    }
+
+    private List<String> changedFiles(Collection<String> paths) throws GitAPIException {
+        StatusCommand statusCommand = Git.wrap(repository).status();
+        paths.stream().filter(path -> !path.equals(".")).forEach(statusCommand::addPath);
+        Status status = statusCommand.call();
+        List<String> changed = new ArrayList<>(status.getUntracked());
+        changed.addAll(status.getModified());
+        return changed;
+    }
+
+    private boolean isTracked(String path) throws IOException {
+        return ConfigConstants.CONFIG_SECTION_LFS.equals(LfsFactory.getAttributesForPath(repository, path).getValue(Constants.ATTR_FILTER));
+    }
+
+    private static void append(Path attributesFile, List<String> lines) throws IOException {
+        // Start on a new line if the file doesn't end with one.
+        boolean needsNewLine = Files.exists(attributesFile) && Files.size(attributesFile) > 0
+                && !Files.readString(attributesFile, StandardCharsets.UTF_8).endsWith("\n");
+        String text = (needsNewLine ? "\n" : "") + String.join("\n", lines) + "\n";
+        Files.writeString(attributesFile, text, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String escape(String path) {
+        // Whitespace separates a pattern from its attributes, so it is matched with a character class instead, as "git lfs track" does.
+        return path.replace(" ", "[[:space:]]");
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Which files are kept in Git LFS rather than in the repository's pack files, and where their contents are kept.
+ *
+ * @param sizeThreshold files larger than this many bytes go to LFS, or -1 to go by the patterns alone
+ * @param patterns {@code .gitattributes} patterns of files that go to LFS whatever their size, e.g. {@code *.zip}
+ * @param lazyCheckout whether LFS files are left as pointer files in the working tree until they are asked for,
+ *                     rather than downloaded after every sync
+ * @param localStore a directory to keep the LFS objects in instead of the remote's LFS server, or null to use the server
+ */
+public record LfsOptions(long sizeThreshold, List<String> patterns, boolean lazyCheckout, @Nullable Path localStore) {
+
+    public LfsOptions {
+        if (sizeThreshold < -1) {
+            throw new IllegalArgumentException("The LFS size threshold must be -1 or a number of bytes: " + sizeThreshold);
+        }
+        patterns = List.copyOf(patterns);
+    }
+
+    public boolean hasSizeThreshold() {
+        return sizeThreshold >= 0;
+    }
+}
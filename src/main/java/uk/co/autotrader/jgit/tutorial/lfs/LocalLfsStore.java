@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import org.eclipse.jgit.lfs.LfsPointer;
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * An LFS store in a local directory, laid out like a repository's own {@code .git/lfs/objects}, that stands in for
+ * the remote's LFS server: on a shared file system between machines, or in tests that have no LFS server to talk to.
+ * <p>
+ * Objects are streamed in and out through a small buffer, whatever their size, and are checked against their
+ * SHA-256 id on the way, so a truncated or corrupt copy is never left in the store or in a working tree.
+ * Each copy is written to a temporary file and then moved into place, so readers only ever see whole objects.
+ */
+public class LocalLfsStore {
+
+    private final Path directory;
+
+    public LocalLfsStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public boolean contains(AnyLongObjectId id) {
+        return Files.isRegularFile(pathOf(id));
+    }
+
+    /**
+     * Copies an object into the store, unless the store has it already.
+     *
+     * @param id the object's SHA-256 id
+     * @param mediaFile the object's contents, e.g. in the repository's {@code .git/lfs/objects}
+     * @return whether the object was copied
+     */
+    public boolean upload(AnyLongObjectId id, Path mediaFile) throws IOException {
+        Path target = pathOf(id);
+        if (Files.isRegularFile(target)) {
+            return false;
+        }
+        copyVerified(mediaFile, id, Files.size(mediaFile), target);
+        return true;
+    }
+
+    /**
+     * Copies the object a pointer file points to out of the store.
+     *
+     * @param pointer the pointer to the object
+     * @param target where to write the object's contents
+     */
+    public void download(LfsPointer pointer, Path target) throws IOException {
+        Path source = pathOf(pointer.getOid());
+        if (!Files.isRegularFile(source)) {
+            throw new IllegalStateException("The LFS store " + directory + " has no object " + pointer.getOid().name());
+        }
+        copyVerified(source, pointer.getOid(), pointer.getSize(), target);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private Path pathOf(AnyLongObjectId id) {
+        String name = id.name();
+        return directory.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+    }
+
+    private static void copyVerified(Path source, AnyLongObjectId id, long size, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temporaryFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            MessageDigest digest = Constants.newMessageDigest();
+            long copied;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+                copied = Files.copy(in, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LongObjectId copiedId = LongObjectId.fromRaw(digest.digest());
+            if (copied != size || !copiedId.equals(id)) {
+                throw new IOException("Corrupt LFS object " + source + ": expected " + size + " bytes with id " + id.name()
+                        + ", but found " + copied + " bytes with id " + copiedId.name());
+            }
+            Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+}
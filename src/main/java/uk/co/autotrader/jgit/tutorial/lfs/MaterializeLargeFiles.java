@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fetches the contents of LFS files that a lazy checkout left as pointer files in the local repository's working tree,
+ * and writes them in place of the pointer files.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.lfs.MaterializeLargeFiles -Ppaths=assets/logo.psd,assets/intro.mp4}
+ * (leave out {@code -Ppaths} to fetch every LFS file)
+ */
+public class MaterializeLargeFiles {
+
+    private static final Logger logger = LoggerFactory.getLogger(MaterializeLargeFiles.class);
+
+    public static void main(String[] args) {
+
+        /*
+         * Get the Tutorial's configuration, which gives us the following information:
+         * - Local Directory that represents a directory on the file system (defaults to ~/jgit-cloned-repositories/name-of-cloned-repo)
+         * - Whether large files are kept in Git LFS, and where their contents are fetched from
+         * - SSH Key & (optional) Key Passphrase to authenticate with the remote's LFS server (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE when the first SSH connection is opened)
+         * - Host keys of the servers to trust (GitHub's, plus any in a known_hosts file)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
+         */
+        Configuration configuration = new Configuration();
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        LfsOptions lfsOptions = configuration.getLfsOptions();
+        if (lfsOptions == null) {
+            throw new IllegalStateException("LFS_ENABLED must be set in the Configuration class");
+        }
+
+        // The paths are supplied as a system property when running the program.
+        String suppliedPaths = System.getProperty("paths");
+        List<String> paths = suppliedPaths == null ? List.of() : Arrays.stream(suppliedPaths.split(",")).map(String::strip).toList();
+
+        // The LFS server is found, and authenticated with, over the same SSH connection as the remote repository.
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration::getSshSecrets, configuration.getKnownHosts());
+        SshSessionFactory.setInstance(sshdSessionFactory.getSharedSessionFactory(configuration.getSshSessionIdleTimeout()));
+
+        LocalDirectory localGitRootDirectory = configuration.getLocalRepositoryDirectory();
+        localGitRootDirectory.ensureDirectoryExistsAndIsGitRepository();
+        try (Git git = Git.open(localGitRootDirectory.getPath().toFile())) {
+            LargeFileSupport largeFiles = new LargeFileSupport(git.getRepository(), lfsOptions);
+            largeFiles.install();
+            int materialized = paths.isEmpty() ? largeFiles.materializeAll() : largeFiles.materialize(paths);
+            logger.info("Materialised {} LFS files in {}", materialized, localGitRootDirectory.getPath().toAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred fetching LFS files", e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import org.eclipse.jgit.attributes.FilterCommand;
+import org.eclipse.jgit.attributes.FilterCommandRegistry;
+import org.eclipse.jgit.lfs.CleanFilter;
+import org.eclipse.jgit.lfs.LfsPointer;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * JGit's LFS clean filter, except that a file that is already a pointer is passed through as it is, as git-lfs does.
+ * <p>
+ * Without a smudge filter, checkouts leave pointer files in the working tree. Whenever status or add reads one,
+ * for example because it was written too recently for its modification time to be trusted, JGit's own filter would
+ * store the pointer itself in LFS, and the file would look modified or be committed as a pointer to a pointer.
+ */
+final class PointerAwareCleanFilter extends FilterCommand {
+
+    static final String NAME = Constants.BUILTIN_FILTER_PREFIX + "lfs/pointer-aware-clean";
+
+    private PointerAwareCleanFilter(InputStream in, OutputStream out) {
+        super(in, out);
+    }
+
+    static void register() {
+        FilterCommandRegistry.register(NAME, PointerAwareCleanFilter::create);
+    }
+
+    private static FilterCommand create(Repository repository, InputStream in, OutputStream out) throws IOException {
+        // Pointer files are never larger than this, so reading one more byte tells whether the file may be one.
+        byte[] head = in.readNBytes(LfsPointer.SIZE_THRESHOLD + 1);
+        if (head.length <= LfsPointer.SIZE_THRESHOLD && LfsPointer.parseLfsPointer(new ByteArrayInputStream(head)) != null) {
+            in.close();
+            return new PointerAwareCleanFilter(new ByteArrayInputStream(head), out);
+        }
+        return CleanFilter.FACTORY.create(repository, new SequenceInputStream(new ByteArrayInputStream(head), in), out);
+    }
+
+    @Override
+    public int run() throws IOException {
+        byte[] pointer = in.readAllBytes();
+        out.write(pointer);
+        in.close();
+        out.close();
+        return -1;
+    }
+}
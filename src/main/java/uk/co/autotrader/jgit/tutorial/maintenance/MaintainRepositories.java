@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.maintenance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Maintains the clones under the local repository base directory until the process is stopped,
+ * garbage collecting each one once it has piled up too many loose objects, packs or loose refs.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.maintenance.MaintainRepositories}
+ */
+public class MaintainRepositories {
+
+    private static final Logger logger = LoggerFactory.getLogger(MaintainRepositories.class);
+
+    public static void main(String[] args) throws InterruptedException {
+
+        /*
+         * Get the Tutorial's configuration, which gives us the following information:
+         * - Local base directory that holds the clones to maintain (defaults to ~/jgit-cloned-repositories)
+         * - How often to look at the clones, and when a clone is due for maintenance
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
+         */
+        Configuration configuration = new Configuration();
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(configuration.getLocalRepositoryBaseDirectory(),
+                configuration.getMaintenanceThresholds(), configuration.getMaintenanceInterval(),
+                configuration.getMaintenanceMinimumIntervalPerRepository()).start();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            scheduler.close();
+            MetricsRegistry.getDefault().snapshot().operations().forEach((operation, stats) -> logger.info("{}: {}", operation, stats.summary()));
+            stopped.countDown();
+        }));
+
+        logger.info("Press Ctrl+C to stop.");
+        stopped.await();
+    }
+}
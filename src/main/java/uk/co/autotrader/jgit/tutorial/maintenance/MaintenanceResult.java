@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.maintenance;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * What the {@link MaintenanceScheduler} did to one repository.
+ *
+ * @param repository the working tree of the repository
+ * @param outcome what was done
+ * @param before the repository's statistics beforehand, or null if they weren't read
+ * @param after the repository's statistics after maintenance, or null if it wasn't maintained
+ * @param duration how long the maintenance took
+ */
+public record MaintenanceResult(Path repository, Outcome outcome, @Nullable RepositoryStatistics before,
+                                @Nullable RepositoryStatistics after, Duration duration) {
+
+    public enum Outcome {
+        // The repository was below every threshold.
+        NOT_NEEDED,
+        // The repository was garbage collected, with bitmaps, a commit-graph and packed refs.
+        MAINTAINED,
+        // The repository is a partial clone, which JGit can't repack without the objects it left out, so only its refs were packed.
+        REFS_PACKED,
+        // A git operation was working on the repository, so it was left until the next run.
+        BUSY,
+        // The repository was maintained too recently to be maintained again.
+        THROTTLED,
+        // The maintenance failed.
+        FAILED
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.maintenance;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the clones under a base directory fast to fetch into, commit to and push from.
+ * <p>
+ * Every fetch adds a pack and every commit adds loose objects, and nothing in JGit ever tidies them up, so over time
+ * fetch negotiation, status and push have more and more files to look through. At a fixed interval, the scheduler
+ * looks at each clone's object database and, once it crosses one of the {@link MaintenanceThresholds},
+ * garbage collects it: everything is repacked into one pack with reachability bitmaps, a commit-graph is written
+ * and the loose refs are packed. Partial clones, whose object filter left objects out, only have their refs packed,
+ * as JGit can't repack a repository with missing objects.
+ * <p>
+ * Repositories are maintained one at a time, on a single background thread. A repository that a clone, fetch, commit
+ * or push is working on, in this process or another, is skipped until the next run (see {@link RepositoryActivityLock}),
+ * and a repository that was maintained recently is not maintained again until a minimum interval has passed.
+ */
+public class MaintenanceScheduler implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    private final Path baseDirectory;
+    private final MaintenanceThresholds thresholds;
+    private final Duration interval;
+    private final Duration minimumIntervalPerRepository;
+    private final Map<Path, Instant> lastMaintained = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("repository-maintenance").daemon().factory());
+
+    /**
+     * Creates a new MaintenanceScheduler. Call {@link #start()} to start maintaining repositories.
+     *
+     * @param baseDirectory the directory whose subdirectories hold the clones to maintain
+     * @param thresholds when a clone is due for maintenance
+     * @param interval how long to wait between looking at every clone
+     * @param minimumIntervalPerRepository the shortest time between two maintenances of the same clone
+     */
+    public MaintenanceScheduler(Path baseDirectory, MaintenanceThresholds thresholds, Duration interval, Duration minimumIntervalPerRepository) {
+        this.baseDirectory = baseDirectory;
+        this.thresholds = thresholds;
+        this.interval = interval;
+        this.minimumIntervalPerRepository = minimumIntervalPerRepository;
+    }
+
+    /**
+     * Looks at every clone straight away, and then again after every interval.
+     *
+     * @return this scheduler
+     */
+    public MaintenanceScheduler start() {
+        executor.scheduleWithFixedDelay(this::runLoggingFailures, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        logger.info("Maintaining the repositories under {} every {}", baseDirectory, interval);
+        return this;
+    }
+
+    /**
+     * Looks at every clone under the base directory once and maintains those that are due, on the calling thread.
+     *
+     * @return what was done to each clone
+     */
+    public List<MaintenanceResult> runOnce() {
+        List<MaintenanceResult> results = new ArrayList<>();
+        for (Path repository : findRepositories()) {
+            results.add(maintain(repository));
+        }
+        return results;
+    }
+
+    /**
+     * Maintains a single repository if it is due, unless a git operation is working on it.
+     *
+     * @param repository the working tree of the repository
+     * @return what was done
+     */
+    public MaintenanceResult maintain(Path repository) {
+        long start = System.nanoTime();
+        Instant last = lastMaintained.get(repository);
+        if (last != null && last.plus(minimumIntervalPerRepository).isAfter(Instant.now())) {
+            return new MaintenanceResult(repository, MaintenanceResult.Outcome.THROTTLED, null, null, Duration.ZERO);
+        }
+        Optional<RepositoryActivityLock.Lease> lease = RepositoryActivityLock.tryAcquireExclusive(repository);
+        if (lease.isEmpty()) {
+            logger.debug("Skipping maintenance of {}, as a git operation is working on it", repository);
+            return new MaintenanceResult(repository, MaintenanceResult.Outcome.BUSY, null, null, Duration.ZERO);
+        }
+
+        RepositoryStatistics before = null;
+        try (RepositoryActivityLock.Lease ignored = lease.get();
+             Git git = Git.open(repository.toFile())) {
+            before = RepositoryStatistics.of(git);
+            List<String> reasons = thresholds.reasonsToMaintain(before);
+            if (reasons.isEmpty()) {
+                return new MaintenanceResult(repository, MaintenanceResult.Outcome.NOT_NEEDED, before, null, elapsedSince(start));
+            }
+
+            if (before.partialClone()) {
+                // JGit has no support for promisor remotes, so gc would fail on the objects the clone's filter left out, every time.
+                logger.info("Packing the refs of partial clone {}, which has {}", repository, String.join(", ", reasons));
+                new GC((FileRepository) git.getRepository()).packRefs();
+                lastMaintained.put(repository, Instant.now());
+                RepositoryStatistics after = RepositoryStatistics.of(git);
+                return new MaintenanceResult(repository, MaintenanceResult.Outcome.REFS_PACKED, before, after, elapsedSince(start));
+            }
+
+            logger.info("Maintaining {} because it has {}", repository, String.join(", ", reasons));
+            enableBitmapsAndCommitGraph(git.getRepository().getConfig());
+            // JGit's gc repacks with bitmaps, writes the commit-graph and packs the refs.
+            try (OperationMetrics metrics = MetricsRegistry.getDefault().start("maintenance", repository.toString(), NullProgressMonitor.INSTANCE)) {
+                git.gc().setProgressMonitor(metrics).call();
+                metrics.succeeded();
+            }
+            lastMaintained.put(repository, Instant.now());
+
+            RepositoryStatistics after = RepositoryStatistics.of(git);
+            Duration duration = elapsedSince(start);
+            logger.info("Maintained {} in {} ms: {} -> {}", repository, duration.toMillis(), before.summary(), after.summary());
+            return new MaintenanceResult(repository, MaintenanceResult.Outcome.MAINTAINED, before, after, duration);
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            logger.warn("Failed to maintain {}", repository, e);
+            // Don't retry a failing repository on every run.
+            lastMaintained.put(repository, Instant.now());
+            return new MaintenanceResult(repository, MaintenanceResult.Outcome.FAILED, before, null, elapsedSince(start));
+        }
+    }
+
+    /**
+     * Stops maintaining repositories, waiting for a maintenance in progress to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runLoggingFailures() {
+        // An exception would stop the schedule, so log it and carry on with the next run.
+        try {
+            runOnce();
+        } catch (RuntimeException e) {
+            logger.error("Repository maintenance run failed", e);
+        }
+    }
+
+    private List<Path> findRepositories() {
+        try (Stream<Path> directories = Files.list(baseDirectory)) {
+            return directories.filter(directory -> Files.isDirectory(directory.resolve(Constants.DOT_GIT))).sorted().toList();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list the repositories in " + baseDirectory, e);
+        }
+    }
+
+    private static void enableBitmapsAndCommitGraph(StoredConfig config) throws IOException {
+        boolean changed = enable(config, ConfigConstants.CONFIG_PACK_SECTION, ConfigConstants.CONFIG_KEY_BUILD_BITMAPS);
+        changed |= enable(config, ConfigConstants.CONFIG_GC_SECTION, ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH);
+        // Readers only use the commit-graph if it is enabled.
+        changed |= enable(config, ConfigConstants.CONFIG_CORE_SECTION, ConfigConstants.CONFIG_COMMIT_GRAPH);
+        if (changed) {
+            config.save();
+        }
+    }
+
+    private static boolean enable(StoredConfig config, String section, String name) {
+        if (config.getBoolean(section, name, false)) {
+            return false;
+        }
+        config.setBoolean(section, null, name, true);
+        return true;
+    }
+
+    private static Duration elapsedSince(long startNanos) {
+        return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+}
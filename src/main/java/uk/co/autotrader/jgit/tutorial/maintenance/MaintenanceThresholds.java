@@ -0,0 +1,57 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.maintenance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * When a repository is due for maintenance. Git's own {@code gc --auto} defaults are 6700 loose objects and 50 packs.
+ *
+ * @param maxLooseObjects the most loose objects a repository may have before it is maintained
+ * @param maxPackFiles the most pack files a repository may have before it is maintained
+ * @param maxLooseRefs the most loose refs a repository may have before it is maintained
+ */
+public record MaintenanceThresholds(long maxLooseObjects, long maxPackFiles, long maxLooseRefs) {
+
+    public MaintenanceThresholds {
+        if (maxLooseObjects < 0 || maxPackFiles < 1 || maxLooseRefs < 0) {
+            throw new IllegalArgumentException("Maintenance thresholds must not be negative, and at least one pack file must be allowed");
+        }
+    }
+
+    /**
+     * @return why the repository is due for maintenance, or an empty list if it isn't
+     */
+    public List<String> reasonsToMaintain(RepositoryStatistics statistics) {
+        List<String> reasons = new ArrayList<>();
+        if (statistics.looseObjects() > maxLooseObjects) {
+            reasons.add(statistics.looseObjects() + " loose objects");
+        }
+        if (statistics.packFiles() > maxPackFiles) {
+            reasons.add(statistics.packFiles() + " packs");
+        }
+        if (statistics.looseRefs() > maxLooseRefs) {
+            reasons.add(statistics.looseRefs() + " loose refs");
+        }
+        // A fresh clone has neither, and gets both from its first maintenance. A partial clone never gets them, as it is never repacked.
+        if (!statistics.partialClone() && statistics.packFiles() > 0 && (statistics.bitmaps() == 0 || !statistics.hasCommitGraph())) {
+            reasons.add("no reachability bitmaps or commit-graph");
+        }
+        return reasons;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.maintenance;
+
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps repository maintenance from running while a clone, fetch, commit or push is working on the same repository,
+ * in this JVM or in another process.
+ * <p>
+ * Git operations take a shared lease, so any number of them can run at once. Maintenance tries for an exclusive lease
+ * and skips the repository if it is busy, rather than holding up the operations. Within the JVM, the leases are
+ * a read-write lock per repository; across processes, a lock file next to the repository's directory, which survives
+ * the repository being deleted and cloned again.
+ */
+public final class RepositoryActivityLock {
+
+    private static final String LOCK_FILE_SUFFIX = ".activity.lock";
+
+    private static final Map<Path, Activity> activities = new ConcurrentHashMap<>();
+
+    private RepositoryActivityLock() {
+    }
+
+    /**
+     * Takes a shared lease on a repository for a git operation, waiting while it is being maintained.
+     *
+     * @param repositoryDirectory the working tree of the repository, or its git directory if it is bare;
+     *                            it need not exist yet, as when cloning
+     * @return the lease, which must be closed once the operation has finished
+     */
+    public static Lease acquireShared(Path repositoryDirectory) {
+        Activity activity = activity(repositoryDirectory);
+        activity.lock.readLock().lock();
+        try {
+            activity.addOperation();
+        } catch (IOException | RuntimeException e) {
+            activity.lock.readLock().unlock();
+            throw new RuntimeException("Failed to lock " + repositoryDirectory, e);
+        }
+        return new Lease(() -> {
+            activity.removeOperation();
+            activity.lock.readLock().unlock();
+        });
+    }
+
+    /**
+     * Takes a shared lease on an open repository for a git operation, waiting while it is being maintained.
+     * A repository that isn't on disk, such as an in-memory one, is never maintained, so its lease guards nothing.
+     */
+    public static Lease acquireShared(Repository repository) {
+        if (repository.getDirectory() == null) {
+            return new Lease(() -> {
+            });
+        }
+        return acquireShared(directoryOf(repository));
+    }
+
+    /**
+     * Takes an exclusive lease on a repository for maintenance, unless a git operation is working on it.
+     *
+     * @param repositoryDirectory the working tree of the repository, or its git directory if it is bare
+     * @return the lease, or empty if the repository is busy
+     */
+    public static Optional<Lease> tryAcquireExclusive(Path repositoryDirectory) {
+        Activity activity = activity(repositoryDirectory);
+        if (!activity.lock.writeLock().tryLock()) {
+            return Optional.empty();
+        }
+        try {
+            FileChannel channel = FileChannel.open(activity.lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) {
+                channel.close();
+                activity.lock.writeLock().unlock();
+                return Optional.empty();
+            }
+            return Optional.of(new Lease(() -> {
+                closeQuietly(channel);
+                activity.lock.writeLock().unlock();
+            }));
+        } catch (IOException | RuntimeException e) {
+            activity.lock.writeLock().unlock();
+            throw new RuntimeException("Failed to lock " + repositoryDirectory, e);
+        }
+    }
+
+    /**
+     * @return the working tree of the repository, or its git directory if it is bare
+     */
+    public static Path directoryOf(Repository repository) {
+        return (repository.isBare() ? repository.getDirectory() : repository.getWorkTree()).toPath();
+    }
+
+    private static Activity activity(Path repositoryDirectory) {
+        Path directory = repositoryDirectory.toAbsolutePath().normalize();
+        return activities.computeIfAbsent(directory, Activity::new);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            // Closing the channel releases its lock.
+            channel.close();
+        } catch (IOException e) {
+            // The lock is released when the channel is closed, even if closing fails.
+        }
+    }
+
+    /**
+     * A hold on a repository. Close it once the operation or the maintenance has finished.
+     */
+    public static final class Lease implements AutoCloseable {
+
+        private final Runnable release;
+        private boolean closed;
+
+        private Lease(Runnable release) {
+            this.release = release;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release.run();
+        }
+    }
+
+    /**
+     * The operations on one repository in this JVM. The file lock is shared by all of them, as a JVM may only hold
+     * one lock on a file at a time; the first operation takes it and the last one releases it.
+     */
+    private static final class Activity {
+
+        private final Path lockFile;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // Guarded by this.
+        private int operations;
+        private FileChannel channel;
+
+        private Activity(Path directory) {
+            this.lockFile = directory.resolveSibling("." + directory.getFileName() + LOCK_FILE_SUFFIX);
+        }
+
+        private synchronized void addOperation() throws IOException {
+            if (operations == 0) {
+                FileChannel newChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    // Waits while another process is maintaining the repository.
+                    newChannel.lock(0, Long.MAX_VALUE, true);
+                } catch (IOException | RuntimeException e) {
+                    newChannel.close();
+                    throw e;
+                }
+                channel = newChannel;
+            }
+            operations++;
+        }
+
+        private synchronized void removeOperation() {
+            if (--operations == 0) {
+                closeQuietly(channel);
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.maintenance;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import uk.co.autotrader.jgit.tutorial.sync.CloneOptions;
+
+import java.io.File;
+import java.util.Properties;
+
+/**
+ * How much a repository's object database and refs have piled up since it was last maintained.
+ *
+ * @param looseObjects the number of objects stored one per file
+ * @param packFiles the number of pack files
+ * @param looseRefs the number of refs stored one per file
+ * @param bitmaps the number of reachability bitmaps, which let fetches and pushes skip walking the history
+ * @param hasCommitGraph whether a commit-graph file lets history walks skip parsing commits
+ * @param partialClone whether the repository is a partial clone, which JGit can't repack, so it never gets bitmaps or a commit-graph
+ */
+public record RepositoryStatistics(long looseObjects, long packFiles, long looseRefs, long bitmaps, boolean hasCommitGraph, boolean partialClone) {
+
+    /**
+     * @return the statistics of an open repository
+     */
+    public static RepositoryStatistics of(Git git) throws GitAPIException {
+        Properties statistics = git.gc().getStatistics();
+        File commitGraph = new File(git.getRepository().getDirectory(), "objects/info/commit-graph");
+        return new RepositoryStatistics(count(statistics, "numberOfLooseObjects"), count(statistics, "numberOfPackFiles"),
+                count(statistics, "numberOfLooseRefs"), count(statistics, "numberOfBitmaps"), commitGraph.isFile(),
+                CloneOptions.isPartialClone(git.getRepository().getConfig()));
+    }
+
+    /**
+     * @return a one line, human-readable summary
+     */
+    public String summary() {
+        return String.format("%d loose objects, %d packs, %d loose refs, %d bitmaps, %s commit-graph",
+                looseObjects, packFiles, looseRefs, bitmaps, hasCommitGraph ? "a" : "no");
+    }
+
+    private static long count(Properties statistics, String name) {
+        Object value = statistics.get(name);
+        return value instanceof Number number ? number.longValue() : 0;
+    }
+}
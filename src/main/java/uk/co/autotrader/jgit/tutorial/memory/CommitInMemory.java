@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.memory;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.push.PushOutcome;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Does what Steps 1 to 3 do for a job that only changes a few files, without a local clone: commits the files in a
+ * directory to a branch of the remote repository, at the same paths, and pushes the commit, all in memory.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.memory.CommitInMemory -Pchanges=/path/to/changed/files -Pbranch=main -PcommitMessage="Update config"}
+ */
+public class CommitInMemory {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommitInMemory.class);
+
+    public static void main(String[] args) {
+
+        /*
+         * Get the Tutorial's configuration, which gives us the following information:
+         * - SSH URL of the remote repository to commit to
+         * - SSH Key & (optional) Key Passphrase to authenticate with remote repository (taken from Env vars SSH_KEY & SSH_KEY_PASSPHRASE when the first SSH connection is opened)
+         * - Host keys of the servers to trust (GitHub's, plus any in a known_hosts file)
+         * - How much of the repository may be held in memory, and which objects to leave out of it
+         * - How many times to push before giving up when the remote keeps moving
+         */
+        Configuration configuration = new Configuration();
+
+        // The changed files, branch and commit message are supplied as system properties when running the program.
+        String changesDirectory = System.getProperty("changes");
+        if (changesDirectory == null) {
+            throw new IllegalArgumentException("The 'changes' system property must be set to a directory of files to commit");
+        }
+        String suppliedBranch = System.getProperty("branch");
+        String branch = suppliedBranch != null ? suppliedBranch : "main";
+        String suppliedCommitMessage = System.getProperty("commitMessage");
+        String commitMessage = suppliedCommitMessage != null ? suppliedCommitMessage : "Update files";
+
+        ChangeSet changes = readChanges(Path.of(changesDirectory));
+
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(configuration::getSshSecrets, configuration.getKnownHosts());
+        SshSessionFactory.setInstance(sshdSessionFactory.getSharedSessionFactory(configuration.getSshSessionIdleTimeout()));
+
+        InMemoryGitJob job = new InMemoryGitJob(configuration.getInMemoryMaxRepositoryBytes(), configuration.getPushMaxAttempts())
+                .setObjectFilter(configuration.getInMemoryObjectFilter());
+        try {
+            PushOutcome outcome = job.run(configuration.getRemoteRepositoryUrl(), branch, changes,
+                    new PersonIdent("David Davies", "david.davies@example.com"), commitMessage);
+            logger.info("{} is now at {} (after {} attempts, {} ms)", outcome.branch(), outcome.pushedCommit().name(),
+                    outcome.attempts(), outcome.latency().toMillis());
+        } catch (GitAPIException e) {
+            throw new RuntimeException("An error occurred while committing to the remote repository", e);
+        }
+    }
+
+    private static ChangeSet readChanges(Path directory) {
+        ChangeSet changes = new ChangeSet();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                String path = directory.relativize(file).toString().replace(File.separatorChar, '/');
+                changes.put(path, Files.readAllBytes(file), Files.isExecutable(file) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the changed files in " + directory, e);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.memory;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.PackProtocolException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.FilterSpec;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.push.PushOutcome;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clones a branch into memory, commits a change set to it and pushes it, without writing anything to disk.
+ * <p>
+ * Steps 1 to 3 clone the whole repository into a directory, write the changed files to the working tree, commit and push,
+ * and leave the clone behind to be deleted. A job that only changes a few files and throws the clone away needs none of that.
+ * This class fetches just the tip commit of the branch, without tags, into a {@link MemoryCappedRepository}, commits the
+ * {@link ChangeSet} on top of it with a {@link DirectCommitter}, and pushes the new commit only if the remote branch is
+ * still at the fetched tip. If someone else pushed first, the new tip is fetched and the change set committed again on top of it.
+ * The repository is dropped at the end of each run, so there is nothing to clean up.
+ * <p>
+ * Building the commit only reads the trees of the tip commit, so an object filter of {@code blob:none} leaves the file
+ * contents on the server and keeps the repository small. A repository that doesn't fit in the memory cap fails the run
+ * with an {@link IllegalStateException} saying so, before it can run the JVM out of memory.
+ * <p>
+ * This class is thread-safe; every run has a repository of its own.
+ */
+public class InMemoryGitJob {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryGitJob.class);
+
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    private static final AtomicLong runs = new AtomicLong();
+
+    private final long maxRepositoryBytes;
+    private final int maxAttempts;
+    private FilterSpec filterSpec = FilterSpec.NO_FILTER;
+    private int timeoutSeconds;
+    private MetricsRegistry metricsRegistry = MetricsRegistry.getDefault();
+
+    /**
+     * Creates a new InMemoryGitJob.
+     *
+     * @param maxRepositoryBytes the most bytes of objects a run may hold in memory
+     * @param maxAttempts how many times to fetch, commit and push before giving up on a branch that keeps moving
+     */
+    public InMemoryGitJob(long maxRepositoryBytes, int maxAttempts) {
+        if (maxRepositoryBytes < 1) {
+            throw new IllegalArgumentException("maxRepositoryBytes must be positive, but was " + maxRepositoryBytes);
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, but was " + maxAttempts);
+        }
+        this.maxRepositoryBytes = maxRepositoryBytes;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Leaves objects out of the fetch with a partial clone filter.
+     *
+     * @param objectFilter a filter such as {@code blob:none}, or null to fetch every object of the tip commit
+     * @return this job
+     */
+    public InMemoryGitJob setObjectFilter(@Nullable String objectFilter) {
+        try {
+            this.filterSpec = objectFilter == null ? FilterSpec.NO_FILTER : FilterSpec.fromFilterLine(objectFilter);
+        } catch (PackProtocolException e) {
+            throw new IllegalArgumentException("Invalid partial clone object filter: " + objectFilter, e);
+        }
+        return this;
+    }
+
+    /**
+     * @param timeoutSeconds the network timeout in seconds, or 0 for no timeout
+     * @return this job
+     */
+    public InMemoryGitJob setTimeoutSeconds(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+        return this;
+    }
+
+    /**
+     * Records fetches and pushes in the given registry rather than the default one.
+     *
+     * @param metricsRegistry the registry to add the metrics of each fetch and push to
+     * @return this job
+     */
+    public InMemoryGitJob setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        return this;
+    }
+
+    /**
+     * Commits a change set to a branch of the remote repository and pushes it.
+     * If the change set leaves the tree unchanged, nothing is pushed.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param branch the short name of the branch, which must exist on the remote
+     * @param changes the files to write and delete
+     * @param author the author and committer of the commit
+     * @param message the commit message
+     * @return the commit the remote branch points at afterwards
+     * @throws IllegalStateException if the repository doesn't fit in memory, the push was rejected, or the branch kept moving
+     */
+    public PushOutcome run(String remoteUrl, String branch, ChangeSet changes, PersonIdent author, String message) throws GitAPIException {
+        long start = System.nanoTime();
+        String refName = Constants.R_HEADS + branch;
+        MemoryCappedRepository repository = new MemoryCappedRepository("in-memory-" + runs.incrementAndGet(), maxRepositoryBytes);
+        try (repository; Git git = Git.wrap(repository)) {
+            // The branch is fetched by this run alone, so the committer has no other writers to retry for.
+            DirectCommitter committer = new DirectCommitter(repository, 1);
+            for (int attempt = 1; ; attempt++) {
+                ObjectId remoteTip = fetch(git, remoteUrl, refName);
+                DirectCommitter.CommitResult commit = committer.commit(refName, changes, author, message);
+                if (!commit.isCommitted()) {
+                    logger.info("Change set leaves {} unchanged, nothing to push", branch);
+                    return new PushOutcome(branch, remoteTip, attempt, Duration.ofNanos(System.nanoTime() - start));
+                }
+
+                RemoteRefUpdate update = push(repository, remoteUrl, refName, remoteTip);
+                RemoteRefUpdate.Status status = update.getStatus();
+                if (status == RemoteRefUpdate.Status.OK) {
+                    logger.info("Pushed {} to {} from memory, holding {} bytes of objects", commit.commitId().name(), branch, repository.getBytes());
+                    return new PushOutcome(branch, commit.commitId(), attempt, Duration.ofNanos(System.nanoTime() - start));
+                }
+                boolean transientRejection = status == RemoteRefUpdate.Status.REJECTED_OTHER_REASON && CoalescingPushQueue.isTransient(update.getMessage());
+                if (status != RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD && status != RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED && !transientRejection) {
+                    throw new IllegalStateException("Push of " + branch + " was rejected: " + status
+                            + (update.getMessage() == null ? "" : " (" + update.getMessage() + ")"));
+                }
+                if (attempt >= maxAttempts) {
+                    throw new IllegalStateException("Push of " + branch + " was still rejected after " + attempt + " attempts, as other writers kept moving it");
+                }
+                logger.info("{} moved on the remote while committing, committing again on top of its new tip (attempt {})", branch, attempt);
+                backOff(attempt);
+            }
+        } catch (GitAPIException | RuntimeException e) {
+            if (repository.isLimitExceeded()) {
+                throw new IllegalStateException("Branch " + branch + " of " + remoteUrl + " doesn't fit in the in-memory repository's cap of "
+                        + maxRepositoryBytes + " bytes. Raise IN_MEMORY_MAX_REPOSITORY_BYTES, or set IN_MEMORY_OBJECT_FILTER to blob:none, "
+                        + "in the Tutorial Configuration class, or clone it to disk with Steps 1 to 3 instead.", e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fetches the tip commit of the branch into the branch of the same name, replacing whatever was fetched before.
+     */
+    private ObjectId fetch(Git git, String remoteUrl, String refName) throws GitAPIException {
+        MemoryCappedRepository repository = (MemoryCappedRepository) git.getRepository();
+        try (OperationMetrics metrics = metricsRegistry.start("in-memory fetch", remoteUrl, NullProgressMonitor.INSTANCE)) {
+            long bytesBefore = repository.getBytes();
+            git.fetch()
+                    .setRemote(remoteUrl)
+                    .setRefSpecs(new RefSpec("+" + refName + ":" + refName))
+                    .setDepth(1)
+                    .setTagOpt(TagOpt.NO_TAGS)
+                    .setProgressMonitor(metrics)
+                    .setTimeout(timeoutSeconds)
+                    .setTransportConfigCallback(transport -> transport.setFilterSpec(filterSpec))
+                    .call();
+            metrics.addBytes(repository.getBytes() - bytesBefore);
+
+            Ref ref = repository.exactRef(refName);
+            if (ref == null) {
+                throw new IllegalStateException(refName + " was not fetched from " + remoteUrl);
+            }
+            metrics.succeeded();
+            return ref.getObjectId();
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred reading the in-memory repository", e);
+        }
+    }
+
+    /**
+     * Pushes the branch, provided the remote branch is still at the commit it was fetched at.
+     */
+    private RemoteRefUpdate push(MemoryCappedRepository repository, String remoteUrl, String refName, ObjectId remoteTip) {
+        try (Transport transport = Transport.open(repository, new URIish(remoteUrl));
+             OperationMetrics metrics = metricsRegistry.start("push", remoteUrl, NullProgressMonitor.INSTANCE)) {
+            transport.setTimeout(timeoutSeconds);
+            PushResult result = transport.push(metrics, List.of(new RemoteRefUpdate(repository, refName, refName, false, null, remoteTip)));
+            metrics.succeeded();
+            return result.getRemoteUpdate(refName);
+        } catch (IOException | URISyntaxException e) {
+            throw new RuntimeException("An error occurred pushing to " + remoteUrl, e);
+        }
+    }
+
+    private static void backOff(int attempt) {
+        // Jobs that lost the race wait a random, growing time, so they don't keep colliding with each other.
+        long maxDelay = Math.min(MAX_BACKOFF_MILLIS, 1L << attempt);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(1, maxDelay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry a push", e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.memory;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.FS;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link InMemoryRepository} that refuses to hold more than a given number of bytes of objects.
+ * <p>
+ * The pack files of an in-memory repository are byte arrays on the heap, so a fetch of a repository that is too big
+ * would run the JVM out of memory. Every pack received by a fetch, and every object inserted by a commit, goes through
+ * {@link #newObjectInserter()}, which counts their bytes and fails the fetch or commit as soon as the total passes the cap.
+ * The count is of the compressed pack data, which is most of what the repository holds; the pack indexes add a little more.
+ * <p>
+ * A shallow fetch records where the history was cut off, but JGit's in-memory object readers don't report it,
+ * so walking past a fetched commit would fail on its missing parents. The readers of this repository report it.
+ */
+class MemoryCappedRepository extends InMemoryRepository {
+
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean limitExceeded;
+
+    MemoryCappedRepository(String name, long maxBytes) {
+        super(new DfsRepositoryDescription(name));
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of bytes of objects received and inserted so far
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return true if a fetch or commit failed because the repository would have grown past its cap
+     */
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    @Override
+    public FS getFS() {
+        // In-memory repositories have no file system of their own, but fetching from and pushing to a local path needs one.
+        return FS.DETECTED;
+    }
+
+    @Override
+    public ObjectReader newObjectReader() {
+        return shallowAware(super.newObjectReader());
+    }
+
+    @Override
+    public ObjectInserter newObjectInserter() {
+        return new ObjectInserter.Filter() {
+            private final ObjectInserter delegate = MemoryCappedRepository.super.newObjectInserter();
+
+            @Override
+            protected ObjectInserter delegate() {
+                return delegate;
+            }
+
+            @Override
+            public ObjectId insert(int type, byte[] data, int off, int len) throws IOException {
+                add(len);
+                return super.insert(type, data, off, len);
+            }
+
+            @Override
+            public ObjectId insert(int type, long length, InputStream in) throws IOException {
+                add(length);
+                return super.insert(type, length, in);
+            }
+
+            @Override
+            public PackParser newPackParser(InputStream in) throws IOException {
+                return super.newPackParser(new CountingInputStream(in));
+            }
+
+            @Override
+            public ObjectReader newReader() {
+                return shallowAware(super.newReader());
+            }
+        };
+    }
+
+    private ObjectReader shallowAware(ObjectReader reader) {
+        return new ObjectReader.Filter() {
+            @Override
+            protected ObjectReader delegate() {
+                return reader;
+            }
+
+            @Override
+            public Set<ObjectId> getShallowCommits() throws IOException {
+                return getObjectDatabase().getShallowCommits();
+            }
+        };
+    }
+
+    private void add(long count) throws IOException {
+        if (bytes.addAndGet(count) > maxBytes) {
+            limitExceeded = true;
+            throw new IOException("In-memory repository " + getDescription().getRepositoryName() + " would grow past its cap of " + maxBytes + " bytes");
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            int read = super.read(buffer, off, len);
+            if (read > 0) {
+                add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            add(skipped);
+            return skipped;
+        }
+    }
+}
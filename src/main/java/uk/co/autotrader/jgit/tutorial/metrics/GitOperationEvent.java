@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JDK Flight Recorder event covering a whole git operation, such as a clone or a push.
+ */
+@Name("uk.co.autotrader.jgit.tutorial.GitOperation")
+@Label("Git Operation")
+@Category({"JGit Tutorial", "Git"})
+@Description("A clone, fetch, commit or push, from start to finish")
+class GitOperationEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Repository")
+    String repository;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    @Label("Objects")
+    @Description("Objects received or sent")
+    long objects;
+
+    @Label("Bytes")
+    @Description("Bytes added to the local object database")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JDK Flight Recorder event covering one phase of a git operation, such as receiving objects or resolving deltas.
+ */
+@Name("uk.co.autotrader.jgit.tutorial.GitPhase")
+@Label("Git Operation Phase")
+@Category({"JGit Tutorial", "Git"})
+@Description("A phase of a git operation, as reported to its progress monitor")
+class GitPhaseEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Repository")
+    String repository;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Total Work")
+    @Description("The units of work the phase expected to do, or 0 if it didn't know")
+    long totalWork;
+
+    @Label("Completed Work")
+    long completedWork;
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.metrics;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Adds up the {@link OperationMetrics} of every git operation, so that a {@link MetricsSnapshot} of the totals
+ * can be taken at any time.
+ * <p>
+ * The tutorial records its clones, fetches, commits and pushes in the {@link #getDefault() default registry}.
+ * This class is thread-safe.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    // Guarded by this.
+    private final Map<String, MetricsSnapshot.OperationStats> operations = new TreeMap<>();
+
+    /**
+     * @return the registry shared by the whole process
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Starts recording an operation. Pass the returned metrics to JGit as the operation's progress monitor,
+     * and close them once the operation has finished.
+     *
+     * @param operation the kind of operation, such as {@code clone}, under which its totals are added up
+     * @param repository the repository the operation works on, for the Flight Recorder events
+     * @param progressMonitor the progress monitor that every call is passed on to
+     * @return the metrics of the new operation
+     */
+    public OperationMetrics start(String operation, String repository, ProgressMonitor progressMonitor) {
+        return new OperationMetrics(this, operation, repository, progressMonitor);
+    }
+
+    /**
+     * @return the totals of every operation recorded so far
+     */
+    public synchronized MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(Instant.now(), Collections.unmodifiableMap(new TreeMap<>(operations)));
+    }
+
+    /**
+     * Forgets every operation recorded so far.
+     */
+    public synchronized void reset() {
+        operations.clear();
+    }
+
+    synchronized void record(String operation, MetricsSnapshot.OperationStats stats) {
+        operations.merge(operation, stats, MetricsSnapshot.OperationStats::plus);
+    }
+}
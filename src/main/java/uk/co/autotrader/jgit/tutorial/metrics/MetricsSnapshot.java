@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.metrics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The totals recorded by a {@link MetricsRegistry} up to a point in time.
+ *
+ * @param takenAt when the snapshot was taken
+ * @param operations the totals of each kind of operation, such as {@code clone} or {@code push}, by name
+ */
+public record MetricsSnapshot(Instant takenAt, Map<String, OperationStats> operations) {
+
+    /**
+     * The totals of one kind of operation.
+     *
+     * @param count how many operations were recorded
+     * @param failures how many of them failed
+     * @param totalDuration the time spent in all of them
+     * @param maxDuration the time spent in the slowest one
+     * @param objects the objects received by clones and fetches, or sent by pushes
+     * @param bytes the bytes added to the local object database, or 0 where they aren't measured
+     * @param phases the totals of each phase, by name, in the order the phases first ran
+     */
+    public record OperationStats(long count, long failures, Duration totalDuration, Duration maxDuration, long objects, long bytes,
+                                 Map<String, PhaseStats> phases) {
+
+        OperationStats plus(OperationStats other) {
+            Map<String, PhaseStats> mergedPhases = new LinkedHashMap<>(phases);
+            other.phases.forEach((name, phase) -> mergedPhases.merge(name, phase, PhaseStats::plus));
+            return new OperationStats(count + other.count, failures + other.failures,
+                    totalDuration.plus(other.totalDuration),
+                    maxDuration.compareTo(other.maxDuration) >= 0 ? maxDuration : other.maxDuration,
+                    objects + other.objects, bytes + other.bytes,
+                    Collections.unmodifiableMap(mergedPhases));
+        }
+
+        /**
+         * @return a one-line summary of the totals, such as
+         * {@code 1 run (0 failed) in 2300 ms, 5000 objects, 7340032 bytes; Receiving objects 1500 ms (5000), ...}
+         */
+        public String summary() {
+            StringBuilder summary = new StringBuilder()
+                    .append(count).append(count == 1 ? " run (" : " runs (").append(failures).append(" failed) in ")
+                    .append(totalDuration.toMillis()).append(" ms, ")
+                    .append(objects).append(" objects, ")
+                    .append(bytes).append(" bytes");
+            String separator = "; ";
+            for (Map.Entry<String, PhaseStats> phase : phases.entrySet()) {
+                summary.append(separator).append(phase.getKey()).append(' ').append(phase.getValue().totalDuration().toMillis()).append(" ms");
+                if (phase.getValue().work() > 0) {
+                    summary.append(" (").append(phase.getValue().work()).append(')');
+                }
+                separator = ", ";
+            }
+            return summary.toString();
+        }
+    }
+
+    /**
+     * The totals of one phase of an operation.
+     *
+     * @param count how many times the phase ran
+     * @param totalDuration the time spent in it
+     * @param work the units of work it completed, such as objects received or files checked out
+     */
+    public record PhaseStats(long count, Duration totalDuration, long work) {
+
+        PhaseStats plus(PhaseStats other) {
+            return new PhaseStats(count + other.count, totalDuration.plus(other.totalDuration), work + other.work);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.metrics;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A progress monitor that records how long each phase of a git operation takes and how much work it does,
+ * and passes every call on to another progress monitor.
+ * <p>
+ * JGit reports each phase of a clone, fetch or push to its progress monitor: counting and compressing objects
+ * (on the remote, for a fetch, prefixed with {@code remote:}), receiving or writing objects, resolving deltas,
+ * checking out files and updating references. Comparing the phases shows whether an operation is held up by the network
+ * (receiving objects), by the CPU (resolving deltas, compressing objects) or by the disk (checking out files).
+ * Code that does work outside of JGit's commands can report its own phases with {@link #beginTask(String, int)}
+ * and {@link #endTask()}.
+ * <p>
+ * Every phase and the operation as a whole are recorded as JDK Flight Recorder events, and once the operation is closed,
+ * its totals are added to the {@link MetricsRegistry} it was started from.
+ * Call {@link #succeeded()} before closing it, or the operation counts as failed.
+ */
+public class OperationMetrics implements ProgressMonitor, AutoCloseable {
+
+    // The phases in which JGit counts the objects transferred: received by a clone or fetch, or sent by a push.
+    private static final Set<String> OBJECT_TRANSFER_PHASES = Set.of("Receiving objects", "Writing objects");
+
+    private final MetricsRegistry registry;
+    private final String operation;
+    private final String repository;
+    private final ProgressMonitor delegate;
+    private final long startNanos = System.nanoTime();
+    private final GitOperationEvent operationEvent = new GitOperationEvent();
+
+    // Guarded by this.
+    private final Map<String, MetricsSnapshot.PhaseStats> phases = new LinkedHashMap<>();
+    private GitPhaseEvent phaseEvent;
+    private String phase;
+    private long phaseStartNanos;
+    private long phaseTotalWork;
+    private long phaseCompletedWork;
+    private long objects;
+    private long bytes;
+    private boolean succeeded;
+    private boolean closed;
+
+    OperationMetrics(MetricsRegistry registry, String operation, String repository, ProgressMonitor delegate) {
+        this.registry = registry;
+        this.operation = operation;
+        this.repository = repository;
+        this.delegate = delegate;
+        operationEvent.begin();
+    }
+
+    @Override
+    public void start(int totalTasks) {
+        delegate.start(totalTasks);
+    }
+
+    @Override
+    public void beginTask(String title, int totalWork) {
+        synchronized (this) {
+            endPhase();
+            phase = title;
+            phaseStartNanos = System.nanoTime();
+            phaseTotalWork = totalWork == UNKNOWN ? 0 : totalWork;
+            phaseCompletedWork = 0;
+            phaseEvent = new GitPhaseEvent();
+            phaseEvent.begin();
+        }
+        delegate.beginTask(title, totalWork);
+    }
+
+    @Override
+    public void update(int completed) {
+        synchronized (this) {
+            phaseCompletedWork += completed;
+        }
+        delegate.update(completed);
+    }
+
+    @Override
+    public void endTask() {
+        synchronized (this) {
+            endPhase();
+        }
+        delegate.endTask();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return delegate.isCancelled();
+    }
+
+    @Override
+    public void showDuration(boolean enabled) {
+        delegate.showDuration(enabled);
+    }
+
+    /**
+     * Records bytes transferred by the operation, which JGit doesn't report to progress monitors.
+     */
+    public synchronized void addBytes(long transferredBytes) {
+        bytes += transferredBytes;
+    }
+
+    /**
+     * Marks the operation as successful. Operations that are closed without calling this count as failures.
+     */
+    public synchronized void succeeded() {
+        succeeded = true;
+    }
+
+    /**
+     * Ends the operation, records its events and adds its totals to the registry.
+     */
+    @Override
+    public void close() {
+        MetricsSnapshot.OperationStats stats;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            endPhase();
+
+            operationEvent.end();
+            if (operationEvent.shouldCommit()) {
+                operationEvent.operation = operation;
+                operationEvent.repository = repository;
+                operationEvent.succeeded = succeeded;
+                operationEvent.objects = objects;
+                operationEvent.bytes = bytes;
+                operationEvent.commit();
+            }
+
+            Duration duration = Duration.ofNanos(System.nanoTime() - startNanos);
+            stats = new MetricsSnapshot.OperationStats(1, succeeded ? 0 : 1, duration, duration, objects, bytes,
+                    Collections.unmodifiableMap(new LinkedHashMap<>(phases)));
+        }
+        registry.record(operation, stats);
+    }
+
+    private void endPhase() {
+        if (phase == null) {
+            return;
+        }
+        phaseEvent.end();
+        if (phaseEvent.shouldCommit()) {
+            phaseEvent.operation = operation;
+            phaseEvent.repository = repository;
+            phaseEvent.phase = phase;
+            phaseEvent.totalWork = phaseTotalWork;
+            phaseEvent.completedWork = phaseCompletedWork;
+            phaseEvent.commit();
+        }
+
+        if (OBJECT_TRANSFER_PHASES.contains(phase)) {
+            objects += phaseCompletedWork;
+        }
+        // JGit reports some phases, such as updating references, several times in one operation.
+        phases.merge(phase, new MetricsSnapshot.PhaseStats(1, Duration.ofNanos(System.nanoTime() - phaseStartNanos), phaseCompletedWork),
+                MetricsSnapshot.PhaseStats::plus);
+        phase = null;
+        phaseEvent = null;
+    }
+}
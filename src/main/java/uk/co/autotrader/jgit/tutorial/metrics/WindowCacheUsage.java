@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.metrics;
+
+import org.eclipse.jgit.storage.file.WindowCacheStats;
+
+/**
+ * How well JGit's window cache of pack file contents is serving reads, to size it with
+ * {@link uk.co.autotrader.jgit.tutorial.pack.PackReadOptions}. A low hit ratio, or many evictions, on a heap
+ * with room to spare means the packed git limit is too small for the repositories being worked on.
+ *
+ * @param hits the number of reads served by a window already in the cache
+ * @param misses the number of reads that had to load a window from a pack file
+ * @param evictions the number of windows dropped to stay within the packed git limit
+ * @param openFiles the number of pack files currently open
+ * @param openBytes the number of bytes currently held by the cache
+ */
+public record WindowCacheUsage(long hits, long misses, long evictions, long openFiles, long openBytes) {
+
+    /**
+     * @return the usage of the window cache since the JVM started, or since it was last reconfigured
+     */
+    public static WindowCacheUsage current() {
+        WindowCacheStats stats = WindowCacheStats.getStats();
+        return new WindowCacheUsage(stats.getHitCount(), stats.getMissCount(), stats.getEvictionCount(),
+                stats.getOpenFileCount(), stats.getOpenByteCount());
+    }
+
+    public double hitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    /**
+     * @return a one line, human-readable summary
+     */
+    public String summary() {
+        return String.format("%.1f%% hits (%d hits, %d misses), %d evictions, %d open files, %d bytes cached",
+                hitRatio() * 100, hits, misses, evictions, openFiles, openBytes);
+    }
+}
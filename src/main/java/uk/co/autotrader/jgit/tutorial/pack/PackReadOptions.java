@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.pack;
+
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How JGit reads pack files: how much of them it keeps in memory, in what size of window, and when it streams
+ * an object instead of loading it whole. They apply to every repository opened in the JVM.
+ * <p>
+ * JGit's defaults (a 10 MiB cache of 8 KiB windows and a 10 MiB delta base cache) suit small repositories.
+ * On a large repository, checkout and status then inflate the same windows and delta bases again and again,
+ * which costs CPU time and churns the garbage collector. Use {@link uk.co.autotrader.jgit.tutorial.metrics.WindowCacheUsage}
+ * to see how often the cache is missed before making it larger.
+ *
+ * @param packedGitLimit the most bytes of pack files to keep in the window cache
+ * @param packedGitWindowSize the size of each window read from a pack file; a power of 2 of at least 4 KiB
+ * @param packedGitMmap whether to memory-map windows instead of reading them into the heap. Mapped windows still count
+ *                      towards the limit, but live outside the heap
+ * @param deltaBaseCacheLimit the most bytes of inflated delta bases to keep, so chains of deltas are not inflated again
+ * @param streamFileThreshold objects larger than this are streamed rather than loaded into memory whole
+ */
+public record PackReadOptions(long packedGitLimit, int packedGitWindowSize, boolean packedGitMmap, int deltaBaseCacheLimit, int streamFileThreshold) {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackReadOptions.class);
+
+    private static final int MINIMUM_WINDOW_SIZE = 4 * WindowCacheConfig.KB;
+
+    /**
+     * JGit's own defaults.
+     */
+    public static final PackReadOptions DEFAULTS = from(new WindowCacheConfig());
+
+    public PackReadOptions {
+        if (packedGitWindowSize < MINIMUM_WINDOW_SIZE || Integer.bitCount(packedGitWindowSize) != 1) {
+            throw new IllegalArgumentException("The pack window size must be a power of 2 of at least 4 KiB, but was " + packedGitWindowSize);
+        }
+        if (packedGitLimit < packedGitWindowSize) {
+            throw new IllegalArgumentException("The packed git limit must hold at least one window of " + packedGitWindowSize
+                    + " bytes, but was " + packedGitLimit);
+        }
+        if (deltaBaseCacheLimit <= 0) {
+            throw new IllegalArgumentException("The delta base cache limit must be positive, but was " + deltaBaseCacheLimit);
+        }
+        if (streamFileThreshold <= 0) {
+            throw new IllegalArgumentException("The stream file threshold must be positive, but was " + streamFileThreshold);
+        }
+    }
+
+    /**
+     * @return the options of an existing window cache configuration
+     */
+    public static PackReadOptions from(WindowCacheConfig config) {
+        return new PackReadOptions(config.getPackedGitLimit(), config.getPackedGitWindowSize(), config.isPackedGitMMAP(),
+                config.getDeltaBaseCacheLimit(), config.getStreamFileThreshold());
+    }
+
+    public WindowCacheConfig toWindowCacheConfig() {
+        WindowCacheConfig config = new WindowCacheConfig();
+        config.setPackedGitLimit(packedGitLimit);
+        config.setPackedGitWindowSize(packedGitWindowSize);
+        config.setPackedGitMMAP(packedGitMmap);
+        config.setDeltaBaseCacheLimit(deltaBaseCacheLimit);
+        config.setStreamFileThreshold(streamFileThreshold);
+        return config;
+    }
+
+    /**
+     * Makes JGit read pack files with these options from now on. Call it at startup, before opening any repository,
+     * as installing them empties the window cache.
+     */
+    public void install() {
+        // Both caches live on the heap (apart from mapped windows), and so does every object below the stream threshold.
+        long heapBytes = (packedGitMmap ? 0 : packedGitLimit) + deltaBaseCacheLimit + streamFileThreshold;
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        if (heapBytes > maxHeap / 2) {
+            logger.warn("The pack caches and stream file threshold add up to {} MiB, more than half of the {} MiB heap",
+                    heapBytes / WindowCacheConfig.MB, maxHeap / WindowCacheConfig.MB);
+        }
+        toWindowCacheConfig().install();
+        logger.debug("Installed {}", this);
+    }
+}
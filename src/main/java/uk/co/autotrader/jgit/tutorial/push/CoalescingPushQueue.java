@@ -0,0 +1,486 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.push;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.RebaseCommand;
+import org.eclipse.jgit.api.RebaseResult;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes local branches to a remote, coalescing the push requests that arrive close together into a single
+ * atomic push of every branch involved, and rebuilding the branches on top of the remote when it has moved.
+ * <p>
+ * Producers commit to local branches, for example with a {@code DirectCommitter}, and then call {@link #submit(String)}.
+ * A single background thread waits for a short window after the first pending request, then pushes all the branches
+ * requested so far in one atomic push, so that one round trip carries many commits. Several requests for the same branch
+ * become a single ref update of its latest tip.
+ * <p>
+ * If the remote rejects a branch because someone else pushed to it first, the queue fetches the remote branch and
+ * replays the pending local commits on top of it, then tries again after a random, growing back-off. A branch that is
+ * checked out in a working tree is rebased with the working tree; other branches are rebuilt in memory, without a
+ * working tree. A pending commit that conflicts with the remote fails that branch's requests, and the other branches
+ * in the batch are pushed without it. Rejections caused by another push holding the ref's lock are retried as they are.
+ * <p>
+ * The remote must support atomic pushes, as GitHub and JGit's own server do. A {@link BeforePush} step, such as uploading
+ * LFS objects, can be run before every push. This class is thread-safe.
+ */
+public class CoalescingPushQueue implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingPushQueue.class);
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    // Parts of the messages that git servers and JGit give when a ref update failed because of another push.
+    private static final List<String> TRANSIENT_REJECTIONS = List.of("lock", "transaction", "atomic");
+
+    private final Git git;
+    private final String remoteName;
+    private final Duration coalescingWindow;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private volatile BeforePush beforePush = (remote, refUpdates) -> {
+    };
+
+    private final BlockingQueue<PendingPush> pending = new LinkedBlockingQueue<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final Thread pusher;
+    private volatile boolean closed;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong pushes = new AtomicLong();
+    private final AtomicLong rejectedPushes = new AtomicLong();
+    private final AtomicLong rebuiltCommits = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong completedRequests = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Creates a new CoalescingPushQueue and starts its background thread.
+     *
+     * @param repository the local repository whose branches are pushed
+     * @param remoteName the name of the remote to push to, such as {@code origin}
+     * @param coalescingWindow how long to wait for more requests after the first pending one before pushing
+     * @param maxAttempts how many times to push a batch before failing the requests that the remote keeps rejecting
+     * @param initialBackoff the longest wait before the second attempt; it doubles with every further attempt
+     */
+    public CoalescingPushQueue(Repository repository, String remoteName, Duration coalescingWindow, int maxAttempts, Duration initialBackoff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.git = Git.wrap(repository);
+        this.remoteName = remoteName;
+        this.coalescingWindow = coalescingWindow;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.pusher = Thread.ofPlatform().daemon().name("push-queue-" + remoteName).start(this::run);
+    }
+
+    /**
+     * Sets a step to run before every push, including retries. If it fails, so do the requests in the push.
+     *
+     * @return this queue
+     */
+    public CoalescingPushQueue setBeforePush(BeforePush beforePush) {
+        this.beforePush = beforePush;
+        return this;
+    }
+
+    /**
+     * Requests that a local branch is pushed to the branch of the same name on the remote.
+     *
+     * @param branch the short name of the local branch
+     * @return completes once the remote has accepted every commit on the branch at the time of the request,
+     * or completes exceptionally if they could not be pushed
+     */
+    public synchronized CompletableFuture<PushOutcome> submit(String branch) {
+        if (closed) {
+            throw new IllegalStateException("Push queue has been closed");
+        }
+        PendingPush push = new PendingPush(branch, System.nanoTime(), new CompletableFuture<>());
+        requests.incrementAndGet();
+        queueDepth.incrementAndGet();
+        pending.add(push);
+        return push.future();
+    }
+
+    /**
+     * @return the number of requested pushes that have not completed yet, including those in the current batch
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return a snapshot of the number of requests and pushes, and of the latency of completed requests
+     */
+    public Statistics getStatistics() {
+        long completed = completedRequests.get();
+        return new Statistics(requests.get(), pushes.get(), rejectedPushes.get(), rebuiltCommits.get(), failedRequests.get(),
+                completed == 0 ? Duration.ZERO : Duration.ofNanos(totalLatencyNanos.get() / completed),
+                Duration.ofNanos(maxLatencyNanos.get()));
+    }
+
+    /**
+     * Stops accepting requests and waits for the pending ones to be pushed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            // Requests are only queued while holding this lock, so none can be added after the pusher has drained the queue.
+            closed = true;
+        }
+        try {
+            pusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingPush first = pending.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                // Give other producers a moment to queue their branches, so they can share this push.
+                Thread.sleep(coalescingWindow.toMillis());
+                Map<String, List<PendingPush>> batch = new TreeMap<>();
+                batch.computeIfAbsent(first.branch(), branch -> new ArrayList<>()).add(first);
+                drainPendingInto(batch);
+                // Keep repository maintenance away while pushing and rebuilding branches.
+                try (RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(git.getRepository())) {
+                    pushBatch(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Map<String, List<PendingPush>> abandoned = new TreeMap<>();
+                drainPendingInto(abandoned);
+                failAll(abandoned, e);
+                return;
+            }
+        }
+    }
+
+    private void pushBatch(Map<String, List<PendingPush>> batch) throws InterruptedException {
+        for (int attempt = 1; !batch.isEmpty(); attempt++) {
+            Map<String, RemoteRefUpdate> updates;
+            try {
+                updates = push(batch.keySet());
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                failAll(batch, e);
+                return;
+            }
+
+            List<String> rejectedBranches = new ArrayList<>();
+            for (String branch : List.copyOf(batch.keySet())) {
+                RemoteRefUpdate update = updates.get(branch);
+                RemoteRefUpdate.Status status = update == null ? null : update.getStatus();
+                if (status == RemoteRefUpdate.Status.OK || status == RemoteRefUpdate.Status.UP_TO_DATE) {
+                    complete(batch.remove(branch), update.getNewObjectId(), attempt);
+                } else if (status == RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD || status == RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED) {
+                    rejectedBranches.add(branch);
+                } else if (status == RemoteRefUpdate.Status.REJECTED_OTHER_REASON && isTransient(update.getMessage())) {
+                    // Another push held the ref's lock, or the atomic push was aborted because of another ref, so just try again.
+                    logger.debug("Push of {} was rejected: {}", branch, update.getMessage());
+                } else {
+                    fail(batch.remove(branch), new IllegalStateException("Push of " + branch + " was rejected: "
+                            + status + (update == null || update.getMessage() == null ? "" : " (" + update.getMessage() + ")")));
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            rejectedPushes.incrementAndGet();
+            if (attempt >= maxAttempts) {
+                failAll(batch, new IllegalStateException("Push of " + batch.keySet() + " was still rejected after " + attempt + " attempts"));
+                return;
+            }
+            logger.info("Push of {} was rejected, rebuilding {} on the remote and retrying (attempt {})", batch.keySet(), rejectedBranches, attempt);
+            try {
+                backOff(attempt);
+            } catch (InterruptedException e) {
+                failAll(batch, e);
+                throw e;
+            }
+
+            if (rejectedBranches.isEmpty()) {
+                drainPendingInto(batch);
+                continue;
+            }
+            try {
+                fetch(rejectedBranches);
+            } catch (GitAPIException | RuntimeException e) {
+                failAll(batch, e);
+                return;
+            }
+            for (String branch : rejectedBranches) {
+                try {
+                    rebuiltCommits.addAndGet(rebuildOnRemote(branch));
+                } catch (GitAPIException | IOException | RuntimeException e) {
+                    fail(batch.remove(branch), e);
+                }
+            }
+            // Requests that arrived while this batch was being pushed can share the next attempt.
+            drainPendingInto(batch);
+        }
+    }
+
+    private Map<String, RemoteRefUpdate> push(Iterable<String> branches) throws IOException, URISyntaxException {
+        Repository repository = git.getRepository();
+        List<RemoteRefUpdate> refUpdates = new ArrayList<>();
+        for (String branch : branches) {
+            // PushCommand would update whichever local ref the remote's fetch refspec maps the branch to. In a bare clone
+            // that's the branch itself, which would then be moved back to the pushed commit, losing any commits made since.
+            refUpdates.add(new RemoteRefUpdate(repository, Constants.R_HEADS + branch, Constants.R_HEADS + branch,
+                    false, remoteTrackingRef(branch), null));
+        }
+        beforePush.beforePush(remoteName, refUpdates);
+        pushes.incrementAndGet();
+        PushResult result;
+        try (Transport transport = Transport.open(repository, remoteName);
+             OperationMetrics metrics = MetricsRegistry.getDefault().start("push", transport.getURI().toString(), NullProgressMonitor.INSTANCE)) {
+            transport.setPushAtomic(true);
+            result = transport.push(metrics, refUpdates);
+            metrics.succeeded();
+        }
+
+        Map<String, RemoteRefUpdate> updates = new HashMap<>();
+        for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+            updates.put(Repository.shortenRefName(update.getRemoteName()), update);
+        }
+        return updates;
+    }
+
+    private void fetch(List<String> branches) throws GitAPIException {
+        List<RefSpec> refSpecs = new ArrayList<>();
+        for (String branch : branches) {
+            refSpecs.add(new RefSpec("+" + Constants.R_HEADS + branch + ":" + remoteTrackingRef(branch)));
+        }
+        git.fetch().setRemote(remoteName).setRefSpecs(refSpecs).call();
+    }
+
+    /**
+     * Replays the local commits that are not on the remote branch on top of it.
+     *
+     * @return the number of commits replayed
+     */
+    private int rebuildOnRemote(String branch) throws GitAPIException, IOException {
+        Repository repository = git.getRepository();
+        ObjectId remoteTip = repository.resolve(remoteTrackingRef(branch));
+        ObjectId localTip = repository.resolve(Constants.R_HEADS + branch);
+        if (remoteTip == null || localTip == null) {
+            throw new IllegalStateException("Cannot rebuild " + branch + ": branch not found");
+        }
+
+        if (!repository.isBare() && branch.equals(repository.getBranch())) {
+            // The branch is checked out, so rebase it together with the working tree and the index.
+            RebaseResult result = git.rebase().setUpstream(remoteTip).call();
+            if (!result.getStatus().isSuccessful()) {
+                if (result.getStatus() == RebaseResult.Status.STOPPED || result.getStatus() == RebaseResult.Status.CONFLICTS) {
+                    git.rebase().setOperation(RebaseCommand.Operation.ABORT).call();
+                }
+                throw new IllegalStateException("Rebasing " + branch + " onto the remote failed: " + result.getStatus());
+            }
+            return 0;
+        }
+
+        try (ObjectInserter inserter = repository.newObjectInserter();
+             ObjectReader reader = inserter.newReader();
+             RevWalk walk = new RevWalk(reader)) {
+            walk.markStart(walk.parseCommit(localTip));
+            walk.markUninteresting(walk.parseCommit(remoteTip));
+            walk.sort(RevSort.TOPO, true);
+            walk.sort(RevSort.REVERSE, true);
+
+            ObjectId newTip = remoteTip;
+            int replayed = 0;
+            for (RevCommit commit : walk) {
+                if (commit.getParentCount() != 1) {
+                    throw new IllegalStateException("Cannot rebuild " + branch + ": " + commit.name() + " is a merge commit");
+                }
+                ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(inserter, repository.getConfig());
+                merger.setBase(commit.getParent(0));
+                if (!merger.merge(newTip, commit)) {
+                    throw new IllegalStateException("Cannot rebuild " + branch + ": " + commit.name()
+                            + " conflicts with the remote in " + merger.getUnmergedPaths());
+                }
+
+                CommitBuilder commitBuilder = new CommitBuilder();
+                commitBuilder.setTreeId(merger.getResultTreeId());
+                commitBuilder.setParentId(newTip);
+                commitBuilder.setAuthor(commit.getAuthorIdent());
+                commitBuilder.setCommitter(new PersonIdent(commit.getCommitterIdent(), Instant.now()));
+                commitBuilder.setMessage(commit.getFullMessage());
+                newTip = inserter.insert(commitBuilder);
+                replayed++;
+            }
+            inserter.flush();
+
+            if (replayed == 0) {
+                // The remote already contains the local branch; the next push will just be up to date.
+                return 0;
+            }
+            RefUpdate refUpdate = repository.updateRef(Constants.R_HEADS + branch);
+            refUpdate.setExpectedOldObjectId(localTip);
+            refUpdate.setNewObjectId(newTip);
+            refUpdate.setForceUpdate(true);
+            refUpdate.setRefLogMessage("push queue: rebuilt on " + remoteTrackingRef(branch), false);
+            RefUpdate.Result result = refUpdate.update();
+            if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.FAST_FORWARD) {
+                // Most likely a producer committed to the branch meanwhile; the next attempt rebuilds it again.
+                logger.debug("Could not move {} to its rebuilt commits: {}", branch, result);
+                return 0;
+            }
+            return replayed;
+        }
+    }
+
+    private String remoteTrackingRef(String branch) {
+        return Constants.R_REMOTES + remoteName + "/" + branch;
+    }
+
+    private void drainPendingInto(Map<String, List<PendingPush>> batch) {
+        List<PendingPush> drained = new ArrayList<>();
+        pending.drainTo(drained);
+        for (PendingPush push : drained) {
+            batch.computeIfAbsent(push.branch(), branch -> new ArrayList<>()).add(push);
+        }
+    }
+
+    private void backOff(int attempt) throws InterruptedException {
+        long maxDelay = initialBackoff.toMillis() << Math.min(attempt - 1, 10);
+        Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1));
+    }
+
+    private void complete(List<PendingPush> pushes, ObjectId pushedCommit, int attempts) {
+        long now = System.nanoTime();
+        for (PendingPush push : pushes) {
+            long latency = now - push.submittedNanos();
+            totalLatencyNanos.addAndGet(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            completedRequests.incrementAndGet();
+            queueDepth.decrementAndGet();
+            push.future().complete(new PushOutcome(push.branch(), pushedCommit, attempts, Duration.ofNanos(latency)));
+        }
+    }
+
+    private void fail(List<PendingPush> pushes, Throwable cause) {
+        logger.warn("Failed to push {}: {}", pushes.get(0).branch(), cause.getMessage());
+        for (PendingPush push : pushes) {
+            failedRequests.incrementAndGet();
+            queueDepth.decrementAndGet();
+            push.future().completeExceptionally(cause);
+        }
+    }
+
+    private void failAll(Map<String, List<PendingPush>> batch, Throwable cause) {
+        batch.values().forEach(pushes -> fail(pushes, cause));
+        batch.clear();
+    }
+
+    /**
+     * @return true if a push rejected with the given message failed because of another push, so it may succeed if tried again
+     */
+    public static boolean isTransient(String message) {
+        if (message == null) {
+            return false;
+        }
+        String lowerCaseMessage = message.toLowerCase(Locale.ROOT);
+        return TRANSIENT_REJECTIONS.stream().anyMatch(lowerCaseMessage::contains);
+    }
+
+    /**
+     * Counts of push requests and of the pushes made for them, and the latency of completed requests.
+     *
+     * @param requests the number of push requests submitted
+     * @param pushes the number of pushes made to the remote, including retries
+     * @param rejectedPushes the number of pushes that the remote rejected because it had moved
+     * @param rebuiltCommits the number of local commits replayed on top of the remote after a rejection
+     * @param failedRequests the number of requests that completed exceptionally
+     * @param averageLatency the average time from a request to the remote accepting it
+     * @param maxLatency the longest time from a request to the remote accepting it
+     */
+    public record Statistics(long requests, long pushes, long rejectedPushes, long rebuiltCommits, long failedRequests,
+                             Duration averageLatency, Duration maxLatency) {
+
+        /**
+         * @return the average number of requests served by each push, which is more than one when requests are coalesced
+         */
+        public double requestsPerPush() {
+            return pushes == 0 ? 0 : (double) requests / pushes;
+        }
+    }
+
+    /**
+     * A step run before each push, with the ref updates about to be pushed.
+     */
+    @FunctionalInterface
+    public interface BeforePush {
+
+        void beforePush(String remoteName, Collection<RemoteRefUpdate> refUpdates) throws IOException;
+    }
+
+    private record PendingPush(String branch, long submittedNanos, CompletableFuture<PushOutcome> future) {
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.push;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.time.Duration;
+
+/**
+ * The outcome of a push requested from a {@link CoalescingPushQueue}.
+ *
+ * @param branch the branch that was pushed
+ * @param pushedCommit the commit the remote branch now points at, which includes every commit on the local branch
+ *                     when the push was requested, possibly rebuilt on top of commits pushed by others
+ * @param attempts how many pushes it took before the remote accepted the branch
+ * @param latency the time from the request to the remote accepting the branch
+ */
+public record PushOutcome(String branch, ObjectId pushedCommit, int attempts, Duration latency) {
+}
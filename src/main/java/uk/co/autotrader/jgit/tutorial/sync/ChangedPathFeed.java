@@ -0,0 +1,244 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The paths that changed between two commits, such as the previous and new HEAD of a {@link SyncResult},
+ * read one at a time as the trees of the two commits are walked.
+ * <p>
+ * {@code DiffEntry.scan} and {@code git.diff()} build the whole list of changes before returning any of it,
+ * which for a sync that touched most of a large repository is a lot of memory spent before an indexer or cache
+ * gets to see the first path. This feed walks both trees together, skipping every directory whose tree is the same
+ * in both commits, and hands out each modified path as soon as the walk reaches it.
+ * <p>
+ * Only added and deleted paths can be the two halves of a rename, so they are held back until the walk ends, then paired
+ * up by a {@link RenameDetector}. At most {@code renameLimit} of each are held: once there are more, renames are no longer
+ * looked for and the held paths are handed out as plain additions and deletions, much as Git gives up on renames past
+ * its {@code diff.renameLimit}. So, whatever the size of the diff, the feed never holds more than that many paths.
+ * <p>
+ * Reading the feed throws {@link UncheckedIOException} if an object can't be read. The feed must be closed.
+ */
+public class ChangedPathFeed implements Iterator<PathChange>, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangedPathFeed.class);
+
+    private final Repository repository;
+    private final ObjectReader reader;
+    private final TreeWalk walk;
+    @Nullable
+    private final RevTree oldTree;
+    @Nullable
+    private final RevTree newTree;
+    private final int renameLimit;
+
+    private final List<String> addedPaths = new ArrayList<>();
+    private final List<String> deletedPaths = new ArrayList<>();
+    private boolean detectingRenames;
+    private boolean walked;
+    private Iterator<PathChange> pending = Collections.emptyIterator();
+
+    private ChangedPathFeed(Repository repository, ObjectReader reader, @Nullable RevTree oldTree, @Nullable RevTree newTree, int renameLimit) throws IOException {
+        this.repository = repository;
+        this.reader = reader;
+        this.oldTree = oldTree;
+        this.newTree = newTree;
+        this.renameLimit = renameLimit;
+        this.detectingRenames = oldTree != null && newTree != null && renameLimit > 0;
+
+        this.walk = new TreeWalk(repository, reader);
+        // A missing commit, such as the previous HEAD of a fresh clone, compares as an empty tree, so every path in the other one changed.
+        addTree(walk, oldTree);
+        addTree(walk, newTree);
+        walk.setRecursive(true);
+        walk.setFilter(TreeFilter.ANY_DIFF);
+    }
+
+    /**
+     * Opens a feed of the paths a sync changed. After a clone, every path is added.
+     *
+     * @param repository the repository that was synchronised, which must stay open until the feed is closed
+     * @param result what the sync did
+     * @param renameLimit how many added and how many deleted paths may be held to look for renames among them, or 0 not to look for renames
+     */
+    public static ChangedPathFeed open(Repository repository, SyncResult result, int renameLimit) throws IOException {
+        return open(repository, result.previousHead(), result.newHead(), renameLimit);
+    }
+
+    /**
+     * Opens a feed of the paths that changed between two commits.
+     *
+     * @param repository the repository holding both commits, which must stay open until the feed is closed
+     * @param oldCommit the commit to compare from, or null to compare from an empty tree
+     * @param newCommit the commit to compare to, or null to compare to an empty tree
+     * @param renameLimit how many added and how many deleted paths may be held to look for renames among them, or 0 not to look for renames
+     */
+    public static ChangedPathFeed open(Repository repository, @Nullable AnyObjectId oldCommit, @Nullable AnyObjectId newCommit, int renameLimit) throws IOException {
+        if (renameLimit < 0) {
+            throw new IllegalArgumentException("The rename limit must not be negative: " + renameLimit);
+        }
+        ObjectReader reader = repository.newObjectReader();
+        try (RevWalk revWalk = new RevWalk(reader)) {
+            RevTree oldTree = oldCommit == null ? null : revWalk.parseCommit(oldCommit).getTree();
+            RevTree newTree = newCommit == null ? null : revWalk.parseCommit(newCommit).getTree();
+            return new ChangedPathFeed(repository, reader, oldTree, newTree, renameLimit);
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the rest of the feed as a stream, which closes the feed when it is closed
+     */
+    public Stream<PathChange> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (!pending.hasNext()) {
+                if (walked) {
+                    return false;
+                }
+                pending = advance();
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("An error occurred reading the changed paths of " + repository.getDirectory(), e);
+        }
+    }
+
+    @Override
+    public PathChange next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pending.next();
+    }
+
+    @Override
+    public void close() {
+        walk.close();
+        reader.close();
+    }
+
+    /**
+     * Walks on to the next changes that can be handed out: a modified path, or the additions and deletions held so far
+     * once there are too many of them, or whatever is still held when the walk ends.
+     */
+    private Iterator<PathChange> advance() throws IOException {
+        while (walk.next()) {
+            String path = walk.getPathString();
+            boolean inOld = walk.getRawMode(0) != 0;
+            boolean inNew = walk.getRawMode(1) != 0;
+            if (inOld && inNew) {
+                return List.of(PathChange.modified(path)).iterator();
+            }
+            if (!detectingRenames) {
+                return List.of(inNew ? PathChange.added(path) : PathChange.deleted(path)).iterator();
+            }
+            (inNew ? addedPaths : deletedPaths).add(path);
+            if (addedPaths.size() > renameLimit || deletedPaths.size() > renameLimit) {
+                logger.debug("More than {} paths added or deleted in {}, so renames are not looked for", renameLimit, repository.getDirectory());
+                detectingRenames = false;
+                return releaseHeldPaths().iterator();
+            }
+        }
+        walked = true;
+        return detectingRenames && !addedPaths.isEmpty() && !deletedPaths.isEmpty() ? detectRenames().iterator() : releaseHeldPaths().iterator();
+    }
+
+    private List<PathChange> releaseHeldPaths() {
+        List<PathChange> changes = new ArrayList<>(addedPaths.size() + deletedPaths.size());
+        deletedPaths.forEach(path -> changes.add(PathChange.deleted(path)));
+        addedPaths.forEach(path -> changes.add(PathChange.added(path)));
+        addedPaths.clear();
+        deletedPaths.clear();
+        return changes;
+    }
+
+    /**
+     * Walks the trees again, but only down to the held paths, to give the rename detector their object ids and modes.
+     */
+    private List<PathChange> detectRenames() throws IOException {
+        List<String> heldPaths = new ArrayList<>(addedPaths);
+        heldPaths.addAll(deletedPaths);
+        addedPaths.clear();
+        deletedPaths.clear();
+
+        RenameDetector renameDetector = new RenameDetector(reader, repository.getConfig().get(DiffConfig.KEY));
+        renameDetector.setRenameLimit(renameLimit);
+        try (TreeWalk heldPathsWalk = new TreeWalk(repository, reader)) {
+            addTree(heldPathsWalk, oldTree);
+            addTree(heldPathsWalk, newTree);
+            heldPathsWalk.setRecursive(true);
+            heldPathsWalk.setFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(heldPaths), TreeFilter.ANY_DIFF));
+            renameDetector.addAll(DiffEntry.scan(heldPathsWalk));
+        }
+
+        List<PathChange> changes = new ArrayList<>(heldPaths.size());
+        for (DiffEntry entry : renameDetector.compute()) {
+            changes.add(switch (entry.getChangeType()) {
+                case RENAME -> PathChange.renamed(entry.getOldPath(), entry.getNewPath());
+                case DELETE -> PathChange.deleted(entry.getOldPath());
+                // A deleted path that matches several added ones is renamed to one of them; the others are copies, which are new paths all the same.
+                case ADD, COPY -> PathChange.added(entry.getNewPath());
+                case MODIFY -> PathChange.modified(entry.getNewPath());
+            });
+        }
+        return changes;
+    }
+
+    private void addTree(TreeWalk treeWalk, @Nullable RevTree tree) throws IOException {
+        if (tree == null) {
+            treeWalk.addTree(new EmptyTreeIterator());
+        } else {
+            treeWalk.addTree(tree);
+        }
+    }
+}
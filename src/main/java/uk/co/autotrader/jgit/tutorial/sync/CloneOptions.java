@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.errors.PackProtocolException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.FilterSpec;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options that reduce how much of a remote repository is transferred and checked out.
+ *
+ * @param depth the number of commits of history to fetch from each branch tip, or 0 for the full history
+ * @param shallowSince only fetch commits newer than this time, or null for the full history
+ * @param objectFilter a partial clone filter such as {@code blob:limit=1048576}, or null to fetch every object. JGit can't fetch
+ *                     the objects it leaves out later, so filters that leave out every file, such as {@code blob:none}, are rejected
+ * @param sparseCheckoutPaths the directories (or files) to write to the working tree, or an empty list for the whole tree
+ */
+public record CloneOptions(int depth, @Nullable Instant shallowSince, @Nullable String objectFilter, List<String> sparseCheckoutPaths) {
+
+    /**
+     * A full-depth, unfiltered clone with a complete working tree, just like {@code Git.cloneRepository()}.
+     */
+    public static final CloneOptions FULL = new CloneOptions(0, null, null, List.of());
+
+    // The keys git writes to the config of a partial clone's remote.
+    private static final String CONFIG_KEY_PROMISOR = "promisor";
+    private static final String CONFIG_KEY_PARTIAL_CLONE_FILTER = "partialclonefilter";
+
+    public CloneOptions {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Clone depth must be 0 (full history) or positive, but was " + depth);
+        }
+        if (objectFilter != null) {
+            FilterSpec filterSpec;
+            try {
+                filterSpec = FilterSpec.fromFilterLine(objectFilter);
+            } catch (PackProtocolException e) {
+                throw new IllegalArgumentException("Invalid partial clone object filter: " + objectFilter, e);
+            }
+            // The checkout needs the blob of every file it writes, and would only find out they are missing once the whole clone has downloaded.
+            if (!filterSpec.allowsType(Constants.OBJ_BLOB) || filterSpec.getBlobLimit() == 0 || filterSpec.getTreeDepthLimit() >= 0) {
+                throw new IllegalArgumentException("The partial clone object filter " + objectFilter + " leaves out the files of the working tree, "
+                        + "which JGit cannot fetch later. Use a size limit such as blob:limit=1048576 instead.");
+            }
+        }
+        sparseCheckoutPaths = normalise(sparseCheckoutPaths);
+    }
+
+    public boolean isShallow() {
+        return depth > 0 || shallowSince != null;
+    }
+
+    public boolean isPartial() {
+        return objectFilter != null;
+    }
+
+    public boolean isSparse() {
+        return !sparseCheckoutPaths.isEmpty();
+    }
+
+    /**
+     * @return true if the working tree has to be written by {@link SparseCheckout} instead of JGit's own checkout
+     */
+    public boolean needsCustomCheckout() {
+        return isSparse() || isPartial();
+    }
+
+    /**
+     * @return the parsed object filter, or {@link FilterSpec#NO_FILTER}
+     */
+    public FilterSpec filterSpec() {
+        if (objectFilter == null) {
+            return FilterSpec.NO_FILTER;
+        }
+        try {
+            return FilterSpec.fromFilterLine(objectFilter);
+        } catch (PackProtocolException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records a partial clone's object filter in its config, marking the remote as a promisor of the objects
+     * that were left out, as git does. Tools that work on the whole object database, such as the repository
+     * maintenance, can then tell that those objects are missing on purpose. Does nothing without an object filter.
+     *
+     * @param config the config of the new clone
+     * @param remoteName the remote the clone was made from
+     */
+    public void recordPartialClone(StoredConfig config, String remoteName) throws IOException {
+        if (!isPartial() || objectFilter.equals(config.getString(ConfigConstants.CONFIG_REMOTE_SECTION, remoteName, CONFIG_KEY_PARTIAL_CLONE_FILTER))) {
+            return;
+        }
+        config.setBoolean(ConfigConstants.CONFIG_REMOTE_SECTION, remoteName, CONFIG_KEY_PROMISOR, true);
+        config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, remoteName, CONFIG_KEY_PARTIAL_CLONE_FILTER, objectFilter);
+        config.save();
+    }
+
+    /**
+     * @param config a repository's config
+     * @return true if the repository is a partial clone, made by the tutorial or by git, so objects may be missing from it
+     */
+    public static boolean isPartialClone(Config config) {
+        if (config.getString(ConfigConstants.CONFIG_EXTENSIONS_SECTION, null, "partialclone") != null) {
+            return true;
+        }
+        for (String remote : config.getSubsections(ConfigConstants.CONFIG_REMOTE_SECTION)) {
+            if (config.getBoolean(ConfigConstants.CONFIG_REMOTE_SECTION, remote, CONFIG_KEY_PROMISOR, false)
+                    || config.getString(ConfigConstants.CONFIG_REMOTE_SECTION, remote, CONFIG_KEY_PARTIAL_CLONE_FILTER) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> normalise(List<String> paths) {
+        List<String> normalised = new ArrayList<>();
+        for (String path : paths) {
+            String trimmed = path.strip().replaceAll("^/+|/+$", "");
+            if (trimmed.isEmpty() || List.of(trimmed.split("/")).contains("..")) {
+                throw new IllegalArgumentException("Invalid sparse checkout path: '" + path + "'");
+            }
+            normalised.add(trimmed);
+        }
+        return List.copyOf(normalised);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import javax.annotation.Nullable;
+
+/**
+ * A path that changed between two commits, as reported by a {@link ChangedPathFeed}.
+ *
+ * @param type how the path changed
+ * @param path the path in the new commit, or the path that was deleted
+ * @param oldPath the path in the old commit for a rename, otherwise null
+ */
+public record PathChange(Type type, String path, @Nullable String oldPath) {
+
+    public static PathChange added(String path) {
+        return new PathChange(Type.ADDED, path, null);
+    }
+
+    public static PathChange modified(String path) {
+        return new PathChange(Type.MODIFIED, path, null);
+    }
+
+    public static PathChange deleted(String path) {
+        return new PathChange(Type.DELETED, path, null);
+    }
+
+    public static PathChange renamed(String oldPath, String path) {
+        return new PathChange(Type.RENAMED, path, oldPath);
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.RENAMED ? type + " " + oldPath + " -> " + path : type + " " + path;
+    }
+
+    public enum Type {
+        ADDED,
+        MODIFIED,
+        DELETED,
+        RENAMED
+    }
+}
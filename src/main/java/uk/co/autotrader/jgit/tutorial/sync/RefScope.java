@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The branches and tags of a remote repository to clone and fetch, when the others aren't needed.
+ * <p>
+ * A remote with tens of thousands of branches and tags spends seconds listing them before a fetch can even start.
+ * With a scope, clones and fetches only ask for the named refs: the refspecs are narrowed to them, and over protocol v2
+ * the server is sent their names as ref prefixes, so it doesn't advertise the rest.
+ *
+ * @param branches the branches to fetch, e.g. {@code main} or {@code release/*}; the first one is checked out after a clone,
+ *                 so it must not be a pattern. An empty list fetches every branch and tag, just like {@code Git.cloneRepository()}
+ * @param tagPrefixes the beginnings of the names of the tags to fetch along with the branches, e.g. {@code v2.}, or an empty list for no tags
+ */
+public record RefScope(List<String> branches, List<String> tagPrefixes) {
+
+    /**
+     * Every branch and tag of the remote.
+     */
+    public static final RefScope ALL = new RefScope(List.of(), List.of());
+
+    public RefScope {
+        branches = normalise(branches, Constants.R_HEADS);
+        tagPrefixes = normalise(tagPrefixes, Constants.R_TAGS);
+        if (!branches.isEmpty() && branches.getFirst().contains("*")) {
+            throw new IllegalArgumentException("The first branch is checked out after a clone, so it can't be a pattern: " + branches.getFirst());
+        }
+        if (branches.isEmpty() && !tagPrefixes.isEmpty()) {
+            throw new IllegalArgumentException("Tag prefixes only apply when branches are named too, as every tag is fetched otherwise");
+        }
+    }
+
+    /**
+     * @return true if every branch and tag is fetched
+     */
+    public boolean isAll() {
+        return branches.isEmpty();
+    }
+
+    /**
+     * @return the branch checked out after a clone, or null to check out the remote's default branch
+     */
+    public String checkoutBranch() {
+        return isAll() ? null : branches.getFirst();
+    }
+
+    /**
+     * Returns the refspecs to fetch into a clone with the given remote: each branch into its remote-tracking branch,
+     * and the tags under each prefix into the same name.
+     */
+    public List<RefSpec> refSpecs(String remote) {
+        List<RefSpec> refSpecs = new ArrayList<>();
+        for (String branch : branches) {
+            refSpecs.add(new RefSpec("+" + Constants.R_HEADS + branch + ":" + Constants.R_REMOTES + remote + "/" + branch));
+        }
+        for (String tagPrefix : tagPrefixes) {
+            refSpecs.add(new RefSpec("+" + Constants.R_TAGS + tagPrefix + "*:" + Constants.R_TAGS + tagPrefix + "*"));
+        }
+        return refSpecs;
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? "all refs" : "branches " + branches + (tagPrefixes.isEmpty() ? "" : ", tags " + tagPrefixes.stream().map(prefix -> prefix + "*").toList());
+    }
+
+    private static List<String> normalise(List<String> names, String refPrefix) {
+        List<String> normalised = new ArrayList<>();
+        for (String name : names) {
+            String trimmed = name.strip();
+            if (trimmed.startsWith(refPrefix)) {
+                trimmed = trimmed.substring(refPrefix.length());
+            }
+            // A tag prefix such as "v2." isn't a valid ref name by itself, so it is checked with a character after it, as a branch pattern is with one in place of its '*'.
+            String checked = refPrefix.equals(Constants.R_TAGS) ? trimmed + "x" : trimmed.replace("*", "x");
+            if (trimmed.isEmpty() || trimmed.indexOf('*') != trimmed.lastIndexOf('*') || !Repository.isValidRefName(refPrefix + checked)) {
+                throw new IllegalArgumentException("Invalid " + (refPrefix.equals(Constants.R_HEADS) ? "branch" : "tag prefix") + ": '" + name + "'");
+            }
+            normalised.add(trimmed);
+        }
+        return List.copyOf(normalised);
+    }
+}
@@ -0,0 +1,759 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeCommand;
+import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.StatusCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.BranchConfig;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.bundle.BundleStore;
+import uk.co.autotrader.jgit.tutorial.cache.ReferenceMirrorCache;
+import uk.co.autotrader.jgit.tutorial.helpers.DirectoryTrash;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Brings a local directory up to date with a remote repository, cloning only when it has to.
+ * <p>
+ * If the directory already holds a healthy clone of the same remote, only the objects that are new on the remote
+ * are fetched, and the current branch is then fast-forwarded or hard-reset to its upstream depending on the {@link SyncMode}.
+ * The directory is replaced with a fresh clone only when it is missing or empty, when it is not a readable git repository,
+ * or when its {@code origin} remote points somewhere else. Replacing a non-empty directory is subject to the same
+ * {@code DELETE_LOCAL_REPOSITORY_DIRECTORY_CONTENTS_BEFORE_CLONE} safety flag as a fresh clone.
+ * <p>
+ * {@link CloneOptions} can limit the history depth of the clone, filter out blobs, and write only part of the tree
+ * to the working tree. A {@link RefScope} limits clones and fetches to some of the remote's branches and tags.
+ * With a {@link ReferenceMirrorCache}, new clones copy their objects from a local mirror of the remote,
+ * and with a {@link BundleStore}, they are seeded from git bundles on local disk.
+ * <p>
+ * Every clone and fetch is recorded, phase by phase, in a {@link MetricsRegistry}.
+ * <p>
+ * This class is thread-safe, provided each call targets a different local directory.
+ */
+public class RepositorySynchronizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(RepositorySynchronizer.class);
+
+    private static final String ORIGIN = "origin";
+
+    private final SyncMode syncMode;
+    private final boolean shouldDeleteAnyExistingDirectoryContents;
+    private final CloneOptions cloneOptions;
+    private RefScope refScope = RefScope.ALL;
+    private ReferenceMirrorCache referenceCache;
+    private BundleStore bundleStore;
+    private MetricsRegistry metricsRegistry = MetricsRegistry.getDefault();
+    private int checkoutThreads = 1;
+    private DirectoryTrash trash;
+
+    /**
+     * Creates a new RepositorySynchronizer.
+     *
+     * @param syncMode how an existing clone is brought up to date
+     * @param shouldDeleteAnyExistingDirectoryContents if true, a directory that cannot be synchronised may be deleted and re-cloned
+     */
+    public RepositorySynchronizer(SyncMode syncMode, boolean shouldDeleteAnyExistingDirectoryContents) {
+        this(syncMode, shouldDeleteAnyExistingDirectoryContents, CloneOptions.FULL);
+    }
+
+    /**
+     * Creates a new RepositorySynchronizer.
+     *
+     * @param syncMode how an existing clone is brought up to date
+     * @param shouldDeleteAnyExistingDirectoryContents if true, a directory that cannot be synchronised may be deleted and re-cloned
+     * @param cloneOptions the depth, object filter and sparse checkout paths to clone with
+     */
+    public RepositorySynchronizer(SyncMode syncMode, boolean shouldDeleteAnyExistingDirectoryContents, CloneOptions cloneOptions) {
+        this.syncMode = syncMode;
+        this.shouldDeleteAnyExistingDirectoryContents = shouldDeleteAnyExistingDirectoryContents;
+        this.cloneOptions = cloneOptions;
+    }
+
+    /**
+     * Makes a clone that replaces an existing directory move the directory into the trash, rather than wait for it to be deleted.
+     *
+     * @param trash the trash to move replaced directories into, or null to delete them before cloning
+     * @return this synchronizer
+     */
+    public RepositorySynchronizer setTrash(DirectoryTrash trash) {
+        this.trash = trash;
+        return this;
+    }
+
+    /**
+     * Makes clones and fetches ask the remote for only some of its branches and tags. An existing clone is narrowed
+     * to the scope on its next fetch, but keeps the remote-tracking branches and tags it already has.
+     *
+     * @param refScope the branches and tags to fetch, or {@link RefScope#ALL}
+     * @return this synchronizer
+     */
+    public RepositorySynchronizer setRefScope(RefScope refScope) {
+        this.refScope = refScope;
+        return this;
+    }
+
+    /**
+     * Makes new clones fetch their objects from a local mirror of the remote, so only the objects that are missing
+     * from the mirror are downloaded again.
+     *
+     * @param referenceCache the cache of reference mirrors, or null to always clone from the remote
+     * @return this synchronizer
+     */
+    public RepositorySynchronizer setReferenceCache(ReferenceMirrorCache referenceCache) {
+        this.referenceCache = referenceCache;
+        return this;
+    }
+
+    /**
+     * Makes new clones read the objects in a store of bundles first, then fetch only what was pushed since from the remote.
+     * Shallow clones are made from the remote alone, as bundles hold the full history.
+     * A reference mirror cache, if set too, is used instead.
+     *
+     * @param bundleStore the bundles to seed clones from, or null to always clone from the remote
+     * @return this synchronizer
+     */
+    public RepositorySynchronizer setBundleStore(BundleStore bundleStore) {
+        this.bundleStore = bundleStore;
+        return this;
+    }
+
+    /**
+     * Makes new clones write their working tree on several threads, instead of one file at a time as JGit's checkout does.
+     * Fetches into an existing clone still let JGit update the working tree, as they only write the files that changed.
+     *
+     * @param checkoutThreads the number of threads to write files on; 1 uses JGit's own checkout
+     * @return this synchronizer
+     */
+    public RepositorySynchronizer setCheckoutThreads(int checkoutThreads) {
+        if (checkoutThreads < 1) {
+            throw new IllegalArgumentException("checkoutThreads must be at least 1, but was " + checkoutThreads);
+        }
+        this.checkoutThreads = checkoutThreads;
+        return this;
+    }
+
+    /**
+     * Records clones and fetches in the given registry rather than the default one.
+     *
+     * @param metricsRegistry the registry to add the metrics of each clone and fetch to
+     * @return this synchronizer
+     */
+    public RepositorySynchronizer setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        return this;
+    }
+
+    /**
+     * Synchronises the local directory with the remote repository.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param localGitRootDirectory the directory holding, or about to hold, the clone
+     * @return what was done to the local repository
+     */
+    public SyncResult synchronize(String remoteUrl, LocalDirectory localGitRootDirectory) throws GitAPIException {
+        return synchronize(remoteUrl, localGitRootDirectory, NullProgressMonitor.INSTANCE, 0);
+    }
+
+    /**
+     * Synchronises the local directory with the remote repository.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param localGitRootDirectory the directory holding, or about to hold, the clone
+     * @param progressMonitor receives progress updates and may cancel the operation
+     * @param timeoutSeconds the network timeout in seconds, or 0 for no timeout
+     * @return what was done to the local repository
+     */
+    public SyncResult synchronize(String remoteUrl, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds) throws GitAPIException {
+        // Repository maintenance must not repack the repository while it is being fetched into, or deleted and cloned again.
+        try (RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(localGitRootDirectory.getPath())) {
+            return synchronizeLocked(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds);
+        }
+    }
+
+    private SyncResult synchronizeLocked(String remoteUrl, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds) throws GitAPIException {
+        if (syncMode == SyncMode.FRESH_CLONE) {
+            return clone(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds, SyncResult.Action.CLONED);
+        }
+
+        LocalState localState = inspect(remoteUrl, localGitRootDirectory.getPath());
+        switch (localState) {
+            case MISSING_OR_EMPTY:
+                return clone(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds, SyncResult.Action.CLONED);
+            case CORRUPT:
+            case DIFFERENT_REMOTE:
+                logger.warn("Local repository at {} is {}, replacing it with a fresh clone", localGitRootDirectory.getPath(),
+                        localState == LocalState.CORRUPT ? "not a readable git repository" : "a clone of a different remote");
+                return clone(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds, SyncResult.Action.RECLONED);
+            default:
+                return fetchAndUpdate(localGitRootDirectory, progressMonitor, timeoutSeconds);
+        }
+    }
+
+    private SyncResult clone(String remoteUrl, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds, SyncResult.Action action) throws GitAPIException {
+        localGitRootDirectory.ensureDirectoryExistsAndIsEmpty(shouldDeleteAnyExistingDirectoryContents, trash);
+        try {
+            return cloneIntoEmptyDirectory(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds, action);
+        } catch (GitAPIException | RuntimeException e) {
+            // A clone that failed part way, e.g. in its checkout, may already have a HEAD, and the next sync would take it for a usable clone.
+            discardFailedClone(localGitRootDirectory.getPath(), e);
+            throw e;
+        }
+    }
+
+    private SyncResult cloneIntoEmptyDirectory(String remoteUrl, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds, SyncResult.Action action) throws GitAPIException {
+        if (referenceCache != null) {
+            return cloneFromReferenceMirror(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds, action);
+        }
+        List<Path> bundles = bundleStore == null ? List.of() : bundleStore.chain();
+        if (!bundles.isEmpty() && cloneOptions.isShallow()) {
+            // Bundles hold the whole history, and a fetch from a bundle can't be cut short at a depth or a date.
+            logger.warn("Not seeding the shallow clone of {} from the bundles in {}, as they would bring in the full history",
+                    remoteUrl, bundleStore.getLocation());
+            bundles = List.of();
+        }
+        if (!bundles.isEmpty()) {
+            return cloneFromBundles(remoteUrl, bundles, localGitRootDirectory, progressMonitor, timeoutSeconds, action);
+        }
+        if (!refScope.isAll()) {
+            return cloneScoped(remoteUrl, localGitRootDirectory, progressMonitor, timeoutSeconds, action);
+        }
+
+        logger.info("Attempting to clone repository at: {}", remoteUrl);
+        // JGit's checkout would write every file, one at a time, and fails on blobs left out by an object filter.
+        try (OperationMetrics metrics = metricsRegistry.start("clone", remoteUrl, progressMonitor);
+             Git clonedRepository = cloneCommand(remoteUrl, localGitRootDirectory, metrics, timeoutSeconds)
+                     .setNoCheckout(needsOwnCheckoutAfterClone())
+                     .call()) {
+            Repository repository = clonedRepository.getRepository();
+            cloneOptions.recordPartialClone(repository.getConfig(), ORIGIN);
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (needsOwnCheckoutAfterClone() && head != null) {
+                sparseCheckout(repository, head, metrics);
+            }
+
+            logger.info("Repository cloned to: {}", repository.getDirectory());
+            metrics.addBytes(sizeOfObjectDatabase(repository));
+            metrics.succeeded();
+            return new SyncResult(action, null, head);
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred reading the cloned repository", e);
+        }
+    }
+
+    /**
+     * Deletes, or moves into the trash, what a failed clone left in the directory, which held nothing else before the clone started.
+     */
+    private void discardFailedClone(Path directory, Exception cloneFailure) {
+        try {
+            if (trash != null) {
+                trash.discard(directory);
+            } else {
+                FileUtils.deleteDirectory(directory.toFile());
+            }
+        } catch (IOException | RuntimeException e) {
+            cloneFailure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Clones from the up-to-date local mirror, then points origin at the real remote and fetches whatever the mirror lacks.
+     */
+    private SyncResult cloneFromReferenceMirror(String remoteUrl, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds, SyncResult.Action action) throws GitAPIException {
+        try (OperationMetrics metrics = metricsRegistry.start("clone", remoteUrl, progressMonitor)) {
+            try (ReferenceMirrorCache.Lease mirror = referenceCache.acquire(remoteUrl, metrics, timeoutSeconds)) {
+                logger.info("Attempting to clone repository at: {} from reference mirror {}", remoteUrl, mirror.getMirrorDirectory());
+                cloneCommand(mirror.getMirrorUrl(), localGitRootDirectory, metrics, 0)
+                        .setNoCheckout(true)
+                        .call()
+                        .close();
+            }
+
+            return fetchFromRemoteAndCheckOut(remoteUrl, localGitRootDirectory, metrics, timeoutSeconds, action);
+        }
+    }
+
+    /**
+     * Clones from the bundles on local disk, oldest first, then points origin at the real remote and fetches whatever they lack.
+     */
+    private SyncResult cloneFromBundles(String remoteUrl, List<Path> bundles, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds, SyncResult.Action action) throws GitAPIException {
+        try (OperationMetrics metrics = metricsRegistry.start("clone", remoteUrl, progressMonitor)) {
+            logger.info("Attempting to clone repository at: {} from {} bundles in {}", remoteUrl, bundles.size(), bundleStore.getLocation());
+            // Bundles can't be fetched from with a filter, so the object filter only applies to the fetch from the remote.
+            // Shallow clones are never made from bundles, see clone().
+            try (Git git = Git.cloneRepository()
+                    .setURI(bundles.getFirst().toAbsolutePath().toString())
+                    .setDirectory(localGitRootDirectory.getPath().toFile())
+                    .setNoCheckout(true)
+                    .setProgressMonitor(metrics)
+                    .call()) {
+                for (Path bundle : bundles.subList(1, bundles.size())) {
+                    git.fetch()
+                            .setRemote(bundle.toAbsolutePath().toString())
+                            .setRefSpecs(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + ORIGIN + "/*"),
+                                    new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+                            .setProgressMonitor(metrics)
+                            .call();
+                }
+            }
+
+            return fetchFromRemoteAndCheckOut(remoteUrl, localGitRootDirectory, metrics, timeoutSeconds, action);
+        }
+    }
+
+    /**
+     * Finishes a clone that was made from a local copy of the remote: points origin at the remote, fetches whatever
+     * the copy lacks, and checks out the branch that tracks the remote's default branch.
+     */
+    private SyncResult fetchFromRemoteAndCheckOut(String remoteUrl, LocalDirectory localGitRootDirectory, OperationMetrics metrics, int timeoutSeconds, SyncResult.Action action) throws GitAPIException {
+        try (Git git = Git.open(localGitRootDirectory.getPath().toFile())) {
+            Repository repository = git.getRepository();
+            StoredConfig config = repository.getConfig();
+            config.setString("remote", ORIGIN, "url", remoteUrl);
+            config.save();
+            if (!refScope.isAll()) {
+                applyRefScope(config);
+            }
+            cloneOptions.recordPartialClone(config, ORIGIN);
+
+            logAdvertisedRefs(git.fetch()
+                    .setRemote(ORIGIN)
+                    .setRemoveDeletedRefs(true)
+                    .setProgressMonitor(metrics)
+                    .setTimeout(timeoutSeconds)
+                    .setTransportConfigCallback(this::configureTransport)
+                    .call());
+
+            String upstreamBranch = new BranchConfig(config, repository.getBranch()).getRemoteTrackingBranch();
+            ObjectId head = upstreamBranch == null ? repository.resolve(Constants.HEAD) : repository.resolve(upstreamBranch);
+            if (!refScope.isAll()) {
+                head = checkOutScopedBranch(git, metrics);
+            } else if (head != null) {
+                if (needsOwnCheckoutAfterClone()) {
+                    RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+                    refUpdate.setNewObjectId(head);
+                    refUpdate.forceUpdate();
+                    sparseCheckout(repository, head, metrics);
+                } else {
+                    git.reset().setMode(ResetCommand.ResetType.HARD).setRef(head.name()).setProgressMonitor(metrics).call();
+                }
+            }
+
+            logger.info("Repository cloned to: {}", repository.getDirectory());
+            metrics.addBytes(sizeOfObjectDatabase(repository));
+            metrics.succeeded();
+            return new SyncResult(action, null, head);
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred reading the cloned repository", e);
+        }
+    }
+
+    /**
+     * Clones only the branches and tags of the ref scope. CloneCommand can only narrow a clone to exact branch names,
+     * and still asks for every tag, so the clone is made as git does it: init, configure origin, fetch and check out.
+     */
+    private SyncResult cloneScoped(String remoteUrl, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds, SyncResult.Action action) throws GitAPIException {
+        logger.info("Attempting to clone {} of repository at: {}", refScope, remoteUrl);
+        try (OperationMetrics metrics = metricsRegistry.start("clone", remoteUrl, progressMonitor);
+             Git git = Git.init().setDirectory(localGitRootDirectory.getPath().toFile()).setInitialBranch(refScope.checkoutBranch()).call()) {
+            Repository repository = git.getRepository();
+            StoredConfig config = repository.getConfig();
+            config.setString("remote", ORIGIN, "url", remoteUrl);
+            applyRefScope(config);
+            cloneOptions.recordPartialClone(config, ORIGIN);
+
+            FetchCommand fetchCommand = git.fetch()
+                    .setRemote(ORIGIN)
+                    .setProgressMonitor(metrics)
+                    .setTimeout(timeoutSeconds)
+                    .setTransportConfigCallback(this::configureTransport);
+            if (cloneOptions.depth() > 0) {
+                fetchCommand.setDepth(cloneOptions.depth());
+            }
+            if (cloneOptions.shallowSince() != null) {
+                fetchCommand.setShallowSince(cloneOptions.shallowSince());
+            }
+            logAdvertisedRefs(fetchCommand.call());
+
+            ObjectId head = checkOutScopedBranch(git, metrics);
+
+            logger.info("Repository cloned to: {}", repository.getDirectory());
+            metrics.addBytes(sizeOfObjectDatabase(repository));
+            metrics.succeeded();
+            return new SyncResult(action, null, head);
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred reading the cloned repository", e);
+        }
+    }
+
+    /**
+     * Narrows the origin remote to the ref scope. Its refspecs name the scoped branches and tags, and tags are no longer
+     * followed, so protocol v2 sends the server only their names as ref prefixes and it leaves every other ref out of its advertisement.
+     */
+    private void applyRefScope(StoredConfig config) throws IOException {
+        try {
+            RemoteConfig remote = new RemoteConfig(config, ORIGIN);
+            remote.setFetchRefSpecs(refScope.refSpecs(ORIGIN));
+            remote.setTagOpt(TagOpt.NO_TAGS);
+            remote.update(config);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Invalid URL for remote " + ORIGIN, e);
+        }
+        // Over protocol v0, the server advertises every ref before the client can say which ones it wants.
+        config.setInt("protocol", null, "version", 2);
+        config.save();
+    }
+
+    /**
+     * Points HEAD at a local branch for the first scoped branch, tracking its remote-tracking branch, and writes its working tree.
+     */
+    private ObjectId checkOutScopedBranch(Git git, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        Repository repository = git.getRepository();
+        String branch = refScope.checkoutBranch();
+        ObjectId head = repository.resolve(Constants.R_REMOTES + ORIGIN + "/" + branch);
+        if (head == null) {
+            throw new IllegalStateException("Branch '" + branch + "' was not found on the remote. "
+                    + "Check the FETCH_BRANCHES in the Tutorial Configuration class.");
+        }
+
+        StoredConfig config = repository.getConfig();
+        config.setString("branch", branch, "remote", ORIGIN);
+        config.setString("branch", branch, "merge", Constants.R_HEADS + branch);
+        config.save();
+        repository.updateRef(Constants.HEAD).link(Constants.R_HEADS + branch);
+
+        if (needsOwnCheckoutAfterClone()) {
+            RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+            refUpdate.setNewObjectId(head);
+            refUpdate.forceUpdate();
+            sparseCheckout(repository, head, progressMonitor);
+        } else {
+            git.reset().setMode(ResetCommand.ResetType.HARD).setRef(head.name()).setProgressMonitor(progressMonitor).call();
+        }
+        return head;
+    }
+
+    /**
+     * Logs how many refs the remote listed for the fetch. Every one of them is compared with the local refs,
+     * so on a remote of many refs, this shows what a ref scope saves.
+     */
+    private void logAdvertisedRefs(FetchResult fetchResult) {
+        logger.info("Remote advertised {} refs for {}", fetchResult.getAdvertisedRefs().size(), refScope);
+    }
+
+    private CloneCommand cloneCommand(String uri, LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds) {
+        CloneCommand cloneCommand = Git.cloneRepository()
+                .setURI(uri)
+                .setDirectory(localGitRootDirectory.getPath().toFile())
+                .setProgressMonitor(progressMonitor)
+                .setTimeout(timeoutSeconds)
+                .setTransportConfigCallback(this::configureTransport);
+        if (cloneOptions.depth() > 0) {
+            cloneCommand.setDepth(cloneOptions.depth());
+        }
+        if (cloneOptions.shallowSince() != null) {
+            cloneCommand.setShallowSince(cloneOptions.shallowSince());
+        }
+        return cloneCommand;
+    }
+
+    private boolean needsOwnCheckoutAfterClone() {
+        return cloneOptions.needsCustomCheckout() || checkoutThreads > 1;
+    }
+
+    private void sparseCheckout(Repository repository, ObjectId commitId, ProgressMonitor progressMonitor) throws IOException {
+        SparseCheckout.Result checkoutResult = sparseCheckout(new SparseCheckout(cloneOptions.sparseCheckoutPaths()), repository, commitId, progressMonitor);
+        logger.info("Checked out {} files on {} threads, left out {} files outside the sparse checkout paths",
+                checkoutResult.filesWritten(), checkoutThreads, checkoutResult.filesLeftOut());
+    }
+
+    /**
+     * Runs the sparse checkout as a phase of the operation, as JGit's own checkout would report it.
+     */
+    private SparseCheckout.Result sparseCheckout(SparseCheckout sparseCheckout, Repository repository, ObjectId commitId, ProgressMonitor progressMonitor) throws IOException {
+        progressMonitor.beginTask("Checking out files", ProgressMonitor.UNKNOWN);
+        try {
+            SparseCheckout.Result checkoutResult = sparseCheckout.checkout(repository, commitId, checkoutThreads);
+            progressMonitor.update(checkoutResult.filesWritten());
+            return checkoutResult;
+        } finally {
+            progressMonitor.endTask();
+        }
+    }
+
+    private SyncResult fetchAndUpdate(LocalDirectory localGitRootDirectory, ProgressMonitor progressMonitor, int timeoutSeconds) throws GitAPIException {
+        try (Git git = Git.open(localGitRootDirectory.getPath().toFile());
+             OperationMetrics metrics = metricsRegistry.start("fetch", git.getRepository().getConfig().getString("remote", ORIGIN, "url"), progressMonitor)) {
+            Repository repository = git.getRepository();
+            ObjectId previousHead = repository.resolve(Constants.HEAD);
+            long bytesBefore = sizeOfObjectDatabase(repository);
+
+            if (!refScope.isAll() && !isScopeApplied(repository.getConfig())) {
+                applyRefScope(repository.getConfig());
+            }
+            // A clone made before the filter was recorded is marked on its next fetch, which uses the filter too.
+            cloneOptions.recordPartialClone(repository.getConfig(), ORIGIN);
+
+            logger.info("Fetching new objects into existing clone at: {}", localGitRootDirectory.getPath());
+            // A shallow clone is deliberately fetched without a depth: the new commits are then connected to the existing
+            // shallow boundary, so fast-forwarding can still tell whether the local branch is an ancestor of the upstream.
+            logAdvertisedRefs(git.fetch()
+                    .setRemote(ORIGIN)
+                    .setRemoveDeletedRefs(true)
+                    .setProgressMonitor(metrics)
+                    .setTimeout(timeoutSeconds)
+                    .setTransportConfigCallback(this::configureTransport)
+                    .call());
+
+            metrics.addBytes(Math.max(0, sizeOfObjectDatabase(repository) - bytesBefore));
+
+            String upstreamBranch = new BranchConfig(repository.getConfig(), repository.getBranch()).getRemoteTrackingBranch();
+            ObjectId upstream = upstreamBranch == null ? null : repository.resolve(upstreamBranch);
+            if (upstream == null) {
+                logger.warn("Current branch '{}' has no upstream branch; fetched remote refs but left the working tree unchanged", repository.getBranch());
+                metrics.succeeded();
+                return new SyncResult(SyncResult.Action.UP_TO_DATE, previousHead, previousHead);
+            }
+
+            if (cloneOptions.needsCustomCheckout()) {
+                updateSparseWorkingTree(git, upstreamBranch, upstream, previousHead, metrics);
+            } else if (syncMode == SyncMode.HARD_RESET) {
+                // Reset and clean even if HEAD is already at the upstream commit, to discard any local changes.
+                git.reset().setMode(ResetCommand.ResetType.HARD).setRef(upstreamBranch).setProgressMonitor(metrics).call();
+                git.clean().setCleanDirectories(true).call();
+            } else if (!upstream.equals(previousHead)) {
+                MergeResult mergeResult = git.merge()
+                        .include(upstream)
+                        .setFastForward(MergeCommand.FastForwardMode.FF_ONLY)
+                        .setCommit(true)
+                        .setProgressMonitor(metrics)
+                        .call();
+                if (!mergeResult.getMergeStatus().isSuccessful()) {
+                    throw new IllegalStateException("Cannot fast-forward '" + repository.getBranch() + "' to " + upstreamBranch
+                            + " (" + mergeResult.getMergeStatus() + "). The local branch has diverged or has conflicting local changes; "
+                            + "commit or push them, or set the sync mode to HARD_RESET in the Tutorial Configuration class.");
+                }
+            }
+
+            ObjectId newHead = repository.resolve(Constants.HEAD);
+            SyncResult.Action action = newHead.equals(previousHead) ? SyncResult.Action.UP_TO_DATE
+                    : syncMode == SyncMode.HARD_RESET ? SyncResult.Action.RESET : SyncResult.Action.FAST_FORWARDED;
+            logger.info("Repository at {} is {} at {}", localGitRootDirectory.getPath(), action, newHead.name());
+            metrics.succeeded();
+            return new SyncResult(action, previousHead, newHead);
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred opening the repository", e);
+        }
+    }
+
+    /**
+     * Rewrites the sparse working tree and the index for the upstream commit, then moves the current branch to it.
+     * JGit's merge and reset would check out every file, so they can't be used for sparse or partial clones.
+     * The branch only moves once the checkout has succeeded, as a branch ahead of its index and working tree
+     * would look up to date to the next sync, and its stale files like local changes to commit.
+     */
+    private void updateSparseWorkingTree(Git git, String upstreamBranch, ObjectId upstream, ObjectId previousHead, ProgressMonitor progressMonitor) throws GitAPIException, IOException {
+        Repository repository = git.getRepository();
+        SparseCheckout sparseCheckout = new SparseCheckout(cloneOptions.sparseCheckoutPaths());
+
+        StatusCommand statusCommand = git.status();
+        sparseCheckout.getPaths().forEach(statusCommand::addPath);
+        Status status = statusCommand.call();
+
+        if (syncMode == SyncMode.FAST_FORWARD) {
+            if (upstream.equals(previousHead)) {
+                return;
+            }
+            if (previousHead != null && !isAncestor(repository, previousHead, upstream)) {
+                throw new IllegalStateException("Cannot fast-forward '" + repository.getBranch() + "' to " + upstreamBranch
+                        + " because the local branch has diverged. Push the local commits, "
+                        + "or set the sync mode to HARD_RESET in the Tutorial Configuration class.");
+            }
+            if (!status.getUncommittedChanges().isEmpty()) {
+                throw new IllegalStateException("Cannot fast-forward '" + repository.getBranch() + "' to " + upstreamBranch
+                        + " because of uncommitted changes to " + status.getUncommittedChanges());
+            }
+        } else {
+            Set<String> untracked = new HashSet<>(status.getUntracked());
+            untracked.addAll(status.getUntrackedFolders());
+            for (String path : untracked) {
+                FileUtils.deleteQuietly(new File(repository.getWorkTree(), path));
+            }
+        }
+
+        try {
+            sparseCheckout(sparseCheckout, repository, upstream, progressMonitor);
+        } catch (IOException | RuntimeException e) {
+            restoreSparseWorkingTree(sparseCheckout, repository, previousHead, e);
+            throw e;
+        }
+
+        RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(upstream);
+        refUpdate.setRefLogMessage("sync: " + syncMode.name().toLowerCase().replace('_', ' ') + " to " + upstreamBranch, false);
+        RefUpdate.Result result = syncMode == SyncMode.HARD_RESET ? refUpdate.forceUpdate() : refUpdate.update();
+        if (result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.FORCED
+                && result != RefUpdate.Result.NEW && result != RefUpdate.Result.NO_CHANGE) {
+            IllegalStateException failure = new IllegalStateException("Failed to update " + repository.getFullBranch() + " to " + upstreamBranch + ": " + result);
+            restoreSparseWorkingTree(sparseCheckout, repository, previousHead, failure);
+            throw failure;
+        }
+    }
+
+    /**
+     * Checks the commit the branch is still on out again, after a sync failed part way through rewriting the working tree.
+     */
+    private void restoreSparseWorkingTree(SparseCheckout sparseCheckout, Repository repository, ObjectId previousHead, Exception syncFailure) {
+        if (previousHead == null) {
+            return;
+        }
+        try {
+            sparseCheckout.checkout(repository, previousHead, checkoutThreads);
+        } catch (IOException | RuntimeException e) {
+            syncFailure.addSuppressed(e);
+        }
+    }
+
+    private boolean isScopeApplied(StoredConfig config) {
+        try {
+            RemoteConfig remote = new RemoteConfig(config, ORIGIN);
+            return remote.getFetchRefSpecs().equals(refScope.refSpecs(ORIGIN)) && remote.getTagOpt() == TagOpt.NO_TAGS;
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Invalid URL for remote " + ORIGIN, e);
+        }
+    }
+
+    private void configureTransport(Transport transport) {
+        if (cloneOptions.isPartial()) {
+            transport.setFilterSpec(cloneOptions.filterSpec());
+        }
+    }
+
+    private static long sizeOfObjectDatabase(Repository repository) {
+        try {
+            return FileUtils.sizeOfDirectory(new File(repository.getDirectory(), "objects"));
+        } catch (RuntimeException e) {
+            // Files can disappear underneath us while git is repacking; the size is only informational.
+            return 0;
+        }
+    }
+
+    private static boolean isAncestor(Repository repository, ObjectId ancestor, ObjectId descendant) throws IOException {
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            return revWalk.isMergedInto(revWalk.parseCommit(ancestor), revWalk.parseCommit(descendant));
+        }
+    }
+
+    /**
+     * Works out whether the directory holds a clone of the remote that can be updated in place.
+     */
+    private LocalState inspect(String remoteUrl, Path directory) {
+        if (!Files.isDirectory(directory) || isEmpty(directory)) {
+            return LocalState.MISSING_OR_EMPTY;
+        }
+
+        File gitDirectory = directory.resolve(Constants.DOT_GIT).toFile();
+        if (!gitDirectory.isDirectory()) {
+            return LocalState.CORRUPT;
+        }
+
+        try (Git git = Git.open(directory.toFile())) {
+            Repository repository = git.getRepository();
+            if (repository.isBare() || !repository.getObjectDatabase().exists()) {
+                return LocalState.CORRUPT;
+            }
+            String originUrl = repository.getConfig().getString("remote", ORIGIN, "url");
+            if (originUrl == null || !sameRemote(originUrl, remoteUrl)) {
+                return LocalState.DIFFERENT_REMOTE;
+            }
+
+            // Reading the index and the HEAD commit and its tree catches truncated or missing objects and index files.
+            repository.readDirCache();
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (head != null) {
+                try (RevWalk revWalk = new RevWalk(repository)) {
+                    RevCommit headCommit = revWalk.parseCommit(head);
+                    if (!revWalk.getObjectReader().has(headCommit.getTree())) {
+                        return LocalState.CORRUPT;
+                    }
+                }
+            }
+            return LocalState.USABLE;
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Local repository at {} could not be read", directory, e);
+            return LocalState.CORRUPT;
+        }
+    }
+
+    private static boolean sameRemote(String configuredUrl, String remoteUrl) {
+        try {
+            return new URIish(configuredUrl).equals(new URIish(remoteUrl));
+        } catch (URISyntaxException e) {
+            return configuredUrl.equals(remoteUrl);
+        }
+    }
+
+    private static boolean isEmpty(Path directory) {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.findAny().isEmpty();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list directory: " + directory, e);
+        }
+    }
+
+    private enum LocalState {
+        MISSING_OR_EMPTY,
+        USABLE,
+        CORRUPT,
+        DIFFERENT_REMOTE
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.dircache.Checkout;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes only part of a commit's tree to the working tree, like git's cone-mode sparse checkout.
+ * <p>
+ * JGit has no sparse checkout of its own, and its checkout fails on blobs left out by a partial clone filter.
+ * This class builds the index from the whole tree, so commits made afterwards still contain every file,
+ * but writes only the files under the sparse checkout paths to disk. Files outside those paths are missing
+ * from the working tree; restrict status and add to {@link #getPaths()} to ignore them.
+ * <p>
+ * With an empty list of paths it checks out the whole tree. Unlike JGit's checkout, which writes one file at a time,
+ * it can write the files on several threads, which is much faster for trees of many thousands of files.
+ */
+public class SparseCheckout {
+
+    // Fewer files than this aren't worth handing to another thread.
+    private static final int MINIMUM_FILES_PER_THREAD = 64;
+
+    private final List<String> paths;
+
+    /**
+     * Creates a new SparseCheckout.
+     *
+     * @param paths the directories (or files) to write to the working tree, or an empty list for the whole tree
+     */
+    public SparseCheckout(List<String> paths) {
+        this.paths = List.copyOf(paths);
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @param path a path relative to the repository root
+     * @return true if the path is inside one of the sparse checkout paths
+     */
+    public boolean includes(String path) {
+        if (paths.isEmpty()) {
+            return true;
+        }
+        for (String sparsePath : paths) {
+            if (path.equals(sparsePath) || path.startsWith(sparsePath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a tree filter matching the sparse checkout paths
+     */
+    public TreeFilter toTreeFilter() {
+        return paths.isEmpty() ? TreeFilter.ALL : PathFilterGroup.createFromStrings(paths);
+    }
+
+    /**
+     * Replaces the index with the tree of the given commit and writes the files under the sparse checkout paths
+     * to the working tree, overwriting local changes to them. Tracked files under those paths that are not in the
+     * new tree are deleted. Nothing is written if any blob needed for the checkout is missing.
+     *
+     * @param repository the repository to check out into
+     * @param commitId the commit to check out
+     * @return how many files were written and left out
+     */
+    public Result checkout(Repository repository, ObjectId commitId) throws IOException {
+        return checkout(repository, commitId, 1);
+    }
+
+    /**
+     * Like {@link #checkout(Repository, ObjectId)}, but writes the files on several threads.
+     *
+     * @param repository the repository to check out into
+     * @param commitId the commit to check out
+     * @param threads the number of threads to write files on; 1 writes them on the calling thread
+     * @return how many files were written and left out
+     */
+    public Result checkout(Repository repository, ObjectId commitId, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, but was " + threads);
+        }
+        DirCache dirCache = repository.lockDirCache();
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk revWalk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(repository, reader)) {
+
+            Set<String> previouslyCheckedOut = new HashSet<>();
+            for (int i = 0; i < dirCache.getEntryCount(); i++) {
+                String path = dirCache.getEntry(i).getPathString();
+                if (includes(path)) {
+                    previouslyCheckedOut.add(path);
+                }
+            }
+
+            treeWalk.setOperationType(TreeWalk.OperationType.CHECKOUT_OP);
+            treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
+            treeWalk.setRecursive(true);
+
+            List<DirCacheEntry> entries = new ArrayList<>();
+            List<PendingFile> filesToWrite = new ArrayList<>();
+            List<String> missingBlobs = new ArrayList<>();
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(treeWalk.getFileMode(0));
+                entry.setObjectId(treeWalk.getObjectId(0));
+                entries.add(entry);
+
+                if (includes(path) && entry.getFileMode() != FileMode.GITLINK) {
+                    previouslyCheckedOut.remove(path);
+                    if (!reader.has(entry.getObjectId())) {
+                        missingBlobs.add(path);
+                    }
+                    CoreConfig.EolStreamType eolStreamType = treeWalk.getEolStreamType(TreeWalk.OperationType.CHECKOUT_OP);
+                    String smudgeFilter = treeWalk.getFilterCommand(Constants.ATTR_FILTER_TYPE_SMUDGE);
+                    filesToWrite.add(new PendingFile(entry, new DirCacheCheckout.CheckoutMetadata(eolStreamType, smudgeFilter)));
+                }
+            }
+
+            if (!missingBlobs.isEmpty()) {
+                throw new IllegalStateException(missingBlobs.size() + " files under the sparse checkout paths were left out by the partial clone filter, e.g. '"
+                        + missingBlobs.get(0) + "'. JGit cannot fetch filtered objects on demand, so loosen the object filter "
+                        + "or narrow the sparse checkout paths in the Tutorial Configuration class.");
+            }
+
+            // Delete first, as a removed file may be where the new tree has a directory, or a removed directory where it has a file.
+            for (String removedPath : previouslyCheckedOut) {
+                delete(repository.getWorkTree(), removedPath);
+            }
+            if (threads == 1 || filesToWrite.size() < MINIMUM_FILES_PER_THREAD * 2) {
+                write(repository, filesToWrite, reader);
+            } else {
+                writeInParallel(repository, filesToWrite, threads);
+            }
+
+            DirCacheBuilder builder = dirCache.builder();
+            entries.forEach(builder::add);
+            builder.finish();
+            dirCache.write();
+            dirCache.commit();
+
+            return new Result(filesToWrite.size(), entries.size() - filesToWrite.size());
+        } finally {
+            dirCache.unlock();
+        }
+    }
+
+    private static void write(Repository repository, List<PendingFile> files, ObjectReader reader) throws IOException {
+        // Besides the content, the checkout sets the executable bit, creates symbolic links, applies smudge filters
+        // and line ending conversion, and records the file's size and modification time in its index entry.
+        Checkout checkout = new Checkout(repository);
+        for (PendingFile file : files) {
+            checkout.checkout(file.entry(), file.metadata(), reader, file.entry().getPathString());
+        }
+    }
+
+    /**
+     * Writes the files on a pool of threads, each with its own object reader, as readers are not thread-safe.
+     * The files are split into runs of neighbouring paths, so each thread mostly writes to directories of its own.
+     */
+    private static void writeInParallel(Repository repository, List<PendingFile> files, int threads) throws IOException {
+        // Create every directory first, so the threads never race to create, or clear the way for, the same one.
+        Set<String> directories = new TreeSet<>();
+        for (PendingFile file : files) {
+            String path = file.entry().getPathString();
+            int slash = path.lastIndexOf('/');
+            if (slash > 0) {
+                directories.add(path.substring(0, slash));
+            }
+        }
+        for (String directory : directories) {
+            createDirectory(repository.getWorkTree().toPath(), directory);
+        }
+
+        int batchSize = Math.max(MINIMUM_FILES_PER_THREAD, files.size() / (threads * 4));
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("checkout-", 1).factory())) {
+            List<Future<Void>> batches = new ArrayList<>();
+            for (int start = 0; start < files.size(); start += batchSize) {
+                List<PendingFile> batch = files.subList(start, Math.min(files.size(), start + batchSize));
+                batches.add(executor.submit(() -> {
+                    try (ObjectReader reader = repository.newObjectReader()) {
+                        write(repository, batch, reader);
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<Void> batch : batches) {
+                    batch.get();
+                }
+            } catch (ExecutionException e) {
+                executor.shutdownNow();
+                throw e.getCause() instanceof IOException cause ? cause : new IOException("Failed to check out files", e.getCause());
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while checking out files", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file from the working tree, and then any directories it leaves empty, as git does.
+     */
+    private static void delete(File workTree, String path) {
+        File file = new File(workTree, path);
+        FileUtils.deleteQuietly(file);
+        for (File directory = file.getParentFile(); !directory.equals(workTree); directory = directory.getParentFile()) {
+            String[] children = directory.list();
+            if (children == null || children.length > 0 || !directory.delete()) {
+                break;
+            }
+        }
+    }
+
+    private static void createDirectory(Path workTree, String directory) throws IOException {
+        Path path = workTree;
+        for (String segment : directory.split("/")) {
+            path = path.resolve(segment);
+            // The previous tree may have had a file, or a symbolic link, where the new tree has a directory.
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                Files.delete(path);
+            }
+        }
+        Files.createDirectories(path);
+    }
+
+    /**
+     * @param filesWritten the number of files written to the working tree
+     * @param filesLeftOut the number of tracked files outside the sparse checkout paths
+     */
+    public record Result(int filesWritten, int filesLeftOut) {
+    }
+
+    private record PendingFile(DirCacheEntry entry, DirCacheCheckout.CheckoutMetadata metadata) {
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+/**
+ * How Step 1 treats a local directory that already contains a clone of the remote repository.
+ */
+public enum SyncMode {
+
+    /**
+     * Always clone from scratch, deleting any existing directory contents first if the configuration allows it.
+     */
+    FRESH_CLONE,
+
+    /**
+     * Fetch only new objects and fast-forward the current branch to its upstream.
+     * Fails if the local branch has diverged from the remote, so local commits are never lost.
+     */
+    FAST_FORWARD,
+
+    /**
+     * Fetch only new objects, then hard-reset the current branch to its upstream and remove untracked files,
+     * discarding any local commits and changes.
+     */
+    HARD_RESET
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nullable;
+
+/**
+ * What {@link RepositorySynchronizer} did to bring a local repository up to date.
+ *
+ * @param action the action taken
+ * @param previousHead the commit HEAD pointed to before synchronising, or null if the repository was cloned
+ * @param newHead the commit HEAD points to afterwards, or null if the remote repository is empty
+ */
+public record SyncResult(Action action, @Nullable ObjectId previousHead, @Nullable ObjectId newHead) {
+
+    public boolean isFullClone() {
+        return action == Action.CLONED || action == Action.RECLONED;
+    }
+
+    public enum Action {
+        // There was no usable local repository, so the remote repository was cloned.
+        CLONED,
+        // The local repository was corrupt or pointed to a different remote, so it was replaced with a fresh clone.
+        RECLONED,
+        // The local repository was already at the remote's commit.
+        UP_TO_DATE,
+        // New objects were fetched and the current branch was fast-forwarded.
+        FAST_FORWARDED,
+        // New objects were fetched and the current branch was hard-reset to its upstream.
+        RESET
+    }
+}
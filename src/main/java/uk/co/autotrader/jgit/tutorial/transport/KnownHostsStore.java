@@ -0,0 +1,400 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.transport;
+
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.common.config.keys.PublicKeyEntryResolver;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.sshd.ServerKeyDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link ServerKeyDatabase} that trusts the host keys listed in known_hosts style entries, for any number of hosts.
+ * <p>
+ * Each entry is a line of the form {@code host1,host2,[host3]:2222 ssh-ed25519 AAAA... [comment]}, as written by
+ * {@code ssh-keyscan}. A host pattern may use {@code *} and {@code ?} wildcards, and {@code *} on its own trusts
+ * the key for every host, while a pattern starting with {@code !} excludes the hosts it matches from the entry.
+ * A host is trusted with the keys of every entry that matches it.
+ * An entry marked {@code @revoked} is rejected for every host, even if another entry trusts it.
+ * Hashed host names and {@code @cert-authority} entries are not supported, and are skipped.
+ * <p>
+ * The entries are decoded once, into an index from host to the encoded form of its keys, so verifying a server's key
+ * during a handshake is a hash lookup rather than parsing the entries again. To rotate a host's key, add the new key
+ * next to the old one, and then remove or revoke the old one. {@link #replaceEntries} and {@link #reload} swap in a new
+ * index while handshakes carry on, and a store read from a file reloads it by itself once the file has changed.
+ * <p>
+ * This class is thread-safe.
+ */
+public class KnownHostsStore implements ServerKeyDatabase {
+
+    private static final Logger logger = LoggerFactory.getLogger(KnownHostsStore.class);
+
+    private static final int DEFAULT_SSH_PORT = 22;
+
+    @Nullable
+    private final Path file;
+    private final Duration fileCheckInterval;
+
+    private volatile Index index;
+    // Guarded by this store.
+    private List<String> entries;
+    private FileTime fileModified;
+    private long nextFileCheckNanos;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Map<String, AtomicLong> rejectionsByHost = new ConcurrentHashMap<>();
+
+    private KnownHostsStore(@Nullable Path file, Duration fileCheckInterval, List<String> entries) {
+        this.file = file;
+        this.fileCheckInterval = fileCheckInterval;
+        this.entries = List.copyOf(entries);
+        this.index = Index.parse(withFileEntries(entries));
+    }
+
+    /**
+     * Creates a store that trusts the keys in the given entries.
+     *
+     * @param entries known_hosts style lines; blank lines and lines starting with {@code #} are ignored
+     * @throws IllegalArgumentException if an entry can't be decoded
+     */
+    public static KnownHostsStore of(@Nonnull List<String> entries) {
+        return new KnownHostsStore(null, Duration.ZERO, entries);
+    }
+
+    /**
+     * Creates a store that trusts the keys in the given entries and in a known_hosts file.
+     * The file is read again, at most once per check interval, during a handshake after it has been modified.
+     *
+     * @param entries known_hosts style lines that are always trusted, in addition to the file's
+     * @param file the known_hosts file
+     * @param checkInterval how long to go without checking whether the file has been modified
+     */
+    public static KnownHostsStore of(@Nonnull List<String> entries, @Nonnull Path file, @Nonnull Duration checkInterval) {
+        return new KnownHostsStore(file, checkInterval, entries);
+    }
+
+    /**
+     * Trusts exactly the keys in the given entries from now on, replacing every entry trusted before.
+     * A store read from a file reads it again, and adds its entries to these.
+     *
+     * @throws IllegalArgumentException if an entry can't be decoded, in which case the store keeps the entries it had
+     */
+    public synchronized void replaceEntries(@Nonnull List<String> entries) {
+        index = Index.parse(withFileEntries(entries));
+        this.entries = List.copyOf(entries);
+        logger.info("Known hosts replaced: {} hosts, {} keys", index.hostCount(), index.keyCount());
+    }
+
+    /**
+     * Reads the known_hosts file again, if the store has one.
+     *
+     * @throws IllegalArgumentException if an entry in the file can't be decoded, in which case the store keeps the entries it had
+     */
+    public synchronized void reload() {
+        if (file == null) {
+            return;
+        }
+        index = Index.parse(withFileEntries(entries));
+        logger.info("Known hosts read from {}: {} hosts, {} keys", file, index.hostCount(), index.keyCount());
+    }
+
+    @Override
+    public List<PublicKey> lookup(@Nonnull String connectAddress, @Nonnull InetSocketAddress remoteAddress, @Nonnull Configuration config) {
+        Index current = currentIndex();
+        // The same key is often listed under the host's name and its address, so it is only returned once.
+        Map<ByteBuffer, PublicKey> keys = new LinkedHashMap<>();
+        for (String host : candidates(connectAddress, remoteAddress)) {
+            keys.putAll(current.keysFor(host));
+        }
+        keys.keySet().removeAll(current.revoked());
+        return List.copyOf(keys.values());
+    }
+
+    @Override
+    public boolean accept(@Nonnull String connectAddress, @Nonnull InetSocketAddress remoteAddress, @Nonnull PublicKey serverKey,
+                          @Nonnull Configuration config, @Nullable CredentialsProvider provider) {
+        Index current = currentIndex();
+        ByteBuffer encoded = ByteBuffer.wrap(serverKey.getEncoded());
+        List<String> hosts = candidates(connectAddress, remoteAddress);
+
+        if (current.revoked().contains(encoded)) {
+            return reject(hosts.getFirst(), serverKey, "it has been revoked");
+        }
+        for (String host : hosts) {
+            if (current.keysFor(host).containsKey(encoded)) {
+                accepted.incrementAndGet();
+                return true;
+            }
+        }
+        return reject(hosts.getFirst(), serverKey, current.isKnown(hosts) ? "it doesn't match any key known for the host" : "the host is unknown");
+    }
+
+    /**
+     * @return a snapshot of the number of trusted keys and how many handshakes were accepted and rejected
+     */
+    public Statistics getStatistics() {
+        Index current = index;
+        Map<String, Long> rejections = new HashMap<>();
+        rejectionsByHost.forEach((host, count) -> rejections.put(host, count.get()));
+        return new Statistics(current.hostCount(), current.keyCount(), accepted.get(), rejected.get(), Map.copyOf(rejections));
+    }
+
+    private boolean reject(String host, PublicKey serverKey, String reason) {
+        rejected.incrementAndGet();
+        rejectionsByHost.computeIfAbsent(host, ignored -> new AtomicLong()).incrementAndGet();
+        logger.warn("Rejected the {} host key {} of {}, as {}", KeyUtils.getKeyType(serverKey), KeyUtils.getFingerPrint(serverKey), host, reason);
+        return false;
+    }
+
+    private Index currentIndex() {
+        if (file != null) {
+            reloadIfModified();
+        }
+        return index;
+    }
+
+    private synchronized void reloadIfModified() {
+        long now = System.nanoTime();
+        if (now - nextFileCheckNanos < 0) {
+            return;
+        }
+        nextFileCheckNanos = now + fileCheckInterval.toNanos();
+        try {
+            if (!Files.getLastModifiedTime(file).equals(fileModified)) {
+                reload();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Keep trusting the keys we have rather than failing every handshake.
+            logger.warn("Failed to reload known hosts from {}, keeping the keys read before", file, e);
+        }
+    }
+
+    private List<String> withFileEntries(List<String> entries) {
+        if (file == null) {
+            return entries;
+        }
+        try {
+            // Read the modification time first, so a change made while reading is picked up by the next check.
+            fileModified = Files.getLastModifiedTime(file);
+            List<String> combined = new ArrayList<>(entries);
+            combined.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+            return combined;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read known hosts from " + file, e);
+        }
+    }
+
+    /**
+     * @return the names the server may be listed under, in known_hosts form: {@code host} on port 22, {@code [host]:port} otherwise
+     */
+    private static List<String> candidates(String connectAddress, InetSocketAddress remoteAddress) {
+        int port = remoteAddress.getPort();
+        String host = connectAddress;
+        if (host.startsWith("[") && host.contains("]:")) {
+            port = Integer.parseInt(host.substring(host.indexOf("]:") + 2));
+            host = host.substring(1, host.indexOf("]:"));
+        } else if (host.indexOf(':') > 0 && host.indexOf(':') == host.lastIndexOf(':')) {
+            port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+            host = host.substring(0, host.indexOf(':'));
+        }
+
+        Set<String> candidates = new LinkedHashSet<>();
+        candidates.add(hostKey(host, port));
+        candidates.add(hostKey(remoteAddress.getHostString(), port));
+        if (remoteAddress.getAddress() != null) {
+            candidates.add(hostKey(remoteAddress.getAddress().getHostAddress(), port));
+        }
+        return List.copyOf(candidates);
+    }
+
+    private static String hostKey(String host, int port) {
+        String name = host.toLowerCase(Locale.ROOT);
+        return port == DEFAULT_SSH_PORT ? name : "[" + name + "]:" + port;
+    }
+
+    /**
+     * The decoded entries, immutable so that a handshake keeps using the index it started with while it is replaced.
+     * As in OpenSSH, a host is trusted with the keys of every entry that matches it, not just the first.
+     *
+     * @param hosts the keys of each host listed by name, by the encoded form of the key, from entries without wildcards or negations
+     * @param patterns the entries with wildcards or negated patterns, in the order they were listed
+     * @param revoked the encoded form of every revoked key
+     */
+    private record Index(Map<String, Map<ByteBuffer, PublicKey>> hosts, List<PatternEntry> patterns, Set<ByteBuffer> revoked) {
+
+        static Index parse(List<String> lines) {
+            Map<String, Map<ByteBuffer, PublicKey>> hosts = new HashMap<>();
+            Map<String, Map<ByteBuffer, PublicKey>> patterns = new LinkedHashMap<>();
+            Set<ByteBuffer> revoked = new HashSet<>();
+            for (String line : lines) {
+                String trimmed = line.strip();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = trimmed.split("\\s+");
+                boolean isRevoked = fields[0].equals("@revoked");
+                if (fields[0].startsWith("@") && !isRevoked || fields[0].startsWith("|")) {
+                    logger.warn("Skipping unsupported known hosts entry: {}", fields[0]);
+                    continue;
+                }
+                int hostField = isRevoked ? 1 : 0;
+                if (fields.length < hostField + 3) {
+                    throw new IllegalArgumentException("Invalid known hosts entry: " + trimmed);
+                }
+                PublicKey key = decode(fields[hostField + 1] + " " + fields[hostField + 2]);
+                ByteBuffer encoded = ByteBuffer.wrap(key.getEncoded());
+                if (isRevoked) {
+                    revoked.add(encoded);
+                    continue;
+                }
+                String hostList = fields[hostField].toLowerCase(Locale.ROOT);
+                if (hostList.contains("*") || hostList.contains("?") || hostList.contains("!")) {
+                    // A negation applies to the whole line, so the line's patterns are matched together.
+                    patterns.computeIfAbsent(hostList, ignored -> new HashMap<>()).put(encoded, key);
+                } else {
+                    for (String host : hostList.split(",")) {
+                        hosts.computeIfAbsent(host, ignored -> new HashMap<>()).put(encoded, key);
+                    }
+                }
+            }
+            List<PatternEntry> compiled = new ArrayList<>();
+            patterns.forEach((hostList, keys) -> compiled.add(PatternEntry.compile(hostList, keys)));
+            Map<String, Map<ByteBuffer, PublicKey>> immutableHosts = new HashMap<>();
+            hosts.forEach((host, keys) -> immutableHosts.put(host, Map.copyOf(keys)));
+            return new Index(Map.copyOf(immutableHosts), List.copyOf(compiled), Set.copyOf(revoked));
+        }
+
+        /**
+         * @return the keys listed for the host by name together with those of every pattern entry that matches it
+         */
+        Map<ByteBuffer, PublicKey> keysFor(String host) {
+            Map<ByteBuffer, PublicKey> exact = hosts.getOrDefault(host, Map.of());
+            Map<ByteBuffer, PublicKey> keys = null;
+            for (PatternEntry pattern : patterns) {
+                if (pattern.matches(host)) {
+                    if (keys == null) {
+                        keys = new LinkedHashMap<>(exact);
+                    }
+                    keys.putAll(pattern.keys());
+                }
+            }
+            return keys == null ? exact : keys;
+        }
+
+        boolean isKnown(List<String> candidates) {
+            return candidates.stream().anyMatch(host -> !keysFor(host).isEmpty());
+        }
+
+        int hostCount() {
+            return hosts.size() + patterns.size();
+        }
+
+        int keyCount() {
+            Set<ByteBuffer> keys = new HashSet<>();
+            hosts.values().forEach(hostKeys -> keys.addAll(hostKeys.keySet()));
+            patterns.forEach(pattern -> keys.addAll(pattern.keys().keySet()));
+            return keys.size();
+        }
+
+        private static PublicKey decode(String keyEntry) {
+            try {
+                return PublicKeyEntry.parsePublicKeyEntry(keyEntry).resolvePublicKey(null, null, PublicKeyEntryResolver.FAILING);
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                throw new IllegalArgumentException("Failed to decode known hosts key: " + keyEntry, e);
+            }
+        }
+    }
+
+    /**
+     * A known hosts entry whose host list has wildcards or negations. It matches a host that one of its patterns matches,
+     * unless one of its negated patterns, such as {@code !internal.example.com}, matches the host too.
+     *
+     * @param patterns the patterns that the host must match one of
+     * @param negatedPatterns the patterns that the host must not match
+     * @param keys the entry's keys, by their encoded form
+     */
+    private record PatternEntry(List<Pattern> patterns, List<Pattern> negatedPatterns, Map<ByteBuffer, PublicKey> keys) {
+
+        static PatternEntry compile(String hostList, Map<ByteBuffer, PublicKey> keys) {
+            List<Pattern> patterns = new ArrayList<>();
+            List<Pattern> negatedPatterns = new ArrayList<>();
+            for (String hostPattern : hostList.split(",")) {
+                if (hostPattern.startsWith("!")) {
+                    negatedPatterns.add(toRegex(hostPattern.substring(1)));
+                } else {
+                    patterns.add(toRegex(hostPattern));
+                }
+            }
+            return new PatternEntry(List.copyOf(patterns), List.copyOf(negatedPatterns), Map.copyOf(keys));
+        }
+
+        boolean matches(String host) {
+            return patterns.stream().anyMatch(pattern -> pattern.matcher(host).matches())
+                    && negatedPatterns.stream().noneMatch(pattern -> pattern.matcher(host).matches());
+        }
+
+        private static Pattern toRegex(String hostPattern) {
+            StringBuilder regex = new StringBuilder();
+            for (char c : hostPattern.toCharArray()) {
+                switch (c) {
+                    case '*' -> regex.append(".*");
+                    case '?' -> regex.append('.');
+                    default -> regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(regex.toString());
+        }
+    }
+
+    /**
+     * @param hosts the number of hosts and host patterns with trusted keys
+     * @param keys the number of distinct trusted keys
+     * @param accepted the number of handshakes whose host key was trusted
+     * @param rejected the number of handshakes whose host key was unknown, didn't match the host's keys or was revoked
+     * @param rejectionsByHost the number of rejected handshakes of each host
+     */
+    public record Statistics(int hosts, int keys, long accepted, long rejected, Map<String, Long> rejectionsByHost) {
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.transport;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FtpChannel;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.RemoteSession2;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.sshd.SshdSession;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link SshSessionFactory} that keeps authenticated SSH sessions alive between git operations.
+ * <p>
+ * A plain {@link SshdSessionFactory} opens a new TCP connection, performs a key exchange and authenticates
+ * every time JGit asks it for a session, and closes the connection again once the operation is finished.
+ * This factory wraps one long-lived {@link SshdSessionFactory} and hands out leases on a single pooled
+ * session per user, host and port. Each git operation runs on its own SSH channel, so concurrent clones,
+ * fetches and pushes against the same host share one connection. Sessions that have not been leased for
+ * longer than the idle timeout are closed in the background.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PooledSshSessionFactory extends SshSessionFactory implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledSshSessionFactory.class);
+
+    private final SshdSessionFactory delegate;
+    private final Duration idleTimeout;
+    private final Map<String, PooledSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService idleSessionReaper;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new PooledSshSessionFactory.
+     *
+     * @param delegate the factory used to open the underlying SSH sessions
+     * @param idleTimeout how long an unused session is kept open before it is closed
+     */
+    public PooledSshSessionFactory(@Nonnull SshdSessionFactory delegate, @Nonnull Duration idleTimeout) {
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("idleTimeout must be positive");
+        }
+        this.delegate = delegate;
+        this.idleTimeout = idleTimeout;
+        this.idleSessionReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ssh-idle-session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepIntervalMillis = Math.max(1, idleTimeout.toMillis() / 2);
+        idleSessionReaper.scheduleWithFixedDelay(this::closeIdleSessions, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String getType() {
+        return "pooled-" + delegate.getType();
+    }
+
+    @Override
+    public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int timeout) throws TransportException {
+        if (closed) {
+            throw new TransportException(uri, "SSH session factory has been closed");
+        }
+        PooledSession pooledSession = sessions.computeIfAbsent(sessionKey(uri), PooledSession::new);
+        return pooledSession.lease(uri, credentialsProvider, fs, timeout);
+    }
+
+    /**
+     * Returns a snapshot of how many SSH handshakes were performed and how many were avoided by reusing a session.
+     *
+     * @return the current statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(handshakes.get(), leases.get(), Duration.ofNanos(handshakeNanos.get()));
+    }
+
+    /**
+     * Closes every pooled session, whether it is in use or not, and the underlying session factory.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        idleSessionReaper.shutdownNow();
+        sessions.values().forEach(PooledSession::closeNow);
+        sessions.clear();
+        delegate.close();
+    }
+
+    private void closeIdleSessions() {
+        long idleBefore = System.nanoTime() - idleTimeout.toNanos();
+        sessions.values().forEach(pooledSession -> pooledSession.closeIfIdleSince(idleBefore));
+    }
+
+    private static String sessionKey(URIish uri) {
+        return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * The number of SSH handshakes performed, the number of sessions handed out to git operations,
+     * and the total time spent in handshakes.
+     *
+     * @param handshakes the number of new SSH connections that were opened and authenticated
+     * @param leases the number of sessions handed out to git operations
+     * @param totalHandshakeTime the total time spent opening and authenticating connections
+     */
+    public record Statistics(long handshakes, long leases, Duration totalHandshakeTime) {
+
+        public long reusedSessions() {
+            return leases - handshakes;
+        }
+
+        public Duration averageHandshakeTime() {
+            return handshakes == 0 ? Duration.ZERO : totalHandshakeTime.dividedBy(handshakes);
+        }
+
+        /**
+         * Estimates the time saved by reusing sessions, assuming each reuse would have cost an average handshake.
+         *
+         * @return the estimated time saved
+         */
+        public Duration estimatedTimeSaved() {
+            return averageHandshakeTime().multipliedBy(Math.max(0, reusedSessions()));
+        }
+    }
+
+    /**
+     * A single SSH connection shared by every git operation that targets the same user, host and port.
+     */
+    private class PooledSession {
+
+        private final String key;
+        private SshdSession session;
+        private int activeLeases;
+        private long lastReleasedNanos;
+
+        PooledSession(String key) {
+            this.key = key;
+        }
+
+        synchronized RemoteSession lease(URIish uri, CredentialsProvider credentialsProvider, FS fs, int timeout) throws TransportException {
+            if (session == null) {
+                long start = System.nanoTime();
+                SshdSession newSession = delegate.getSession(uri, credentialsProvider, fs, timeout);
+                handshakeNanos.addAndGet(System.nanoTime() - start);
+                handshakes.incrementAndGet();
+                newSession.addCloseListener(this::onSessionClosed);
+                session = newSession;
+                logger.debug("Opened new SSH session to {}", key);
+            }
+            activeLeases++;
+            leases.incrementAndGet();
+            return new LeasedSession(this, session);
+        }
+
+        synchronized void release() {
+            activeLeases--;
+            lastReleasedNanos = System.nanoTime();
+        }
+
+        void closeIfIdleSince(long idleBeforeNanos) {
+            SshdSession idleSession;
+            synchronized (this) {
+                if (session == null || activeLeases > 0 || lastReleasedNanos - idleBeforeNanos >= 0) {
+                    return;
+                }
+                idleSession = session;
+                session = null;
+            }
+            logger.debug("Closing idle SSH session to {}", key);
+            idleSession.disconnect();
+        }
+
+        void closeNow() {
+            SshdSession sessionToClose;
+            synchronized (this) {
+                sessionToClose = session;
+                session = null;
+            }
+            // Disconnect outside the lock, as the close listener below is notified from an SSH I/O thread.
+            if (sessionToClose != null) {
+                sessionToClose.disconnect();
+            }
+        }
+
+        private synchronized void onSessionClosed(SshdSession closedSession) {
+            // The server or the network may drop the connection at any time; the next lease reconnects.
+            if (session == closedSession) {
+                session = null;
+            }
+        }
+    }
+
+    /**
+     * The view of a pooled session handed to a single git operation.
+     * Disconnecting it returns the session to the pool instead of closing the connection.
+     */
+    private static class LeasedSession implements RemoteSession2 {
+
+        private final PooledSession owner;
+        private final SshdSession session;
+        private boolean released;
+
+        LeasedSession(PooledSession owner, SshdSession session) {
+            this.owner = owner;
+            this.session = session;
+        }
+
+        @Override
+        public Process exec(String commandName, int timeout) throws IOException {
+            return session.exec(commandName, timeout);
+        }
+
+        @Override
+        public Process exec(String commandName, Map<String, String> environment, int timeout) throws IOException {
+            return session.exec(commandName, environment, timeout);
+        }
+
+        @Override
+        public FtpChannel getFtpChannel() {
+            return session.getFtpChannel();
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            if (!released) {
+                released = true;
+                owner.release();
+            }
+        }
+    }
+}
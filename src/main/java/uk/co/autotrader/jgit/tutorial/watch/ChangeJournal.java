@@ -0,0 +1,279 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.watch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * The list of working tree paths that have changed since they were last committed, recorded by a
+ * {@link WorkingTreeWatcher} and kept in the repository's {@code .git} directory so that it survives between runs.
+ * <p>
+ * The journal is a text file with one entry per line: a changed path relative to the working tree root,
+ * an overflow marker meaning that changes may have been missed and the whole working tree must be scanned,
+ * or a cookie. Readers don't trust the journal unless the watcher is running, and before reading it they create
+ * a cookie file that the watcher records once it has caught up with every earlier change, so that a change made
+ * just before reading is never missed. Once the changes have been committed, the reader acknowledges the entries
+ * it read, and they are removed from the journal.
+ * <p>
+ * Use a single instance per repository within a JVM, as file locks are held by the whole JVM. Its methods are thread-safe.
+ */
+public class ChangeJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeJournal.class);
+
+    private static final String DIRECTORY_NAME = "jgit-tutorial-fsmonitor";
+    private static final String PATH_PREFIX = "/";
+    private static final String COOKIE_PREFIX = "?";
+    private static final String OVERFLOW = "*";
+
+    // Past this size, changed paths are no longer recorded and the next reader scans the whole working tree instead.
+    private static final long MAX_JOURNAL_BYTES = 16L * 1024 * 1024;
+    private static final long COOKIE_POLL_INTERVAL_MILLIS = 5;
+
+    private final Path journalFile;
+    private final Path watcherLockFile;
+    private final Path cookieDirectory;
+    private boolean full;
+
+    /**
+     * Creates a new ChangeJournal.
+     *
+     * @param gitDirectory the repository's {@code .git} directory
+     */
+    public ChangeJournal(Path gitDirectory) {
+        Path directory = gitDirectory.resolve(DIRECTORY_NAME);
+        this.journalFile = directory.resolve("journal");
+        this.watcherLockFile = directory.resolve("watcher.lock");
+        this.cookieDirectory = directory.resolve("cookies");
+        try {
+            Files.createDirectories(cookieDirectory);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create directories: " + cookieDirectory, e);
+        }
+    }
+
+    /**
+     * Reads the paths that have changed since the journal was last acknowledged.
+     * The snapshot asks for a full scan if no watcher is running, if the watcher has missed changes,
+     * or if it doesn't catch up within the timeout.
+     *
+     * @param syncTimeout how long to wait for the watcher to record every change made before this call
+     * @return the changed paths, or a snapshot that asks for a full scan
+     */
+    public Snapshot read(Duration syncTimeout) {
+        if (!isWatcherRunning()) {
+            logger.info("No working tree watcher is running, so the whole working tree will be scanned");
+            return Snapshot.FULL_SCAN;
+        }
+
+        String cookie = UUID.randomUUID().toString();
+        Path cookieFile = cookieDirectory.resolve(cookie);
+        try {
+            Files.createFile(cookieFile);
+            long deadline = System.nanoTime() + syncTimeout.toNanos();
+            do {
+                Snapshot snapshot = readUpTo(cookie);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+                Thread.sleep(COOKIE_POLL_INTERVAL_MILLIS);
+            } while (System.nanoTime() - deadline < 0);
+            logger.warn("The working tree watcher did not catch up within {}, so the whole working tree will be scanned", syncTimeout);
+        } catch (IOException e) {
+            logger.warn("Failed to read the change journal, so the whole working tree will be scanned", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            deleteQuietly(cookieFile);
+        }
+        return Snapshot.FULL_SCAN;
+    }
+
+    /**
+     * Removes the entries read into a snapshot from the journal, once the changes they describe have been committed.
+     * Entries recorded after the snapshot was read are kept.
+     *
+     * @param snapshot a snapshot returned by {@link #read(Duration)}
+     */
+    public synchronized void acknowledge(Snapshot snapshot) {
+        if (snapshot.cookie() == null) {
+            return;
+        }
+        byte[] cookieEntry = entry(COOKIE_PREFIX, snapshot.cookie());
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            byte[] journal = readFully(channel);
+            // The journal only ever grows at the end, so unless another reader has already acknowledged it,
+            // the snapshot's entries are still at the start and end with its cookie.
+            int start = snapshot.length() - cookieEntry.length;
+            if (journal.length < snapshot.length()
+                    || !ByteBuffer.wrap(journal, start, cookieEntry.length).equals(ByteBuffer.wrap(cookieEntry))) {
+                logger.debug("Change journal was already acknowledged by another reader");
+                return;
+            }
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(journal, snapshot.length(), journal.length - snapshot.length()), 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update change journal: " + journalFile, e);
+        }
+    }
+
+    /**
+     * Appends a batch of events to the journal.
+     *
+     * @param changedPaths paths relative to the working tree root that were created, modified or deleted
+     * @param overflowed whether changes may have been missed
+     * @param cookies the names of cookie files that were created after every change in this batch
+     */
+    synchronized void append(Collection<String> changedPaths, boolean overflowed, Collection<String> cookies) {
+        if (changedPaths.isEmpty() && !overflowed && cookies.isEmpty()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            long position = channel.size();
+            if (position < MAX_JOURNAL_BYTES) {
+                full = false;
+            } else if (!full) {
+                // Stop recording paths until the journal has been acknowledged, but keep answering cookies.
+                full = true;
+                overflowed = true;
+            }
+            if (!full) {
+                for (String changedPath : changedPaths) {
+                    position += channel.write(ByteBuffer.wrap(entry(PATH_PREFIX, changedPath)), position);
+                }
+            }
+            if (overflowed) {
+                position += channel.write(ByteBuffer.wrap(entry(OVERFLOW, "")), position);
+            }
+            for (String cookie : cookies) {
+                position += channel.write(ByteBuffer.wrap(entry(COOKIE_PREFIX, cookie)), position);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append to change journal: " + journalFile, e);
+        }
+    }
+
+    Path getWatcherLockFile() {
+        return watcherLockFile;
+    }
+
+    Path getCookieDirectory() {
+        return cookieDirectory;
+    }
+
+    private boolean isWatcherRunning() {
+        try (FileChannel channel = FileChannel.open(watcherLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // The watcher holds this lock for as long as it runs.
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // The watcher is running in this JVM.
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to check whether a working tree watcher is running", e);
+            return false;
+        }
+    }
+
+    private synchronized Snapshot readUpTo(String cookie) throws IOException {
+        if (!Files.exists(journalFile)) {
+            return null;
+        }
+        byte[] journal;
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            journal = readFully(channel);
+        }
+
+        Set<String> changedPaths = new TreeSet<>();
+        boolean overflowed = false;
+        int lineStart = 0;
+        for (int i = 0; i < journal.length; i++) {
+            if (journal[i] != '\n') {
+                continue;
+            }
+            String line = new String(journal, lineStart, i - lineStart, StandardCharsets.UTF_8);
+            lineStart = i + 1;
+            if (line.startsWith(PATH_PREFIX)) {
+                changedPaths.add(line.substring(PATH_PREFIX.length()));
+            } else if (line.equals(OVERFLOW)) {
+                overflowed = true;
+            } else if (line.equals(COOKIE_PREFIX + cookie)) {
+                return new Snapshot(overflowed, overflowed ? Set.of() : changedPaths, cookie, lineStart);
+            }
+            // Cookies of other readers are skipped.
+        }
+        return null;
+    }
+
+    private static byte[] readFully(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] entry(String prefix, String value) {
+        return (prefix + value + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("Failed to delete {}", file, e);
+        }
+    }
+
+    /**
+     * The changes read from the journal.
+     *
+     * @param fullScan whether the whole working tree must be scanned, because the changes are not known
+     * @param changedPaths the changed paths relative to the working tree root, empty when a full scan is needed
+     * @param cookie the cookie that ends the snapshot's entries, or null if nothing was read from the journal
+     * @param length the length in bytes of the snapshot's entries at the start of the journal
+     */
+    public record Snapshot(boolean fullScan, Set<String> changedPaths, String cookie, int length) {
+
+        static final Snapshot FULL_SCAN = new Snapshot(true, Set.of(), null, 0);
+    }
+}
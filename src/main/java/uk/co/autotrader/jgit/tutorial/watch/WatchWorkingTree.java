@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.watch;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.Configuration;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Watches the local repository's working tree until the process is stopped, recording which files change,
+ * so that Step 2 only has to look at those files. Enable {@code WORKING_TREE_CHANGE_TRACKING} in the Configuration
+ * class for Step 2 to use it.
+ * <p>
+ * Run with: {@code ./gradlew run -PmainClass=uk.co.autotrader.jgit.tutorial.watch.WatchWorkingTree}
+ */
+public class WatchWorkingTree {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchWorkingTree.class);
+
+    public static void main(String[] args) throws InterruptedException {
+
+        /*
+         * Get the Tutorial's configuration, which gives us the following information:
+         * - Local Directory that represents a directory on the file system (defaults to ~/jgit-cloned-repositories/name-of-cloned-repo)
+         * - How JGit reads pack files, which applies to every repository opened in this JVM
+         */
+        Configuration configuration = new Configuration();
+
+        // Installing the pack reading options empties JGit's caches, so do it before opening any repository.
+        configuration.getPackReadOptions().install();
+
+        LocalDirectory localGitRootDirectory = configuration.getLocalRepositoryDirectory();
+        localGitRootDirectory.ensureDirectoryExistsAndIsGitRepository();
+
+        Path workTree;
+        Path gitDirectory;
+        try (Repository repository = new FileRepositoryBuilder().findGitDir(localGitRootDirectory.getPath().toFile()).setMustExist(true).build()) {
+            workTree = repository.getWorkTree().toPath();
+            gitDirectory = repository.getDirectory().toPath();
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred opening the repository", e);
+        }
+
+        WorkingTreeWatcher watcher = new WorkingTreeWatcher(workTree, new ChangeJournal(gitDirectory)).start();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            watcher.close();
+            stopped.countDown();
+        }));
+
+        logger.info("Watching {} for changes. Press Ctrl+C to stop.", workTree);
+        stopped.await();
+    }
+}
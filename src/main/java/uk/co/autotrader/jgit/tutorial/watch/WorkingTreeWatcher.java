@@ -0,0 +1,244 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.watch;
+
+import org.eclipse.jgit.lib.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches every directory of a working tree with a {@link WatchService} and records the paths that change
+ * in a {@link ChangeJournal}, so that Step 2 can look at those paths only instead of scanning the whole working tree.
+ * <p>
+ * Changes made while no watcher was running are unknown, so starting a watcher records an overflow, which makes
+ * the next reader scan the whole working tree once. The watcher holds a lock for as long as it runs;
+ * readers fall back to a full scan whenever the lock is free.
+ * <p>
+ * On Linux, the JDK's WatchService is backed by inotify, which is limited to {@code fs.inotify.max_user_watches}
+ * directories per user. Starting a watcher on a working tree with more directories than that fails.
+ */
+public class WorkingTreeWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkingTreeWatcher.class);
+
+    private final Path workTree;
+    private final ChangeJournal journal;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    private WatchService watchService;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private Thread eventThread;
+
+    /**
+     * Creates a new WorkingTreeWatcher. Call {@link #start()} to begin watching.
+     *
+     * @param workTree the root directory of the working tree
+     * @param journal the journal of the working tree's repository
+     */
+    public WorkingTreeWatcher(Path workTree, ChangeJournal journal) {
+        this.workTree = workTree.toAbsolutePath().normalize();
+        this.journal = journal;
+    }
+
+    /**
+     * Registers every directory of the working tree and starts recording changes in the background.
+     *
+     * @return this watcher
+     * @throws IllegalStateException if another watcher is already running for the working tree
+     */
+    public WorkingTreeWatcher start() {
+        try {
+            lockChannel = FileChannel.open(journal.getWatcherLockFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+            if (lock == null) {
+                lockChannel.close();
+                throw new IllegalStateException("Another working tree watcher is already running for " + workTree);
+            }
+
+            watchService = workTree.getFileSystem().newWatchService();
+            register(journal.getCookieDirectory());
+            long start = System.nanoTime();
+            registerTree(workTree, null);
+            logger.info("Watching {} directories under {} (registered in {} ms)",
+                    watchedDirectories.size() - 1, workTree, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Failed to watch working tree: " + workTree, e);
+        }
+
+        journal.append(List.of(), true, List.of());
+        eventThread = Thread.ofPlatform().daemon().name("working-tree-watcher").start(this::processEvents);
+        return this;
+    }
+
+    /**
+     * Stops watching. Readers of the journal scan the whole working tree until a watcher is started again.
+     */
+    @Override
+    public void close() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+            if (lockChannel != null) {
+                // Closing the channel releases the lock.
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to stop watching working tree: {}", workTree, e);
+        }
+        if (eventThread != null && eventThread != Thread.currentThread()) {
+            try {
+                eventThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                Set<String> changedPaths = new LinkedHashSet<>();
+                List<String> cookies = new ArrayList<>();
+                boolean overflowed = false;
+
+                // Drain every key that is ready before writing to the journal, so that a cookie is only recorded
+                // after the changes to other directories that were queued before it.
+                WatchKey key = watchService.take();
+                do {
+                    overflowed |= processEvents(key, changedPaths, cookies);
+                    key = watchService.poll();
+                } while (key != null);
+
+                journal.append(changedPaths, overflowed, cookies);
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.debug("Stopped watching working tree: {}", workTree);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Stop watching, so that readers go back to full scans rather than trusting an incomplete journal.
+            logger.error("Working tree watcher failed, stopping", e);
+            close();
+        }
+    }
+
+    private boolean processEvents(WatchKey key, Set<String> changedPaths, List<String> cookies) {
+        Path directory = watchedDirectories.get(key);
+        boolean overflowed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                overflowed = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (directory.equals(journal.getCookieDirectory())) {
+                if (event.kind() == ENTRY_CREATE) {
+                    cookies.add(path.getFileName().toString());
+                }
+                continue;
+            }
+            if (isGitDirectory(path)) {
+                continue;
+            }
+            changedPaths.add(relativePath(path));
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Files may have been created in the new directory before it was registered, so record them too.
+                try {
+                    registerTree(path, changedPaths);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to watch new directory: " + path, e);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // The directory was deleted; its deletion was recorded through its parent.
+            watchedDirectories.remove(key);
+        }
+        return overflowed;
+    }
+
+    private void registerTree(Path root, Set<String> createdPaths) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                if (isGitDirectory(directory)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                register(directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (createdPaths != null) {
+                    createdPaths.add(relativePath(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // The file was deleted while walking; the deletion is reported by the watch of its directory.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        watchedDirectories.put(key, directory);
+    }
+
+    private boolean isGitDirectory(Path path) {
+        return path.getFileName() != null && path.getFileName().toString().equals(Constants.DOT_GIT);
+    }
+
+    private String relativePath(Path path) {
+        return workTree.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.workspace;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.autotrader.jgit.tutorial.helpers.DirectoryTrash;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.maintenance.RepositoryActivityLock;
+import uk.co.autotrader.jgit.tutorial.metrics.MetricsRegistry;
+import uk.co.autotrader.jgit.tutorial.metrics.OperationMetrics;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Hands out working trees of a single remote repository, ready for a job to use, without cloning or deleting one per job.
+ * <p>
+ * The pool clones its workspaces ahead of time. {@link #acquire} takes an idle one, fetches, checks out the requested
+ * ref and resets and cleans the working tree, which only rewrites the files that the last job or the new commits
+ * changed. The job returns the workspace by closing it, and it is kept for the next job. When more jobs than the pool's
+ * size run at once, the extra ones wait for a clone of their own. A workspace that the job discards, or that the pool
+ * has no room for, is moved into the {@link DirectoryTrash} and deleted in the background, so neither handing out
+ * nor getting rid of a workspace waits for a whole working tree to be written or deleted.
+ * <p>
+ * Workspaces cloned by an earlier process into the pool's directory are reused.
+ * <p>
+ * This class is thread-safe.
+ */
+public class WorkspacePool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkspacePool.class);
+
+    private static final String WORKSPACE_PREFIX = "workspace-";
+
+    private final String remoteUrl;
+    private final Path directory;
+    private final int size;
+    private final RepositorySynchronizer cloner;
+    private final DirectoryTrash trash;
+
+    // The most recently returned workspace is handed out first, as its files are the most likely to still be cached.
+    private final BlockingDeque<Git> idle = new LinkedBlockingDeque<>();
+    private final ExecutorService provisioner = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("workspace-provisioner").daemon().factory());
+
+    // Guarded by this pool.
+    private int handedOut;
+    private int provisioning;
+    private long acquired;
+    private long recycled;
+    private long provisioned;
+    private long discarded;
+    private boolean closed;
+
+    /**
+     * Creates a new WorkspacePool. Call {@link #start()} to clone the workspaces ahead of time.
+     *
+     * @param remoteUrl the URL of the remote repository
+     * @param directory the directory to keep the workspaces in
+     * @param size how many workspaces to keep, counting both the idle ones and those handed out
+     * @param cloner clones new workspaces, which must always make a fresh clone
+     * @param trash gets rid of discarded workspaces, and must be on the same file system as the directory
+     */
+    public WorkspacePool(String remoteUrl, Path directory, int size, RepositorySynchronizer cloner, DirectoryTrash trash) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        this.remoteUrl = remoteUrl;
+        this.directory = directory;
+        this.size = size;
+        this.cloner = cloner;
+        this.trash = trash;
+    }
+
+    /**
+     * Adopts the workspaces an earlier process left in the pool's directory, and clones more in the background
+     * until the pool has as many workspaces as its size.
+     *
+     * @return this pool
+     */
+    public WorkspacePool start() {
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> existing = Files.list(directory)) {
+                existing.filter(workspace -> workspace.getFileName().toString().startsWith(WORKSPACE_PREFIX)).forEach(this::adopt);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list the workspaces in " + directory, e);
+        }
+        replenish();
+        return this;
+    }
+
+    /**
+     * Hands out a workspace with the given ref checked out and nothing else in its working tree. If no workspace
+     * is idle, a new one is cloned while the caller waits.
+     *
+     * @param ref the short name of a branch or tag of the remote repository, or a commit id
+     * @return the workspace, which must be closed once the job has finished with it
+     */
+    public Workspace acquire(String ref) throws GitAPIException {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Workspace pool has been closed");
+            }
+            acquired++;
+            handedOut++;
+        }
+        Git git = idle.pollFirst();
+        if (git != null) {
+            try {
+                prepare(git, ref, true);
+                countRecycled();
+                return new Workspace(git);
+            } catch (GitAPIException | RuntimeException e) {
+                logger.warn("Failed to recycle workspace {}, replacing it with a new clone", git.getRepository().getWorkTree(), e);
+                discard(git);
+            }
+        }
+
+        try {
+            git = provision();
+        } catch (GitAPIException | RuntimeException e) {
+            giveUp(null);
+            throw e;
+        }
+        try {
+            prepare(git, ref, false);
+            return new Workspace(git);
+        } catch (GitAPIException | RuntimeException e) {
+            giveUp(git);
+            throw e;
+        }
+    }
+
+    /**
+     * @return a snapshot of the number of idle workspaces and how the workspaces handed out were prepared
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(idle.size(), acquired, recycled, provisioned, discarded);
+    }
+
+    /**
+     * Stops cloning new workspaces and closes the idle ones, leaving them on disk for the next process.
+     * Workspaces handed out are discarded when they are returned.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        provisioner.shutdownNow();
+        try {
+            provisioner.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Git git;
+        while ((git = idle.pollFirst()) != null) {
+            git.close();
+        }
+    }
+
+    private void adopt(Path workspace) {
+        try {
+            Git git = Git.open(workspace.toFile());
+            String url = git.getRepository().getConfig().getString("remote", Constants.DEFAULT_REMOTE_NAME, "url");
+            if (remoteUrl.equals(url) && idle.size() < size) {
+                idle.offerLast(git);
+                return;
+            }
+            git.close();
+        } catch (IOException e) {
+            logger.warn("Discarding {}, as it is not a readable git repository", workspace);
+        }
+        trash.discard(workspace);
+    }
+
+    private void replenish() {
+        synchronized (this) {
+            if (closed || idle.size() + handedOut + provisioning >= size) {
+                return;
+            }
+            provisioning++;
+        }
+        provisioner.execute(() -> {
+            try {
+                Git git = provision();
+                if (!addIdle(git)) {
+                    discard(git);
+                }
+            } catch (GitAPIException | RuntimeException e) {
+                logger.warn("Failed to clone a new workspace of {}", remoteUrl, e);
+                return;
+            } finally {
+                synchronized (this) {
+                    provisioning--;
+                }
+            }
+            replenish();
+        });
+    }
+
+    private Git provision() throws GitAPIException {
+        Path workspace = directory.resolve(WORKSPACE_PREFIX + UUID.randomUUID());
+        cloner.synchronize(remoteUrl, new LocalDirectory(directory, workspace.getFileName().toString()));
+        synchronized (this) {
+            provisioned++;
+        }
+        try {
+            return Git.open(workspace.toFile());
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred opening the new workspace: " + workspace, e);
+        }
+    }
+
+    private void prepare(Git git, String ref, boolean fetch) throws GitAPIException {
+        Path workTree = git.getRepository().getWorkTree().toPath();
+        // The same lease the synchronizer takes, so maintenance never repacks the workspace while it is being reset.
+        try (RepositoryActivityLock.Lease ignored = RepositoryActivityLock.acquireShared(git.getRepository());
+             OperationMetrics metrics = MetricsRegistry.getDefault().start("workspace", workTree.toString(), NullProgressMonitor.INSTANCE)) {
+            // A new clone has just fetched everything there is.
+            if (fetch) {
+                git.fetch().setRemote(Constants.DEFAULT_REMOTE_NAME).setRemoveDeletedRefs(true).setProgressMonitor(metrics).call();
+            }
+
+            metrics.beginTask("Checking out", ProgressMonitor.UNKNOWN);
+            checkout(git, ref);
+            metrics.endTask();
+
+            // Removes whatever the last job created, including ignored files such as build output.
+            metrics.beginTask("Cleaning", ProgressMonitor.UNKNOWN);
+            git.clean().setCleanDirectories(true).setIgnore(false).setForce(true).call();
+            metrics.endTask();
+
+            metrics.succeeded();
+        } catch (IOException e) {
+            throw new RuntimeException("An error occurred reading the workspace: " + workTree, e);
+        }
+    }
+
+    private static void checkout(Git git, String ref) throws GitAPIException, IOException {
+        Repository repository = git.getRepository();
+        Ref remoteBranch = repository.exactRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + ref);
+        ObjectId target = remoteBranch != null ? remoteBranch.getObjectId() : repository.resolve(ref + "^{commit}");
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown ref: " + ref);
+        }
+
+        if (remoteBranch != null) {
+            // The job gets a local branch to commit to, which is moved to wherever the remote branch is now.
+            boolean exists = repository.exactRef(Constants.R_HEADS + ref) != null;
+            git.checkout().setForced(true).setCreateBranch(!exists).setName(ref).setStartPoint(remoteBranch.getName()).call();
+        } else {
+            git.checkout().setForced(true).setName(target.name()).call();
+        }
+        // Rewrites any file the last job changed, and the files that differ between the old and the new commit.
+        git.reset().setMode(ResetCommand.ResetType.HARD).setRef(target.name()).call();
+    }
+
+    private synchronized boolean addIdle(Git git) {
+        if (closed || idle.size() + handedOut >= size) {
+            return false;
+        }
+        idle.offerLast(git);
+        return true;
+    }
+
+    private boolean returnWorkspace(Git git, boolean keep) {
+        synchronized (this) {
+            handedOut--;
+            if (keep && !closed && idle.size() + handedOut + provisioning < size) {
+                idle.offerFirst(git);
+                return true;
+            }
+        }
+        // The workspace is discarded, so clone a replacement if the pool is now short of one.
+        replenish();
+        return false;
+    }
+
+    private void giveUp(@Nullable Git git) {
+        if (git != null) {
+            discard(git);
+        }
+        returnWorkspace(null, false);
+    }
+
+    private void discard(Git git) {
+        git.close();
+        trash.discard(git.getRepository().getWorkTree().toPath());
+        synchronized (this) {
+            discarded++;
+        }
+    }
+
+    private synchronized void countRecycled() {
+        recycled++;
+    }
+
+    /**
+     * A workspace handed out to a job. Close it once the job has finished, to return it to the pool.
+     */
+    public class Workspace implements AutoCloseable {
+
+        private final Git git;
+        private boolean discardOnClose;
+        private boolean closed;
+
+        private Workspace(Git git) {
+            this.git = git;
+        }
+
+        public Path getPath() {
+            return git.getRepository().getWorkTree().toPath();
+        }
+
+        public Git getGit() {
+            return git;
+        }
+
+        /**
+         * Makes closing the workspace throw it away rather than return it to the pool,
+         * for a job that has left it in a state that a reset and clean can't undo.
+         */
+        public void discard() {
+            discardOnClose = true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!returnWorkspace(git, !discardOnClose)) {
+                WorkspacePool.this.discard(git);
+            }
+        }
+    }
+
+    /**
+     * @param idleWorkspaces the number of workspaces ready to be handed out
+     * @param acquired the number of workspaces handed out
+     * @param recycled the number of workspaces handed out by resetting a workspace that an earlier job returned
+     * @param provisioned the number of workspaces cloned, ahead of time or while a job waited
+     * @param discarded the number of workspaces moved to the trash
+     */
+    public record Statistics(int idleWorkspaces, long acquired, long recycled, long provisioned, long discarded) {
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.bundle;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BundleStoreTest {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Test Author", "test.author@example.com");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Git git;
+    private Path bundles;
+
+    @Before
+    public void createRepository() throws Exception {
+        Path gitDirectory = temporaryFolder.getRoot().toPath().resolve("repository.git");
+        SyntheticRepositories.createBareRepository(gitDirectory, 10, 1);
+        git = Git.open(gitDirectory.toFile());
+        bundles = temporaryFolder.newFolder("bundles").toPath();
+    }
+
+    @After
+    public void closeRepository() {
+        git.close();
+    }
+
+    @Test
+    public void keepsReplacedBundlesForTheGracePeriod() throws Exception {
+        BundleStore store = new BundleStore(bundles, Duration.ofHours(1));
+        Path first = refresh(store);
+        commit("revision: 1\n");
+        Path second = refresh(store);
+
+        assertEquals(List.of(second), store.chain());
+        assertTrue("A clone that listed the first bundle may still be reading it", Files.exists(first));
+    }
+
+    @Test
+    public void deletesReplacedBundlesAfterTheGracePeriod() throws Exception {
+        BundleStore store = new BundleStore(bundles, Duration.ZERO);
+        Path first = refresh(store);
+        commit("revision: 1\n");
+        Path second = refresh(store);
+
+        assertEquals(List.of(second), store.chain());
+        assertTrue(Files.notExists(first));
+    }
+
+    @Test
+    public void deletesReplacedBundlesOnALaterRefreshThatWritesNothing() throws Exception {
+        BundleStore keepingStore = new BundleStore(bundles, Duration.ofHours(1));
+        Path first = refresh(keepingStore);
+        commit("revision: 1\n");
+        Path second = refresh(keepingStore);
+
+        assertNull(new BundleStore(bundles, Duration.ZERO).refresh(git.getRepository(), 0, NullProgressMonitor.INSTANCE));
+        assertTrue(Files.notExists(first));
+        assertTrue(Files.exists(second));
+    }
+
+    private Path refresh(BundleStore store) throws Exception {
+        // No incremental bundles, so every refresh writes a new full bundle that replaces the one before it.
+        return store.refresh(git.getRepository(), 0, NullProgressMonitor.INSTANCE);
+    }
+
+    private void commit(String content) {
+        Repository repository = git.getRepository();
+        new DirectCommitter(repository).commit("main", new ChangeSet().put("config.yaml", content), AUTHOR, "Update config");
+    }
+}
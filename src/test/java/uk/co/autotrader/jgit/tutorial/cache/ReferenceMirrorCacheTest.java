@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReferenceMirrorCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void evictsTheLeastRecentlyUsedMirrorOnceOverBudget() throws Exception {
+        String first = createRemote("first.git");
+        String second = createRemote("second.git");
+        long mirrorBytes = mirrorBytes(first);
+        ReferenceMirrorCache cache = new ReferenceMirrorCache(temporaryFolder.newFolder("cache").toPath(), mirrorBytes * 3 / 2, Duration.ZERO);
+
+        Path firstMirror;
+        try (ReferenceMirrorCache.Lease lease = cache.acquire(first, NullProgressMonitor.INSTANCE, 0)) {
+            firstMirror = lease.getMirrorDirectory();
+        }
+        assertTrue(Files.isDirectory(firstMirror));
+        Path secondMirror;
+        try (ReferenceMirrorCache.Lease lease = cache.acquire(second, NullProgressMonitor.INSTANCE, 0)) {
+            secondMirror = lease.getMirrorDirectory();
+        }
+
+        assertFalse(Files.exists(firstMirror));
+        assertTrue(Files.isDirectory(secondMirror));
+        ReferenceMirrorCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.evictions());
+        assertEquals(FileUtils.sizeOfDirectory(secondMirror.toFile()), statistics.bytes());
+    }
+
+    @Test
+    public void keepsAMirrorThatIsLeased() throws Exception {
+        String remote = createRemote("remote.git");
+        ReferenceMirrorCache cache = new ReferenceMirrorCache(temporaryFolder.newFolder("cache").toPath(), 1, Duration.ZERO);
+
+        try (ReferenceMirrorCache.Lease lease = cache.acquire(remote, NullProgressMonitor.INSTANCE, 0)) {
+            cache.evictIfOverBudget();
+
+            assertTrue(Files.isDirectory(lease.getMirrorDirectory()));
+        }
+    }
+
+    @Test
+    public void measuresAMirrorAgainWhenItIsRefreshed() throws Exception {
+        String remote = createRemote("remote.git");
+        ReferenceMirrorCache cache = new ReferenceMirrorCache(temporaryFolder.newFolder("cache").toPath(), Long.MAX_VALUE, Duration.ZERO);
+        cache.acquire(remote, NullProgressMonitor.INSTANCE, 0).close();
+        long bytesBefore = cache.getStatistics().bytes();
+
+        byte[] largeFile = new byte[256 * 1024];
+        new Random(1).nextBytes(largeFile);
+        try (Git git = Git.open(temporaryFolder.getRoot().toPath().resolve("remote.git").toFile())) {
+            new DirectCommitter(git.getRepository()).commit("main", new ChangeSet().put("large.bin", largeFile),
+                    new PersonIdent("Test", "test@example.com"), "Add a large file");
+        }
+        Path mirror;
+        try (ReferenceMirrorCache.Lease lease = cache.acquire(remote, NullProgressMonitor.INSTANCE, 0)) {
+            mirror = lease.getMirrorDirectory();
+        }
+
+        assertTrue(cache.getStatistics().bytes() > bytesBefore + largeFile.length / 2);
+        assertEquals(FileUtils.sizeOfDirectory(mirror.toFile()), cache.getStatistics().bytes());
+    }
+
+    @Test
+    public void forgetsMirrorsDeletedByAnotherProcess() throws Exception {
+        String remote = createRemote("remote.git");
+        ReferenceMirrorCache cache = new ReferenceMirrorCache(temporaryFolder.newFolder("cache").toPath(), Long.MAX_VALUE, Duration.ZERO);
+        Path mirror;
+        try (ReferenceMirrorCache.Lease lease = cache.acquire(remote, NullProgressMonitor.INSTANCE, 0)) {
+            mirror = lease.getMirrorDirectory();
+        }
+
+        FileUtils.deleteDirectory(mirror.toFile());
+
+        assertEquals(0, cache.getStatistics().bytes());
+    }
+
+    private String createRemote(String name) {
+        Path remote = temporaryFolder.getRoot().toPath().resolve(name);
+        SyntheticRepositories.createBareRepository(remote, 50, 2);
+        return remote.toUri().toString();
+    }
+
+    /**
+     * @return the size of a mirror of the remote, measured in a cache of its own
+     */
+    private long mirrorBytes(String remote) throws Exception {
+        ReferenceMirrorCache cache = new ReferenceMirrorCache(temporaryFolder.newFolder().toPath(), Long.MAX_VALUE, Duration.ZERO);
+        cache.acquire(remote, NullProgressMonitor.INSTANCE, 0).close();
+        return cache.getStatistics().bytes();
+    }
+}
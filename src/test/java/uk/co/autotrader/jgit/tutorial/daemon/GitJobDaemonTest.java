@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.daemon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GitJobDaemonTest {
+
+    private static final String COMMIT_JOB = "{\"directory\": \"clone\", \"message\": \"Change a file\"}";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path tokenFile;
+    private GitJobDaemon daemon;
+
+    @Before
+    public void startDaemon() throws IOException {
+        tokenFile = temporaryFolder.getRoot().toPath().resolve("daemon/token");
+        RepositoryHandleCache repositories = new RepositoryHandleCache(4, repository -> null);
+        GitJobs jobs = new GitJobs(temporaryFolder.newFolder("clones").toPath(), new RepositorySynchronizer(SyncMode.FRESH_CLONE, true),
+                new RepositorySynchronizer(SyncMode.FAST_FORWARD, true), repositories, 0, List.of(), null);
+        daemon = new GitJobDaemon(0, tokenFile, jobs, 1, 1).start();
+    }
+
+    @After
+    public void stopDaemon() {
+        daemon.close();
+    }
+
+    @Test
+    public void writesItsTokenToAFileOnlyWhileItRuns() throws IOException {
+        assertEquals(daemon.getToken(), Files.readString(tokenFile).strip());
+
+        daemon.close();
+
+        assertFalse(Files.exists(tokenFile));
+    }
+
+    @Test
+    public void answersRequestsWithTheToken() throws IOException {
+        Response response = send("GET", "/status", authorized(), null);
+
+        assertEquals(200, response.status());
+        assertTrue(response.body(), response.body().contains("jobs_completed: 0"));
+    }
+
+    @Test
+    public void refusesRequestsWithoutATokenAsUnauthorized() throws IOException {
+        Map<String, String> headers = authorized();
+        headers.remove("Authorization");
+
+        assertEquals(401, send("GET", "/status", headers, null).status());
+        headers.put("Authorization", "Basic " + daemon.getToken());
+        assertEquals(401, send("GET", "/status", headers, null).status());
+    }
+
+    @Test
+    public void refusesRequestsWithTheWrongToken() throws IOException {
+        Map<String, String> headers = authorized();
+        headers.put("Authorization", "Bearer not-the-token");
+
+        assertEquals(403, send("GET", "/status", headers, null).status());
+    }
+
+    @Test
+    public void refusesRequestsFromWebPages() throws IOException {
+        Map<String, String> headers = authorized();
+        headers.put("Origin", "https://attacker.example.com");
+
+        assertEquals(403, send("POST", "/commit", headers, COMMIT_JOB).status());
+    }
+
+    @Test
+    public void refusesRequestsForOtherHosts() throws IOException {
+        Map<String, String> headers = authorized();
+        headers.put("Host", "attacker.example.com:" + daemon.getPort());
+
+        assertEquals(403, send("GET", "/status", headers, null).status());
+        headers.put("Host", "localhost:" + daemon.getPort());
+        assertEquals(200, send("GET", "/status", headers, null).status());
+    }
+
+    @Test
+    public void refusesJobParametersThatAreNotJson() throws IOException {
+        Map<String, String> headers = authorized();
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+
+        assertEquals(415, send("POST", "/commit", headers, "directory=clone&message=Change+a+file").status());
+        headers.remove("Content-Type");
+        assertEquals(415, send("POST", "/commit", headers, COMMIT_JOB).status());
+    }
+
+    @Test
+    public void refusesMalformedJobParameters() throws IOException {
+        for (String body : List.of("{\"directory\": \"clone\"", "{\"directory\": 1}", "[\"clone\"]", COMMIT_JOB + " {}")) {
+            Response response = send("POST", "/commit", authorized(), body);
+
+            assertEquals(body, 400, response.status());
+            assertTrue(response.body(), response.body().startsWith("error: "));
+        }
+    }
+
+    @Test
+    public void refusesAJobWithoutItsRequiredParameters() throws IOException {
+        assertEquals(400, send("POST", "/commit", authorized(), "{\"directory\": \"clone\"}").status());
+    }
+
+    private Map<String, String> authorized() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Host", "127.0.0.1:" + daemon.getPort());
+        headers.put("Authorization", "Bearer " + daemon.getToken());
+        headers.put("Content-Type", "application/json");
+        return headers;
+    }
+
+    /**
+     * Sends a request over a plain socket, as Java's HTTP clients don't let the Host header be set.
+     */
+    private Response send(String method, String path, Map<String, String> headers, String body) throws IOException {
+        byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        StringBuilder request = new StringBuilder(method + " " + path + " HTTP/1.1\r\n");
+        headers.forEach((name, value) -> request.append(name).append(": ").append(value).append("\r\n"));
+        request.append("Content-Length: ").append(content.length).append("\r\n");
+        request.append("Connection: close\r\n\r\n");
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            output.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+            output.write(content);
+            output.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            int status = Integer.parseInt(reader.readLine().split(" ")[1]);
+            StringBuilder response = new StringBuilder();
+            boolean inBody = false;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (inBody) {
+                    response.append(line).append('\n');
+                } else if (line.isEmpty()) {
+                    inBody = true;
+                }
+            }
+            return new Response(status, response.toString());
+        }
+    }
+
+    private record Response(int status, String body) {
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.daemon;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+import uk.co.autotrader.jgit.tutorial.sync.CloneOptions;
+import uk.co.autotrader.jgit.tutorial.sync.RepositorySynchronizer;
+import uk.co.autotrader.jgit.tutorial.sync.SyncMode;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GitJobsTest {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Test Author", "test.author@example.com");
+    private static final String CLONE = "clone";
+
+    // The first 100 synthetic files are in this directory, and the next 100 in the one next to it.
+    private static final String SPARSE_PATH = "src/module-000/package-00";
+    private static final int FILE_COUNT = 200;
+
+    // Long enough for a second push to be submitted while the first one waits.
+    private static final Duration COALESCING_WINDOW = Duration.ofSeconds(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String remoteUrl;
+    private RepositoryHandleCache repositories;
+    private GitJobs jobs;
+
+    @Before
+    public void cloneRemote() throws Exception {
+        Path remote = temporaryFolder.getRoot().toPath().resolve("remote.git");
+        SyntheticRepositories.createBareRepository(remote, FILE_COUNT, 1);
+        remoteUrl = remote.toUri().toString();
+
+        CloneOptions cloneOptions = new CloneOptions(0, null, null, List.of(SPARSE_PATH));
+        repositories = new RepositoryHandleCache(4,
+                repository -> new CoalescingPushQueue(repository, Constants.DEFAULT_REMOTE_NAME, COALESCING_WINDOW, 3, Duration.ofMillis(50)));
+        jobs = new GitJobs(temporaryFolder.newFolder("clones").toPath(), new RepositorySynchronizer(SyncMode.FRESH_CLONE, true, cloneOptions),
+                new RepositorySynchronizer(SyncMode.FAST_FORWARD, true, cloneOptions), repositories, 0, cloneOptions.sparseCheckoutPaths(), null);
+        jobs.clone(remoteUrl, CLONE);
+    }
+
+    @After
+    public void closeJobs() {
+        jobs.close();
+    }
+
+    @Test
+    public void ignoresTheFilesLeftOutOfTheSparseCheckout() throws Exception {
+        assertNull(jobs.commit(CLONE, "Nothing to commit", AUTHOR));
+    }
+
+    @Test
+    public void commitsOnlyTheChangesUnderTheSparseCheckoutPaths() throws Exception {
+        Path workTree = workTree();
+        Files.writeString(workTree.resolve(SyntheticRepositories.filePath(0)), "changed\n", StandardCharsets.UTF_8);
+        Files.writeString(workTree.resolve("untracked.txt"), "not under the sparse checkout paths\n", StandardCharsets.UTF_8);
+
+        RevCommit commit = jobs.commit(CLONE, "Change a file", AUTHOR);
+
+        assertNotNull(commit);
+        try (Git git = Git.open(workTree.toFile())) {
+            assertEquals("Files left out of the working tree are still in the commit", FILE_COUNT, countFiles(git, commit));
+        }
+    }
+
+    @Test
+    public void coalescesPushesOfTheSameClone() throws Exception {
+        try (Git git = Git.open(workTree().toFile())) {
+            DirectCommitter committer = new DirectCommitter(git.getRepository());
+            for (String branch : List.of("first", "second")) {
+                git.branchCreate().setName(branch).call();
+                committer.commit(branch, new ChangeSet().put(branch + ".txt", branch + "\n"), AUTHOR, "Add " + branch);
+            }
+        }
+
+        // Each push waits for the coalescing window, so the second can only join the first if the first doesn't hold the clone's lease.
+        CompletableFuture<?> first = CompletableFuture.runAsync(() -> jobs.push(CLONE, "first"));
+        CompletableFuture<?> second = CompletableFuture.runAsync(() -> jobs.push(CLONE, "second"));
+        CompletableFuture.allOf(first, second).join();
+
+        try (RepositoryHandleCache.Lease lease = repositories.acquire(workTree())) {
+            CoalescingPushQueue.Statistics statistics = lease.getPushQueue().getStatistics();
+            assertEquals(2, statistics.requests());
+            assertEquals(1, statistics.pushes());
+        }
+    }
+
+    private Path workTree() {
+        return temporaryFolder.getRoot().toPath().resolve("clones").resolve(CLONE);
+    }
+
+    private static int countFiles(Git git, RevCommit commit) throws Exception {
+        int files = 0;
+        try (TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                files++;
+            }
+        }
+        return files;
+    }
+}
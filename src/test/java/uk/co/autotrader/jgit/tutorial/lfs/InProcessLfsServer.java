@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough of the Git LFS batch API, on a local port, for JGit to upload and download objects: the batch endpoint
+ * hands out an upload or download link for each object, and the links store or serve its contents in memory.
+ */
+class InProcessLfsServer implements AutoCloseable {
+
+    private static final Pattern OID = Pattern.compile("\"oid\"\\s*:\\s*\"([0-9a-f]{64})\"");
+    private static final Pattern SIZE = Pattern.compile("\"size\"\\s*:\\s*(\\d+)");
+    private static final String OBJECTS_PATH = "/lfs/objects/";
+
+    private final HttpServer server;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicInteger uploads = new AtomicInteger();
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    InProcessLfsServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/lfs/objects/batch", this::batch);
+        server.createContext(OBJECTS_PATH, this::transfer);
+        server.start();
+    }
+
+    /**
+     * @return the URL to set as {@code lfs.url}
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/lfs";
+    }
+
+    boolean has(String oid) {
+        return objects.containsKey(oid);
+    }
+
+    int getUploads() {
+        return uploads.get();
+    }
+
+    int getDownloads() {
+        return downloads.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void batch(HttpExchange exchange) throws IOException {
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        boolean upload = request.contains("\"upload\"");
+        List<String> oids = matches(OID, request);
+        List<String> sizes = matches(SIZE, request);
+
+        List<String> responses = new ArrayList<>();
+        for (int i = 0; i < oids.size(); i++) {
+            String oid = oids.get(i);
+            // An object the server already has needs no upload, so it gets no action.
+            String action = upload ? (has(oid) ? "" : actions("upload", oid)) : actions("download", oid);
+            responses.add("{\"oid\":\"" + oid + "\",\"size\":" + sizes.get(i) + action + "}");
+        }
+        respond(exchange, 200, ("{\"objects\":[" + String.join(",", responses) + "]}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void transfer(HttpExchange exchange) throws IOException {
+        String oid = exchange.getRequestURI().getPath().substring(OBJECTS_PATH.length());
+        if (exchange.getRequestMethod().equals("PUT")) {
+            objects.put(oid, exchange.getRequestBody().readAllBytes());
+            uploads.incrementAndGet();
+            respond(exchange, 200, new byte[0]);
+        } else if (has(oid)) {
+            downloads.incrementAndGet();
+            respond(exchange, 200, objects.get(oid));
+        } else {
+            respond(exchange, 404, new byte[0]);
+        }
+    }
+
+    private String actions(String operation, String oid) {
+        return ",\"actions\":{\"" + operation + "\":{\"href\":\"" + getUrl() + "/objects/" + oid + "\"}}";
+    }
+
+    private static List<String> matches(Pattern pattern, String text) {
+        List<String> matches = new ArrayList<>();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            matches.add(matcher.group(1));
+        }
+        return matches;
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/vnd.git-lfs+json");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.lfs;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lfs.LfsPointer;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.push.CoalescingPushQueue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LargeFileSupportTest {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Test Author", "test.author@example.com");
+    private static final String LARGE_FILE = "large.bin";
+    private static final int LARGE_FILE_SIZE = 10_000;
+
+    // Files over 1 KB go to LFS, and no file is fetched until it is asked for.
+    private static final LfsOptions OPTIONS = new LfsOptions(1024, List.of(), true, null);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InProcessLfsServer lfsServer;
+    private String remoteUrl;
+    private Git producer;
+
+    @Before
+    public void createRemote() throws Exception {
+        lfsServer = new InProcessLfsServer();
+        Path remote = temporaryFolder.getRoot().toPath().resolve("remote.git");
+        Git.init().setBare(true).setDirectory(remote.toFile()).call().close();
+        remoteUrl = remote.toUri().toString();
+        producer = cloneRemote("producer");
+    }
+
+    @After
+    public void closeRepositories() {
+        producer.close();
+        lfsServer.close();
+    }
+
+    @Test
+    public void pushUploadsTheContentsOfNewLfsFiles() throws Exception {
+        byte[] contents = randomBytes(1);
+        commitAndPush(contents);
+
+        assertTrue(lfsServer.has(sha256(contents)));
+        assertEquals(1, lfsServer.getUploads());
+
+        // An unchanged file isn't uploaded again.
+        Files.writeString(producer.getRepository().getWorkTree().toPath().resolve("small.txt"), "small\n");
+        producer.add().addFilepattern(".").call();
+        producer.commit().setAuthor(AUTHOR).setCommitter(AUTHOR).setMessage("Add a small file").call();
+        push(producer);
+        assertEquals(1, lfsServer.getUploads());
+    }
+
+    @Test
+    public void checkoutsWritePointersAndMaterializeFetchesTheContents() throws Exception {
+        commitAndPush(randomBytes(1));
+        try (Git consumer = cloneRemote("consumer")) {
+            LargeFileSupport largeFiles = new LargeFileSupport(consumer.getRepository(), OPTIONS);
+            largeFiles.install();
+            assertFalse(consumer.getRepository().getConfig().getBoolean(ConfigConstants.CONFIG_FILTER_SECTION,
+                    ConfigConstants.CONFIG_SECTION_LFS, ConfigConstants.CONFIG_KEY_USEJGITBUILTIN, true));
+
+            byte[] newContents = randomBytes(2);
+            commitAndPush(newContents);
+            consumer.pull().call();
+
+            Path largeFile = consumer.getRepository().getWorkTree().toPath().resolve(LARGE_FILE);
+            assertNotNull("The checkout wrote a pointer file", LfsPointer.parseLfsPointer(new ByteArrayInputStream(Files.readAllBytes(largeFile))));
+            assertEquals(0, lfsServer.getDownloads());
+
+            assertEquals(1, largeFiles.materialize(List.of(LARGE_FILE)));
+            assertArrayEquals(newContents, Files.readAllBytes(largeFile));
+            assertEquals(1, lfsServer.getDownloads());
+            assertTrue("The materialised file cleans to the committed pointer", consumer.status().call().isClean());
+        }
+    }
+
+    private Git cloneRemote(String directoryName) throws Exception {
+        Git git = Git.cloneRepository().setURI(remoteUrl).setDirectory(temporaryFolder.newFolder(directoryName)).call();
+        StoredConfig config = git.getRepository().getConfig();
+        config.setString(ConfigConstants.CONFIG_SECTION_LFS, null, ConfigConstants.CONFIG_KEY_URL, lfsServer.getUrl());
+        config.save();
+        return git;
+    }
+
+    private void commitAndPush(byte[] contents) throws Exception {
+        LargeFileSupport largeFiles = new LargeFileSupport(producer.getRepository(), OPTIONS);
+        largeFiles.install();
+        Files.write(producer.getRepository().getWorkTree().toPath().resolve(LARGE_FILE), contents);
+        largeFiles.track(List.of("."));
+        producer.add().addFilepattern(".").call();
+        producer.commit().setAuthor(AUTHOR).setCommitter(AUTHOR).setMessage("Update the large file").call();
+        push(producer);
+    }
+
+    private static void push(Git git) throws Exception {
+        try (CoalescingPushQueue pushQueue = new CoalescingPushQueue(git.getRepository(), Constants.DEFAULT_REMOTE_NAME, Duration.ZERO, 1, Duration.ZERO)) {
+            pushQueue.setBeforePush(new LargeFileSupport(git.getRepository(), OPTIONS)::upload);
+            pushQueue.submit(git.getRepository().getBranch()).join();
+        }
+    }
+
+    private static byte[] randomBytes(long seed) {
+        byte[] bytes = new byte[LARGE_FILE_SIZE];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(byte[] contents) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(contents));
+    }
+}
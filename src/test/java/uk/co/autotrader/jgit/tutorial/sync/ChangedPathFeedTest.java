@@ -0,0 +1,139 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class ChangedPathFeedTest {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Test", "test@example.com");
+    private static final String GUIDE = "How to use the repository.\n".repeat(20);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Repository repository;
+    private ObjectId first;
+    private ObjectId second;
+
+    @Before
+    public void createCommits() throws Exception {
+        repository = Git.init().setBare(true).setInitialBranch("main").setDirectory(temporaryFolder.newFolder("repo.git")).call().getRepository();
+        first = commit(new ChangeSet()
+                .put("docs/guide.md", GUIDE)
+                .put("src/a.txt", "a\n")
+                .put("src/b.txt", "b\n"));
+        // Renames docs/guide.md to docs/manual.md, modifies one file and deletes another.
+        second = commit(new ChangeSet()
+                .delete("docs/guide.md")
+                .put("docs/manual.md", GUIDE)
+                .put("src/a.txt", "changed a\n")
+                .delete("src/b.txt"));
+    }
+
+    @After
+    public void closeRepository() {
+        repository.close();
+    }
+
+    @Test
+    public void handsOutModifiedPathsAsTheWalkReachesThemAndRenamesAtTheEnd() throws Exception {
+        assertEquals(List.of(
+                PathChange.modified("src/a.txt"),
+                PathChange.renamed("docs/guide.md", "docs/manual.md"),
+                PathChange.deleted("src/b.txt")), changes(first, second, 5));
+    }
+
+    @Test
+    public void stopsLookingForRenamesOnceMorePathsThanTheLimitAreAdded() throws Exception {
+        ObjectId third = commit(new ChangeSet()
+                .delete("docs/manual.md")
+                .put("docs/handbook.md", GUIDE)
+                .put("new/0.txt", "0\n")
+                .put("new/1.txt", "1\n")
+                .put("new/2.txt", "2\n"));
+
+        assertEquals(List.of(
+                PathChange.renamed("docs/manual.md", "docs/handbook.md"),
+                PathChange.added("new/0.txt"),
+                PathChange.added("new/1.txt"),
+                PathChange.added("new/2.txt")), changes(second, third, 5));
+        // The third added path is one more than the limit, so the held paths are handed out as they are, and the rest as the walk reaches them.
+        assertEquals(List.of(
+                PathChange.deleted("docs/manual.md"),
+                PathChange.added("docs/handbook.md"),
+                PathChange.added("new/0.txt"),
+                PathChange.added("new/1.txt"),
+                PathChange.added("new/2.txt")), changes(second, third, 2));
+    }
+
+    @Test
+    public void doesNotLookForRenamesWithoutALimit() throws Exception {
+        assertEquals(List.of(
+                PathChange.deleted("docs/guide.md"),
+                PathChange.added("docs/manual.md"),
+                PathChange.modified("src/a.txt"),
+                PathChange.deleted("src/b.txt")), changes(first, second, 0));
+    }
+
+    @Test
+    public void addsEveryPathWithoutAPreviousHead() throws Exception {
+        try (ChangedPathFeed feed = ChangedPathFeed.open(repository, new SyncResult(SyncResult.Action.CLONED, null, first), 5)) {
+            assertEquals(List.of(
+                    PathChange.added("docs/guide.md"),
+                    PathChange.added("src/a.txt"),
+                    PathChange.added("src/b.txt")), feed.stream().toList());
+        }
+    }
+
+    @Test
+    public void findsNoChangesBetweenACommitAndItself() throws Exception {
+        assertEquals(List.of(), changes(second, second, 5));
+    }
+
+    @Test
+    public void rejectsANegativeRenameLimit() {
+        assertThrows(IllegalArgumentException.class, () -> ChangedPathFeed.open(repository, first, second, -1));
+    }
+
+    private List<PathChange> changes(ObjectId oldCommit, ObjectId newCommit, int renameLimit) throws IOException {
+        try (Stream<PathChange> changes = ChangedPathFeed.open(repository, oldCommit, newCommit, renameLimit).stream()) {
+            return changes.toList();
+        }
+    }
+
+    private ObjectId commit(ChangeSet changes) {
+        return new DirectCommitter(repository).commit("main", changes, AUTHOR, "Change files").commitId();
+    }
+}
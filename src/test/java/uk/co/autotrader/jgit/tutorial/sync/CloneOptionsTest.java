@@ -0,0 +1,42 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class CloneOptionsTest {
+
+    @Test
+    public void rejectsFiltersThatLeaveOutEveryFile() {
+        for (String filter : List.of("blob:none", "blob:limit=0", "tree:0", "tree:1")) {
+            assertThrows(filter, IllegalArgumentException.class, () -> new CloneOptions(0, null, filter, List.of("src")));
+        }
+    }
+
+    @Test
+    public void acceptsASizeLimit() {
+        CloneOptions cloneOptions = new CloneOptions(1, null, "blob:limit=1048576", List.of("/src/"));
+
+        assertEquals(1048576, cloneOptions.filterSpec().getBlobLimit());
+        assertEquals(List.of("src"), cloneOptions.sparseCheckoutPaths());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class RefScopedSyncTest {
+
+    private static final RefScope MAIN_AND_V1_TAGS = new RefScope(List.of("main"), List.of("v1."));
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path remote;
+    private InProcessGitSshServer server;
+    private SshdSessionFactory sessionFactory;
+    private String remoteUrl;
+    private LocalDirectory clone;
+
+    @Before
+    public void startServer() throws IOException {
+        remote = temporaryFolder.getRoot().toPath().resolve("remote/repo.git");
+        SyntheticRepositories.createBareRepository(remote, 10, 2);
+        addRefs("refs/heads/feature/a", "refs/tags/v1.0", "refs/tags/v1.1", "refs/tags/v2.0");
+
+        server = new InProcessGitSshServer(remote.getParent()).start();
+        sessionFactory = new CustomSshdSessionFactory(server.getClientPrivateKey(), null, server.getHostKeyEntry()).buildSshdSessionFactory();
+        SshSessionFactory.setInstance(sessionFactory);
+        remoteUrl = server.getRepositoryUrl("repo.git");
+        clone = new LocalDirectory(temporaryFolder.getRoot().toPath(), "clone");
+    }
+
+    @After
+    public void stopServer() {
+        SshSessionFactory.setInstance(null);
+        sessionFactory.close();
+        server.close();
+    }
+
+    @Test
+    public void clonesOnlyTheBranchesAndTagsInScope() throws Exception {
+        new RepositorySynchronizer(SyncMode.FRESH_CLONE, true).setRefScope(MAIN_AND_V1_TAGS).synchronize(remoteUrl, clone);
+
+        assertEquals(Set.of("HEAD", "refs/heads/main", "refs/remotes/origin/main", "refs/tags/v1.0", "refs/tags/v1.1"), cloneRefs());
+    }
+
+    @Test
+    public void fetchesNewCommitsAndTagsInScopeOnly() throws Exception {
+        new RepositorySynchronizer(SyncMode.FRESH_CLONE, true).setRefScope(MAIN_AND_V1_TAGS).synchronize(remoteUrl, clone);
+        ObjectId newMain;
+        try (Git git = Git.open(remote.toFile())) {
+            newMain = new DirectCommitter(git.getRepository())
+                    .commit("main", new ChangeSet().put("new-file.txt", "new\n"), new PersonIdent("Test", "test@example.com"), "Add a file")
+                    .commitId();
+        }
+        addRefs("refs/heads/feature/b", "refs/tags/v1.2", "refs/tags/v2.1");
+
+        SyncResult result = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true).setRefScope(MAIN_AND_V1_TAGS).synchronize(remoteUrl, clone);
+
+        assertEquals(newMain, result.newHead());
+        assertEquals(Set.of("HEAD", "refs/heads/main", "refs/remotes/origin/main", "refs/tags/v1.0", "refs/tags/v1.1", "refs/tags/v1.2"), cloneRefs());
+    }
+
+    /**
+     * Points the given refs of the remote at its main branch.
+     */
+    private void addRefs(String... refs) throws IOException {
+        try (Git git = Git.open(remote.toFile())) {
+            Repository repository = git.getRepository();
+            ObjectId main = repository.resolve(Constants.R_HEADS + "main");
+            for (String ref : refs) {
+                RefUpdate update = repository.updateRef(ref);
+                update.setNewObjectId(main);
+                assertEquals(RefUpdate.Result.NEW, update.update());
+            }
+        }
+    }
+
+    private Set<String> cloneRefs() throws IOException {
+        Set<String> names = new TreeSet<>();
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            for (Ref ref : git.getRepository().getRefDatabase().getRefs()) {
+                names.add(ref.getName());
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.bundle.BundleStore;
+import uk.co.autotrader.jgit.tutorial.commit.ChangeSet;
+import uk.co.autotrader.jgit.tutorial.commit.DirectCommitter;
+import uk.co.autotrader.jgit.tutorial.helpers.LocalDirectory;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class RepositorySynchronizerTest {
+
+    private static final int COMMIT_COUNT = 5;
+    private static final PersonIdent AUTHOR = new PersonIdent("Test Author", "test.author@example.com");
+    // Leaves out the large file of the commits below.
+    private static final CloneOptions SPARSE_AND_PARTIAL = new CloneOptions(0, null, "blob:limit=100", List.of("src"));
+    private static final String LARGE_FILE = "x".repeat(200);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path remote;
+    private String remoteUrl;
+    private LocalDirectory clone;
+
+    @Before
+    public void createRemote() {
+        remote = temporaryFolder.getRoot().toPath().resolve("remote.git");
+        SyntheticRepositories.createBareRepository(remote, 10, COMMIT_COUNT);
+        remoteUrl = remote.toUri().toString();
+        clone = new LocalDirectory(temporaryFolder.getRoot().toPath(), "clone");
+    }
+
+    @Test
+    public void clonesIntoAMissingDirectory() throws Exception {
+        SyncResult result = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false).synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.CLONED, result.action());
+        assertEquals(remoteMain(), result.newHead());
+        assertTrue(Files.isRegularFile(clone.getPath().resolve(SyntheticRepositories.filePath(0))));
+    }
+
+    @Test
+    public void reportsAnUnchangedRemoteAsUpToDate() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false);
+        synchronizer.synchronize(remoteUrl, clone);
+
+        SyncResult result = synchronizer.synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.UP_TO_DATE, result.action());
+        assertEquals(remoteMain(), result.previousHead());
+        assertEquals(remoteMain(), result.newHead());
+    }
+
+    @Test
+    public void fetchesAndFastForwardsToNewCommits() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false);
+        ObjectId cloned = synchronizer.synchronize(remoteUrl, clone).newHead();
+        ObjectId pushed = commit(remote, Map.of("new.txt", "new\n"));
+
+        SyncResult result = synchronizer.synchronize(remoteUrl, clone);
+
+        assertEquals(new SyncResult(SyncResult.Action.FAST_FORWARDED, cloned, pushed), result);
+        assertEquals("new\n", read("new.txt"));
+        assertTrue(isClean());
+    }
+
+    @Test
+    public void refusesToFastForwardABranchThatHasDiverged() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false);
+        synchronizer.synchronize(remoteUrl, clone);
+        ObjectId local = commitInClone("local.txt", "local\n");
+        commit(remote, Map.of("new.txt", "new\n"));
+
+        assertThrows(IllegalStateException.class, () -> synchronizer.synchronize(remoteUrl, clone));
+
+        assertEquals(local, cloneHead());
+        assertEquals("local\n", read("local.txt"));
+    }
+
+    @Test
+    public void hardResetDiscardsLocalCommitsAndChanges() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.HARD_RESET, false);
+        synchronizer.synchronize(remoteUrl, clone);
+        ObjectId local = commitInClone("local.txt", "local\n");
+        Files.writeString(clone.getPath().resolve(SyntheticRepositories.filePath(0)), "changed\n");
+        Files.writeString(clone.getPath().resolve("untracked.txt"), "untracked\n");
+        ObjectId pushed = commit(remote, Map.of("new.txt", "new\n"));
+
+        SyncResult result = synchronizer.synchronize(remoteUrl, clone);
+
+        assertEquals(new SyncResult(SyncResult.Action.RESET, local, pushed), result);
+        assertTrue(isClean());
+        assertFalse(Files.exists(clone.getPath().resolve("local.txt")));
+        assertFalse(Files.exists(clone.getPath().resolve("untracked.txt")));
+    }
+
+    @Test
+    public void hardResetDiscardsLocalChangesWhenTheRemoteHasNotMoved() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.HARD_RESET, false);
+        synchronizer.synchronize(remoteUrl, clone);
+        Files.writeString(clone.getPath().resolve(SyntheticRepositories.filePath(0)), "changed\n");
+
+        SyncResult result = synchronizer.synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.UP_TO_DATE, result.action());
+        assertTrue(isClean());
+    }
+
+    @Test
+    public void leavesABranchWithoutAnUpstreamWhereItIs() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false);
+        synchronizer.synchronize(remoteUrl, clone);
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            git.checkout().setCreateBranch(true).setName("local-only").call();
+        }
+        ObjectId pushed = commit(remote, Map.of("new.txt", "new\n"));
+
+        SyncResult result = synchronizer.synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.UP_TO_DATE, result.action());
+        assertFalse(Files.exists(clone.getPath().resolve("new.txt")));
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            assertEquals(pushed, git.getRepository().resolve(Constants.R_REMOTES + "origin/main"));
+        }
+    }
+
+    @Test
+    public void reclonesACorruptRepository() throws Exception {
+        new RepositorySynchronizer(SyncMode.FAST_FORWARD, false).synchronize(remoteUrl, clone);
+        FileUtils.deleteDirectory(clone.getPath().resolve(".git/objects").toFile());
+
+        SyncResult result = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true).synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.RECLONED, result.action());
+        assertEquals(remoteMain(), cloneHead());
+        assertTrue(isClean());
+    }
+
+    @Test
+    public void reclonesADirectoryThatIsNotARepository() throws Exception {
+        Files.createDirectories(clone.getPath());
+        Files.writeString(clone.getPath().resolve("stray.txt"), "stray\n");
+
+        SyncResult result = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true).synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.RECLONED, result.action());
+        assertFalse(Files.exists(clone.getPath().resolve("stray.txt")));
+    }
+
+    @Test
+    public void reclonesACloneOfADifferentRemote() throws Exception {
+        Path otherRemote = temporaryFolder.getRoot().toPath().resolve("other-remote.git");
+        SyntheticRepositories.createBareRepository(otherRemote, 3, 1);
+        new RepositorySynchronizer(SyncMode.FAST_FORWARD, false).synchronize(otherRemote.toUri().toString(), clone);
+
+        SyncResult result = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true).synchronize(remoteUrl, clone);
+
+        assertEquals(SyncResult.Action.RECLONED, result.action());
+        assertEquals(remoteMain(), cloneHead());
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            assertEquals(remoteUrl, git.getRepository().getConfig().getString("remote", "origin", "url"));
+        }
+    }
+
+    @Test
+    public void refusesToReplaceACorruptRepositoryWithoutPermissionToDelete() throws Exception {
+        new RepositorySynchronizer(SyncMode.FAST_FORWARD, false).synchronize(remoteUrl, clone);
+        FileUtils.deleteDirectory(clone.getPath().resolve(".git/objects").toFile());
+
+        assertThrows(IllegalStateException.class, () -> new RepositorySynchronizer(SyncMode.FAST_FORWARD, false).synchronize(remoteUrl, clone));
+
+        assertTrue(Files.exists(clone.getPath().resolve(SyntheticRepositories.filePath(0))));
+    }
+
+    @Test
+    public void freshCloneReplacesAUsableClone() throws Exception {
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FRESH_CLONE, true);
+        synchronizer.synchronize(remoteUrl, clone);
+        commitInClone("local.txt", "local\n");
+
+        SyncResult result = synchronizer.synchronize(remoteUrl, clone);
+
+        assertEquals(new SyncResult(SyncResult.Action.CLONED, null, remoteMain()), result);
+        assertFalse(Files.exists(clone.getPath().resolve("local.txt")));
+    }
+
+    @Test
+    public void fastForwardsASparseCloneWithinItsPaths() throws Exception {
+        Path sparseRemote = createRemoteAllowingFilters(Map.of("src/a.txt", "a\n", "docs/b.txt", "b\n"));
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false, new CloneOptions(0, null, null, List.of("src")));
+        ObjectId cloned = synchronizer.synchronize(sparseRemote.toUri().toString(), clone).newHead();
+        ObjectId pushed = commit(sparseRemote, Map.of("src/a.txt", "new a\n", "docs/b.txt", "new b\n"));
+
+        SyncResult result = synchronizer.synchronize(sparseRemote.toUri().toString(), clone);
+
+        assertEquals(new SyncResult(SyncResult.Action.FAST_FORWARDED, cloned, pushed), result);
+        assertEquals("new a\n", read("src/a.txt"));
+        assertFalse(Files.exists(clone.getPath().resolve("docs")));
+    }
+
+    @Test
+    public void refusesToFastForwardASparseCloneWithLocalChanges() throws Exception {
+        Path sparseRemote = createRemoteAllowingFilters(Map.of("src/a.txt", "a\n", "docs/b.txt", "b\n"));
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, false, new CloneOptions(0, null, null, List.of("src")));
+        ObjectId cloned = synchronizer.synchronize(sparseRemote.toUri().toString(), clone).newHead();
+        Files.writeString(clone.getPath().resolve("src/a.txt"), "local a\n");
+        commit(sparseRemote, Map.of("src/a.txt", "new a\n"));
+
+        assertThrows(IllegalStateException.class, () -> synchronizer.synchronize(sparseRemote.toUri().toString(), clone));
+
+        assertEquals(cloned, cloneHead());
+        assertEquals("local a\n", read("src/a.txt"));
+    }
+
+    @Test
+    public void hardResetsASparseCloneWithLocalChanges() throws Exception {
+        Path sparseRemote = createRemoteAllowingFilters(Map.of("src/a.txt", "a\n", "docs/b.txt", "b\n"));
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.HARD_RESET, false, new CloneOptions(0, null, null, List.of("src")));
+        synchronizer.synchronize(sparseRemote.toUri().toString(), clone);
+        Files.writeString(clone.getPath().resolve("src/a.txt"), "local a\n");
+        Files.writeString(clone.getPath().resolve("src/untracked.txt"), "untracked\n");
+        ObjectId pushed = commit(sparseRemote, Map.of("docs/b.txt", "new b\n"));
+
+        SyncResult result = synchronizer.synchronize(sparseRemote.toUri().toString(), clone);
+
+        assertEquals(SyncResult.Action.RESET, result.action());
+        assertEquals(pushed, cloneHead());
+        assertEquals("a\n", read("src/a.txt"));
+        assertFalse(Files.exists(clone.getPath().resolve("src/untracked.txt")));
+    }
+
+    @Test
+    public void clonesFromBundlesWithTheFullHistory() throws Exception {
+        cloneWithBundles(CloneOptions.FULL);
+
+        assertEquals(COMMIT_COUNT, countCommits(clone));
+    }
+
+    @Test
+    public void makesShallowClonesFromTheRemoteRatherThanFromBundles() throws Exception {
+        cloneWithBundles(new CloneOptions(1, null, null, List.of()));
+
+        assertTrue(Files.isRegularFile(clone.getPath().resolve(".git/shallow")));
+        assertEquals(1, countCommits(clone));
+    }
+
+    @Test
+    public void leavesTheBranchWhereItWasWhenTheSparseCheckoutOfAFetchFails() throws Exception {
+        Path partialRemote = createRemoteAllowingFilters(Map.of("src/small.txt", "old\n"));
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true, SPARSE_AND_PARTIAL);
+        ObjectId cloned = synchronizer.synchronize(partialRemote.toUri().toString(), clone).newHead();
+
+        commit(partialRemote, Map.of("src/small.txt", "new\n", "src/large.txt", LARGE_FILE));
+
+        assertThrows(IllegalStateException.class, () -> synchronizer.synchronize(partialRemote.toUri().toString(), clone));
+        assertEquals(cloned, cloneHead());
+        assertTrue(isClean());
+        assertEquals("old\n", read("src/small.txt"));
+        // The next sync tries the upstream commit again, rather than taking the clone for up to date.
+        assertThrows(IllegalStateException.class, () -> synchronizer.synchronize(partialRemote.toUri().toString(), clone));
+    }
+
+    @Test
+    public void discardsACloneWhoseCheckoutFails() throws Exception {
+        Path partialRemote = createRemoteAllowingFilters(Map.of("src/large.txt", LARGE_FILE));
+        RepositorySynchronizer synchronizer = new RepositorySynchronizer(SyncMode.FAST_FORWARD, true, SPARSE_AND_PARTIAL);
+
+        assertThrows(IllegalStateException.class, () -> synchronizer.synchronize(partialRemote.toUri().toString(), clone));
+
+        assertFalse(Files.exists(clone.getPath()));
+    }
+
+    /**
+     * Creates a bare remote with one commit of the given files, which serves partial clones as a git host does.
+     */
+    private Path createRemoteAllowingFilters(Map<String, String> files) throws Exception {
+        Path partialRemote = temporaryFolder.getRoot().toPath().resolve("partial-remote.git");
+        try (Git git = Git.init().setBare(true).setInitialBranch("main").setDirectory(partialRemote.toFile()).call()) {
+            StoredConfig config = git.getRepository().getConfig();
+            config.setBoolean("uploadpack", null, "allowFilter", true);
+            config.save();
+        }
+        commit(partialRemote, files);
+        return partialRemote;
+    }
+
+    private ObjectId remoteMain() throws Exception {
+        try (Git git = Git.open(remote.toFile())) {
+            return git.getRepository().resolve(Constants.R_HEADS + "main");
+        }
+    }
+
+    private ObjectId cloneHead() throws Exception {
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            return git.getRepository().resolve(Constants.HEAD);
+        }
+    }
+
+    private boolean isClean() throws Exception {
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            return git.status().call().isClean();
+        }
+    }
+
+    private ObjectId commitInClone(String path, String content) throws Exception {
+        Files.writeString(clone.getPath().resolve(path), content);
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            git.add().addFilepattern(path).call();
+            return git.commit().setAuthor(AUTHOR).setCommitter(AUTHOR).setMessage("Add " + path).setSign(false).call();
+        }
+    }
+
+    private String read(String path) throws Exception {
+        return Files.readString(clone.getPath().resolve(path), StandardCharsets.UTF_8);
+    }
+
+    private static ObjectId commit(Path bareRepository, Map<String, String> files) throws Exception {
+        ChangeSet changes = new ChangeSet();
+        files.forEach(changes::put);
+        try (Git git = Git.open(bareRepository.toFile())) {
+            return new DirectCommitter(git.getRepository()).commit("main", changes, AUTHOR, "Change " + files.keySet()).commitId();
+        }
+    }
+
+    private void cloneWithBundles(CloneOptions cloneOptions) throws Exception {
+        BundleStore bundleStore = new BundleStore(temporaryFolder.newFolder("bundles").toPath());
+        try (Git git = Git.open(remote.toFile())) {
+            bundleStore.refresh(git.getRepository(), 10, NullProgressMonitor.INSTANCE);
+        }
+
+        new RepositorySynchronizer(SyncMode.FRESH_CLONE, true, cloneOptions)
+                .setBundleStore(bundleStore)
+                .synchronize(remoteUrl, clone);
+    }
+
+    private static int countCommits(LocalDirectory clone) throws Exception {
+        int commits = 0;
+        try (Git git = Git.open(clone.getPath().toFile())) {
+            for (RevCommit ignored : git.log().call()) {
+                commits++;
+            }
+        }
+        return commits;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.sync;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SparseCheckoutTest {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Test Author", "test.author@example.com");
+
+    // Enough files for the checkout to split them between threads.
+    private static final int PARALLEL_FILE_COUNT = 200;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Git git;
+    private Path workTree;
+
+    @Before
+    public void createRepository() throws Exception {
+        workTree = temporaryFolder.newFolder("repository").toPath();
+        git = Git.init().setDirectory(workTree.toFile()).call();
+    }
+
+    @After
+    public void closeRepository() {
+        git.close();
+    }
+
+    @Test
+    public void replacesAFileWithADirectory() throws Exception {
+        checkout(new SparseCheckout(List.of()), commit(Map.of("a", "file a\n")), 1);
+        checkout(new SparseCheckout(List.of()), commit(Map.of("a/b", "file a/b\n")), 1);
+
+        assertTrue(Files.isDirectory(workTree.resolve("a")));
+        assertEquals("file a/b\n", read("a/b"));
+    }
+
+    @Test
+    public void replacesADirectoryWithAFile() throws Exception {
+        checkout(new SparseCheckout(List.of()), commit(Map.of("a/b", "file a/b\n")), 1);
+        checkout(new SparseCheckout(List.of()), commit(Map.of("a", "file a\n")), 1);
+
+        assertTrue(Files.isRegularFile(workTree.resolve("a")));
+        assertEquals("file a\n", read("a"));
+    }
+
+    @Test
+    public void replacesAFileWithADirectoryOnSeveralThreads() throws Exception {
+        Map<String, String> files = manyFiles();
+        files.put("a", "file a\n");
+        checkout(new SparseCheckout(List.of()), commit(files), 4);
+
+        files.remove("a");
+        files.put("a/b", "file a/b\n");
+        SparseCheckout.Result result = checkout(new SparseCheckout(List.of()), commit(files), 4);
+
+        assertEquals(PARALLEL_FILE_COUNT + 1, result.filesWritten());
+        assertEquals("file a/b\n", read("a/b"));
+        assertEquals("file 0\n", read("files/file-000.txt"));
+    }
+
+    @Test
+    public void replacesAFileWithADirectoryInsideTheSparseCheckoutPaths() throws Exception {
+        SparseCheckout sparseCheckout = new SparseCheckout(List.of("docs"));
+        checkout(sparseCheckout, commit(Map.of("docs/a", "file docs/a\n", "src/c", "file src/c\n")), 1);
+        SparseCheckout.Result result = checkout(sparseCheckout, commit(Map.of("docs/a/b", "file docs/a/b\n", "src/c", "file src/c\n")), 1);
+
+        assertEquals(new SparseCheckout.Result(1, 1), result);
+        assertEquals("file docs/a/b\n", read("docs/a/b"));
+        assertFalse(Files.exists(workTree.resolve("src")));
+    }
+
+    @Test
+    public void deletesDirectoriesLeftEmpty() throws Exception {
+        checkout(new SparseCheckout(List.of()), commit(Map.of("a/b/c", "file a/b/c\n", "d", "file d\n")), 1);
+        checkout(new SparseCheckout(List.of()), commit(Map.of("d", "file d\n")), 1);
+
+        assertFalse(Files.exists(workTree.resolve("a")));
+        assertEquals("file d\n", read("d"));
+    }
+
+    private SparseCheckout.Result checkout(SparseCheckout sparseCheckout, ObjectId commitId, int threads) throws Exception {
+        return sparseCheckout.checkout(git.getRepository(), commitId, threads);
+    }
+
+    /**
+     * Commits the given files straight to the object database, leaving the working tree and the index to the checkout.
+     */
+    private ObjectId commit(Map<String, String> files) throws Exception {
+        Repository repository = git.getRepository();
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            DirCache index = DirCache.newInCore();
+            DirCacheBuilder builder = index.builder();
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                DirCacheEntry entry = new DirCacheEntry(file.getKey());
+                entry.setFileMode(FileMode.REGULAR_FILE);
+                entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, file.getValue().getBytes(StandardCharsets.UTF_8)));
+                builder.add(entry);
+            }
+            builder.finish();
+
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(index.writeTree(inserter));
+            commitBuilder.setAuthor(AUTHOR);
+            commitBuilder.setCommitter(AUTHOR);
+            commitBuilder.setMessage("Test commit\n");
+            ObjectId commitId = inserter.insert(commitBuilder);
+            inserter.flush();
+            return commitId;
+        }
+    }
+
+    private static Map<String, String> manyFiles() {
+        Map<String, String> files = new LinkedHashMap<>();
+        for (int i = 0; i < PARALLEL_FILE_COUNT; i++) {
+            files.put(String.format("files/file-%03d.txt", i), "file " + i + "\n");
+        }
+        return files;
+    }
+
+    private String read(String path) throws Exception {
+        return Files.readString(workTree.resolve(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.transport;
+
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class KnownHostsStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final PublicKey key = generateKey();
+    private final PublicKey otherKey = generateKey();
+
+    @Test
+    public void trustsAHostWithTheKeysListedForIt() {
+        KnownHostsStore store = KnownHostsStore.of(List.of("# Our git server", "", "git.example.com,other.example.com " + entry(key)));
+
+        assertTrue(accepts(store, "git.example.com", key));
+        assertTrue(accepts(store, "other.example.com", key));
+        assertFalse(accepts(store, "git.example.com", otherKey));
+        assertFalse(accepts(store, "unknown.example.com", key));
+        assertEquals(new KnownHostsStore.Statistics(2, 1, 2, 2, Map.of("git.example.com", 1L, "unknown.example.com", 1L)), store.getStatistics());
+    }
+
+    @Test
+    public void matchesWildcardsUnlessANegatedPatternMatches() {
+        KnownHostsStore store = KnownHostsStore.of(List.of(
+                "*.mirrors.example.com,!old.mirrors.example.com " + entry(key),
+                "git?.example.com " + entry(otherKey)));
+
+        assertTrue(accepts(store, "eu.mirrors.example.com", key));
+        assertFalse(accepts(store, "old.mirrors.example.com", key));
+        assertFalse(accepts(store, "mirrors.example.com", key));
+        assertTrue(accepts(store, "git1.example.com", otherKey));
+        assertFalse(accepts(store, "git12.example.com", otherKey));
+    }
+
+    @Test
+    public void trustsAHostWithTheKeysOfEveryEntryThatMatchesIt() {
+        KnownHostsStore store = KnownHostsStore.of(List.of(
+                "git.example.com " + entry(key),
+                "*.example.com " + entry(otherKey)));
+
+        assertTrue(accepts(store, "git.example.com", key));
+        assertTrue(accepts(store, "git.example.com", otherKey));
+        assertEquals(2, store.lookup("git.example.com", InetSocketAddress.createUnresolved("git.example.com", 22), null).size());
+    }
+
+    @Test
+    public void rejectsARevokedKeyEvenIfAnotherEntryTrustsIt() {
+        KnownHostsStore store = KnownHostsStore.of(List.of(
+                "git.example.com " + entry(key),
+                "* " + entry(otherKey),
+                "@revoked * " + entry(key)));
+
+        assertFalse(accepts(store, "git.example.com", key));
+        assertTrue(accepts(store, "git.example.com", otherKey));
+        assertEquals(List.of(otherKey), store.lookup("git.example.com", InetSocketAddress.createUnresolved("git.example.com", 22), null));
+    }
+
+    @Test
+    public void listsHostsOnOtherPortsWithTheirPort() throws Exception {
+        KnownHostsStore store = KnownHostsStore.of(List.of(
+                "[git.example.com]:2222 " + entry(key),
+                "[10.0.0.1]:2222 " + entry(otherKey)));
+        InetSocketAddress remoteAddress = new InetSocketAddress(InetAddress.getByAddress("git.example.com", new byte[]{10, 0, 0, 1}), 2222);
+
+        assertTrue(store.accept("git.example.com", remoteAddress, key, null, null));
+        assertTrue(store.accept("[git.example.com]:2222", remoteAddress, key, null, null));
+        assertTrue(store.accept("git.example.com:2222", remoteAddress, key, null, null));
+        // The address the host name resolved to is a candidate too.
+        assertTrue(store.accept("git.example.com", remoteAddress, otherKey, null, null));
+        assertFalse(accepts(store, "git.example.com", key));
+    }
+
+    @Test
+    public void skipsHashedAndCertificateAuthorityEntries() {
+        KnownHostsStore store = KnownHostsStore.of(List.of(
+                "|1|F1E1KeoE/eEWhi10WpGv4OdiO6Y=|3988QV0VE8wmZL7suNrYQLITLCg= " + entry(key),
+                "@cert-authority *.example.com " + entry(key),
+                "git.example.com " + entry(otherKey)));
+
+        assertFalse(accepts(store, "git.example.com", key));
+        assertTrue(accepts(store, "git.example.com", otherKey));
+        assertEquals(1, store.getStatistics().keys());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEntryWithoutAKey() {
+        KnownHostsStore.of(List.of("git.example.com ecdsa-sha2-nistp256"));
+    }
+
+    @Test
+    public void readsTheFileAgainOnceItHasBeenModified() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("known_hosts");
+        Files.writeString(file, "git.example.com " + entry(key) + "\n");
+        KnownHostsStore store = KnownHostsStore.of(List.of("always.example.com " + entry(key)), file, Duration.ZERO);
+        assertTrue(accepts(store, "git.example.com", key));
+        assertFalse(accepts(store, "git.example.com", otherKey));
+
+        Files.writeString(file, "git.example.com " + entry(otherKey) + "\n");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(60)));
+
+        assertFalse(accepts(store, "git.example.com", key));
+        assertTrue(accepts(store, "git.example.com", otherKey));
+        assertTrue(accepts(store, "always.example.com", key));
+    }
+
+    @Test
+    public void waitsForTheCheckIntervalBeforeReadingTheFileAgain() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("known_hosts");
+        Files.writeString(file, "git.example.com " + entry(key) + "\n");
+        KnownHostsStore store = KnownHostsStore.of(List.of(), file, Duration.ofHours(1));
+        assertTrue(accepts(store, "git.example.com", key));
+
+        Files.writeString(file, "git.example.com " + entry(otherKey) + "\n");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(60)));
+        assertFalse(accepts(store, "git.example.com", otherKey));
+
+        store.reload();
+        assertTrue(accepts(store, "git.example.com", otherKey));
+    }
+
+    @Test
+    public void replacesItsEntriesAndKeepsTheFilesEntries() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("known_hosts");
+        Files.writeString(file, "file.example.com " + entry(key) + "\n");
+        KnownHostsStore store = KnownHostsStore.of(List.of("git.example.com " + entry(key)), file, Duration.ofHours(1));
+
+        store.replaceEntries(List.of("git.example.com " + entry(otherKey)));
+
+        assertFalse(accepts(store, "git.example.com", key));
+        assertTrue(accepts(store, "git.example.com", otherKey));
+        assertTrue(accepts(store, "file.example.com", key));
+    }
+
+    @Test
+    public void keepsItsEntriesWhenTheReplacementsCannotBeDecoded() {
+        KnownHostsStore store = KnownHostsStore.of(List.of("git.example.com " + entry(key)));
+
+        assertThrows(IllegalArgumentException.class, () -> store.replaceEntries(List.of("git.example.com ecdsa-sha2-nistp256 not-a-key")));
+
+        assertTrue(accepts(store, "git.example.com", key));
+    }
+
+    private static boolean accepts(KnownHostsStore store, String host, PublicKey serverKey) {
+        return store.accept(host, InetSocketAddress.createUnresolved(host, 22), serverKey, null, null);
+    }
+
+    private static String entry(PublicKey key) {
+        return PublicKeyEntry.toString(key);
+    }
+
+    private static PublicKey generateKey() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair().getPublic();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
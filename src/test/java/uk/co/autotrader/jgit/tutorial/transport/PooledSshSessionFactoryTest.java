@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.transport;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.SshTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.autotrader.jgit.tutorial.CustomSshdSessionFactory;
+import uk.co.autotrader.jgit.tutorial.helpers.InProcessGitSshServer;
+import uk.co.autotrader.jgit.tutorial.helpers.SyntheticRepositories;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class PooledSshSessionFactoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InProcessGitSshServer server;
+    private String remoteUrl;
+    private PooledSshSessionFactory sessionFactory;
+
+    @Before
+    public void startServer() {
+        Path repositories = temporaryFolder.getRoot().toPath().resolve("remote");
+        SyntheticRepositories.createBareRepository(repositories.resolve("repo.git"), 10, 2);
+        server = new InProcessGitSshServer(repositories).start();
+        remoteUrl = server.getRepositoryUrl("repo.git");
+    }
+
+    @After
+    public void stopServer() {
+        if (sessionFactory != null) {
+            sessionFactory.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void reusesOneSessionForConsecutiveOperations() throws Exception {
+        sessionFactory = newSessionFactory(Duration.ofMinutes(1));
+
+        listRemoteRefs();
+        listRemoteRefs();
+        try (Git ignored = Git.cloneRepository().setURI(remoteUrl).setDirectory(temporaryFolder.newFolder("clone"))
+                .setTransportConfigCallback(transport -> ((SshTransport) transport).setSshSessionFactory(sessionFactory)).call()) {
+            listRemoteRefs();
+        }
+
+        assertEquals(1, server.getSessionsOpened());
+        assertEquals(1, sessionFactory.getStatistics().handshakes());
+        assertEquals(3, sessionFactory.getStatistics().reusedSessions());
+    }
+
+    @Test
+    public void sharesOneSessionBetweenConcurrentOperations() throws Exception {
+        sessionFactory = newSessionFactory(Duration.ofMinutes(1));
+        // Open the session first, as operations that start together would each open their own.
+        listRemoteRefs();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Collection<Ref>>> operations = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                operations.add(executor.submit(this::listRemoteRefs));
+            }
+            for (Future<Collection<Ref>> operation : operations) {
+                operation.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, server.getSessionsOpened());
+        assertEquals(8, sessionFactory.getStatistics().reusedSessions());
+    }
+
+    @Test
+    public void closesIdleSessionsAndReconnectsOnTheNextOperation() throws Exception {
+        sessionFactory = newSessionFactory(Duration.ofMillis(200));
+
+        listRemoteRefs();
+        // Long enough for the session to go idle and for the reaper, which runs every 100 ms, to close it.
+        Thread.sleep(1000);
+        listRemoteRefs();
+
+        assertEquals(2, server.getSessionsOpened());
+        assertEquals(2, sessionFactory.getStatistics().handshakes());
+        assertEquals(0, sessionFactory.getStatistics().reusedSessions());
+    }
+
+    private PooledSshSessionFactory newSessionFactory(Duration idleTimeout) {
+        CustomSshdSessionFactory sshdSessionFactory = new CustomSshdSessionFactory(server.getClientPrivateKey(), null, server.getHostKeyEntry());
+        return new PooledSshSessionFactory(sshdSessionFactory.buildSshdSessionFactory(), idleTimeout);
+    }
+
+    private Collection<Ref> listRemoteRefs() throws Exception {
+        return Git.lsRemoteRepository().setRemote(remoteUrl)
+                .setTransportConfigCallback(transport -> ((SshTransport) transport).setSshSessionFactory(sessionFactory))
+                .call();
+    }
+}
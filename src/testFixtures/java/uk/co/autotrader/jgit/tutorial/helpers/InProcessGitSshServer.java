@@ -0,0 +1,366 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.helpers;
+
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An Apache MINA SSHD server running inside the JVM that serves the bare repositories under a base directory
+ * over SSH, using JGit's {@link UploadPack} for clones and fetches and {@link ReceivePack} for pushes.
+ * <p>
+ * It lets the tutorial's SSH code paths be exercised on localhost without a real git host.
+ * The server generates its own ECDSA host key and a client key pair; use {@link #getHostKeyEntry()}
+ * and {@link #getClientPrivateKey()} in place of the GitHub fingerprint and the {@code SSH_KEY} secret.
+ * <p>
+ * The server keeps count of the requests it has handled and the CPU time they used, so load tests can see
+ * how much of the work lands on the server's side.
+ */
+public class InProcessGitSshServer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(InProcessGitSshServer.class);
+
+    private final Path repositoriesDirectory;
+    private final KeyPair hostKeyPair;
+    private final KeyPair clientKeyPair;
+    private final SshServer server;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // Apache MINA SSHD names its I/O and timer threads after the server, e.g. sshd-SshServer[1b2c3d4e](port=0)-nio2-thread-1
+    private static final String TRANSPORT_THREAD_PREFIX = "sshd-SshServer[";
+
+    // Platform threads rather than virtual ones, as the JVM only measures CPU time for platform threads.
+    private final AtomicInteger commandThreads = new AtomicInteger();
+    private final ExecutorService commandExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "in-process-git-command-" + commandThreads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong sessionsOpened = new AtomicLong();
+    private final AtomicLong uploadPacks = new AtomicLong();
+    private final AtomicLong receivePacks = new AtomicLong();
+    private final AtomicLong uploadPackCpuNanos = new AtomicLong();
+    private final AtomicLong receivePackCpuNanos = new AtomicLong();
+
+    /**
+     * Creates a new server. Call {@link #start()} to begin accepting connections.
+     *
+     * @param repositoriesDirectory the directory containing the bare repositories to serve
+     */
+    public InProcessGitSshServer(Path repositoriesDirectory) {
+        this.repositoriesDirectory = repositoriesDirectory.toAbsolutePath().normalize();
+        this.hostKeyPair = generateEcKeyPair();
+        this.clientKeyPair = generateEcKeyPair();
+
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setKeyPairProvider(KeyPairProvider.wrap(hostKeyPair));
+        server.setPublickeyAuthenticator((username, key, session) -> KeyUtils.compareKeys(key, clientKeyPair.getPublic()));
+        server.setCommandFactory((channel, command) -> new GitCommand(command));
+        server.addSessionListener(new SessionListener() {
+            @Override
+            public void sessionCreated(Session session) {
+                synchronized (sessionsOpened) {
+                    sessionsOpened.incrementAndGet();
+                    sessionsOpened.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts listening on an ephemeral port on the loopback interface.
+     *
+     * @return this server
+     */
+    public InProcessGitSshServer start() {
+        try {
+            server.start();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start in-process SSH server", e);
+        }
+        logger.info("In-process git SSH server listening on port {} serving {}", getPort(), repositoriesDirectory);
+        return this;
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Returns the SSH URL of a repository served by this server.
+     *
+     * @param repositoryName the name of the bare repository directory under the repositories directory
+     * @return an SSH URL such as {@code ssh://git@127.0.0.1:12345/my-repo.git}
+     */
+    public String getRepositoryUrl(String repositoryName) {
+        return "ssh://git@127.0.0.1:" + getPort() + "/" + repositoryName;
+    }
+
+    /**
+     * Returns the server's public host key in the same {@code <type> <base64>} format as the GitHub fingerprint in the Configuration class.
+     *
+     * @return the public host key entry
+     */
+    public String getHostKeyEntry() {
+        return PublicKeyEntry.toString(hostKeyPair.getPublic());
+    }
+
+    /**
+     * Returns the private key the server accepts, in OpenSSH format, as it would be supplied through {@code SSH_KEY}.
+     *
+     * @return the client private key
+     */
+    public String getClientPrivateKey() {
+        ByteArrayOutputStream privateKey = new ByteArrayOutputStream();
+        try {
+            new OpenSSHKeyPairResourceWriter().writePrivateKey(clientKeyPair, "in-process-client", null, privateKey);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encode client private key", e);
+        }
+        return privateKey.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of SSH sessions (TCP connections with a key exchange) the server has accepted
+     */
+    public long getSessionsOpened() {
+        return sessionsOpened.get();
+    }
+
+    /**
+     * Waits until the server has accepted more than the given number of SSH sessions, e.g. to time how long a client
+     * in another process takes to open its first connection.
+     *
+     * @param sessions the number of sessions opened so far, from {@link #getSessionsOpened()}
+     * @param timeout  the longest time to wait
+     * @return false if the timeout passed first
+     */
+    public boolean awaitSessionOpened(long sessions, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (sessionsOpened) {
+            while (sessionsOpened.get() <= sessions) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(sessionsOpened, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of clone or fetch requests the server has handled
+     */
+    public long getUploadPacks() {
+        return uploadPacks.get();
+    }
+
+    /**
+     * @return the number of push requests the server has handled
+     */
+    public long getReceivePacks() {
+        return receivePacks.get();
+    }
+
+    /**
+     * @return the CPU time the server's threads have spent handling clone or fetch requests, in nanoseconds
+     */
+    public long getUploadPackCpuNanos() {
+        return uploadPackCpuNanos.get();
+    }
+
+    /**
+     * @return the CPU time the server's threads have spent handling push requests, in nanoseconds
+     */
+    public long getReceivePackCpuNanos() {
+        return receivePackCpuNanos.get();
+    }
+
+    /**
+     * Returns the CPU time used so far by the server's SSH I/O threads, which do the key exchanges, encryption
+     * and channel bookkeeping for every request. Only threads that are still alive are counted, which for
+     * Apache MINA SSHD's thread pools is all of them while the server is running.
+     *
+     * @return the CPU time of the SSH transport threads, in nanoseconds
+     */
+    public long getTransportCpuNanos() {
+        long cpuNanos = 0;
+        for (ThreadInfo thread : THREADS.getThreadInfo(THREADS.getAllThreadIds())) {
+            if (thread != null && thread.getThreadName().startsWith(TRANSPORT_THREAD_PREFIX)) {
+                cpuNanos += Math.max(0, THREADS.getThreadCpuTime(thread.getThreadId()));
+            }
+        }
+        return cpuNanos;
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.stop(true);
+        } catch (IOException e) {
+            logger.warn("Failed to stop in-process SSH server", e);
+        }
+        commandExecutor.shutdownNow();
+    }
+
+    private Repository openRepository(String requestedPath) throws IOException {
+        String relativePath = requestedPath.replaceAll("^'|'$", "").replaceFirst("^/+", "");
+        Path gitDirectory = repositoriesDirectory.resolve(relativePath).normalize();
+        if (!gitDirectory.startsWith(repositoriesDirectory) || !Files.isDirectory(gitDirectory)) {
+            throw new IOException("Repository not found: " + requestedPath);
+        }
+        return new FileRepositoryBuilder().setGitDir(gitDirectory.toFile()).setMustExist(true).build();
+    }
+
+    private static KeyPair generateEcKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to generate EC key pair", e);
+        }
+    }
+
+    /**
+     * Runs a single {@code git-upload-pack} or {@code git-receive-pack} request on an SSH exec channel.
+     */
+    private class GitCommand implements Command {
+
+        private final String command;
+        private InputStream in;
+        private OutputStream out;
+        private OutputStream err;
+        private ExitCallback exitCallback;
+
+        GitCommand(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+            this.err = err;
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback exitCallback) {
+            this.exitCallback = exitCallback;
+        }
+
+        @Override
+        public void start(ChannelSession channel, Environment environment) {
+            // The git client asks for protocol v2 through the GIT_PROTOCOL environment variable.
+            String gitProtocol = environment.getEnv().get("GIT_PROTOCOL");
+            commandExecutor.execute(() -> run(gitProtocol));
+        }
+
+        @Override
+        public void destroy(ChannelSession channel) {
+            // Nothing to clean up; the pack handlers finish when the channel's streams are closed.
+        }
+
+        private void run(String gitProtocol) {
+            int separator = command.indexOf(' ');
+            String program = separator < 0 ? command : command.substring(0, separator);
+            String path = separator < 0 ? "" : command.substring(separator + 1).trim();
+
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+            AtomicLong cpuNanos = null;
+            try (Repository repository = openRepository(path)) {
+                List<String> extraParameters = gitProtocol == null ? List.of() : List.of(gitProtocol.split(":"));
+                switch (program) {
+                    case "git-upload-pack" -> {
+                        uploadPacks.incrementAndGet();
+                        cpuNanos = uploadPackCpuNanos;
+                        UploadPack uploadPack = new UploadPack(repository);
+                        uploadPack.setExtraParameters(extraParameters);
+                        // Protocol v2 lists the refs and fetches in separate requests, so a branch can move in between.
+                        // Serve any commit reachable from the refs, as GitHub does, rather than failing such fetches.
+                        uploadPack.setRequestPolicy(UploadPack.RequestPolicy.REACHABLE_COMMIT);
+                        uploadPack.upload(in, out, err);
+                    }
+                    case "git-receive-pack" -> {
+                        receivePacks.incrementAndGet();
+                        cpuNanos = receivePackCpuNanos;
+                        new ReceivePack(repository).receive(in, out, err);
+                    }
+                    default -> throw new IOException("Unsupported command: " + command);
+                }
+                out.flush();
+                exitCallback.onExit(0);
+            } catch (Exception e) {
+                logger.debug("Git command '{}' failed", command, e);
+                exitCallback.onExit(1, String.valueOf(e.getMessage()));
+            } finally {
+                if (cpuNanos != null) {
+                    cpuNanos.addAndGet(THREADS.getCurrentThreadCpuTime() - cpuStart);
+                }
+            }
+        }
+    }
+}
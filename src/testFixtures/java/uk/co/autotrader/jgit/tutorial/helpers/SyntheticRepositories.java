@@ -0,0 +1,154 @@
+/*
+ * Copyright 2024 AUTO TRADER GROUP PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.autotrader.jgit.tutorial.helpers;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Creates repositories filled with generated content, so the tutorial's git operations can be exercised
+ * and measured offline without a real remote.
+ */
+public final class SyntheticRepositories {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("Synthetic Author", "synthetic.author@example.com");
+
+    private SyntheticRepositories() {
+    }
+
+    /**
+     * Creates a bare repository whose {@code main} branch has the given number of commits.
+     * Every commit contains the same set of text files, and each commit after the first rewrites about a tenth of them.
+     *
+     * @param gitDirectory the directory of the new bare repository
+     * @param fileCount the number of files in each commit
+     * @param commitCount the number of commits in the history
+     */
+    public static void createBareRepository(Path gitDirectory, int fileCount, int commitCount) {
+        createBareRepository(gitDirectory, fileCount, commitCount, 0, 0);
+    }
+
+    /**
+     * Creates a bare repository as {@link #createBareRepository(Path, int, int)} does, plus a number of large
+     * incompressible binary files in the first commit.
+     *
+     * @param gitDirectory the directory of the new bare repository
+     * @param fileCount the number of text files in each commit
+     * @param commitCount the number of commits in the history
+     * @param largeBlobCount the number of large binary files
+     * @param largeBlobSize the size in bytes of each large binary file
+     */
+    public static void createBareRepository(Path gitDirectory, int fileCount, int commitCount, int largeBlobCount, int largeBlobSize) {
+        try (Git git = Git.init().setBare(true).setInitialBranch("main").setGitDir(gitDirectory.toFile()).call();
+             ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            Repository repository = git.getRepository();
+            // Let clients fetch with partial clone filters, as GitHub does.
+            repository.getConfig().setBoolean("uploadpack", null, "allowFilter", true);
+            // JGit runs an automatic GC after receiving a push, which races with concurrent pushes in the benchmarks.
+            repository.getConfig().setBoolean("receive", null, "autogc", false);
+            repository.getConfig().save();
+            Random random = new Random(42);
+
+            ObjectId[] blobs = new ObjectId[fileCount];
+            ObjectId[] largeBlobs = new ObjectId[largeBlobCount];
+            for (int i = 0; i < largeBlobCount; i++) {
+                byte[] content = new byte[largeBlobSize];
+                random.nextBytes(content);
+                largeBlobs[i] = inserter.insert(Constants.OBJ_BLOB, content);
+            }
+
+            ObjectId parent = null;
+            for (int commit = 0; commit < commitCount; commit++) {
+                for (int file = 0; file < fileCount; file++) {
+                    if (commit == 0 || random.nextInt(10) == 0) {
+                        blobs[file] = inserter.insert(Constants.OBJ_BLOB, fileContent(file, commit));
+                    }
+                }
+
+                DirCache index = DirCache.newInCore();
+                DirCacheBuilder builder = index.builder();
+                for (int file = 0; file < fileCount; file++) {
+                    builder.add(entry(filePath(file), blobs[file]));
+                }
+                for (int i = 0; i < largeBlobCount; i++) {
+                    builder.add(entry(String.format("assets/large-%03d.bin", i), largeBlobs[i]));
+                }
+                builder.finish();
+
+                CommitBuilder commitBuilder = new CommitBuilder();
+                commitBuilder.setTreeId(index.writeTree(inserter));
+                if (parent != null) {
+                    commitBuilder.setParentId(parent);
+                }
+                commitBuilder.setAuthor(AUTHOR);
+                commitBuilder.setCommitter(AUTHOR);
+                commitBuilder.setMessage("Synthetic commit " + commit + "\n");
+                parent = inserter.insert(commitBuilder);
+            }
+            inserter.flush();
+
+            if (parent != null) {
+                RefUpdate refUpdate = repository.updateRef(Constants.R_HEADS + "main");
+                refUpdate.setNewObjectId(parent);
+                refUpdate.forceUpdate();
+            }
+        } catch (IOException | GitAPIException e) {
+            throw new RuntimeException("Failed to create synthetic repository: " + gitDirectory, e);
+        }
+    }
+
+    /**
+     * Returns the path of a generated text file. Files are spread over nested directories of at most 100 entries.
+     *
+     * @param file the index of the file
+     * @return the path of the file relative to the repository root
+     */
+    public static String filePath(int file) {
+        return String.format("src/module-%03d/package-%02d/File%05d.txt", file / 1000, (file / 100) % 10, file);
+    }
+
+    private static byte[] fileContent(int file, int commit) {
+        StringBuilder content = new StringBuilder();
+        for (int line = 0; line < 20; line++) {
+            content.append("file ").append(file).append(" revision ").append(commit).append(" line ").append(line).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static DirCacheEntry entry(String path, ObjectId blob) {
+        DirCacheEntry entry = new DirCacheEntry(path);
+        entry.setFileMode(FileMode.REGULAR_FILE);
+        entry.setObjectId(blob);
+        return entry;
+    }
+}